@@ -61,6 +61,22 @@ public interface ClientRequestHandler {
     throw new UnsupportedOperationException("TLS support not available in FRDS.Broker before v 3.0");
   }
 
+  /**
+   * Set the timeouts of communicating with the server, so a client
+   * is not blocked forever by a server that is down or stalled.
+   * Default method for backward compatibility, which does nothing,
+   * so handlers without timeouts keep their own behavior and can
+   * still be decorated by handlers that set timeouts.
+   *
+   * @param connectTimeoutMillis the maximal time to wait for a
+   *                             connection to the server
+   * @param readTimeoutMillis the maximal time to wait for the reply
+   *                          once the request is sent
+   */
+  default void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+    // no timeouts to set
+  }
+
   /**
    * Close the connection to server.
    */
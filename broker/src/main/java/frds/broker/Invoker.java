@@ -17,6 +17,8 @@
 
 package frds.broker;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * The Invoker role in the Broker Pattern.
  * It is responsible for demarshalling the request
@@ -40,4 +42,18 @@ public interface Invoker {
    */
 
   String handleRequest(String request);
+
+  /**
+   * Handle the incoming request, without blocking the calling thread
+   * while the servant awaits slow resources, e.g. storage round trips.
+   * Default method for backward compatibility, which handles
+   * the request synchronously.
+   * @param request
+   *          the request in the chosen marshalling format
+   * @return future that completes with the reply in the chosen
+   *         marshalling format
+   */
+  default CompletableFuture<String> handleRequestAsync(String request) {
+    return CompletableFuture.completedFuture(handleRequest(request));
+  }
 }
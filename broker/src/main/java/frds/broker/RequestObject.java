@@ -29,6 +29,8 @@ public class RequestObject {
   private final String operationName;
   private final String payload;
   private final String objectId;
+  // Identity the client claims, null if it is anonymous
+  private final String clientId;
 
   /* Include version identity of payload to allow
    * marshalling robustness in future formats.
@@ -36,9 +38,15 @@ public class RequestObject {
   private final int versionIdentity = Versioning.MARSHALLING_VERSION;
 
   public RequestObject( String objectId, String operationName, String payload) {
+    this(objectId, operationName, payload, null);
+  }
+
+  public RequestObject( String objectId, String operationName, String payload,
+                        String clientId) {
     this.objectId = objectId;
     this.operationName = operationName;
     this.payload = payload;
+    this.clientId = clientId;
   }
 
   public String getOperationName() {
@@ -53,12 +61,17 @@ public class RequestObject {
     return objectId;
   }
 
+  public String getClientId() {
+    return clientId;
+  }
+
   @Override
   public String toString() {
     return new StringJoiner(", ", RequestObject.class.getSimpleName() + "[", "]")
             .add("operationName='" + operationName + "'")
             .add("payload='" + payload + "'")
             .add("objectId='" + objectId + "'")
+            .add("clientId='" + clientId + "'")
             .add("versionIdentity=" + versionIdentity)
             .toString();
   }
@@ -42,6 +42,20 @@ public interface ServerRequestHandler {
    */
   void stop();
 
+  /** Close the request processing gracefully: stop accepting
+   * new requests, and await those in flight, up to the given
+   * deadline, before closing. Default method for backward
+   * compatibility, which just stops.
+   * @param drainTimeoutMillis the maximal time to await requests
+   *                           in flight
+   * @return true if all requests in flight completed before the
+   * request processing closed
+   */
+  default boolean stop(long drainTimeoutMillis) {
+    stop();
+    return true;
+  }
+
   /** Set the port that the request handler should listen
    * to; and define invoker to do the upcall to.
    * @param port the TPC/IP port number to listen to.
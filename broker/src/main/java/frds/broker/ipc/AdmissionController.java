@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package frds.broker.ipc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits the number of requests a server handles concurrently, so that
+ * during traffic spikes excess requests are rejected at once instead of
+ * queueing until latency explodes. Rejected clients are told to come
+ * back later.
+ * <p>
+ * The limit is either static, or adapted to the observed latency by
+ * additive increase, multiplicative decrease (AIMD): each request that
+ * completes within the target latency raises the limit by a fraction,
+ * about one for every limit number of requests, while a request that
+ * is slower, or fails, lowers the limit by a tenth. The limit is lowered
+ * once per window: requests that were admitted before the last decrease
+ * saw the load that caused it, so they do not lower it again.
+ * <p>
+ * Requests of LOW priority are only admitted while some of the limit
+ * remains for HIGH priority requests, so that e.g. uploads of
+ * measurements are served while browsing is shed.
+ */
+public class AdmissionController {
+
+  /** The priority of a request when the server is loaded */
+  public enum Priority { HIGH, LOW }
+
+  /** The part of the limit that LOW priority requests may use */
+  public static final double LOW_PRIORITY_SHARE = 0.8;
+  private static final double DECREASE_FACTOR = 0.9;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final long targetLatencyNanos;
+  private final LongSupplier nanoClock;
+
+  private double limit;
+  private long lastDecreaseAt;
+  private int inFlight = 0;
+  private long admitted = 0;
+  private long rejected = 0;
+
+  /**
+   * Create a controller with a static limit.
+   * @param limit the maximal number of concurrent requests
+   */
+  public AdmissionController(int limit) {
+    this(limit, limit, limit, Long.MAX_VALUE, System::nanoTime);
+  }
+
+  /**
+   * Create a controller whose limit adapts to the observed latency.
+   * @param initialLimit the limit until latencies have been observed
+   * @param minLimit the limit is never lowered below this
+   * @param maxLimit the limit is never raised above this
+   * @param targetLatencyMillis latencies above this lower the limit
+   */
+  public AdmissionController(int initialLimit, int minLimit, int maxLimit,
+                             long targetLatencyMillis) {
+    this(initialLimit, minLimit, maxLimit, targetLatencyMillis, System::nanoTime);
+  }
+
+  /**
+   * Create a controller with a given clock, mostly a feature to
+   * enable testing.
+   * @param initialLimit the limit until latencies have been observed
+   * @param minLimit the limit is never lowered below this
+   * @param maxLimit the limit is never raised above this
+   * @param targetLatencyMillis latencies above this lower the limit
+   * @param nanoClock the clock, in nano seconds, to measure latency by
+   */
+  public AdmissionController(int initialLimit, int minLimit, int maxLimit,
+                             long targetLatencyMillis, LongSupplier nanoClock) {
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.targetLatencyNanos = targetLatencyMillis == Long.MAX_VALUE
+        ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+    this.nanoClock = nanoClock;
+    this.lastDecreaseAt = nanoClock.getAsLong();
+  }
+
+  /**
+   * Admit a request, if the limit allows it.
+   * @param priority the priority of the request
+   * @return the permit to release once the request is handled,
+   *         or null if the request is rejected
+   */
+  public synchronized Permit tryAcquire(Priority priority) {
+    double available = priority == Priority.HIGH ? limit : limit * LOW_PRIORITY_SHARE;
+    if (inFlight >= Math.max(1, (int) available)) {
+      rejected++;
+      return null;
+    }
+    inFlight++;
+    admitted++;
+    return new Permit(nanoClock.getAsLong());
+  }
+
+  /** Get the present limit on concurrent requests
+   * @return the limit
+   */
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "limit=" + (int) limit + ", inFlight=" + inFlight
+        + ", admitted=" + admitted + ", rejected=" + rejected;
+  }
+
+  private synchronized void release(long admittedAt, boolean failed) {
+    inFlight--;
+    long now = nanoClock.getAsLong();
+    if (failed || now - admittedAt > targetLatencyNanos) {
+      if (admittedAt - lastDecreaseAt >= 0) {
+        limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+        lastDecreaseAt = now;
+      }
+    } else {
+      limit = Math.min(maxLimit, limit + 1.0 / limit);
+    }
+  }
+
+  /** The admission of a single request. */
+  public class Permit {
+    private final long admittedAt;
+    private boolean released = false;
+
+    private Permit(long admittedAt) {
+      this.admittedAt = admittedAt;
+    }
+
+    /** Release the permit once the request has been handled.
+     * @param failed true if the request failed in a way that
+     *               indicates overload, e.g. a timeout
+     */
+    public void release(boolean failed) {
+      if (released) { return; }
+      released = true;
+      AdmissionController.this.release(admittedAt, failed);
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package frds.broker.ipc;
+
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import frds.broker.ClientRequestHandler;
+import frds.broker.IPCException;
+
+/**
+ * ClientRequestHandler that distributes requests across several replicas
+ * of a server, each reached through its own client request handler, so
+ * any transport can be used. The endpoint of each request is chosen
+ * by a Strategy.
+ * <p>
+ * Endpoints are health checked passively: an endpoint whose requests
+ * fail in the IPC a number of times in a row is ejected, and receives
+ * no requests for a while. Afterwards it is let back in on probation,
+ * and ejected again at its first failure. If all endpoints are ejected,
+ * the one ejected first is used anyway rather than failing at once.
+ * <p>
+ * A failed request is not sent to another endpoint here; decorate with
+ * a ResilientClientRequestHandler to retry idempotent requests, which
+ * are then routed around the failed endpoint.
+ */
+public class LoadBalancingClientRequestHandler implements ClientRequestHandler {
+
+  /** How the endpoint of a request is chosen among the healthy ones */
+  public enum Strategy {
+    /** Each endpoint in turn */
+    ROUND_ROBIN,
+    /** The endpoint with the fewest requests awaiting their reply */
+    LEAST_OUTSTANDING,
+    /** The one of two distinct random endpoints that has the fewest requests
+     * awaiting their reply, which avoids herding on a single endpoint */
+    POWER_OF_TWO_CHOICES
+  }
+
+  public static final int DEFAULT_EJECTION_THRESHOLD = 3;
+  public static final long DEFAULT_EJECTION_MILLIS = 30_000;
+
+  private final List<Endpoint> endpoints = new ArrayList<>();
+  private final Strategy strategy;
+  private final int ejectionThreshold;
+  private final long ejectionNanos;
+  private final LongSupplier nanoClock;
+  private final AtomicInteger nextIndex = new AtomicInteger();
+
+  /**
+   * Create a load balancer over the servers at the given endpoints,
+   * using the default ejection policy.
+   * @param servers the servers, each as 'hostname:port'
+   * @param transport creates the client request handler of each server
+   * @param strategy how requests are distributed
+   */
+  public LoadBalancingClientRequestHandler(List<String> servers,
+                                           Supplier<ClientRequestHandler> transport,
+                                           Strategy strategy) {
+    this(connect(servers, transport), strategy, DEFAULT_EJECTION_THRESHOLD,
+        DEFAULT_EJECTION_MILLIS, System::nanoTime);
+  }
+
+  /**
+   * Create a load balancer.
+   * @param handlers the client request handlers of the servers
+   * @param strategy how requests are distributed
+   * @param ejectionThreshold the number of consecutive failures that
+   *                          ejects an endpoint
+   * @param ejectionMillis the time an ejected endpoint receives no requests
+   * @param nanoClock the clock, in nano seconds, mostly a feature
+   *                  to enable testing
+   */
+  public LoadBalancingClientRequestHandler(List<ClientRequestHandler> handlers,
+                                           Strategy strategy, int ejectionThreshold,
+                                           long ejectionMillis, LongSupplier nanoClock) {
+    if (handlers.isEmpty()) {
+      throw new IllegalArgumentException("At least one endpoint is required");
+    }
+    handlers.forEach(handler -> endpoints.add(new Endpoint(handler)));
+    this.strategy = strategy;
+    this.ejectionThreshold = ejectionThreshold;
+    this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+    this.nanoClock = nanoClock;
+  }
+
+  @Override
+  public String sendToServerAndAwaitReply(String request) {
+    Endpoint endpoint = choose();
+    endpoint.outstanding.incrementAndGet();
+    try {
+      String reply = endpoint.handler.sendToServerAndAwaitReply(request);
+      recordSuccess(endpoint);
+      return reply;
+    } catch (IPCException e) {
+      recordFailure(endpoint);
+      throw e;
+    } finally {
+      endpoint.outstanding.decrementAndGet();
+    }
+  }
+
+  /** Does nothing, as the endpoints are given when the load balancer
+   * is created. Decorators, e.g. ResilientClientRequestHandler, forward
+   * the server to their delegate, so this keeps them working on top of
+   * a load balancer.
+   */
+  @Override
+  public void setServer(String hostname, int port) {
+    // The endpoints are fixed
+  }
+
+  /** Does nothing, as the endpoints and their TLS settings are given
+   * when the load balancer is created.
+   */
+  @Override
+  public void setServer(String hostname, int port, boolean useTLS) {
+    // The endpoints are fixed
+  }
+
+  @Override
+  public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+    endpoints.forEach(e -> e.handler.setTimeouts(connectTimeoutMillis, readTimeoutMillis));
+  }
+
+  @Override
+  public void close() {
+    endpoints.forEach(e -> e.handler.close());
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder metrics = new StringBuilder("strategy=" + strategy);
+    long now = nanoClock.getAsLong();
+    for (int i = 0; i < endpoints.size(); i++) {
+      Endpoint endpoint = endpoints.get(i);
+      metrics.append(", endpoint").append(i).append("={requests=").append(endpoint.requests).
+          append(", outstanding=").append(endpoint.outstanding.get()).
+          append(", failures=").append(endpoint.failures).
+          append(", ejections=").append(endpoint.ejections).
+          append(", ejected=").append(isEjected(endpoint, now)).append('}');
+    }
+    return metrics.toString();
+  }
+
+  private synchronized Endpoint choose() {
+    long now = nanoClock.getAsLong();
+    List<Endpoint> healthy = new ArrayList<>(endpoints.size());
+    for (Endpoint endpoint : endpoints) {
+      if (!isEjected(endpoint, now)) { healthy.add(endpoint); }
+    }
+    Endpoint chosen;
+    if (healthy.isEmpty()) {
+      // Better to try the endpoint most likely to have recovered than to fail
+      chosen = Collections.min(endpoints, Comparator.comparingLong(e -> e.ejectedAt));
+    } else if (strategy == Strategy.ROUND_ROBIN) {
+      chosen = healthy.get(Math.floorMod(nextIndex.getAndIncrement(), healthy.size()));
+    } else if (strategy == Strategy.LEAST_OUTSTANDING) {
+      // Ties are broken round robin, so idle endpoints share the load
+      int offset = Math.floorMod(nextIndex.getAndIncrement(), healthy.size());
+      chosen = healthy.get(offset);
+      for (int i = 1; i < healthy.size(); i++) {
+        Endpoint candidate = healthy.get((offset + i) % healthy.size());
+        if (candidate.outstanding.get() < chosen.outstanding.get()) { chosen = candidate; }
+      }
+    } else {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      // Two distinct endpoints, if there are two
+      int firstIndex = random.nextInt(healthy.size());
+      int secondIndex = healthy.size() == 1 ? firstIndex
+          : (firstIndex + 1 + random.nextInt(healthy.size() - 1)) % healthy.size();
+      Endpoint first = healthy.get(firstIndex);
+      Endpoint second = healthy.get(secondIndex);
+      chosen = second.outstanding.get() < first.outstanding.get() ? second : first;
+    }
+    chosen.requests++;
+    return chosen;
+  }
+
+  private boolean isEjected(Endpoint endpoint, long now) {
+    return endpoint.ejected && now - endpoint.ejectedAt < ejectionNanos;
+  }
+
+  private synchronized void recordSuccess(Endpoint endpoint) {
+    endpoint.consecutiveFailures = 0;
+    endpoint.ejected = false;
+  }
+
+  private synchronized void recordFailure(Endpoint endpoint) {
+    endpoint.failures++;
+    endpoint.consecutiveFailures++;
+    // An endpoint on probation is ejected at its first failure
+    if (endpoint.ejected || endpoint.consecutiveFailures >= ejectionThreshold) {
+      endpoint.ejected = true;
+      endpoint.ejectedAt = nanoClock.getAsLong();
+      endpoint.ejections++;
+    }
+  }
+
+  private static List<ClientRequestHandler> connect(List<String> servers,
+                                                    Supplier<ClientRequestHandler> transport) {
+    List<ClientRequestHandler> handlers = new ArrayList<>(servers.size());
+    for (String server : servers) {
+      int colon = server.lastIndexOf(':');
+      if (colon < 0) {
+        throw new IllegalArgumentException("Server '" + server + "' is not 'hostname:port'");
+      }
+      ClientRequestHandler handler = transport.get();
+      handler.setServer(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+      handlers.add(handler);
+    }
+    return handlers;
+  }
+
+  private static class Endpoint {
+    final ClientRequestHandler handler;
+    final AtomicInteger outstanding = new AtomicInteger();
+    long requests = 0;
+    long failures = 0;
+    long ejections = 0;
+    int consecutiveFailures = 0;
+    boolean ejected = false;
+    long ejectedAt;
+
+    Endpoint(ClientRequestHandler handler) {
+      this.handler = handler;
+    }
+  }
+}
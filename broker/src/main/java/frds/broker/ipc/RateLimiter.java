@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package frds.broker.ipc;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import frds.broker.ReplyObject;
+import frds.broker.RequestObject;
+
+/**
+ * Token bucket rate limiter for server request handlers, so a single
+ * misbehaving client cannot flood the server. Each client has a bucket
+ * for each operation that has a rule of its own, and one for all other
+ * operations. Clients are identified by their remote address only: the
+ * client id of a request is chosen by the client, so a client could
+ * escape its limit by sending a new id with each request.
+ * <p>
+ * Each bucket is a single atomic 'theoretical arrival time', the time
+ * at which it would be full again (the generic cell rate algorithm),
+ * which is updated without locks. Buckets that are full carry no
+ * information, so when the table of buckets reaches its bound these are
+ * evicted, sweeping the table at most once a second; if it is still
+ * full, new clients share an overflow bucket for each operation until
+ * room is made.
+ */
+public class RateLimiter {
+
+  /** HTTP status code telling a client it is rate limited */
+  public static final int TOO_MANY_REQUESTS = 429;
+
+  private static final String OVERFLOW_CLIENT = "";
+  private static final String OTHER_OPERATIONS = "*";
+  private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+  /** The rate and burst that requests are allowed at. */
+  public static class Rule {
+    final long intervalNanos;
+    final long burstNanos;
+
+    /**
+     * Create a rule.
+     * @param ratePerSecond the sustained number of requests per second
+     * @param burst the number of requests allowed at once
+     */
+    public Rule(double ratePerSecond, int burst) {
+      intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+      burstNanos = intervalNanos * burst;
+    }
+
+    /**
+     * Parse a rule written as 'rate:burst', e.g. '10:20'.
+     * @param rule the rule
+     * @return the parsed rule
+     * @throws IllegalArgumentException if the rule is malformed
+     */
+    public static Rule parse(String rule) {
+      String[] parts = rule.split(":");
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Rule '" + rule + "' is not 'rate:burst'");
+      }
+      return new Rule(Double.parseDouble(parts[0]), Integer.parseInt(parts[1]));
+    }
+  }
+
+  private final Map<String, Rule> rules;
+  private final Rule defaultRule;
+  private final int maxBuckets;
+  private final LongSupplier nanoClock;
+  private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+  private final AtomicLong lastSweep;
+  private final Gson gson = new Gson();
+
+  private final LongAdder allowed = new LongAdder();
+  private final Map<String, LongAdder> limited = new ConcurrentHashMap<>();
+  private final LongAdder overflowed = new LongAdder();
+  private final LongAdder evicted = new LongAdder();
+
+  /**
+   * Create a rate limiter.
+   * @param rules the rules of the operations limited on their own
+   * @param defaultRule the rule of all other operations, or null to
+   *                    leave them unlimited
+   * @param maxBuckets the maximal number of buckets kept
+   */
+  public RateLimiter(Map<String, Rule> rules, Rule defaultRule, int maxBuckets) {
+    this(rules, defaultRule, maxBuckets, System::nanoTime);
+  }
+
+  /**
+   * Create a rate limiter with a given clock, mostly a feature to
+   * enable testing.
+   * @param rules the rules of the operations limited on their own
+   * @param defaultRule the rule of all other operations, or null to
+   *                    leave them unlimited
+   * @param maxBuckets the maximal number of buckets kept
+   * @param nanoClock the clock, in nano seconds
+   */
+  public RateLimiter(Map<String, Rule> rules, Rule defaultRule, int maxBuckets,
+                     LongSupplier nanoClock) {
+    this.rules = new HashMap<>(rules);
+    this.defaultRule = defaultRule;
+    this.maxBuckets = maxBuckets;
+    this.nanoClock = nanoClock;
+    this.lastSweep = new AtomicLong(nanoClock.getAsLong() - SWEEP_INTERVAL_NANOS);
+  }
+
+  /**
+   * Check a request, marshalled by the StandardJSONRequestor, against
+   * the limit of the address it came from.
+   * @param remoteAddress the address the request came from
+   * @param marshalledRequest the request
+   * @return null if the request may be handled, otherwise the marshalled
+   *         reply to send instead, with status 429 and the seconds to
+   *         wait in the description, as 'Retry-After: N; ...'
+   */
+  public String check(String remoteAddress, String marshalledRequest) {
+    RequestObject request;
+    try {
+      request = gson.fromJson(marshalledRequest, RequestObject.class);
+    } catch (JsonParseException e) {
+      // Malformed requests are the invoker's to reply to
+      return null;
+    }
+    if (request == null || request.getOperationName() == null) { return null; }
+    long waitNanos = tryAcquire(remoteAddress, request.getOperationName());
+    if (waitNanos == 0) { return null; }
+    long retryAfterSeconds = Math.max(1, (waitNanos + 999_999_999L) / 1_000_000_000L);
+    return gson.toJson(new ReplyObject(TOO_MANY_REQUESTS, "Retry-After: " + retryAfterSeconds
+        + "; Rate limit exceeded"));
+  }
+
+  /**
+   * Take a token from the bucket of a client and operation.
+   * @param client the identity of the client
+   * @param operationName the operation requested
+   * @return 0 if the request may be handled, otherwise the nano
+   *         seconds until it would be
+   */
+  public long tryAcquire(String client, String operationName) {
+    Rule rule = rules.get(operationName);
+    String operation = operationName;
+    if (rule == null) {
+      if (defaultRule == null) {
+        allowed.increment();
+        return 0;
+      }
+      rule = defaultRule;
+      operation = OTHER_OPERATIONS;
+    }
+    long now = nanoClock.getAsLong();
+    AtomicLong bucket = bucketOf(client, operation, now);
+    while (true) {
+      long arrival = bucket.get();
+      long next = Math.max(arrival, now) + rule.intervalNanos;
+      long wait = next - now - rule.burstNanos;
+      if (wait > 0) {
+        limited.computeIfAbsent(operation, op -> new LongAdder()).increment();
+        return wait;
+      }
+      if (bucket.compareAndSet(arrival, next)) {
+        allowed.increment();
+        return 0;
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder metrics = new StringBuilder("buckets=").append(buckets.size()).
+        append(", allowed=").append(allowed.sum());
+    new TreeMap<>(limited).forEach((operation, count) ->
+        metrics.append(", limited[").append(operation).append("]=").append(count.sum()));
+    return metrics.append(", overflowed=").append(overflowed.sum()).
+        append(", evicted=").append(evicted.sum()).toString();
+  }
+
+  private AtomicLong bucketOf(String client, String operation, long now) {
+    String key = client + '\n' + operation;
+    AtomicLong bucket = buckets.get(key);
+    if (bucket != null) { return bucket; }
+    if (buckets.size() >= maxBuckets) {
+      sweep(now);
+      if (buckets.size() >= maxBuckets) {
+        overflowed.increment();
+        key = OVERFLOW_CLIENT + '\n' + operation;
+        bucket = buckets.get(key);
+        if (bucket != null) { return bucket; }
+      }
+    }
+    return buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE));
+  }
+
+  /** Forget full buckets, as they are as good as new ones. Sweeping is
+   * linear in the size of the table, so it is done by a single thread,
+   * and at most once every SWEEP_INTERVAL_NANOS. */
+  private void sweep(long now) {
+    long last = lastSweep.get();
+    if (now - last < SWEEP_INTERVAL_NANOS || !lastSweep.compareAndSet(last, now)) {
+      return;
+    }
+    buckets.entrySet().removeIf(entry -> {
+      boolean full = entry.getValue().get() <= now;
+      if (full) { evicted.increment(); }
+      return full;
+    });
+  }
+}
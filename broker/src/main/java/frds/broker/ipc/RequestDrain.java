@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package frds.broker.ipc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of the requests a server is handling, so that it can be
+ * shut down gracefully: once draining starts no new requests are
+ * admitted, and the server awaits the requests in flight, up to a
+ * deadline, before it closes its connections.
+ */
+public class RequestDrain {
+
+  private int inFlight = 0;
+  private boolean draining = false;
+  private long rejected = 0;
+
+  /**
+   * Enter a request, unless the server is draining.
+   * @return true if the request may be handled; false if the server
+   *         is draining and the request must be rejected
+   */
+  public synchronized boolean enter() {
+    if (draining) {
+      rejected++;
+      return false;
+    }
+    inFlight++;
+    return true;
+  }
+
+  /** Exit a request that was entered. */
+  public synchronized void exit() {
+    inFlight--;
+    if (inFlight == 0) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * Stop admitting requests and await those in flight.
+   * @param timeoutMillis the maximal time to wait
+   * @return true if all requests in flight completed in time
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized boolean drain(long timeoutMillis) throws InterruptedException {
+    draining = true;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (inFlight > 0) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        return false;
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return true;
+  }
+
+  /** Get the number of requests being handled
+   * @return the number of requests in flight
+   */
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  /** Get whether the server is draining
+   * @return true once draining has started
+   */
+  public synchronized boolean isDraining() {
+    return draining;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "inFlight=" + inFlight + ", draining=" + draining
+        + ", rejected=" + rejected;
+  }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package frds.broker.ipc;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import frds.broker.ClientRequestHandler;
+import frds.broker.IPCException;
+import frds.broker.RequestObject;
+
+/**
+ * Decorator of a ClientRequestHandler that keeps clients responsive when
+ * the server is slow or down. Requests are bounded by the connect and
+ * read timeouts of the decorated handler. Requests that fail in the IPC
+ * are retried with exponential backoff and jitter, but only if they are
+ * idempotent, as a request that timed out may well have been performed
+ * by the server. After a number of consecutive failures the circuit
+ * opens: requests then fail at once, without waiting for the server,
+ * until a single trial request succeeds after the open interval.
+ * <p>
+ * Only failures in the IPC count, that is IPCExceptions thrown by the
+ * decorated handler; replies telling about server side errors are
+ * passed on to the requestor as they are, and other exceptions are
+ * thrown on without affecting the circuit.
+ */
+public class ResilientClientRequestHandler implements ClientRequestHandler {
+
+  public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5_000;
+  public static final int DEFAULT_READ_TIMEOUT_MILLIS = 35_000;
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+  public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+  public static final long DEFAULT_MAX_BACKOFF_MILLIS = 2_000;
+  public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  public static final long DEFAULT_OPEN_MILLIS = 10_000;
+
+  private enum State { CLOSED, OPEN, HALF_OPEN }
+
+  private final ClientRequestHandler delegate;
+  private final Predicate<String> isIdempotent;
+  private final int maxAttempts;
+  private final long initialBackoffMillis;
+  private final long maxBackoffMillis;
+  private final int failureThreshold;
+  private final long openNanos;
+  private final LongSupplier nanoClock;
+
+  private State state = State.CLOSED;
+  private int consecutiveFailures = 0;
+  private long openedAt;
+
+  private long requests = 0;
+  private long retries = 0;
+  private long failures = 0;
+  private long rejected = 0;
+  private long openings = 0;
+
+  /**
+   * Decorate a client request handler with the default timeouts,
+   * retry and circuit breaker policy.
+   * @param delegate the handler to decorate
+   * @param isIdempotent tells whether a marshalled request may safely
+   *                     be sent again
+   */
+  public ResilientClientRequestHandler(ClientRequestHandler delegate,
+                                       Predicate<String> isIdempotent) {
+    this(delegate, isIdempotent, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS,
+        DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS, DEFAULT_MAX_BACKOFF_MILLIS,
+        DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS, System::nanoTime);
+  }
+
+  /**
+   * Decorate a client request handler.
+   * @param delegate the handler to decorate
+   * @param isIdempotent tells whether a marshalled request may safely
+   *                     be sent again
+   * @param connectTimeoutMillis the timeout of connecting to the server
+   * @param readTimeoutMillis the timeout of awaiting the reply
+   * @param maxAttempts the number of times an idempotent request is sent
+   *                    before giving up
+   * @param initialBackoffMillis the maximal wait before the first retry
+   * @param maxBackoffMillis the maximal wait before any retry
+   * @param failureThreshold the number of consecutive failures that
+   *                         opens the circuit
+   * @param openMillis the time the circuit stays open before a
+   *                   trial request is let through
+   * @param nanoClock the clock, in nano seconds, mostly a feature
+   *                  to enable testing
+   */
+  public ResilientClientRequestHandler(ClientRequestHandler delegate,
+                                       Predicate<String> isIdempotent,
+                                       int connectTimeoutMillis, int readTimeoutMillis,
+                                       int maxAttempts, long initialBackoffMillis,
+                                       long maxBackoffMillis, int failureThreshold,
+                                       long openMillis, LongSupplier nanoClock) {
+    this.delegate = delegate;
+    this.isIdempotent = isIdempotent;
+    this.maxAttempts = maxAttempts;
+    this.initialBackoffMillis = initialBackoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.failureThreshold = failureThreshold;
+    this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+    this.nanoClock = nanoClock;
+    delegate.setTimeouts(connectTimeoutMillis, readTimeoutMillis);
+  }
+
+  /**
+   * Create a predicate that tells a request marshalled by the
+   * StandardJSONRequestor idempotent if its operation is one of the
+   * given ones.
+   * @param operationNames the names of the idempotent operations
+   * @return the predicate
+   */
+  public static Predicate<String> operationIn(Set<String> operationNames) {
+    Gson gson = new Gson();
+    return request -> {
+      try {
+        RequestObject requestObject = gson.fromJson(request, RequestObject.class);
+        return requestObject != null
+            && operationNames.contains(requestObject.getOperationName());
+      } catch (JsonParseException e) {
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Create a predicate that tells a request marshalled by the
+   * StandardJSONRequestor idempotent if it is of the given operation
+   * and has a non null argument at the given index, like an upload
+   * that carries an idempotency key.
+   * @param operationName the name of the operation
+   * @param argumentIndex the index of the argument in the payload
+   * @return the predicate
+   */
+  public static Predicate<String> operationWithArgument(String operationName,
+                                                       int argumentIndex) {
+    Gson gson = new Gson();
+    return request -> {
+      try {
+        RequestObject requestObject = gson.fromJson(request, RequestObject.class);
+        if (requestObject == null || !operationName.equals(requestObject.getOperationName())
+            || requestObject.getPayload() == null) {
+          return false;
+        }
+        JsonArray arguments = JsonParser.parseString(requestObject.getPayload()).getAsJsonArray();
+        return arguments.size() > argumentIndex && !arguments.get(argumentIndex).isJsonNull();
+      } catch (JsonParseException | IllegalStateException e) {
+        return false;
+      }
+    };
+  }
+
+  @Override
+  public String sendToServerAndAwaitReply(String request) {
+    boolean retryable = isIdempotent.test(request);
+    long backoff = initialBackoffMillis;
+    for (int attempt = 1; ; attempt++) {
+      permitRequest();
+      try {
+        String reply = delegate.sendToServerAndAwaitReply(request);
+        recordSuccess();
+        return reply;
+      } catch (IPCException e) {
+        recordFailure();
+        if (!retryable || attempt >= maxAttempts || isOpen()) { throw e; }
+      } catch (RuntimeException e) {
+        // Not an IPC failure, but never leave a trial request unaccounted for
+        releaseTrial();
+        throw e;
+      }
+      // Full jitter, so clients that failed together do not retry together
+      sleep(ThreadLocalRandom.current().nextLong(backoff + 1));
+      backoff = Math.min(2 * backoff, maxBackoffMillis);
+      synchronized (this) { retries++; }
+    }
+  }
+
+  @Override
+  public void setServer(String hostname, int port) {
+    delegate.setServer(hostname, port);
+  }
+
+  @Override
+  public void setServer(String hostname, int port, boolean useTLS) {
+    delegate.setServer(hostname, port, useTLS);
+  }
+
+  @Override
+  public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+    delegate.setTimeouts(connectTimeoutMillis, readTimeoutMillis);
+  }
+
+  @Override
+  public void close() {
+    delegate.close();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "state=" + state + ", requests=" + requests + ", retries=" + retries
+        + ", failures=" + failures + ", rejected=" + rejected + ", openings=" + openings;
+  }
+
+  private synchronized void permitRequest() {
+    requests++;
+    if (state == State.OPEN) {
+      if (nanoClock.getAsLong() - openedAt < openNanos) {
+        rejected++;
+        throw new IPCException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+            "Circuit open, server considered down: " + delegate);
+      }
+      // Let a single trial request through
+      state = State.HALF_OPEN;
+    } else if (state == State.HALF_OPEN) {
+      rejected++;
+      throw new IPCException(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+          "Circuit half open, awaiting trial request to: " + delegate);
+    }
+  }
+
+  private synchronized void recordSuccess() {
+    consecutiveFailures = 0;
+    state = State.CLOSED;
+  }
+
+  private synchronized void recordFailure() {
+    failures++;
+    consecutiveFailures++;
+    if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+      if (state != State.OPEN) { openings++; }
+      state = State.OPEN;
+      openedAt = nanoClock.getAsLong();
+    }
+  }
+
+  private synchronized void releaseTrial() {
+    if (state == State.HALF_OPEN) {
+      // Still open, and the next request is let through as trial
+      state = State.OPEN;
+    }
+  }
+
+  private synchronized boolean isOpen() {
+    return state == State.OPEN;
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IPCException("Interrupted while awaiting retry");
+    }
+  }
+}
@@ -38,6 +38,9 @@ public class UriTunnelClientRequestHandler
   protected final String path;
   private boolean useTLS;
   private String protocol;
+  // Zero means wait forever
+  private int connectTimeoutMillis = 0;
+  private int readTimeoutMillis = 0;
 
   /** Construct a URI Tunnel based CRH. Will communicate
    * using POST messages over http(s)://(hostname):(port)/(pathForPost)
@@ -88,6 +91,12 @@ public class UriTunnelClientRequestHandler
     baseURL = protocol + "://" + hostname + ":" + port + "/";
 }
 
+  @Override
+  public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
   @Override
   public String sendToServerAndAwaitReply(String request) {
     HttpResponse<String> reply;
@@ -98,6 +107,8 @@ public class UriTunnelClientRequestHandler
       reply = Unirest.post(baseURL + path)
               .header("Accept", MimeMediaType.TEXT_PLAIN)
               .header("Content-Type", MimeMediaType.TEXT_PLAIN)
+              .connectTimeout(connectTimeoutMillis)
+              .socketTimeout(readTimeoutMillis)
               .body(request).asString();
     } catch (UnirestException e) {
       throw new IPCException("UniRest POST request failed on request="
@@ -22,15 +22,36 @@ import static spark.Spark.*;
 import com.google.gson.Gson;
 
 import frds.broker.Invoker;
+import frds.broker.ReplyObject;
 import frds.broker.ServerRequestHandler;
 
+import frds.broker.ipc.RateLimiter;
+import frds.broker.ipc.RequestDrain;
 import frds.broker.ipc.SSLPropertyConstants;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletResponse;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
 /** ServerRequestHandler implementation using HTTP and URI Tunneling.
+ * <p>
+ * When stopped gracefully, requests arriving while those in flight
+ * are drained are rejected with status 503 Service Unavailable,
+ * telling the client when to retry in the reply's description
+ * as 'Retry-After: N; ...'.
+ * <p>
+ * Requests are handled through the invoker's handleRequestAsync
+ * method. Replies that are not ready at once are written using
+ * servlet asynchronous processing, so no Jetty thread is held while
+ * the invoker awaits e.g. storage round trips.
  * <p>
  * Implementation based on the Spark-Java framework.
  *
@@ -40,6 +61,8 @@ public class UriTunnelServerRequestHandler
         implements ServerRequestHandler {
 
   public static final String DEFAULT_URI_TUNNEL_PATH = "tunnel";
+  /** Seconds a client is told to wait before retrying while draining */
+  public static final int RETRY_AFTER_SECONDS = 1;
 
   protected final Gson gson;
   private boolean useTLS;
@@ -48,6 +71,8 @@ public class UriTunnelServerRequestHandler
   protected String lastVerb;
   protected String tunnelRoute;
   protected final Logger logger;
+  private RateLimiter rateLimiter;
+  protected final RequestDrain drain = new RequestDrain();
 
   /** Create a URI Tunnel based server request handler,
    * defaulting to path '/tunnel'. Remember to set port
@@ -101,6 +126,15 @@ public class UriTunnelServerRequestHandler
     this(invoker, port, false, tunnelRoute);
   }
 
+  /**
+   * Limit the rate of requests from each client. Must be set before
+   * the server is started.
+   * @param rateLimiter the limiter to check each request against
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
   @Override
   public void start() {
     // Set the port to listen to
@@ -126,9 +160,6 @@ public class UriTunnelServerRequestHandler
       
       logger.info("method=POST, context=request, request={}", marshalledRequest);
 
-      // The incoming marshalledRequest is the marshalled request to the invoker
-      String reply = invoker.handleRequest(marshalledRequest);
-
       // Store the last verb and status code to allow spying during test
       lastVerb = req.requestMethod();
 
@@ -139,20 +170,128 @@ public class UriTunnelServerRequestHandler
       // just know it is textual
       res.type(MimeMediaType.TEXT_PLAIN);
 
-      // response time in milliseconds for invoker upload is calculated
-      long responseTime = System.currentTimeMillis() - startTime;
-      logger.info("method=handleRequest, context=reply, reply={}, responseTime_ms={}",
-              reply, responseTime);
+      // The incoming marshalledRequest is the marshalled request to the
+      // invoker, unless the server is stopping or the client has
+      // exceeded its rate limit
+      if (!drain.enter()) {
+        return logReply(startTime, gson.toJson(new ReplyObject(
+            HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+            "Retry-After: " + RETRY_AFTER_SECONDS + "; Server is stopping")));
+      }
+      CompletableFuture<String> reply;
+      try {
+        String rejection = rateLimiter == null ? null
+            : rateLimiter.check(req.ip(), marshalledRequest);
+        reply = rejection != null ? CompletableFuture.completedFuture(rejection)
+            : invoker.handleRequestAsync(marshalledRequest);
+      } catch (RuntimeException e) {
+        drain.exit();
+        throw e;
+      }
+
+      if (reply.isDone()) {
+        // Synchronous invokers have replied already. The reply is
+        // written here, not by Spark, so a stop awaiting this request
+        // cannot close the connection before the reply is sent.
+        try {
+          write(res.raw(), logReply(startTime, join(reply)));
+        } finally {
+          drain.exit();
+        }
+        return "";
+      }
+
+      // Release the Jetty thread while the invoker awaits the reply,
+      // and write it once ready. The headers are committed at once,
+      // so Spark leaves the response body alone.
+      AsyncContext asyncContext = req.raw().startAsync();
+      asyncContext.setTimeout(0);
+      // The request is in flight until the reply has been sent
+      asyncContext.addListener(new AsyncListener() {
+        @Override
+        public void onComplete(AsyncEvent event) {
+          drain.exit();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) { }
+
+        @Override
+        public void onError(AsyncEvent event) { }
 
-      return reply;
+        @Override
+        public void onStartAsync(AsyncEvent event) { }
+      });
+      res.raw().flushBuffer();
+      reply.whenComplete((marshalledReply, failure) -> asyncContext.start(() -> {
+        try {
+          String body = marshalledReply;
+          if (failure != null) {
+            logger.error("method=handleRequest, context=failure, error={}", failure.toString());
+            body = gson.toJson(new ReplyObject(HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+                "Server failed to handle request: " + failure.getMessage()));
+          }
+          asyncContext.getResponse().getOutputStream().
+              write(logReply(startTime, body).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+          logger.error("method=handleRequest, context=reply, error={}", e.getMessage());
+        } finally {
+          asyncContext.complete();
+        }
+      }));
+      return "";
     });
   }
 
+  private String logReply(long startTime, String reply) {
+    // response time in milliseconds for invoker upload is calculated
+    long responseTime = System.currentTimeMillis() - startTime;
+    logger.info("method=handleRequest, context=reply, reply={}, responseTime_ms={}",
+            reply, responseTime);
+    return reply;
+  }
+
+  private static void write(HttpServletResponse response, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    response.setContentLength(bytes.length);
+    response.getOutputStream().write(bytes);
+    response.flushBuffer();
+  }
+
+  private static String join(CompletableFuture<String> reply) {
+    try {
+      return reply.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
   @Override
   public void stop() {
     spark.Spark.stop();
   }
 
+  @Override
+  public boolean stop(long drainTimeoutMillis) {
+    logger.info("method=stop, context=draining, inFlight={}, timeout_ms={}",
+        drain.getInFlight(), drainTimeoutMillis);
+    boolean drained;
+    try {
+      drained = drain.drain(drainTimeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      drained = false;
+    }
+    spark.Spark.stop();
+    spark.Spark.awaitStop();
+    logger.info("method=stop, context=stopped, drained={}, abandoned={}",
+        drained, drain.getInFlight());
+    return drained;
+  }
+
   @Override
   public String toString() {
     return getClass().getCanonicalName() + ", port " + port +
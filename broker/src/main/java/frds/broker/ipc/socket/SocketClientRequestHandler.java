@@ -41,6 +41,9 @@ public class SocketClientRequestHandler
 
   private String hostname;
   private int port;
+  // Zero means wait forever
+  private int connectTimeoutMillis = 0;
+  private int readTimeoutMillis = 0;
 
   /** Create the CRH. Remember to use
    * 'setServer' before any sendToServer
@@ -71,6 +74,12 @@ public class SocketClientRequestHandler
     setServer(hostname, port);
   }
 
+  @Override
+  public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
   @Override
   public String sendToServerAndAwaitReply(String request) {
     Socket clientSocket = null;
@@ -79,7 +88,9 @@ public class SocketClientRequestHandler
     PrintWriter out;
     BufferedReader in;
     try {
-      clientSocket = new Socket(hostname, port);
+      clientSocket = new Socket();
+      clientSocket.connect(new InetSocketAddress(hostname, port), connectTimeoutMillis);
+      clientSocket.setSoTimeout(readTimeoutMillis);
       out = new PrintWriter(clientSocket.getOutputStream(), true);
       in = new BufferedReader(new InputStreamReader(
               clientSocket.getInputStream()));
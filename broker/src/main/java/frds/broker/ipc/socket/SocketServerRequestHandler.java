@@ -26,6 +26,7 @@ import frds.broker.Invoker;
 import frds.broker.ReplyObject;
 import frds.broker.RequestObject;
 import frds.broker.ServerRequestHandler;
+import frds.broker.ipc.RateLimiter;
 
 /**
  * Implementation of the Server Request Handler using
@@ -33,14 +34,19 @@ import frds.broker.ServerRequestHandler;
  * method of the server must create a thread that has
  * an instance to support receiving network requests.
  * <p>
+ * Requests are handled one at a time, so stopping closes
+ * the server socket, which stops accepting connections at
+ * once, while the request being handled is completed.
+ * <p>
  * The current implementation is pretty verbose
  * for learning purposes.
  */
 public class SocketServerRequestHandler
         implements Runnable, ServerRequestHandler {
   private int port;
-  private ServerSocket serverSocket = null;
+  private volatile ServerSocket serverSocket = null;
   private Invoker invoker = null;
+  private RateLimiter rateLimiter = null;
 
   /** Construct a socket based server request handler.
    * Remember to set the invoker delegate and port before
@@ -65,7 +71,17 @@ public class SocketServerRequestHandler
     setPortAndInvoker(port, invoker);
   }
 
-  private boolean isStopped;
+  /**
+   * Limit the rate of requests from each client. Must be set before
+   * the server is started.
+   * @param rateLimiter the limiter to check each request against
+   */
+  public void setRateLimiter(RateLimiter rateLimiter) {
+    this.rateLimiter = rateLimiter;
+  }
+
+  private volatile boolean isStopped;
+  private Thread daemon;
 
   @Override
   public void run() {
@@ -73,7 +89,6 @@ public class SocketServerRequestHandler
 
     System.out.println("*** Server socket established ***");
     
-    isStopped = false;
     while (!isStopped) {
 
       System.out.println("--> Accepting...");
@@ -82,8 +97,7 @@ public class SocketServerRequestHandler
         clientSocket = serverSocket.accept();
       } catch(IOException e) {
         if(isStopped) {
-          System.out.println("Server Stopped.") ;
-          return;
+          break;
         }
         throw new RuntimeException(
             "Error accepting client connection", e);
@@ -96,6 +110,7 @@ public class SocketServerRequestHandler
                 + e.getMessage());
       }
     }
+    closeServerSocket();
     System.out.println("Server Stopped.");
   }
 
@@ -115,7 +130,13 @@ public class SocketServerRequestHandler
       System.err.println(
               "Server read a null string from the socket???");
     } else {
-       marshalledReply = invoker.handleRequest(inputLine);
+      if (rateLimiter != null) {
+        marshalledReply = rateLimiter.check(
+                clientSocket.getInetAddress().getHostAddress(), inputLine);
+      }
+      if (marshalledReply == null) {
+        marshalledReply = invoker.handleRequest(inputLine);
+      }
 
       System.out.println("--< replied: " + marshalledReply);
     }
@@ -138,15 +159,46 @@ public class SocketServerRequestHandler
     } 
   }
 
+  private synchronized void closeServerSocket() {
+    if (serverSocket != null) {
+      try {
+        serverSocket.close();
+      } catch (IOException e) {
+        System.out.println("ERROR: IOException on closing server socket: "
+                + e.getMessage());
+      }
+    }
+  }
+
   @Override
   public void start() {
-    Thread daemon = new Thread(this);
+    isStopped = false;
+    daemon = new Thread(this);
     daemon.start();
   }
 
   @Override
   public void stop() {
-    isStopped = true; // Will only stop after next message...
+    isStopped = true;
+    // Closing the server socket makes a blocked accept fail,
+    // while the request being handled, if any, is completed
+    closeServerSocket();
+  }
+
+  @Override
+  public boolean stop(long drainTimeoutMillis) {
+    stop();
+    if (daemon == null) {
+      return true;
+    }
+    try {
+      daemon.join(drainTimeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    boolean drained = !daemon.isAlive();
+    System.out.println("Server drained: " + drained);
+    return drained;
   }
 
   @Override
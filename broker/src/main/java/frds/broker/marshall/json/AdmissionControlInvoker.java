@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package frds.broker.marshall.json;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import frds.broker.Invoker;
+import frds.broker.ReplyObject;
+import frds.broker.RequestObject;
+import frds.broker.ipc.AdmissionController;
+import frds.broker.ipc.AdmissionController.Priority;
+
+/**
+ * Decorator of an Invoker that admits requests, marshalled in JSON by
+ * the StandardJSONRequestor, through an AdmissionController. Rejected
+ * requests are answered at once with status 503, and the seconds to
+ * wait before retrying in the description, as 'Retry-After: N; ...'.
+ */
+public class AdmissionControlInvoker implements Invoker {
+
+  /** Seconds a rejected client is asked to wait */
+  public static final int RETRY_AFTER_SECONDS = 1;
+
+  private final Invoker delegate;
+  private final AdmissionController controller;
+  private final Function<String, Priority> priorityOf;
+  private final Gson gson = new Gson();
+
+  /**
+   * Decorate an invoker.
+   * @param delegate the invoker to decorate
+   * @param controller the controller to admit requests through
+   * @param priorityOf the priority of each operation name, or null for
+   *                   operations that are not admission controlled,
+   *                   e.g. long polls
+   */
+  public AdmissionControlInvoker(Invoker delegate, AdmissionController controller,
+                                 Function<String, Priority> priorityOf) {
+    this.delegate = delegate;
+    this.controller = controller;
+    this.priorityOf = priorityOf;
+  }
+
+  @Override
+  public String handleRequest(String request) {
+    Priority priority = priorityOf(request);
+    if (priority == null) {
+      return delegate.handleRequest(request);
+    }
+
+    AdmissionController.Permit permit = controller.tryAcquire(priority);
+    if (permit == null) {
+      return rejection();
+    }
+    boolean failed = true;
+    try {
+      String reply = delegate.handleRequest(request);
+      failed = false;
+      return reply;
+    } finally {
+      permit.release(failed);
+    }
+  }
+
+  @Override
+  public CompletableFuture<String> handleRequestAsync(String request) {
+    Priority priority = priorityOf(request);
+    if (priority == null) {
+      return delegate.handleRequestAsync(request);
+    }
+
+    AdmissionController.Permit permit = controller.tryAcquire(priority);
+    if (permit == null) {
+      return CompletableFuture.completedFuture(rejection());
+    }
+    // The permit is held until the reply is ready, not just until the
+    // delegate has returned
+    CompletableFuture<String> reply;
+    try {
+      reply = delegate.handleRequestAsync(request);
+    } catch (RuntimeException e) {
+      permit.release(true);
+      throw e;
+    }
+    return reply.whenComplete((marshalledReply, failure) -> permit.release(failure != null));
+  }
+
+  private Priority priorityOf(String request) {
+    RequestObject requestObject;
+    try {
+      requestObject = gson.fromJson(request, RequestObject.class);
+    } catch (JsonParseException e) {
+      requestObject = null;
+    }
+    // Let the decorated invoker reply to malformed requests
+    if (requestObject == null || requestObject.getOperationName() == null) {
+      return Priority.LOW;
+    }
+    return priorityOf.apply(requestObject.getOperationName());
+  }
+
+  private String rejection() {
+    return gson.toJson(new ReplyObject(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+        "Retry-After: " + RETRY_AFTER_SECONDS + "; Server overloaded, request rejected"));
+  }
+}
@@ -29,9 +29,20 @@ public class StandardJSONRequestor implements Requestor {
 
   private final Gson gson;
   private final ClientRequestHandler clientRequestHandler;
+  private final String clientId;
 
   public StandardJSONRequestor(ClientRequestHandler crh) {
+    this(crh, null);
+  }
+
+  /** Create a requestor that identifies the client in each request,
+   * e.g. for the server to rate limit each client on its own.
+   * @param crh the client request handler to send requests through
+   * @param clientId the identity of the client, or null
+   */
+  public StandardJSONRequestor(ClientRequestHandler crh, String clientId) {
     this.clientRequestHandler = crh;
+    this.clientId = clientId;
     this.gson = new Gson();
   }
 
@@ -43,7 +54,7 @@ public class StandardJSONRequestor implements Requestor {
     // Perform marshalling
     String marshalledArgumentList = gson.toJson(arguments);
     RequestObject request =
-            new RequestObject(objectId, operationName, marshalledArgumentList);
+            new RequestObject(objectId, operationName, marshalledArgumentList, clientId);
     String marshalledRequest = gson.toJson(request);
 
     // Ask CRH to do the network call
@@ -17,6 +17,7 @@
 
 package telemed.main;
 
+import frds.broker.ipc.AdmissionController;
 import telemed.domain.TeleMed;
 import telemed.doubles.FakeObjectXDSDatabase;
 import telemed.rest.RESTServerRequestHandlerInvoker;
@@ -29,6 +30,9 @@ import telemed.storage.XDSBackend;
  *
  */
 public class ServerMainREST {
+
+  private static final String ADMISSION_LIMIT_PROPERTY = "telemed.admission.limit";
+  private static final String SHUTDOWN_DRAIN_PROPERTY = "telemed.shutdown.drain";
   
   public static void main(String[] args) throws Exception {
     if (args.length < 1) {
@@ -40,6 +44,10 @@ public class ServerMainREST {
   private static void explainAndDie() {
     System.out.println("Usage: ServerMainREST {port}");
     System.out.println("       port = port number for server to listen to");
+    System.out.println("  System property '" + ADMISSION_LIMIT_PROPERTY
+        + "' > 0 limits the number of concurrent requests.");
+    System.out.println("  On termination, requests in flight are drained for '" + SHUTDOWN_DRAIN_PROPERTY
+        + "' ms (default 20000).");
     System.exit(-1);
   }
 
@@ -53,7 +61,20 @@ public class ServerMainREST {
     int port = Integer.parseInt(portNo);
     RESTServerRequestHandlerInvoker srh =
         new RESTServerRequestHandlerInvoker(port, tsServant, xds);
+    int admissionLimit = Integer.getInteger(ADMISSION_LIMIT_PROPERTY, 0);
+    if (admissionLimit > 0) {
+      srh.setAdmissionController(new AdmissionController(admissionLimit));
+    }
     srh.start();
+
+    // Drain requests in flight and close the XDS on termination
+    long drainTimeout = Long.getLong(SHUTDOWN_DRAIN_PROPERTY, 20_000);
+    XDSBackend storage = xds;
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      boolean drained = srh.stop(drainTimeout);
+      storage.close();
+      System.out.println("=== TeleMed REST server stopped (drained: " + drained + ") ===");
+    }, "telemed-shutdown"));
     
     // Welcome 
     System.out.println("=== TeleMed Spark based REST Server Request Handler (port:"+port+") ===");
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.rest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.DeflaterOutputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import spark.Request;
+import spark.Response;
+
+/**
+ * Representations of the resources read by GET, for clients on slow links.
+ * Bodies are tagged by a weak ETag computed from their content, so a client
+ * that sends the tag back in If-None-Match gets 304 Not Modified without a
+ * body while the resource is unchanged. Bodies are compressed by gzip or
+ * deflate, if the client accepts either in Accept-Encoding.
+ * <p>
+ * Observations carry no version, so the content is the version: any
+ * correction of an observation changes its ETag. No Last-Modified is
+ * given, as no modification time is recorded, and caches are told to
+ * always revalidate the ETag, so a corrected observation is never served
+ * from a cache.
+ */
+final class HttpRepresentation {
+
+  /** Bodies shorter than this are sent uncompressed */
+  static final int COMPRESSION_THRESHOLD = 256;
+
+  static final String GZIP = "gzip";
+  static final String DEFLATE = "deflate";
+
+  private HttpRepresentation() {
+  }
+
+  /**
+   * Reply with the given body, or with 304 Not Modified if the client
+   * already has it.
+   * @param req the request
+   * @param res the response
+   * @param body the representation of the resource
+   * @return the body to return from the route
+   */
+  static Object reply(Request req, Response res, String body) {
+    String etag = etagOf(body);
+    res.header("ETag", etag);
+    res.header("Cache-Control", "no-cache");
+    res.header("Vary", "Accept-Encoding");
+    if (isMatch(req.headers("If-None-Match"), etag)) {
+      res.status(HttpServletResponse.SC_NOT_MODIFIED);
+      return "";
+    }
+    res.status(HttpServletResponse.SC_OK);
+    return compress(req, res, body);
+  }
+
+  /**
+   * Compute the weak ETag of a body.
+   * @param body the body
+   * @return the ETag, as W/"..."
+   */
+  static String etagOf(String body) {
+    byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256").
+          digest(body.getBytes(StandardCharsets.UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+    StringBuilder etag = new StringBuilder("W/\"");
+    for (int i = 0; i < 12; i++) {
+      etag.append(String.format("%02x", digest[i]));
+    }
+    return etag.append('"').toString();
+  }
+
+  /**
+   * Compare an ETag with an If-None-Match header, using the weak
+   * comparison that RFC 7232 prescribes for it.
+   * @param ifNoneMatch the header, or null if absent
+   * @param etag the ETag of the present representation
+   * @return true if the client has the present representation
+   */
+  static boolean isMatch(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    String opaqueTag = opaqueTagOf(etag);
+    for (String candidate : ifNoneMatch.split(",")) {
+      candidate = candidate.trim();
+      if (candidate.equals("*") || opaqueTagOf(candidate).equals(opaqueTag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static String opaqueTagOf(String etag) {
+    return etag.startsWith("W/") ? etag.substring(2) : etag;
+  }
+
+  /**
+   * Choose the encoding of a body from an Accept-Encoding header,
+   * preferring gzip over deflate.
+   * @param acceptEncoding the header, or null if absent
+   * @return GZIP, DEFLATE, or null to not compress
+   */
+  static String negotiate(String acceptEncoding) {
+    if (acceptEncoding == null) {
+      return null;
+    }
+    boolean deflate = false;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim().toLowerCase();
+      if (!name.equals(GZIP) && !name.equals(DEFLATE) || isRefused(parts)) {
+        continue;
+      }
+      if (name.equals(GZIP)) {
+        return GZIP;
+      }
+      deflate = true;
+    }
+    return deflate ? DEFLATE : null;
+  }
+
+  private static boolean isRefused(String[] parameters) {
+    for (int i = 1; i < parameters.length; i++) {
+      String parameter = parameters[i].trim();
+      if (parameter.startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2)) <= 0;
+        } catch (NumberFormatException e) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static Object compress(Request req, Response res, String body) {
+    if (body.length() < COMPRESSION_THRESHOLD) {
+      return body;
+    }
+    String encoding = negotiate(req.headers("Accept-Encoding"));
+    if (encoding == null) {
+      return body;
+    }
+    res.header("Content-Encoding", encoding);
+    if (encoding.equals(GZIP)) {
+      // Spark gzips the body itself once the header is set
+      return body;
+    }
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (DeflaterOutputStream out = new DeflaterOutputStream(compressed)) {
+      out.write(body.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return compressed.toByteArray();
+  }
+}
@@ -28,6 +28,8 @@ import com.google.gson.*;
 import frds.broker.Invoker;
 import frds.broker.ReplyObject;
 import frds.broker.ServerRequestHandler;
+import frds.broker.ipc.AdmissionController;
+import frds.broker.ipc.RequestDrain;
 import frds.broker.ipc.http.MimeMediaType;
 import telemed.domain.TeleMed;
 import telemed.domain.TeleObservation;
@@ -45,6 +47,12 @@ import telemed.storage.XDSBackend;
  * NOTE: It also implements the Invoker role, but not the method
  * in the Invoker interface from the Broker (handleRequest()). If
  * called, an UnsupportedOperationException is thrown.
+ * <p>
+ * When stopped gracefully, requests arriving while those in flight are
+ * drained are rejected with 503 Service Unavailable.
+ * <p>
+ * Observations read by GET are tagged with an ETag, and compressed
+ * if the client accepts it, see HttpRepresentation.
  * 
  * @author Henrik Baerbak Christensen, Aarhus University.
  *
@@ -52,9 +60,14 @@ import telemed.storage.XDSBackend;
 public class RESTServerRequestHandlerInvoker
     implements ServerRequestHandler, Invoker {
 
+  private static final String PERMIT_ATTRIBUTE = "admissionPermit";
+  private static final String DRAIN_ATTRIBUTE = "drainEntered";
+
   private TeleMed teleMed;
   private int port;
   private Gson gson;
+  private AdmissionController admission;
+  private final RequestDrain drain = new RequestDrain();
 
   public RESTServerRequestHandlerInvoker(int portNumber,
       TeleMed tsServant, XDSBackend xds) {
@@ -76,11 +89,52 @@ public class RESTServerRequestHandlerInvoker
   }
 
 
+  /** Limit the number of requests handled concurrently, rejecting the
+   * excess with 503 Service Unavailable. Queries are rejected before
+   * uploads and modifications. Must be set before the server is started.
+   * @param admission the controller to admit requests through
+   */
+  public void setAdmissionController(AdmissionController admission) {
+    this.admission = admission;
+  }
+
   @Override
   public void start() {
     // Set the port to listen to
     port(port);
 
+    before((req, res) -> {
+      if (!drain.enter()) {
+        res.header("Retry-After", "1");
+        halt(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server is stopping");
+      }
+      req.attribute(DRAIN_ATTRIBUTE, Boolean.TRUE);
+    });
+    afterAfter((req, res) -> {
+      if (req.attribute(DRAIN_ATTRIBUTE) != null) {
+        drain.exit();
+      }
+    });
+
+    if (admission != null) {
+      before((req, res) -> {
+        AdmissionController.Permit permit = admission.tryAcquire(
+            req.requestMethod().equals("GET")
+                ? AdmissionController.Priority.LOW : AdmissionController.Priority.HIGH);
+        if (permit == null) {
+          res.header("Retry-After", "1");
+          halt(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server overloaded");
+        }
+        req.attribute(PERMIT_ATTRIBUTE, permit);
+      });
+      afterAfter((req, res) -> {
+        AdmissionController.Permit permit = req.attribute(PERMIT_ATTRIBUTE);
+        if (permit != null) {
+          permit.release(res.status() >= HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        }
+      });
+    }
+
     // POST = processAndStore
     String storeRoute = "/" + Constants.BLOODPRESSURE_PATH;
     post(storeRoute, (req, res) -> {
@@ -88,7 +142,9 @@ public class RESTServerRequestHandlerInvoker
 
       // Demarshal parameters into a JsonArray
       TeleObservation teleObs = gson.fromJson(body, TeleObservation.class);
-      String id = teleMed.processAndStore(teleObs);
+      // Uploads retried with the same key are only stored once
+      String id = teleMed.processAndStore(teleObs,
+          req.headers(Constants.IDEMPOTENCY_KEY_HEADER));
 
       // Normally: 201 Created
       res.status(HttpServletResponse.SC_CREATED);
@@ -110,21 +166,13 @@ public class RESTServerRequestHandlerInvoker
 
       TeleObservation teleObs = teleMed.getObservation(uniqueId);
 
-      String returnValue = null;
-      int lastStatusCode;
-      
+      res.type(MimeMediaType.APPLICATION_JSON);
       if (teleObs == null) {
-        lastStatusCode = HttpServletResponse.SC_NOT_FOUND;
-        returnValue = "{}"; // a null JSON object
-      } else {
-        lastStatusCode = HttpServletResponse.SC_OK;
-        returnValue = gson.toJson(teleObs);
+        res.status(HttpServletResponse.SC_NOT_FOUND);
+        return "{}"; // a null JSON object
       }
-
-      res.status(lastStatusCode);
-      res.type(MimeMediaType.APPLICATION_JSON);
-
-      return returnValue;
+      // Answer 304 Not Modified if the client has it already
+      return HttpRepresentation.reply(req, res, gson.toJson(teleObs));
     });
 
     // PUT = correct
@@ -178,8 +226,6 @@ public class RESTServerRequestHandlerInvoker
       List<TeleObservation> theList = teleMed.getObservationsFor(patientId,
           TimeInterval.LAST_DAY);
 
-      res.status(HttpServletResponse.SC_OK);
-
       String returnValue = "<h1>Observations for " + patientId + "</h1>\n";
       returnValue += "<ol>";
       for (TeleObservation to : theList) {
@@ -187,13 +233,27 @@ public class RESTServerRequestHandlerInvoker
       }
       returnValue += "</ol>";
 
-      return returnValue;
+      return HttpRepresentation.reply(req, res, returnValue);
     });
   }
 
   @Override
   public void stop() {
-    stop();
+    spark.Spark.stop();
+  }
+
+  @Override
+  public boolean stop(long drainTimeoutMillis) {
+    boolean drained;
+    try {
+      drained = drain.drain(drainTimeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      drained = false;
+    }
+    spark.Spark.stop();
+    spark.Spark.awaitStop();
+    return drained;
   }
 
   @Override
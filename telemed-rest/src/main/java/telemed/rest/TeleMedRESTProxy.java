@@ -20,13 +20,23 @@ package telemed.rest;
 import frds.broker.ClientProxy;
 import frds.broker.IPCException;
 import frds.broker.ipc.http.MimeMediaType;
+import kong.unirest.GetRequest;
+import kong.unirest.HttpRequestWithBody;
 import kong.unirest.HttpResponse;
 import kong.unirest.JsonNode;
 import kong.unirest.Unirest;
 import kong.unirest.UnirestException;
+import telemed.domain.BucketSize;
+import telemed.domain.ObservationEvents;
+import telemed.domain.ObservationPage;
+import telemed.domain.ObservationStatistics;
 import telemed.domain.TeleMed;
 
+import java.time.OffsetDateTime;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.servlet.http.HttpServletResponse;
 
@@ -39,45 +49,88 @@ import telemed.ipc.http.Constants;
  * A Proxy for TeleMed based upon REST. As REST handles most of the Broker
  * layers, it makes sense to merge all three roles: Proxy, Requester, and
  * ClientRequestHandler into single abstraction, and that is what is done here.
+ * <p>
+ * Observations read are remembered with their ETag, so reading one again
+ * sends the ETag in If-None-Match, and the server only returns the
+ * observation if it has changed. Bodies are decompressed by the HTTP
+ * client, which accepts gzip and deflate encoded replies.
+ * <p>
+ * The REST server only offers the CRUD operations on single observations,
+ * so the queries getObservationsFor, getObservationsForPatients,
+ * getObservationPage, getStatisticsFor, and awaitObservations are not
+ * supported and throw UnsupportedOperationException; use the URI tunnel
+ * based TeleMedProxy for these.
  *
  * @author Henrik Baerbak Christensen, Aarhus University.
  *
  */
 public class TeleMedRESTProxy implements TeleMed, ClientProxy {
 
+    /** Number of observations whose ETag is remembered, unless told otherwise */
+    public static final int DEFAULT_ETAG_CACHE_SIZE = 1000;
+
     private String baseURL;
     private Gson gson;
+    private final Map<String, TaggedObservation> etagCache;
 
     public TeleMedRESTProxy(String hostname, int port) {
+        this(hostname, port, DEFAULT_ETAG_CACHE_SIZE);
+    }
+
+    /**
+     * Create a proxy that remembers the given number of observations,
+     * least recently read first forgotten.
+     * @param hostname the name of the REST server
+     * @param port the port of the REST server
+     * @param etagCacheSize the number of observations to remember
+     */
+    public TeleMedRESTProxy(String hostname, int port, int etagCacheSize) {
         baseURL = "http://"+hostname+":"+port+"/";
         gson = new Gson();
+        etagCache = Collections.synchronizedMap(
+            new LinkedHashMap<String, TaggedObservation>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, TaggedObservation> eldest) {
+                    return size() > etagCacheSize;
+                }
+            });
     }
 
     @Override
     public String processAndStore(TeleObservation teleObs) {
+        return processAndStore(teleObs, null);
+    }
+
+    @Override
+    public String processAndStore(TeleObservation teleObs, String idempotencyKey) {
         String payload = gson.toJson(teleObs);
         HttpResponse<JsonNode> jsonResponse = null;
 
         String path = Constants.BLOODPRESSURE_PATH;
         try {
-            jsonResponse = Unirest.post(baseURL+path).
+            HttpRequestWithBody request = Unirest.post(baseURL+path).
                     header("Accept", MimeMediaType.APPLICATION_JSON).
-                    header("Content-type", MimeMediaType.APPLICATION_JSON).
-                    body(payload).asJson();
+                    header("Content-type", MimeMediaType.APPLICATION_JSON);
+            if (idempotencyKey != null) {
+                // A retried upload with the same key is only stored once
+                request = request.header(Constants.IDEMPOTENCY_KEY_HEADER, idempotencyKey);
+            }
+            jsonResponse = request.body(payload).asJson();
         } catch (UnirestException e) {
             throw new IPCException("UniRest POST failed for 'processAndStore'", e);
         }
 
-        // TODO: Verify returned status code
         int statusCode = jsonResponse.getStatus();
-
-        // String body = jsonResponse.getBody().toString();
+        if (statusCode != HttpServletResponse.SC_CREATED) {
+            throw new IPCException(statusCode,
+                "UniRest POST failed for 'processAndStore'");
+        }
 
         // Extract the id of the measurement from the Location header
         String location = jsonResponse.getHeaders().getFirst("Location");
         // Format: URI ending in /bp/{id}, thus let us split on '/'
         // and pick the last entry
-      String[] parts = location.split("/");
+        String[] parts = location.split("/");
         String teleObsID = parts[parts.length-1];
 
         return teleObsID;
@@ -88,31 +141,67 @@ public class TeleMedRESTProxy implements TeleMed, ClientProxy {
         HttpResponse<JsonNode> jsonResponse = null;
 
         String path = Constants.BLOODPRESSURE_PATH + uniqueId;
+        TaggedObservation cached = etagCache.get(uniqueId);
         try {
-            jsonResponse = Unirest.get(baseURL+path).
+            GetRequest request = Unirest.get(baseURL+path).
                     header("Accept", MimeMediaType.APPLICATION_JSON).
-                    header("Content-type", MimeMediaType.APPLICATION_JSON).asJson();
+                    header("Content-type", MimeMediaType.APPLICATION_JSON);
+            if (cached != null) {
+                request = request.header("If-None-Match", cached.etag);
+            }
+            jsonResponse = request.asJson();
         } catch (UnirestException e) {
             throw new IPCException("Unitest GET failed", e);
         }
 
         int statusCode = jsonResponse.getStatus();
 
-        TeleObservation teleObs = null;
-        if (statusCode == HttpServletResponse.SC_OK) {
-            // Demarshal the returned json
-            String payload = jsonResponse.getBody().toString();
-            teleObs = gson.fromJson(payload, TeleObservation.class);
+        String payload = null;
+        if (statusCode == HttpServletResponse.SC_NOT_MODIFIED && cached != null) {
+            // Unchanged since last read
+            payload = cached.json;
+        } else if (statusCode == HttpServletResponse.SC_OK) {
+            payload = jsonResponse.getBody().toString();
+            String etag = jsonResponse.getHeaders().getFirst("ETag");
+            if (etag != null && !etag.isEmpty()) {
+                etagCache.put(uniqueId, new TaggedObservation(etag, payload));
+            }
+        } else {
+            etagCache.remove(uniqueId);
         }
-        return teleObs;
+        // Demarshal the returned json
+        return payload == null ? null : gson.fromJson(payload, TeleObservation.class);
     }
 
     @Override
     public List<TeleObservation> getObservationsFor(String patientId, TimeInterval interval) {
-        // TODO Implementation of 'getObservationsFor' pending
-        return null;
+        throw unsupported("getObservationsFor");
     }
 
+    @Override
+    public Map<String, List<TeleObservation>> getObservationsForPatients(List<String> patientIds,
+                                                                         OffsetDateTime start,
+                                                                         OffsetDateTime end) {
+        throw unsupported("getObservationsForPatients");
+    }
+
+    @Override
+    public ObservationPage getObservationPage(String patientId, OffsetDateTime start,
+                                              OffsetDateTime end, int limit, String cursor) {
+        throw unsupported("getObservationPage");
+    }
+
+    @Override
+    public List<ObservationStatistics> getStatisticsFor(String patientId, TimeInterval interval,
+                                                        BucketSize bucketSize) {
+        throw unsupported("getStatisticsFor");
+    }
+
+    @Override
+    public ObservationEvents awaitObservations(List<String> patientIds, long afterSequence,
+                                               long maxWaitMillis) {
+        throw unsupported("awaitObservations");
+    }
 
     @Override
     public boolean correct(String uniqueId, TeleObservation teleObs) {
@@ -121,6 +210,7 @@ public class TeleMedRESTProxy implements TeleMed, ClientProxy {
 
         // PUT on path /bp/{id}
         String path = Constants.BLOODPRESSURE_PATH + uniqueId;
+        etagCache.remove(uniqueId);
         try {
             jsonResponse = Unirest.put(baseURL+path).
                     header("Accept", MimeMediaType.APPLICATION_JSON).
@@ -140,6 +230,7 @@ public class TeleMedRESTProxy implements TeleMed, ClientProxy {
     @Override
     public boolean delete(String uniqueId) {
         String path = Constants.BLOODPRESSURE_PATH + uniqueId;
+        etagCache.remove(uniqueId);
 
         HttpResponse<JsonNode> jsonResponse = null;
         try {
@@ -157,4 +248,19 @@ public class TeleMedRESTProxy implements TeleMed, ClientProxy {
         return statusCode == HttpServletResponse.SC_NO_CONTENT;
     }
 
+    private static UnsupportedOperationException unsupported(String operationName) {
+        return new UnsupportedOperationException("The REST proxy does not support '"
+            + operationName + "', as the REST server has no route for it");
+    }
+
+    /** The JSON of an observation as read, with its ETag */
+    private static final class TaggedObservation {
+        private final String etag;
+        private final String json;
+
+        private TaggedObservation(String etag, String json) {
+            this.etag = etag;
+            this.json = json;
+        }
+    }
 }
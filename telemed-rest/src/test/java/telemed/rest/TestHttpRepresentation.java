@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.rest;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.junit.*;
+
+/**
+ * Test the ETags and compression of the representations returned
+ * by the REST server.
+ */
+public class TestHttpRepresentation {
+
+  @Test
+  public void shouldComputeWeakETagsOfContent() {
+    String etag = HttpRepresentation.etagOf("{\"systolic\":120}");
+    assertThat(etag, startsWith("W/\""));
+    assertThat(etag, endsWith("\""));
+    assertThat(HttpRepresentation.etagOf("{\"systolic\":120}"), is(etag));
+    assertThat(HttpRepresentation.etagOf("{\"systolic\":121}"), is(not(etag)));
+  }
+
+  @Test
+  public void shouldMatchETagsWeakly() {
+    String etag = HttpRepresentation.etagOf("body");
+    String strong = etag.substring(2);
+    assertThat(HttpRepresentation.isMatch(null, etag), is(false));
+    assertThat(HttpRepresentation.isMatch(etag, etag), is(true));
+    assertThat(HttpRepresentation.isMatch(strong, etag), is(true));
+    assertThat(HttpRepresentation.isMatch("\"other\", " + etag, etag), is(true));
+    assertThat(HttpRepresentation.isMatch("\"other\", W/\"another\"", etag), is(false));
+    assertThat(HttpRepresentation.isMatch("*", etag), is(true));
+  }
+
+  @Test
+  public void shouldNegotiateEncoding() {
+    assertThat(HttpRepresentation.negotiate(null), is(nullValue()));
+    assertThat(HttpRepresentation.negotiate("gzip, deflate"), is("gzip"));
+    assertThat(HttpRepresentation.negotiate("deflate, gzip"), is("gzip"));
+    assertThat(HttpRepresentation.negotiate("deflate"), is("deflate"));
+    assertThat(HttpRepresentation.negotiate("GZIP;q=0.5"), is("gzip"));
+    // Refused encodings are not used
+    assertThat(HttpRepresentation.negotiate("gzip;q=0, deflate"), is("deflate"));
+    assertThat(HttpRepresentation.negotiate("gzip;q=0.0, deflate;q=0"), is(nullValue()));
+    // Only explicitly accepted encodings are used
+    assertThat(HttpRepresentation.negotiate("*"), is(nullValue()));
+    assertThat(HttpRepresentation.negotiate("br, identity"), is(nullValue()));
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.rest;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.*;
+
+import org.junit.*;
+
+import telemed.domain.TeleObservation;
+import telemed.domain.TimeInterval;
+import telemed.doubles.FakeObjectXDSDatabase;
+import telemed.server.TeleMedServant;
+
+/**
+ * Test the REST proxy against the REST server, in particular reusing
+ * observations the server tells are not modified.
+ */
+public class TestTeleMedRESTProxy {
+
+  private int port;
+  private RESTServerRequestHandlerInvoker srh;
+  private TeleMedRESTProxy proxy;
+  private final List<Integer> statusCodes = Collections.synchronizedList(new ArrayList<>());
+
+  @Before
+  public void setup() {
+    port = ThreadLocalRandom.current().nextInt(10000, 30000);
+    FakeObjectXDSDatabase xds = new FakeObjectXDSDatabase();
+    srh = new RESTServerRequestHandlerInvoker(port, new TeleMedServant(xds), xds);
+    srh.start();
+    // Spy on the status codes of the replies to GETs
+    spark.Spark.afterAfter((req, res) -> {
+      if (req.requestMethod().equals("GET")) {
+        statusCodes.add(res.status());
+      }
+    });
+    spark.Spark.awaitInitialization();
+    proxy = new TeleMedRESTProxy("localhost", port);
+  }
+
+  @After
+  public void teardown() {
+    srh.stop();
+    spark.Spark.awaitStop();
+  }
+
+  @Test
+  public void shouldReuseObservationsNotModified() {
+    String id = proxy.processAndStore(new TeleObservation("pid01", 120, 70));
+    TeleObservation first = proxy.getObservation(id);
+    TeleObservation second = proxy.getObservation(id);
+    assertThat(second.toString(), is(first.toString()));
+    assertThat(statusCodes, is(Arrays.asList(200, 304)));
+  }
+
+  @Test
+  public void shouldForgetCorrectedAndDeletedObservations() {
+    String id = proxy.processAndStore(new TeleObservation("pid01", 120, 70));
+    proxy.getObservation(id);
+
+    proxy.correct(id, new TeleObservation("pid01", 99, 60));
+    assertThat(proxy.getObservation(id).getSystolic().getValue(), is(99.0));
+    assertThat(proxy.getObservation(id).getSystolic().getValue(), is(99.0));
+
+    proxy.delete(id);
+    assertThat(proxy.getObservation(id), is(nullValue()));
+    assertThat(statusCodes, is(Arrays.asList(200, 200, 304, 404)));
+  }
+
+  @Test
+  public void shouldStoreUploadsWithSameKeyOnce() {
+    TeleObservation teleObs = new TeleObservation("pid01", 120, 70);
+    String id = proxy.processAndStore(teleObs, "key-1");
+    assertThat(proxy.processAndStore(teleObs, "key-1"), is(id));
+    assertThat(proxy.processAndStore(teleObs, "key-2"), is(not(id)));
+  }
+
+  @Test
+  public void shouldCompressAndTagReplies() throws IOException {
+    for (int i = 0; i < 5; i++) {
+      proxy.processAndStore(new TeleObservation("pid01", 120 + i, 70));
+    }
+    HttpURLConnection connection = get("/bp/for/pid01", "deflate", null);
+    String etag = connection.getHeaderField("ETag");
+    assertThat(connection.getResponseCode(), is(200));
+    assertThat(connection.getHeaderField("Content-Encoding"), is("deflate"));
+    assertThat(connection.getHeaderField("Cache-Control"), is("no-cache"));
+    assertThat(connection.getHeaderField("Last-Modified"), is(nullValue()));
+    assertThat(read(new InflaterInputStream(connection.getInputStream())),
+        containsString("Observations for pid01"));
+
+    connection = get("/bp/for/pid01", "gzip", null);
+    assertThat(connection.getHeaderField("Content-Encoding"), is("gzip"));
+    assertThat(connection.getHeaderField("ETag"), is(etag));
+    assertThat(read(new GZIPInputStream(connection.getInputStream())),
+        containsString("Observations for pid01"));
+
+    assertThat(get("/bp/for/pid01", null, etag).getResponseCode(), is(304));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void shouldRejectQueriesWithoutRoute() {
+    proxy.getObservationsFor("pid01", TimeInterval.LAST_DAY);
+  }
+
+  private HttpURLConnection get(String path, String acceptEncoding, String ifNoneMatch)
+      throws IOException {
+    HttpURLConnection connection =
+        (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+    if (acceptEncoding != null) {
+      connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+    }
+    if (ifNoneMatch != null) {
+      connection.setRequestProperty("If-None-Match", ifNoneMatch);
+    }
+    return connection;
+  }
+
+  private static String read(InputStream in) throws IOException {
+    try (BufferedReader reader =
+             new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+      StringBuilder text = new StringBuilder();
+      String line;
+      while ((line = reader.readLine()) != null) {
+        text.append(line);
+      }
+      return text.toString();
+    }
+  }
+}
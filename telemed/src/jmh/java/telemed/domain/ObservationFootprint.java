@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+import java.util.*;
+
+import org.openjdk.jol.info.GraphLayout;
+
+import com.google.gson.Gson;
+
+/**
+ * Measures the heap retained by a batch of tele observations unmarshalled
+ * from JSON, comparing quantities that share their QuantityDescriptor with
+ * the previous layout, in which Gson populated every quantity by
+ * reflection with its own unit, code, and display name strings.
+ * <p>
+ * Not a JMH benchmark, as it measures retained size, not time; run with
+ * gradle :telemed:heapFootprint [-Pobservations=count].
+ */
+public class ObservationFootprint {
+
+  /** The quantity layout before descriptors were introduced */
+  static class LegacyQuantity {
+    double value;
+    String unit;
+    String code;
+    String displayName;
+  }
+
+  /** The observation layout before descriptors were introduced */
+  static class LegacyObservation {
+    String patientId;
+    LegacyQuantity systolic;
+    LegacyQuantity diastolic;
+    List<LegacyQuantity> vitals;
+    String timeAsISO8601;
+  }
+
+  public static void main(String[] args) {
+    int count = Integer.getInteger("observations", 10_000);
+    Gson gson = new Gson();
+
+    List<String> wire = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      TeleObservation to = new TeleObservation("251248-" + (1000 + i % 100),
+          Vitals.systolic(110 + i % 40), Vitals.diastolic(60 + i % 30),
+          Vitals.pulse(50 + i % 50));
+      wire.add(gson.toJson(to));
+    }
+
+    List<TeleObservation> shared = new ArrayList<>(count);
+    List<LegacyObservation> legacy = new ArrayList<>(count);
+    for (String json : wire) {
+      shared.add(gson.fromJson(json, TeleObservation.class));
+      legacy.add(gson.fromJson(json, LegacyObservation.class));
+    }
+
+    long sharedSize = GraphLayout.parseInstance(shared).totalSize();
+    long legacySize = GraphLayout.parseInstance(legacy).totalSize();
+
+    System.out.printf("%d observations with 3 vitals each%n", count);
+    System.out.printf("  per-quantity strings: %,12d bytes (%d per observation)%n",
+        legacySize, legacySize / count);
+    System.out.printf("  shared descriptors:   %,12d bytes (%d per observation)%n",
+        sharedSize, sharedSize / count);
+    System.out.printf("  reduction:            %11.1f%%%n",
+        100.0 * (legacySize - sharedSize) / legacySize);
+  }
+}
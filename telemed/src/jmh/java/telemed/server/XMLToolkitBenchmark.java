@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.openjdk.jmh.annotations.*;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import telemed.domain.TeleObservation;
+
+/**
+ * Benchmark of the per-document cost of building, serializing and parsing
+ * HL7 when each thread reuses its document builder and transformer, as
+ * XMLUtility does, compared to creating builders and transformers for
+ * every document, as was done previously. The factories are shared in
+ * both cases, so only the per-document objects are measured. Runs on
+ * several threads to resemble a server handling concurrent uploads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Thread)
+public class XMLToolkitBenchmark {
+
+  private static final DocumentBuilderFactory DOCUMENT_BUILDER_FACTORY =
+      DocumentBuilderFactory.newInstance();
+  private static final TransformerFactory TRANSFORMER_FACTORY =
+      TransformerFactory.newInstance();
+
+  private TeleObservation observation;
+  private String hl7;
+
+  @Setup
+  public void setup() {
+    observation = new TeleObservation("251248-1234", 120.0, 70.0);
+    HL7Builder builder = new HL7Builder();
+    Director.construct(observation, builder);
+    hl7 = XMLUtility.convertXMLDocumentToString(builder.getResult());
+  }
+
+  @Benchmark
+  public String buildAndSerializeReused() {
+    HL7Builder builder = new HL7Builder();
+    Director.construct(observation, builder);
+    return XMLUtility.convertXMLDocumentToString(builder.getResult());
+  }
+
+  @Benchmark
+  public String buildAndSerializeFresh() throws Exception {
+    // The builder the HL7Builder used to create per observation
+    DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+    HL7Builder builder = new HL7Builder();
+    Director.construct(observation, builder);
+    // and the transformer XMLUtility used to create per document
+    Transformer trans = TRANSFORMER_FACTORY.newTransformer();
+    trans.setOutputProperty(OutputKeys.INDENT, "yes");
+    trans.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "2");
+    StringWriter sw = new StringWriter();
+    trans.transform(new DOMSource(builder.getResult()), new StreamResult(sw));
+    return sw.toString();
+  }
+
+  @Benchmark
+  public String buildStreaming() {
+    StreamingHL7Builder builder = new StreamingHL7Builder();
+    Director.construct(observation, builder);
+    return builder.getResult();
+  }
+
+  @Benchmark
+  public Document parseReused() {
+    return XMLUtility.convertXMLStringToDocument(hl7);
+  }
+
+  @Benchmark
+  public Document parseFresh() throws Exception {
+    DocumentBuilder builder = DOCUMENT_BUILDER_FACTORY.newDocumentBuilder();
+    return builder.parse(new InputSource(new StringReader(hl7)));
+  }
+}
@@ -18,6 +18,7 @@
 package telemed.client;
 
 import java.lang.reflect.Type;
+import java.time.OffsetDateTime;
 import java.util.*;
 
 import com.google.gson.reflect.*;
@@ -59,6 +60,13 @@ public class TeleMedProxy implements TeleMed, ClientProxy {
     return uid; 
   }
 
+  @Override
+  public String processAndStore(TeleObservation teleObs, String idempotencyKey) {
+    return requestor.sendRequestAndAwaitReply(TELEMED_OBJECTID,
+        OperationNames.PROCESS_AND_STORE_OPERATION, String.class,
+        teleObs, idempotencyKey);
+  }
+
   @Override
   public List<TeleObservation> getObservationsFor(String patientId, 
 	  TimeInterval interval) {
@@ -81,6 +89,55 @@ public class TeleMedProxy implements TeleMed, ClientProxy {
     return returnedList;
   }
 
+  @Override
+  public Map<String, List<TeleObservation>> getObservationsForPatients(List<String> patientIds,
+      OffsetDateTime start, OffsetDateTime end) {
+    Type mapType =
+      new TypeToken<Map<String, List<TeleObservation>>>(){}.getType();
+    return requestor.sendRequestAndAwaitReply(TELEMED_OBJECTID,
+        OperationNames.GET_OBSERVATIONS_FOR_PATIENTS_OPERATION, mapType,
+        patientIds, start.toString(), end.toString());
+  }
+
+  @Override
+  public ObservationPage getObservationPage(String patientId, OffsetDateTime start,
+      OffsetDateTime end, int limit, String cursor) {
+    // Times are sent in ISO 8601 format, just as in tele observations
+    return requestor.sendRequestAndAwaitReply(TELEMED_OBJECTID,
+        OperationNames.GET_OBSERVATION_PAGE_OPERATION, ObservationPage.class,
+        patientId, start.toString(), end.toString(), limit, cursor);
+  }
+
+  @Override
+  public List<ObservationStatistics> getStatisticsFor(String patientId,
+      TimeInterval interval, BucketSize bucketSize) {
+    Type collectionType =
+      new TypeToken<List<ObservationStatistics>>(){}.getType();
+
+    // Handle empty return values (404 error code)
+    List<ObservationStatistics> returnedList;
+    try {
+      returnedList = requestor.sendRequestAndAwaitReply(TELEMED_OBJECTID,
+              OperationNames.GET_STATISTICS_FOR_OPERATION,
+              collectionType, patientId, interval, bucketSize);
+    } catch(IPCException e) {
+      if (e.getStatusCode() != HttpServletResponse.SC_NOT_FOUND) {
+        throw e;
+      }
+      returnedList = new ArrayList<>();
+    }
+
+    return returnedList;
+  }
+
+  @Override
+  public ObservationEvents awaitObservations(List<String> patientIds, long afterSequence,
+      long maxWaitMillis) {
+    return requestor.sendRequestAndAwaitReply(TELEMED_OBJECTID,
+        OperationNames.AWAIT_OBSERVATIONS_OPERATION, ObservationEvents.class,
+        patientIds, afterSequence, maxWaitMillis);
+  }
+
   @Override
   public boolean correct(String uniqueId, TeleObservation to) {
     return requestor.sendRequestAndAwaitReply(TELEMED_OBJECTID,
@@ -17,6 +17,8 @@
 
 package telemed.common;
 
+import java.util.*;
+
 /**
  * The names of the valid operations (i.e. method calls) in the TeleMed system.
  */
@@ -27,8 +29,21 @@ public class OperationNames {
   // inspected.
   public static final String PROCESS_AND_STORE_OPERATION = "telemed-process-and-store";
   public static final String GET_OBSERVATIONS_FOR_OPERATION = "telemed-get-observation-for";
+  public static final String GET_OBSERVATIONS_FOR_PATIENTS_OPERATION =
+      "telemed-get-observations-for-patients";
+  public static final String GET_OBSERVATION_PAGE_OPERATION = "telemed-get-observation-page";
+  public static final String GET_STATISTICS_FOR_OPERATION = "telemed-get-statistics-for";
+  public static final String AWAIT_OBSERVATIONS_OPERATION = "telemed-await-observations";
   public static final String CORRECT_OPERATION = "telemed-correct";
   public static final String GET_OBSERVATION_OPERATION = "telemed-get-observation";
   public static final String DELETE_OPERATION = "telemed-delete";
 
+  // Operations that have the same effect and reply however many times
+  // they are performed, thus may be retried by clients after IPC failures
+  public static final Set<String> IDEMPOTENT_OPERATIONS =
+      Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+          GET_OBSERVATIONS_FOR_OPERATION, GET_OBSERVATIONS_FOR_PATIENTS_OPERATION,
+          GET_OBSERVATION_PAGE_OPERATION, GET_STATISTICS_FOR_OPERATION,
+          AWAIT_OBSERVATIONS_OPERATION, GET_OBSERVATION_OPERATION)));
+
 }
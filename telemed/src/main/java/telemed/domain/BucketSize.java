@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+/**
+ * Enum representing the size of the time buckets that statistics of
+ * observations are computed for. Buckets are aligned in UTC: days start
+ * at midnight and weeks on Monday at midnight.
+ */
+public enum BucketSize {
+  DAY(86_400L, 0L),
+  // 1970-01-05, the first Monday after the epoch
+  WEEK(7 * 86_400L, 4 * 86_400L);
+
+  private final long seconds;
+  private final long origin;
+
+  BucketSize(long seconds, long origin) {
+    this.seconds = seconds;
+    this.origin = origin;
+  }
+
+  /**
+   * Get the length of the buckets.
+   *
+   * @return the number of seconds in a bucket
+   */
+  public long getSeconds() {
+    return seconds;
+  }
+
+  /**
+   * Get the time that the buckets are aligned to, that is, the start of
+   * one of the buckets.
+   *
+   * @return the epoch second that buckets are aligned to
+   */
+  public long getOrigin() {
+    return origin;
+  }
+
+  /**
+   * Compute the start of the bucket that contains the given time.
+   *
+   * @param epochSecond the time as seconds since the epoch
+   * @return the start of the bucket as seconds since the epoch
+   */
+  public long startOf(long epochSecond) {
+    return epochSecond - Math.floorMod(epochSecond - origin, seconds);
+  }
+}
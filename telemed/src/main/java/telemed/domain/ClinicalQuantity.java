@@ -17,6 +17,10 @@
 
 package telemed.domain;
 
+import java.util.Objects;
+
+import com.google.gson.annotations.JsonAdapter;
+
 /**
  * A clinical physical quantity, representing a single measured clinical value.
  * <p>
@@ -30,23 +34,21 @@ package telemed.domain;
  * has been measured, for instance LOINC (loinc.org).
  * <p>
  * Based upon the implementation of PQ from HL7/CDA standard.
+ * <p>
+ * There are only a handful of distinct codes, units and display names, so
+ * these are kept in a QuantityDescriptor shared by all quantities of the
+ * same kind, also when they are unmarshalled or read from storage.
  */
+@JsonAdapter(ClinicalQuantityJsonAdapter.class)
 public final class ClinicalQuantity {
   private final double value;
-  private final String unit;
 
   /**
-   * The code identifying the specific physical quantity measured. Example: FEV1
-   * is code 20150-9 in LOINC. Note - the actual code system defining the
-   * interpretation of this code is defined by the codeSystem property of the
-   * enclosing StandardTeleObservation object.
+   * The code, unit and display name of the quantity. The code identifies
+   * the specific physical quantity measured. Example: FEV1 is code 20150-9
+   * in LOINC, with display name FEV1.
    */
-  private final String code;
-  
-  /**
-   * The displayname of the code. Example: FEV1.
-   */
-  private final String displayName;
+  private final QuantityDescriptor descriptor;
   
   /**
    * Construct a read-only ClinicalQuantity that measures some specific clinical
@@ -67,11 +69,21 @@ public final class ClinicalQuantity {
    */
   public ClinicalQuantity(double value, String unit,
       String code, String displayName) {
-    super();
+    this(value, QuantityDescriptor.of(code, unit, displayName));
+  }
+
+  /**
+   * Construct a read-only ClinicalQuantity of the kind given by the
+   * descriptor.
+   *
+   * @param value
+   *          value, e.g. 200
+   * @param descriptor
+   *          the description of the measured quantity
+   */
+  public ClinicalQuantity(double value, QuantityDescriptor descriptor) {
     this.value = value;
-    this.unit = unit;
-    this.code = code;
-    this.displayName = displayName;
+    this.descriptor = descriptor;
   }
   /**
    * The value measured
@@ -85,24 +97,44 @@ public final class ClinicalQuantity {
    * @return the unit of the measured quantity
    */
   public String getUnit() {
-    return unit;
+    return descriptor.getUnit();
   }  
   /** Get the code that identifies what quantity
    * has been measured
    * @return the code for the value
    */
   public String getCode() {
-    return code;
+    return descriptor.getCode();
   }
   /** Get the human readable name of the quantity
    * measured
    * @return the display name
    */
   public String getDisplayName() {
-    return displayName;
+    return descriptor.getDisplayName();
+  }
+  /** Get the description of what has been measured
+   * @return the descriptor, shared by quantities of the same kind
+   */
+  public QuantityDescriptor getDescriptor() {
+    return descriptor;
   }
 
   public String toString() {
       return getDisplayName()+":"+getValue() + " "+ getUnit();
   }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) { return true; }
+    if (!(o instanceof ClinicalQuantity)) { return false; }
+    ClinicalQuantity other = (ClinicalQuantity) o;
+    return Double.compare(value, other.value) == 0
+        && descriptor.equals(other.descriptor);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(value, descriptor);
+  }
 }
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+import java.io.IOException;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.*;
+
+/**
+ * Gson marshalling of clinical quantities in the wire format that Gson
+ * produces by reflection:
+ * <pre>
+ * {"value":120.0,"unit":"mm(Hg)","code":"MSC88019","displayName":"Systolic BP"}
+ * </pre>
+ * When unmarshalled, the code, unit and display name are resolved to the
+ * shared QuantityDescriptor, so the strings read from the wire are
+ * garbage right away instead of being held by every quantity.
+ */
+class ClinicalQuantityJsonAdapter extends TypeAdapter<ClinicalQuantity> {
+
+  private static final String VALUE = "value";
+  private static final String UNIT = "unit";
+  private static final String CODE = "code";
+  private static final String DISPLAY_NAME = "displayName";
+
+  @Override
+  public void write(JsonWriter out, ClinicalQuantity quantity) throws IOException {
+    if (quantity == null) {
+      out.nullValue();
+      return;
+    }
+    out.beginObject();
+    out.name(VALUE).value(quantity.getValue());
+    out.name(UNIT).value(quantity.getUnit());
+    out.name(CODE).value(quantity.getCode());
+    out.name(DISPLAY_NAME).value(quantity.getDisplayName());
+    out.endObject();
+  }
+
+  @Override
+  public ClinicalQuantity read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    double value = 0;
+    String unit = null, code = null, displayName = null;
+    in.beginObject();
+    while (in.hasNext()) {
+      String name = in.nextName();
+      if (in.peek() == JsonToken.NULL) {
+        in.nextNull();
+        continue;
+      }
+      switch (name) {
+        case VALUE: value = in.nextDouble(); break;
+        case UNIT: unit = in.nextString(); break;
+        case CODE: code = in.nextString(); break;
+        case DISPLAY_NAME: displayName = in.nextString(); break;
+        default: in.skipValue();
+      }
+    }
+    in.endObject();
+    return new ClinicalQuantity(value, QuantityDescriptor.of(code, unit, displayName));
+  }
+}
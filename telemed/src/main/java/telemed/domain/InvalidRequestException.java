@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+/**
+ * Thrown when a client's request is invalid, e.g. it has a malformed
+ * page cursor or time, or asks for too much at once. Unlike other
+ * IllegalArgumentExceptions, which are faults of the server, these
+ * are reported to the client as bad requests.
+ */
+public class InvalidRequestException extends IllegalArgumentException {
+
+  public InvalidRequestException(String message) {
+    super(message);
+  }
+
+  private static final long serialVersionUID = 1L;
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+/**
+ * The event that a tele observation has been stored. Events are numbered
+ * by a sequence number that increases by one for each stored observation,
+ * so subscribers can tell where to continue and whether they have missed
+ * any events.
+ */
+public class ObservationEvent {
+
+  private final long sequence;
+  private final String uniqueId;
+  private final TeleObservation observation;
+
+  /**
+   * Create an event.
+   * @param sequence the sequence number of the event
+   * @param uniqueId the id the observation was stored under
+   * @param observation the stored observation
+   */
+  public ObservationEvent(long sequence, String uniqueId, TeleObservation observation) {
+    this.sequence = sequence;
+    this.uniqueId = uniqueId;
+    this.observation = observation;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public String getUniqueId() {
+    return uniqueId;
+  }
+
+  public TeleObservation getObservation() {
+    return observation;
+  }
+
+  @Override
+  public String toString() {
+    return "Event " + sequence + ": " + uniqueId + " " + observation;
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+import java.util.List;
+
+/**
+ * The events of newly stored observations returned by a long poll,
+ * together with the sequence number to continue after in the next poll.
+ */
+public class ObservationEvents {
+
+  private final List<ObservationEvent> events;
+  private final long lastSequence;
+  private final boolean missed;
+
+  /**
+   * Create the outcome of a long poll.
+   * @param events the events of the watched patients, in sequence order
+   * @param lastSequence the sequence number to continue after, which may
+   * belong to an event of a patient that is not watched
+   * @param missed true if events since the previous poll are no
+   * longer available, so some observations may be missing
+   */
+  public ObservationEvents(List<ObservationEvent> events, long lastSequence, boolean missed) {
+    this.events = events;
+    this.lastSequence = lastSequence;
+    this.missed = missed;
+  }
+
+  public List<ObservationEvent> getEvents() {
+    return events;
+  }
+
+  /** Get the sequence number to pass to the next poll
+   * @return the sequence number of the last event considered
+   */
+  public long getLastSequence() {
+    return lastSequence;
+  }
+
+  /** Whether observations may be missing, because the client polled too
+   * rarely. Clients should then query the observations they have missed,
+   * e.g. using getObservationPage.
+   * @return true if events have been missed
+   */
+  public boolean isMissed() {
+    return missed;
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+import java.util.List;
+
+/**
+ * A page of the tele observations of a patient in a time range, in time
+ * order, together with the cursor from which the next page is read.
+ * Pass the cursor back to TeleMed to continue after the last
+ * observation of this page.
+ */
+public class ObservationPage {
+
+  private final List<TeleObservation> observations;
+  private final String nextCursor;
+
+  /**
+   * Create a page.
+   * @param observations the observations on the page
+   * @param nextCursor the opaque cursor of the next page, or null
+   * if this is the last page
+   */
+  public ObservationPage(List<TeleObservation> observations, String nextCursor) {
+    this.observations = observations;
+    this.nextCursor = nextCursor;
+  }
+
+  public List<TeleObservation> getObservations() {
+    return observations;
+  }
+
+  /** Get the cursor to read the next page from
+   * @return the cursor, or null if there are no more observations
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  /** Whether more observations follow this page
+   * @return true if there is a next page
+   */
+  public boolean hasNext() {
+    return nextCursor != null;
+  }
+}
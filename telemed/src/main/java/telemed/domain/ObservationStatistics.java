@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+import java.time.*;
+
+/**
+ * Blood pressure statistics of the observations a patient has made in a
+ * single time bucket, computed where the observations are stored so only
+ * the statistics need to be transferred.
+ */
+public class ObservationStatistics {
+
+  private final String patientId;
+  private final BucketSize bucketSize;
+  private final long bucketStart;
+  private final int count;
+  private final QuantityStatistics systolic;
+  private final QuantityStatistics diastolic;
+
+  /**
+   * Construct the statistics of a time bucket.
+   *
+   * @param patientId
+   *          the ID of the patient that made the observations
+   * @param bucketSize
+   *          the size of the bucket
+   * @param bucketStart
+   *          the start of the bucket, in seconds since the epoch
+   * @param count
+   *          the number of observations in the bucket
+   * @param systolic
+   *          statistics of the systolic blood pressure, or null if none
+   *          of the observations measured it
+   * @param diastolic
+   *          statistics of the diastolic blood pressure, or null if none
+   *          of the observations measured it
+   */
+  public ObservationStatistics(String patientId, BucketSize bucketSize, long bucketStart,
+                               int count, QuantityStatistics systolic,
+                               QuantityStatistics diastolic) {
+    this.patientId = patientId;
+    this.bucketSize = bucketSize;
+    this.bucketStart = bucketStart;
+    this.count = count;
+    this.systolic = systolic;
+    this.diastolic = diastolic;
+  }
+
+  public String getPatientId() {
+    return patientId;
+  }
+
+  public BucketSize getBucketSize() {
+    return bucketSize;
+  }
+
+  /** Get the start of the bucket
+   * @return the start of the bucket in UTC
+   */
+  public OffsetDateTime getBucketStart() {
+    return OffsetDateTime.ofInstant(Instant.ofEpochSecond(bucketStart), ZoneOffset.UTC);
+  }
+
+  /** Get the number of observations in the bucket
+   * @return the number of observations
+   */
+  public int getCount() {
+    return count;
+  }
+
+  public QuantityStatistics getSystolic() {
+    return systolic;
+  }
+
+  public QuantityStatistics getDiastolic() {
+    return diastolic;
+  }
+
+  @Override
+  public String toString() {
+    return "Statistics for ID=" + patientId + " " + bucketSize + " from " + getBucketStart()
+        + " (" + count + " observations): systolic " + systolic + "; diastolic " + diastolic;
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The description of what a clinical quantity measures: its code, unit,
+ * and display name. There are only a handful of distinct descriptors, so
+ * they are canonicalized by a registry and shared by all clinical
+ * quantities of the same kind, which then only hold their value and a
+ * reference to the descriptor.
+ * <p>
+ * The registry is bounded, so a misbehaving client sending ever new codes
+ * cannot fill the heap; beyond the bound, descriptors are simply not
+ * shared.
+ */
+public final class QuantityDescriptor {
+
+  /** Maximal number of descriptors in the registry */
+  public static final int MAX_REGISTERED = 1024;
+
+  // Most codes have a single unit and display name, so look up by code
+  // first; descriptors that differ from the first one seen for their
+  // code are looked up by all three properties
+  private static final ConcurrentHashMap<String, QuantityDescriptor> byCode =
+      new ConcurrentHashMap<>();
+  private static final ConcurrentHashMap<QuantityDescriptor, QuantityDescriptor> variants =
+      new ConcurrentHashMap<>();
+
+  private final String code;
+  private final String unit;
+  private final String displayName;
+
+  private QuantityDescriptor(String code, String unit, String displayName) {
+    this.code = code;
+    this.unit = unit;
+    this.displayName = displayName;
+  }
+
+  /**
+   * Get the canonical descriptor with the given properties.
+   *
+   * @param code the code identifying what is measured, e.g. "8867-4"
+   * @param unit the UCUM unit of the measured value, e.g. "/min"
+   * @param displayName the human readable name, e.g. "Pulse"
+   * @return the shared descriptor, or a new one if the registry is full
+   */
+  public static QuantityDescriptor of(String code, String unit, String displayName) {
+    if (code == null) {
+      return new QuantityDescriptor(null, unit, displayName);
+    }
+    QuantityDescriptor known = byCode.get(code);
+    if (known != null && known.matches(unit, displayName)) {
+      return known;
+    }
+    QuantityDescriptor candidate = new QuantityDescriptor(code, unit, displayName);
+    if (registeredCount() >= MAX_REGISTERED) {
+      return candidate;
+    }
+    if (known == null) {
+      known = byCode.putIfAbsent(code, candidate);
+      if (known == null || known.matches(unit, displayName)) {
+        return known == null ? candidate : known;
+      }
+    }
+    QuantityDescriptor variant = variants.putIfAbsent(candidate, candidate);
+    return variant == null ? candidate : variant;
+  }
+
+  /** Number of descriptors in the registry.
+   * @return the number of registered descriptors */
+  public static int registeredCount() {
+    return byCode.size() + variants.size();
+  }
+
+  public String getCode() {
+    return code;
+  }
+
+  public String getUnit() {
+    return unit;
+  }
+
+  public String getDisplayName() {
+    return displayName;
+  }
+
+  private boolean matches(String unit, String displayName) {
+    return Objects.equals(this.unit, unit) && Objects.equals(this.displayName, displayName);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) { return true; }
+    if (!(o instanceof QuantityDescriptor)) { return false; }
+    QuantityDescriptor other = (QuantityDescriptor) o;
+    return Objects.equals(code, other.code) && matches(other.unit, other.displayName);
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(code, unit, displayName);
+  }
+
+  @Override
+  public String toString() {
+    return displayName + " (" + code + ") in " + unit;
+  }
+}
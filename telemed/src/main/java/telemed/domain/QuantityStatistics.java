@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+import java.util.Arrays;
+
+/**
+ * Summary statistics of a set of measured values of a single clinical
+ * quantity: their count, minimum, maximum, mean, and the 10th, 50th
+ * (median), and 90th percentile. Percentiles use the nearest rank
+ * method, so they are always one of the measured values.
+ */
+public class QuantityStatistics {
+
+  private final int count;
+  private final double min;
+  private final double max;
+  private final double mean;
+  private final double percentile10;
+  private final double median;
+  private final double percentile90;
+
+  public QuantityStatistics(int count, double min, double max, double mean,
+                            double percentile10, double median, double percentile90) {
+    this.count = count;
+    this.min = min;
+    this.max = max;
+    this.mean = mean;
+    this.percentile10 = percentile10;
+    this.median = median;
+    this.percentile90 = percentile90;
+  }
+
+  /**
+   * Compute the statistics of the given values.
+   *
+   * @param values the measured values, which are not modified
+   * @return the statistics, or null if there are no values
+   */
+  public static QuantityStatistics of(double[] values) {
+    if (values.length == 0) { return null; }
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    double sum = 0;
+    for (double value : sorted) {
+      sum += value;
+    }
+    return new QuantityStatistics(sorted.length, sorted[0], sorted[sorted.length - 1],
+        sum / sorted.length, percentile(sorted, 10), percentile(sorted, 50),
+        percentile(sorted, 90));
+  }
+
+  private static double percentile(double[] sorted, int percent) {
+    int rank = (int) Math.ceil(percent / 100.0 * sorted.length);
+    return sorted[Math.max(rank, 1) - 1];
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public double getMin() {
+    return min;
+  }
+
+  public double getMax() {
+    return max;
+  }
+
+  public double getMean() {
+    return mean;
+  }
+
+  public double getPercentile10() {
+    return percentile10;
+  }
+
+  public double getMedian() {
+    return median;
+  }
+
+  public double getPercentile90() {
+    return percentile90;
+  }
+
+  @Override
+  public String toString() {
+    return "n=" + count + " min=" + min + " max=" + max + " mean=" + mean
+        + " p10=" + percentile10 + " median=" + median + " p90=" + percentile90;
+  }
+}
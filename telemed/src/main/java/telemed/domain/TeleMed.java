@@ -19,7 +19,9 @@ package telemed.domain;
 
 import frds.broker.IPCException;
 
+import java.time.OffsetDateTime;
 import java.util.List;
+import java.util.Map;
 
 /**
  * The central role in the TeleMed medical system, the application server that
@@ -48,6 +50,23 @@ public interface TeleMed {
    */
   String processAndStore(TeleObservation teleObs);
 
+  /**
+   * Process a tele observation into the HL7 format and store it, unless
+   * an observation of the same patient has already been stored with
+   * the same idempotency key. Clients that retry an upload, e.g. after
+   * a timeout, send the same key in each attempt, and get the id of the
+   * observation that was stored by the first attempt to succeed.
+   *
+   * @param teleObs
+   *          the tele observation to process and store
+   * @param idempotencyKey
+   *          key chosen by the client that identifies the upload,
+   *          e.g. a random UUID, or null to always store the observation
+   * @return the id of the stored observation
+   * @throws IPCException in case of any IPC problems
+   */
+  String processAndStore(TeleObservation teleObs, String idempotencyKey);
+
   /**
    * Retrieve all observations for the given time interval for the 
    * given patient. If no observations exists return a 0 sized
@@ -64,6 +83,95 @@ public interface TeleMed {
   List<TeleObservation> getObservationsFor(String patientId, 
 	  TimeInterval interval);
 
+  /**
+   * Retrieve the observations of several patients in the time range
+   * ]start;end] in a single request, e.g. for the worklist of a general
+   * practitioner.
+   *
+   * @param patientIds
+   *          the IDs of the patients to retrieve observations for, at
+   *          most 100 per request
+   * @param start
+   *          the (exclusive) start of the time range
+   * @param end
+   *          the (inclusive) end of the time range
+   * @return the observations of each patient in time order, in the
+   *         order of patientIds; patients without observations map to
+   *         a 0 sized list
+   * @throws IPCException in case of any IPC problems, including
+   *          too many patients
+   */
+  Map<String, List<TeleObservation>> getObservationsForPatients(List<String> patientIds,
+      OffsetDateTime start, OffsetDateTime end);
+
+  /**
+   * Retrieve a page of the observations of the given patient in the time
+   * range ]start;end], in time order. Pages are read one after the other
+   * by passing the cursor of a page to get the next page, so long
+   * histories can be read in replies of bounded size.
+   *
+   * @param patientId
+   *          the ID of the patient to retrieve observations for
+   * @param start
+   *          the (exclusive) start of the time range
+   * @param end
+   *          the (inclusive) end of the time range
+   * @param limit
+   *          the maximal number of observations on the page; the
+   *          server may return fewer
+   * @param cursor
+   *          the cursor of the previous page, or null to get the
+   *          first page
+   * @return the page of observations, which is empty if there are none
+   * @throws IPCException in case of any IPC problems, including
+   *          an invalid cursor
+   */
+  ObservationPage getObservationPage(String patientId, OffsetDateTime start,
+      OffsetDateTime end, int limit, String cursor);
+
+  /**
+   * Compute blood pressure statistics of the observations made by the
+   * given patient in the given time interval, per day or per week. The
+   * statistics are computed where the observations are stored, so only
+   * the statistics are returned. If no observations exists return a 0
+   * sized list.
+   *
+   * @param patientId
+   *          the ID of the patient to compute statistics for
+   * @param interval
+   *          define the time interval that statistics are
+   *          wanted for
+   * @param bucketSize
+   *          whether to compute statistics per day or per week
+   * @return the statistics of each day or week that has
+   *         observations, in time order
+   * @throws IPCException in case of any IPC problems
+   */
+  List<ObservationStatistics> getStatisticsFor(String patientId,
+      TimeInterval interval, BucketSize bucketSize);
+
+  /**
+   * Wait for observations of the given patients to be stored, as a long
+   * poll: the call returns as soon as there are new observations, or
+   * when the maximal wait has expired. Pass the last sequence number of
+   * the returned events to the next call to continue where this one
+   * stopped.
+   *
+   * @param patientIds
+   *          the IDs of the patients to watch
+   * @param afterSequence
+   *          the last sequence number returned by the previous call, or
+   *          -1 to only get observations stored from now on
+   * @param maxWaitMillis
+   *          the maximal time to wait for new observations, the
+   *          server may wait for less
+   * @return the events of the new observations, which are empty if
+   *         none were stored while waiting
+   * @throws IPCException in case of any IPC problems
+   */
+  ObservationEvents awaitObservations(List<String> patientIds, long afterSequence,
+      long maxWaitMillis);
+
   /**
    * Return the tele observation with the assigned ID
    * 
@@ -19,26 +19,32 @@ package telemed.domain;
 
 import java.time.*;
 import java.time.format.DateTimeFormatter;
-import java.time.temporal.ChronoUnit;
+import java.util.*;
+
+import com.google.gson.annotations.JsonAdapter;
 
 /**
- * The domain object for a tele observation for blood pressure. This encapsulates
+ * The domain object for a tele observation of vital signs. This encapsulates
  * a persons identity (which person does this measurements belong to), the time
- * of the observation, and of course the systolic and diastolic measurements.
+ * of the observation, and the measured clinical quantities, typically the
+ * systolic and diastolic blood pressure, possibly along with other vitals
+ * like pulse, see Vitals.
  */
 
+@JsonAdapter(TeleObservationJsonAdapter.class)
 public class TeleObservation {
   
   private final String patientId;
-  private final ClinicalQuantity systolic;
-  private final ClinicalQuantity diastolic;
+  private final ClinicalQuantity[] quantities;
 
-  /* One unfortunate implementation detail sneaks into this domain object,
-    namely that Gson cannot correctly deserialize OffsetDateTime objects.
-    Therefore, we choose a ISO 8601 string representation to avoid the
-    issue.
+  /* The time of observation is kept as primitives, in seconds since the
+    epoch and the zone offset in seconds, so time handling does not
+    allocate. As Gson cannot correctly (de)serialize the time, the
+    TeleObservationJsonAdapter marshals it as an ISO 8601 string
+    in the 'timeAsISO8601' property.
    */
-  private String timeAsISO8601;
+  private long epochSecond;
+  private int offsetSeconds;
   
   /** Construct a tele observation for the given patient and the
    * given blood pressure
@@ -47,12 +53,19 @@ public class TeleObservation {
    * @param diastolic value of diastolic blood pressure in mm(Hg)
    */
   public TeleObservation(String patientId, double systolic, double diastolic) {
+    this(patientId, Vitals.systolic(systolic), Vitals.diastolic(diastolic));
+  }
+
+  /** Construct a tele observation for the given patient and the
+   * given measured quantities
+   * @param patientId id of the patient
+   * @param quantities the measured clinical quantities
+   */
+  public TeleObservation(String patientId, ClinicalQuantity... quantities) {
     this.patientId = patientId;
+    this.quantities = quantities.clone();
     // Timestamp the observation to 'now' but ignore the milliseconds
     setTime(OffsetDateTime.now());
-    // The codes 'MSC...' are part of a Danish telemedic code system.
-    this.systolic = new ClinicalQuantity(systolic, "mm(Hg)","MSC88019","Systolic BP");
-    this.diastolic = new ClinicalQuantity(diastolic, "mm(Hg)","MSC88020","Diastolic BP");
   }
   
   /**
@@ -71,38 +84,113 @@ public class TeleObservation {
    * @return time of observation.
    */
   public OffsetDateTime getTime() {
-    OffsetDateTime time = OffsetDateTime.parse(timeAsISO8601);
-    return time;
+    return OffsetDateTime.ofInstant(Instant.ofEpochSecond(epochSecond),
+        ZoneOffset.ofTotalSeconds(offsetSeconds));
+  }
+
+  /**
+   * The time when this observation was made, in seconds since the epoch.
+   *
+   * @return epoch second of the time of observation
+   */
+  public long getEpochSecond() {
+    return epochSecond;
+  }
+
+  /**
+   * The zone offset of the time when this observation was made.
+   *
+   * @return the offset from UTC in seconds
+   */
+  public int getOffsetSeconds() {
+    return offsetSeconds;
   }
 
   /**
    * Set the time for this observation, mostly a feature to enable testing.
+   * The time is truncated to whole seconds.
    * 
    * @param time
    *          the time to set for this observation
    */
   public void setTime(OffsetDateTime time) {
-    OffsetDateTime time2 = time.truncatedTo(ChronoUnit.SECONDS);
-    this.timeAsISO8601 = time2.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+    setTime(time.toEpochSecond(), time.getOffset().getTotalSeconds());
+  }
+
+  /**
+   * Set the time for this observation.
+   *
+   * @param epochSecond
+   *          the time in seconds since the epoch
+   * @param offsetSeconds
+   *          the zone offset from UTC in seconds
+   */
+  public void setTime(long epochSecond, int offsetSeconds) {
+    this.epochSecond = epochSecond;
+    this.offsetSeconds = offsetSeconds;
+  }
+
+  /**
+   * The measured clinical quantities.
+   *
+   * @return read-only list of the quantities, in the order given
+   */
+  public List<ClinicalQuantity> getQuantities() {
+    return Collections.unmodifiableList(Arrays.asList(quantities));
+  }
+
+  /**
+   * The number of measured clinical quantities.
+   *
+   * @return the number of quantities
+   */
+  public int getQuantityCount() {
+    return quantities.length;
+  }
+
+  /**
+   * A measured clinical quantity by position.
+   *
+   * @param index the position of the quantity
+   * @return the quantity
+   */
+  public ClinicalQuantity getQuantity(int index) {
+    return quantities[index];
+  }
+
+  /**
+   * The measured clinical quantity with the given code.
+   *
+   * @param code the code of the quantity, see Vitals
+   * @return the quantity or null if it was not measured
+   */
+  public ClinicalQuantity getQuantity(String code) {
+    for (ClinicalQuantity quantity : quantities) {
+      if (code.equals(quantity.getCode())) {
+        return quantity;
+      }
+    }
+    return null;
   }
 
   /**
    * The systolic blood pressure
    * 
-   * @return the systolic blood pressure
+   * @return the systolic blood pressure, or null if not measured
    */
   public ClinicalQuantity getSystolic() {
-    return systolic;
+    return getQuantity(Vitals.SYSTOLIC_CODE);
   }
 
   /** The diastolic blood pressure 
-   * @return the diastolic blood pressure
+   * @return the diastolic blood pressure, or null if not measured
    * */
   public ClinicalQuantity getDiastolic() {
-    return diastolic;
+    return getQuantity(Vitals.DIASTOLIC_CODE);
   }
   
   public String toString() {
-    return "Blood pressure for ID="+getPatientId()+" Measured=("+getSystolic() + ","+getDiastolic()+") at "+timeAsISO8601;
+    return "Observation for ID="+getPatientId()+" Measured="+Arrays.toString(quantities)+" at "+
+        DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(getTime());
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+import java.io.IOException;
+import java.time.OffsetDateTime;
+import java.time.format.*;
+import java.util.*;
+
+import com.google.gson.*;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.*;
+
+/**
+ * Gson marshalling of tele observations, which keeps the wire format
+ * that Gson produced by reflection when the time was stored as an ISO
+ * 8601 string and only blood pressure was measured, so clients and
+ * servers of either kind interoperate:
+ * <pre>
+ * {"patientId":"...","systolic":{...},"diastolic":{...},
+ *  "vitals":[{...},...],"timeAsISO8601":"2012-06-01T07:30:12Z"}
+ * </pre>
+ * Quantities other than blood pressure are marshalled in the 'vitals'
+ * array, which is left out if there are none; older readers ignore it.
+ * When unmarshalled, blood pressure comes before the other vitals.
+ */
+class TeleObservationJsonAdapter implements TypeAdapterFactory {
+
+  private static final String PATIENT_ID = "patientId";
+  private static final String SYSTOLIC = "systolic";
+  private static final String DIASTOLIC = "diastolic";
+  private static final String VITALS = "vitals";
+  private static final String TIME = "timeAsISO8601";
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+    if (type.getRawType() != TeleObservation.class) {
+      return null;
+    }
+    return (TypeAdapter<T>) new Adapter(gson.getAdapter(ClinicalQuantity.class)).nullSafe();
+  }
+
+  private static class Adapter extends TypeAdapter<TeleObservation> {
+
+    private final TypeAdapter<ClinicalQuantity> quantityAdapter;
+
+    Adapter(TypeAdapter<ClinicalQuantity> quantityAdapter) {
+      this.quantityAdapter = quantityAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, TeleObservation to) throws IOException {
+      out.beginObject();
+      out.name(PATIENT_ID).value(to.getPatientId());
+      ClinicalQuantity systolic = to.getSystolic();
+      if (systolic != null) {
+        out.name(SYSTOLIC);
+        quantityAdapter.write(out, systolic);
+      }
+      ClinicalQuantity diastolic = to.getDiastolic();
+      if (diastolic != null) {
+        out.name(DIASTOLIC);
+        quantityAdapter.write(out, diastolic);
+      }
+      boolean vitalsStarted = false;
+      for (int i = 0; i < to.getQuantityCount(); i++) {
+        ClinicalQuantity quantity = to.getQuantity(i);
+        if (quantity == systolic || quantity == diastolic) { continue; }
+        if (!vitalsStarted) {
+          out.name(VITALS).beginArray();
+          vitalsStarted = true;
+        }
+        quantityAdapter.write(out, quantity);
+      }
+      if (vitalsStarted) {
+        out.endArray();
+      }
+      out.name(TIME).value(DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(to.getTime()));
+      out.endObject();
+    }
+
+    @Override
+    public TeleObservation read(JsonReader in) throws IOException {
+      String patientId = null;
+      ClinicalQuantity systolic = null, diastolic = null;
+      List<ClinicalQuantity> vitals = new ArrayList<>();
+      OffsetDateTime time = null;
+
+      in.beginObject();
+      while (in.hasNext()) {
+        String name = in.nextName();
+        if (in.peek() == JsonToken.NULL) {
+          in.nextNull();
+          continue;
+        }
+        switch (name) {
+          case PATIENT_ID:
+            patientId = in.nextString();
+            break;
+          case SYSTOLIC:
+            systolic = quantityAdapter.read(in);
+            break;
+          case DIASTOLIC:
+            diastolic = quantityAdapter.read(in);
+            break;
+          case VITALS:
+            in.beginArray();
+            while (in.hasNext()) {
+              vitals.add(quantityAdapter.read(in));
+            }
+            in.endArray();
+            break;
+          case TIME:
+            try {
+              time = OffsetDateTime.parse(in.nextString());
+            } catch (DateTimeParseException e) {
+              throw new JsonSyntaxException("Invalid " + TIME + ": " + e.getMessage(), e);
+            }
+            break;
+          default:
+            in.skipValue();
+        }
+      }
+      in.endObject();
+
+      if (diastolic != null) { vitals.add(0, diastolic); }
+      if (systolic != null) { vitals.add(0, systolic); }
+      TeleObservation to = new TeleObservation(patientId,
+          vitals.toArray(new ClinicalQuantity[0]));
+      if (time != null) {
+        to.setTime(time);
+      }
+      return to;
+    }
+  }
+}
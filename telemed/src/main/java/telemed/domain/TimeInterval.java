@@ -17,9 +17,27 @@
 
 package telemed.domain;
 
+import java.time.OffsetDateTime;
+
 /**
  * Enum representing a time interval from present time.
  */
 public enum TimeInterval {
-  LAST_DAY, LAST_WEEK, LAST_MONTH
+  LAST_DAY, LAST_WEEK, LAST_MONTH;
+
+  /**
+   * Compute the start of the interval that ends at the given time,
+   * typically 'now'.
+   *
+   * @param end the end of the interval
+   * @return the start of the interval
+   */
+  public OffsetDateTime startingBefore(OffsetDateTime end) {
+    if (this == LAST_DAY) {
+      return end.minusDays(1);
+    } else if (this == LAST_WEEK) {
+      return end.minusDays(7);
+    }
+    return end.minusMonths(1);
+  }
 }
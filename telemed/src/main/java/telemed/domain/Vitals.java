@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.domain;
+
+/**
+ * The vital signs that TeleMed devices measure, and factory methods for
+ * clinical quantities representing them.
+ * <p>
+ * Blood pressure is coded in the Danish 'MSC' telemedic code system, as
+ * it has always been in TeleMed; the remaining vitals use LOINC codes.
+ */
+public final class Vitals {
+
+  public static final String SYSTOLIC_CODE = "MSC88019";
+  public static final String DIASTOLIC_CODE = "MSC88020";
+  public static final String PULSE_CODE = "8867-4";
+  public static final String OXYGEN_SATURATION_CODE = "59408-5";
+  public static final String WEIGHT_CODE = "29463-7";
+  public static final String GLUCOSE_CODE = "15074-8";
+
+  public static final QuantityDescriptor SYSTOLIC =
+      QuantityDescriptor.of(SYSTOLIC_CODE, "mm(Hg)", "Systolic BP");
+  public static final QuantityDescriptor DIASTOLIC =
+      QuantityDescriptor.of(DIASTOLIC_CODE, "mm(Hg)", "Diastolic BP");
+  public static final QuantityDescriptor PULSE =
+      QuantityDescriptor.of(PULSE_CODE, "/min", "Pulse");
+  public static final QuantityDescriptor OXYGEN_SATURATION =
+      QuantityDescriptor.of(OXYGEN_SATURATION_CODE, "%", "SpO2");
+  public static final QuantityDescriptor WEIGHT =
+      QuantityDescriptor.of(WEIGHT_CODE, "kg", "Weight");
+  public static final QuantityDescriptor GLUCOSE =
+      QuantityDescriptor.of(GLUCOSE_CODE, "mmol/L", "Glucose");
+
+  private Vitals() {}
+
+  /** Systolic blood pressure.
+   * @param value pressure in mm(Hg)
+   * @return the clinical quantity */
+  public static ClinicalQuantity systolic(double value) {
+    return new ClinicalQuantity(value, SYSTOLIC);
+  }
+
+  /** Diastolic blood pressure.
+   * @param value pressure in mm(Hg)
+   * @return the clinical quantity */
+  public static ClinicalQuantity diastolic(double value) {
+    return new ClinicalQuantity(value, DIASTOLIC);
+  }
+
+  /** Pulse, that is, heart rate.
+   * @param value beats per minute
+   * @return the clinical quantity */
+  public static ClinicalQuantity pulse(double value) {
+    return new ClinicalQuantity(value, PULSE);
+  }
+
+  /** Peripheral oxygen saturation (SpO2).
+   * @param value saturation in percent
+   * @return the clinical quantity */
+  public static ClinicalQuantity oxygenSaturation(double value) {
+    return new ClinicalQuantity(value, OXYGEN_SATURATION);
+  }
+
+  /** Body weight.
+   * @param value weight in kilograms
+   * @return the clinical quantity */
+  public static ClinicalQuantity weight(double value) {
+    return new ClinicalQuantity(value, WEIGHT);
+  }
+
+  /** Blood glucose.
+   * @param value concentration in mmol/L
+   * @return the clinical quantity */
+  public static ClinicalQuantity glucose(double value) {
+    return new ClinicalQuantity(value, GLUCOSE);
+  }
+
+  /** Create the clinical quantity for a vital given by its code.
+   * @param code the code of the vital
+   * @param value the measured value
+   * @return the clinical quantity, or null if the code is not one
+   * of the known vitals
+   */
+  public static ClinicalQuantity of(String code, double value) {
+    switch (code) {
+      case SYSTOLIC_CODE: return systolic(value);
+      case DIASTOLIC_CODE: return diastolic(value);
+      case PULSE_CODE: return pulse(value);
+      case OXYGEN_SATURATION_CODE: return oxygenSaturation(value);
+      case WEIGHT_CODE: return weight(value);
+      case GLUCOSE_CODE: return glucose(value);
+      default: return null;
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.doubles;
+
+import java.time.OffsetDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.*;
+
+import org.w3c.dom.Document;
+
+import telemed.domain.*;
+import telemed.storage.*;
+
+/**
+ * A fake object implementation of the asynchronous XDS storage system,
+ * standing in for the asynchronous MongoDB adapter. All operations are
+ * delegated to a FakeObjectXDSDatabase but executed on a separate
+ * storage thread, so the futures complete asynchronously just like they
+ * do when the MongoDB driver's I/O threads answer.
+ * <p>
+ * As the fake object is not thread safe, a single storage thread
+ * is used, which also serializes all operations.
+ */
+public class AsyncFakeObjectXDSDatabase implements AsyncXDSBackend {
+
+  private final FakeObjectXDSDatabase delegate;
+  private final ExecutorService storageThread;
+
+  public AsyncFakeObjectXDSDatabase() {
+    this(new FakeObjectXDSDatabase());
+  }
+
+  public AsyncFakeObjectXDSDatabase(FakeObjectXDSDatabase delegate) {
+    this.delegate = delegate;
+    storageThread = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "fake-xds-storage");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /** Spy / retrival interface to get the
+   * underlying fake object database
+   * @return the fake object database
+   */
+  public FakeObjectXDSDatabase getDelegate() {
+    return delegate;
+  }
+
+  @Override
+  public CompletableFuture<String> provideAndRegisterDocumentAsync(MetaData metaData,
+                                                                   Document observationAsHL7) {
+    return CompletableFuture.supplyAsync(
+        () -> delegate.provideAndRegisterDocument(metaData, observationAsHL7), storageThread);
+  }
+
+  @Override
+  public CompletableFuture<List<Document>> retriveDocumentSetAsync(String personID,
+                                                                   OffsetDateTime start,
+                                                                   OffsetDateTime end) {
+    return CompletableFuture.supplyAsync(
+        () -> delegate.retriveDocumentSet(personID, start, end), storageThread);
+  }
+
+  @Override
+  public CompletableFuture<Document> retriveDocumentAsync(String uniqueId) {
+    return CompletableFuture.supplyAsync(
+        () -> delegate.retriveDocument(uniqueId), storageThread);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> correctDocumentAsync(String uniqueId, Operation operation,
+                                                         Document doc) {
+    return CompletableFuture.supplyAsync(
+        () -> delegate.correctDocument(uniqueId, operation, doc), storageThread);
+  }
+
+  @Override
+  public CompletableFuture<String> provideAndRegisterObservationAsync(MetaData metaData,
+                                                                      String observationAsHL7,
+                                                                      ObservationRecord record) {
+    return CompletableFuture.supplyAsync(
+        () -> delegate.provideAndRegisterObservation(metaData, observationAsHL7, record),
+        storageThread);
+  }
+
+  @Override
+  public String retriveUniqueIdForIdempotencyKey(String personID, String idempotencyKey) {
+    return AsyncXDSBackend.await(retriveUniqueIdForIdempotencyKeyAsync(personID, idempotencyKey));
+  }
+
+  @Override
+  public CompletableFuture<String> retriveUniqueIdForIdempotencyKeyAsync(String personID,
+                                                                         String idempotencyKey) {
+    return CompletableFuture.supplyAsync(
+        () -> delegate.retriveUniqueIdForIdempotencyKey(personID, idempotencyKey), storageThread);
+  }
+
+  @Override
+  public String reserveUniqueId() {
+    return AsyncXDSBackend.await(CompletableFuture.supplyAsync(
+        delegate::reserveUniqueId, storageThread));
+  }
+
+  @Override
+  public void provideAndRegisterObservations(List<ObservationSubmission> batch) {
+    AsyncXDSBackend.await(CompletableFuture.runAsync(
+        () -> delegate.provideAndRegisterObservations(batch), storageThread));
+  }
+
+  @Override
+  public CompletableFuture<List<ObservationRecord>> retriveRecordSetAsync(String personID,
+                                                                          OffsetDateTime start,
+                                                                          OffsetDateTime end) {
+    return CompletableFuture.supplyAsync(() -> {
+      try (Stream<ObservationRecord> records = delegate.retriveRecordStream(personID, start, end)) {
+        return records.collect(Collectors.toList());
+      }
+    }, storageThread);
+  }
+
+  @Override
+  public CompletableFuture<Map<String, List<ObservationRecord>>> retriveRecordsForPersonsAsync(
+      Collection<String> personIDs, OffsetDateTime start, OffsetDateTime end) {
+    return CompletableFuture.supplyAsync(
+        () -> delegate.retriveRecordsForPersons(personIDs, start, end), storageThread);
+  }
+
+  @Override
+  public CompletableFuture<RecordPage> retriveRecordPageAsync(String personID,
+                                                              OffsetDateTime start,
+                                                              OffsetDateTime end,
+                                                              int limit, String cursor) {
+    return CompletableFuture.supplyAsync(
+        () -> delegate.retriveRecordPage(personID, start, end, limit, cursor), storageThread);
+  }
+
+  @Override
+  public CompletableFuture<List<ObservationStatistics>> retriveStatisticsAsync(String personID,
+                                                                              OffsetDateTime start,
+                                                                              OffsetDateTime end,
+                                                                              BucketSize bucketSize) {
+    return CompletableFuture.supplyAsync(
+        () -> delegate.retriveStatistics(personID, start, end, bucketSize), storageThread);
+  }
+
+  @Override
+  public CompletableFuture<ObservationRecord> retriveRecordAsync(String uniqueId) {
+    return CompletableFuture.supplyAsync(
+        () -> delegate.retriveRecord(uniqueId), storageThread);
+  }
+
+  @Override
+  public CompletableFuture<Boolean> correctObservationAsync(String uniqueId, Operation operation,
+                                                            String hl7, ObservationRecord record) {
+    return CompletableFuture.supplyAsync(
+        () -> delegate.correctObservation(uniqueId, operation, hl7, record), storageThread);
+  }
+
+  /** Complete the operations queued on the storage thread, and stop it. */
+  @Override
+  public void close() {
+    storageThread.shutdown();
+    try {
+      storageThread.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
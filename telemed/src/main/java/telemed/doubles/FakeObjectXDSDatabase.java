@@ -19,10 +19,13 @@ package telemed.doubles;
 
 import java.time.*;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.*;
 
 import org.w3c.dom.Document;
 
+import telemed.domain.*;
+import telemed.server.*;
 import telemed.storage.*;
 
 /**
@@ -40,12 +43,19 @@ import telemed.storage.*;
 public class FakeObjectXDSDatabase implements XDSBackend {
   
   private List<Pair> db = new ArrayList<>();
+  // Index of the stored observations by patient and timestamp, so
+  // statistics only scan the observations that are aggregated
+  private final Map<String, TreeMap<Long, List<Pair>>> index = new HashMap<>();
+  // Ids of the observations by patient and idempotency key of their upload
+  private final Map<String, Map<String, String>> idempotencyKeys = new HashMap<>();
 
   private Document lastStoredObservation;
   private MetaData lastMetaData;
 
   // spying on the behavior
   private int countOfProvidedDocuments;
+  // Ids are reserved by the Jetty threads taking uploads, concurrently
+  private final AtomicInteger countOfReservedIds = new AtomicInteger();
   
   public FakeObjectXDSDatabase() {
     countOfProvidedDocuments = 0;
@@ -53,27 +63,82 @@ public class FakeObjectXDSDatabase implements XDSBackend {
 
   class Pair { 
     public final String uniqueId;
+    public final int sequence;
     public final MetaData meta;
     public Document doc; 
-    public Pair(String uid, MetaData m, Document d) {
+    public ObservationRecord record;
+    public Pair(String uid, MetaData m, Document d, ObservationRecord r) {
       uniqueId = uid;
+      sequence = countOfProvidedDocuments;
       meta = m;
       doc = d;
+      record = r;
+    }
+    /** Documents stored without a record get it from their HL7 */
+    public ObservationRecord getRecord() {
+      if (record == null) {
+        record = HL7Reader.readObservationRecord(XMLUtility.convertXMLDocumentToString(doc));
+      }
+      return record;
     }
   }
 
   @Override
   public String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    return store(metaData, observationAsHL7, null);
+  }
+
+  @Override
+  public String provideAndRegisterObservation(MetaData metaData, String observationAsHL7,
+                                              ObservationRecord record) {
+    return store(metaData, XMLUtility.convertXMLStringToDocument(observationAsHL7), record);
+  }
+
+  private String store(MetaData metaData, Document observationAsHL7, ObservationRecord record) {
     lastMetaData = metaData;
     lastStoredObservation = observationAsHL7;
 
+    return store(reserveUniqueId(), metaData, observationAsHL7, record);
+  }
+
+  private String store(String uniqueId, MetaData metaData, Document observationAsHL7,
+                       ObservationRecord record) {
     countOfProvidedDocuments++;
-    String uniqueId = "uid-"+countOfProvidedDocuments; 
     // Store the observation in an internal 'database'
-    db.add( new Pair(uniqueId, metaData, observationAsHL7));
+    Pair entry = new Pair(uniqueId, metaData, observationAsHL7, record);
+    db.add(entry);
+    index.computeIfAbsent(metaData.getPersonID(), pid -> new TreeMap<>()).
+        computeIfAbsent(metaData.getTimestamp(), timestamp -> new ArrayList<>()).
+        add(entry);
+    if (metaData.getIdempotencyKey() != null) {
+      idempotencyKeys.computeIfAbsent(metaData.getPersonID(), pid -> new HashMap<>()).
+          put(metaData.getIdempotencyKey(), uniqueId);
+    }
     return uniqueId;
   }
 
+  @Override
+  public String retriveUniqueIdForIdempotencyKey(String personID, String idempotencyKey) {
+    return idempotencyKeys.getOrDefault(personID, Collections.emptyMap()).get(idempotencyKey);
+  }
+
+  @Override
+  public String reserveUniqueId() {
+    return "uid-" + countOfReservedIds.incrementAndGet();
+  }
+
+  @Override
+  public void provideAndRegisterObservations(List<ObservationSubmission> batch) {
+    for (ObservationSubmission submission : batch) {
+      // observations stored again are ignored
+      if (findOptionalInDBWithUniqueId(submission.getUniqueId()).isPresent()) { continue; }
+      lastMetaData = submission.getMetaData();
+      lastStoredObservation = XMLUtility.convertXMLStringToDocument(submission.getHl7());
+      store(submission.getUniqueId(), lastMetaData, lastStoredObservation,
+          submission.getRecord());
+    }
+  }
+
   /** Spy / retrival interface to get the
    * last stored observation
    * @return last observation that has been stored
@@ -130,6 +195,98 @@ public class FakeObjectXDSDatabase implements XDSBackend {
     return thelist;
   }
 
+  @Override
+  public Stream<ObservationRecord> retriveRecordStream(String personID, OffsetDateTime startTime,
+      OffsetDateTime endTime) {
+    TreeMap<Long, List<Pair>> observations = index.getOrDefault(personID, new TreeMap<>());
+    // The start is exclusive, as in the MongoDB adapters
+    return observations.subMap(startTime.toInstant().toEpochMilli(), false,
+        endTime.toInstant().toEpochMilli(), true).values().stream().
+      flatMap(List::stream).
+      // in order of storage, as the callers expect
+      sorted(Comparator.comparingInt(entry -> entry.sequence)).
+      map(Pair::getRecord).
+      // materialized, as the database may change while streaming
+      collect(Collectors.toList()).stream();
+  }
+
+  @Override
+  public Map<String, List<ObservationRecord>> retriveRecordsForPersons(
+      Collection<String> personIDs, OffsetDateTime startTime, OffsetDateTime endTime) {
+    long start = startTime.toInstant().toEpochMilli();
+    long end = endTime.toInstant().toEpochMilli();
+    Map<String, List<ObservationRecord>> result = new LinkedHashMap<>();
+    for (String personID : personIDs) {
+      List<ObservationRecord> records = new ArrayList<>();
+      TreeMap<Long, List<Pair>> observations = index.get(personID);
+      if (observations != null) {
+        observations.subMap(start, false, end, true).values().
+          forEach(entries -> entries.forEach(entry -> records.add(entry.getRecord())));
+      }
+      result.put(personID, records);
+    }
+    return result;
+  }
+
+  @Override
+  public RecordPage retriveRecordPage(String personID, OffsetDateTime startTime,
+      OffsetDateTime endTime, int limit, String cursor) {
+    TreeMap<Long, List<Pair>> observations = index.getOrDefault(personID, new TreeMap<>());
+    // The start is exclusive, as in the MongoDB adapters
+    NavigableMap<Long, List<Pair>> range = observations.subMap(
+        startTime.toInstant().toEpochMilli(), false, endTime.toInstant().toEpochMilli(), true);
+
+    // Cursors are the timestamp and sequence number of the last
+    // observation on the previous page
+    long timestamp = Long.MIN_VALUE;
+    int sequence = 0;
+    if (cursor != null) {
+      String[] parts = cursor.split(":");
+      try {
+        timestamp = Long.parseLong(parts[0]);
+        sequence = Integer.parseInt(parts[1]);
+      } catch (RuntimeException e) {
+        throw new InvalidRequestException("Invalid cursor: " + cursor);
+      }
+      range = range.tailMap(timestamp, true);
+    }
+    long afterTimestamp = timestamp;
+    int afterSequence = sequence;
+    List<Pair> entries = range.values().stream().
+        flatMap(List::stream).
+        filter(entry -> entry.meta.getTimestamp() > afterTimestamp
+            || entry.sequence > afterSequence).
+        limit(limit + 1L).
+        collect(Collectors.toList());
+
+    List<ObservationRecord> records = entries.stream().limit(limit).
+        map(Pair::getRecord).collect(Collectors.toList());
+    if (entries.size() <= limit) {
+      return new RecordPage(records, null);
+    }
+    Pair last = entries.get(limit - 1);
+    return new RecordPage(records, last.meta.getTimestamp() + ":" + last.sequence);
+  }
+
+  @Override
+  public List<ObservationStatistics> retriveStatistics(String personID, OffsetDateTime startTime,
+      OffsetDateTime endTime, BucketSize bucketSize) {
+    StatisticsAccumulator accumulator = new StatisticsAccumulator(personID, bucketSize);
+    TreeMap<Long, List<Pair>> observations = index.get(personID);
+    if (observations != null) {
+      observations.subMap(startTime.toInstant().toEpochMilli(), false,
+          endTime.toInstant().toEpochMilli(), true).
+        values().forEach(entries -> entries.forEach(
+            entry -> accumulator.add(entry.getRecord())));
+    }
+    return accumulator.getResult();
+  }
+
+  @Override
+  public ObservationRecord retriveRecord(String uniqueId) {
+    return findOptionalInDBWithUniqueId(uniqueId).map(Pair::getRecord).orElse(null);
+  }
+
   @Override
   public Document retriveDocument(String uniqueId) {
     Optional<Pair> foundPairInDB;
@@ -148,14 +305,32 @@ public class FakeObjectXDSDatabase implements XDSBackend {
 
   @Override
   public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    return correct(uniqueId, operation, doc, null);
+  }
+
+  @Override
+  public boolean correctObservation(String uniqueId, Operation operation, String hl7,
+                                    ObservationRecord record) {
+    Document doc = hl7 == null ? null : XMLUtility.convertXMLStringToDocument(hl7);
+    return correct(uniqueId, operation, doc, record);
+  }
+
+  private boolean correct(String uniqueId, Operation operation, Document doc,
+                          ObservationRecord record) {
     Optional<Pair> foundPairInDB;
     foundPairInDB = findOptionalInDBWithUniqueId(uniqueId);
     if (operation == Operation.UPDATE) {
       if (!foundPairInDB.isPresent()) { return false; }
       Pair entry = foundPairInDB.get();
       entry.doc = doc;
+      entry.record = record;
     } else if (operation == Operation.DELETE) {
       if (!foundPairInDB.isPresent()) { return false; }
+      MetaData md = foundPairInDB.get().meta;
+      index.get(md.getPersonID()).get(md.getTimestamp()).remove(foundPairInDB.get());
+      if (md.getIdempotencyKey() != null) {
+        idempotencyKeys.get(md.getPersonID()).remove(md.getIdempotencyKey());
+      }
       List<Pair> oneLessList = db.stream().
           filter(entry -> !entry.uniqueId.equals(uniqueId)).
           collect(Collectors.toList());
@@ -23,4 +23,7 @@ package telemed.ipc.http;
  */
 public class Constants {
   public static final String BLOODPRESSURE_PATH = "bp/";
+  public static final String EVENTS_PATH = "events";
+  /** Header of REST uploads that carries the idempotency key */
+  public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
 }
@@ -21,12 +21,19 @@ import frds.broker.Invoker;
 import frds.broker.ServerRequestHandler;
 import frds.broker.ipc.http.UriTunnelServerRequestHandler;
 import org.w3c.dom.Document;
+import com.google.gson.Gson;
+import telemed.domain.ObservationEvent;
+import telemed.server.ObservationEventBus;
 import telemed.server.XMLUtility;
 import telemed.storage.XDSBackend;
 
 import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
 import java.time.OffsetDateTime;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static spark.Spark.*;
 
@@ -39,13 +46,33 @@ import static spark.Spark.*;
  * 'Do-not-talk-to-strangers' but illustrate how
  * raw data is most efficiently fetched.
  * <p>
+ * If given the event bus of the servant, it also pushes newly stored
+ * observations to GP clients as server-sent events on the EVENTS_PATH,
+ * for the patients given by 'patientId' query parameters. Each connection
+ * is kept for a limited time, after which clients like browsers
+ * reconnect, continuing after the Last-Event-ID they have seen. Clients
+ * that do not keep up are sent a 'reset' event and disconnected, and
+ * should then query what they have missed. When the server is stopped,
+ * event streams end once the event bus is closed, so that clients
+ * reconnect to another server, while requests for the GP overview are
+ * rejected while those in flight are drained.
+ * <p>
  * Implementation based on the Spark-Java framework.
  */
 public class TeleMedUriTunnelServerRequestHandler
   extends UriTunnelServerRequestHandler
         implements ServerRequestHandler {
 
+  /** Number of events buffered for each event stream client */
+  public static final int EVENT_BUFFER_CAPACITY = 256;
+  /** Time an event stream is kept open before the client must reconnect */
+  public static final long EVENT_STREAM_MILLIS = 5 * 60 * 1000;
+  /** Time between comments that keep idle event streams open */
+  public static final long KEEP_ALIVE_MILLIS = 15 * 1000;
+
   protected final XDSBackend xds;
+  protected final ObservationEventBus eventBus;
+  private final Gson gson = new Gson();
 
   /** Create server request handler that is specific for
    * the TeleMed case, as it also reponds to GET requests
@@ -58,8 +85,25 @@ public class TeleMedUriTunnelServerRequestHandler
   public TeleMedUriTunnelServerRequestHandler(Invoker invoker, int port,
                                               boolean useTls,
                                               XDSBackend xds) {
+    this(invoker, port, useTls, xds, null);
+  }
+
+  /** Create server request handler that is specific for
+   * the TeleMed case, and which also streams newly stored
+   * observations as server-sent events on the EVENTS_PATH.
+   * @param invoker the server side Invoker delegate
+   * @param port the port that this server will respond on
+   * @param xds the delegate that plays the XDSBackend role
+   * @param eventBus the bus the servant publishes stored
+   * observations on, or null to not stream events
+   */
+  public TeleMedUriTunnelServerRequestHandler(Invoker invoker, int port,
+                                              boolean useTls,
+                                              XDSBackend xds,
+                                              ObservationEventBus eventBus) {
     super(invoker, port, useTls, Constants.BLOODPRESSURE_PATH);
     this.xds = xds;
+    this.eventBus = eventBus;
   }
 
   public void start() {
@@ -73,26 +117,38 @@ public class TeleMedUriTunnelServerRequestHandler
             + ":patientId";
     get(getRoute, (req, res) -> {
       String patientId = req.params(":patientId");
-      String html =
-              "<html><body><h1>TeleMed</h1><h2>Observations for "
-                      + patientId + "</h2>";
-
-      List<Document> list;
+      StringBuilder observations = new StringBuilder();
+      int count = 0;
       // Calculate the time interval to search within
       OffsetDateTime now = OffsetDateTime.now();
       OffsetDateTime someTimeAgo = now.minusDays(7);
 
-      list = xds.retriveDocumentSet(patientId, someTimeAgo, now);
-      html += "<H3>There are " + list.size() + " observations.</H3>\n";
-      for ( Document doc1 : list ) {
-        html += "<hr/><pre>";
-        // Sigh - have to convert all < to the &lt; etc.
-        String tmp = XMLUtility.convertXMLDocumentToString(doc1);
-        tmp = tmp.replaceAll("<", "&lt;");
-        tmp = tmp.replaceAll(">", "&gt;");
-        html += tmp;
-        html += "</pre>";
+      if (!drain.enter()) {
+        res.header("Retry-After", String.valueOf(RETRY_AFTER_SECONDS));
+        res.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        return "Server is stopping";
       }
+      try (Stream<Document> stream =
+                   xds.retriveDocumentStream(patientId, someTimeAgo, now)) {
+        for (Document doc1 : (Iterable<Document>) stream::iterator) {
+          observations.append("<hr/><pre>");
+          // Sigh - have to convert all < to the &lt; etc.
+          String tmp = XMLUtility.convertXMLDocumentToString(doc1);
+          tmp = tmp.replaceAll("<", "&lt;");
+          tmp = tmp.replaceAll(">", "&gt;");
+          observations.append(tmp);
+          observations.append("</pre>");
+          count++;
+        }
+      } finally {
+        drain.exit();
+      }
+
+      String html =
+              "<html><body><h1>TeleMed</h1><h2>Observations for "
+                      + patientId + "</h2>";
+      html += "<H3>There are " + count + " observations.</H3>\n";
+      html += observations;
 
       html += "</body></html>";
       
@@ -100,6 +156,65 @@ public class TeleMedUriTunnelServerRequestHandler
       
       return html;
     });
-    
+
+    if (eventBus != null) {
+      get("/" + Constants.EVENTS_PATH, (req, res) -> {
+        String[] patientIds = req.queryParamsValues("patientId");
+        if (patientIds == null) {
+          res.status(HttpServletResponse.SC_BAD_REQUEST);
+          return "Missing patientId query parameter";
+        }
+        long afterSequence = -1;
+        String lastEventId = req.headers("Last-Event-ID");
+        if (lastEventId != null) {
+          try {
+            afterSequence = Long.parseLong(lastEventId.trim());
+          } catch (NumberFormatException e) {
+            res.status(HttpServletResponse.SC_BAD_REQUEST);
+            return "Invalid Last-Event-ID: " + lastEventId;
+          }
+        }
+        HttpServletResponse raw = res.raw();
+        raw.setStatus(HttpServletResponse.SC_OK);
+        raw.setContentType("text/event-stream");
+        raw.setCharacterEncoding("UTF-8");
+        raw.setHeader("Cache-Control", "no-cache");
+        streamEvents(Arrays.asList(patientIds), afterSequence, raw.getWriter());
+        return "";
+      });
+    }
+  }
+
+  /** Write events of the given patients to the client until the stream
+   * has been open for EVENT_STREAM_MILLIS, the client disconnects, the
+   * client does not keep up, or the event bus is closed. */
+  private void streamEvents(List<String> patientIds, long afterSequence, PrintWriter out)
+      throws InterruptedException {
+    long deadline = System.nanoTime()
+        + TimeUnit.MILLISECONDS.toNanos(EVENT_STREAM_MILLIS);
+    try (ObservationEventBus.Subscription subscription =
+             eventBus.subscribe(patientIds, afterSequence, EVENT_BUFFER_CAPACITY)) {
+      // Tell the client how long to wait before reconnecting
+      out.write("retry: 1000\n\n");
+      out.flush();
+      while (System.nanoTime() - deadline < 0 && !out.checkError()
+          && !eventBus.isClosed()) {
+        List<ObservationEvent> events = subscription.take(KEEP_ALIVE_MILLIS);
+        for (ObservationEvent event : events) {
+          out.write("id: " + event.getSequence() + "\n");
+          out.write("event: observation\n");
+          out.write("data: " + gson.toJson(event) + "\n\n");
+        }
+        if (subscription.hasOverflowed()) {
+          out.write("event: reset\ndata: events were dropped\n\n");
+          out.flush();
+          return;
+        }
+        if (events.isEmpty()) {
+          out.write(": keep-alive\n\n");
+        }
+        out.flush();
+      }
+    }
   }
 }
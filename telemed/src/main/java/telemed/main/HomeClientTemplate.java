@@ -19,13 +19,18 @@ package telemed.main;
 
 import frds.broker.ClientRequestHandler;
 import frds.broker.Requestor;
+import frds.broker.ipc.LoadBalancingClientRequestHandler;
+import frds.broker.ipc.ResilientClientRequestHandler;
 import frds.broker.marshall.json.StandardJSONRequestor;
 import telemed.client.TeleMedProxy;
+import telemed.common.OperationNames;
 import telemed.domain.TeleMed;
 import telemed.domain.TeleObservation;
 import telemed.domain.TimeInterval;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * Template Method for the main HomeClient application.
@@ -47,15 +52,37 @@ public abstract class HomeClientTemplate {
 
     System.out.println("HomeClient: Asked to do operation "+operation+" for patient "+patientId);
 
+    // Spread requests over replicated servers, if more are given
+    ClientRequestHandler serverRequestHandlers;
+    String[] hostnames = hostname.split(",");
+    if (hostnames.length > 1) {
+      List<ClientRequestHandler> replicas = new ArrayList<>();
+      for (String replica : hostnames) {
+        replicas.add(createClientRequestHandler(replica, port, useTls));
+      }
+      serverRequestHandlers = new LoadBalancingClientRequestHandler(replicas,
+              LoadBalancingClientRequestHandler.Strategy.POWER_OF_TWO_CHOICES,
+              LoadBalancingClientRequestHandler.DEFAULT_EJECTION_THRESHOLD,
+              LoadBalancingClientRequestHandler.DEFAULT_EJECTION_MILLIS, System::nanoTime);
+    } else {
+      serverRequestHandlers = createClientRequestHandler(hostname, port, useTls);
+    }
+    // Time out, retry queries and uploads with an idempotency key,
+    // and fail fast when the server is down
     ClientRequestHandler clientRequestHandler
-            = createClientRequestHandler(hostname, port, useTls);
+            = new ResilientClientRequestHandler(serverRequestHandlers,
+                    ResilientClientRequestHandler.operationIn(
+                            OperationNames.IDEMPOTENT_OPERATIONS).or(
+                    ResilientClientRequestHandler.operationWithArgument(
+                            OperationNames.PROCESS_AND_STORE_OPERATION, 1)));
     Requestor requestor = new StandardJSONRequestor(clientRequestHandler);
     
     TeleMed ts = new TeleMedProxy(requestor);
 
     if (operation.equals("store")) {
       TeleObservation to = new TeleObservation(patientId, systolic, diastolic);
-      ts.processAndStore(to);
+      // The key makes the upload safe to retry, it is stored only once
+      ts.processAndStore(to, UUID.randomUUID().toString());
     } else {
       List<TeleObservation> teleObsList = ts.getObservationsFor(patientId, TimeInterval.LAST_WEEK);
       teleObsList.forEach( (to) -> {
@@ -89,6 +116,7 @@ public abstract class HomeClientTemplate {
     System.out.println("    <systolic> is systolic blood pressure");
     System.out.println("    <diatolic> is diatolic blood pressure");
     System.out.println("    <host> is name/ip of app server host. Port is hardwired to 37321 (socket) or 4567 (uri tunnel)");
+    System.out.println("      A comma separated list of hosts spreads requests over replicated servers.");
     System.out.println("    <TLS> is either 'false' or 'true'. URL tunnel variant (only) will switch to HTTPS if 'true'.");
     System.exit(-1);
   }
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.main;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Periodically writes metrics of server side components to the log,
+ * in the same key=value format as the request metrics written by
+ * the server request handler, so both can be analyzed by the same
+ * log processing tools.
+ * <p>
+ * Each source is a supplier that renders its present metrics
+ * as a key=value string.
+ */
+public class MetricsReporter {
+
+  private final Logger logger = LoggerFactory.getLogger(MetricsReporter.class);
+  private final Map<String, Supplier<String>> sources = new ConcurrentHashMap<>();
+  private final int intervalSeconds;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * Create a reporter that logs every intervalSeconds
+   * once started.
+   * @param intervalSeconds the time between reports
+   */
+  public MetricsReporter(int intervalSeconds) {
+    this.intervalSeconds = intervalSeconds;
+  }
+
+  /**
+   * Register a source of metrics
+   * @param sourceName the name of the source, output as 'source' key
+   * @param metrics supplier of the key=value metrics of the source
+   */
+  public void register(String sourceName, Supplier<String> metrics) {
+    sources.put(sourceName, metrics);
+  }
+
+  /** Write the metrics of all sources to the log right now. */
+  public void report() {
+    sources.forEach((name, metrics) ->
+        logger.info("method=metrics, source={}, {}", name, metrics.get()));
+  }
+
+  /** Start periodic reporting in a background (daemon) thread. */
+  public synchronized void start() {
+    if (scheduler != null) { return; }
+    scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "metrics-reporter");
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.scheduleAtFixedRate(this::report,
+        intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+  }
+
+  /** Stop periodic reporting. */
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+  }
+}
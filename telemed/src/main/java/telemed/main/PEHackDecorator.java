@@ -18,6 +18,10 @@
 
 package telemed.main;
 
+import telemed.domain.BucketSize;
+import telemed.domain.ObservationEvents;
+import telemed.domain.ObservationPage;
+import telemed.domain.ObservationStatistics;
 import telemed.domain.TeleMed;
 import telemed.domain.TeleObservation;
 import telemed.domain.TimeInterval;
@@ -25,6 +29,7 @@ import telemed.domain.TimeInterval;
 import java.time.OffsetDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
+import java.util.Map;
 
 /** A decorator which introduces the PEHack, that is,
  * every timestamp from the client is overwritten with
@@ -44,11 +49,43 @@ public class PEHackDecorator implements TeleMed {
     return delegate.processAndStore(teleObs);
   }
 
+  @Override
+  public String processAndStore(TeleObservation teleObs, String idempotencyKey) {
+    teleObs.setTime(OffsetDateTime.now().truncatedTo(ChronoUnit.SECONDS));
+
+    return delegate.processAndStore(teleObs, idempotencyKey);
+  }
+
   @Override
   public List<TeleObservation> getObservationsFor(String patientId, TimeInterval interval) {
     return delegate.getObservationsFor(patientId, interval);
   }
 
+  @Override
+  public Map<String, List<TeleObservation>> getObservationsForPatients(List<String> patientIds,
+                                                                       OffsetDateTime start,
+                                                                       OffsetDateTime end) {
+    return delegate.getObservationsForPatients(patientIds, start, end);
+  }
+
+  @Override
+  public ObservationPage getObservationPage(String patientId, OffsetDateTime start,
+                                            OffsetDateTime end, int limit, String cursor) {
+    return delegate.getObservationPage(patientId, start, end, limit, cursor);
+  }
+
+  @Override
+  public List<ObservationStatistics> getStatisticsFor(String patientId, TimeInterval interval,
+                                                      BucketSize bucketSize) {
+    return delegate.getStatisticsFor(patientId, interval, bucketSize);
+  }
+
+  @Override
+  public ObservationEvents awaitObservations(List<String> patientIds, long afterSequence,
+                                             long maxWaitMillis) {
+    return delegate.awaitObservations(patientIds, afterSequence, maxWaitMillis);
+  }
+
   @Override
   public TeleObservation getObservation(String uniqueId) {
     return delegate.getObservation(uniqueId);
@@ -17,17 +17,24 @@
 
 package telemed.main;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
 import frds.broker.Invoker;
+import frds.broker.ipc.AdmissionController;
+import frds.broker.ipc.RateLimiter;
 import frds.broker.ipc.http.UriTunnelServerRequestHandler;
+import frds.broker.marshall.json.AdmissionControlInvoker;
 
+import telemed.common.OperationNames;
 import telemed.server.*;
 import telemed.domain.TeleMed;
 import telemed.doubles.*;
 import telemed.ipc.http.TeleMedUriTunnelServerRequestHandler;
 import telemed.marshall.json.TeleMedJSONInvoker;
-import telemed.storage.XDSBackend;
-
-import telemed.storage.MongoXDSAdapter;
+import telemed.storage.*;
 
 /** Jetty/Spark-java based server responding to URI Tunneled POST
  * uploads and GET requests. The server is hardwired to port 4567.
@@ -38,6 +45,32 @@ import telemed.storage.MongoXDSAdapter;
  *
  */
 public class ServerMainHTTP {
+
+  private static final String ASYNC_PREFIX = "async:";
+  private static final String MONGO_CONFIG_PROPERTY = "telemed.mongo.config";
+  private static final String DEFAULT_MONGO_CONFIG_FILE = "mongo.properties";
+  private static final int METRICS_INTERVAL_SECONDS = 10;
+  private static final String CACHE_SIZE_PROPERTY = "telemed.cache.size";
+  private static final String CACHE_TTL_PROPERTY = "telemed.cache.ttl";
+  private static final String WINDOW_BUDGET_PROPERTY = "telemed.windowcache.budget";
+  private static final String WINDOW_IDLE_PROPERTY = "telemed.windowcache.idle";
+  private static final String INGEST_JOURNAL_PROPERTY = "telemed.ingest.journal";
+  private static final String INGEST_CAPACITY_PROPERTY = "telemed.ingest.capacity";
+  private static final String INGEST_WORKERS_PROPERTY = "telemed.ingest.workers";
+  private static final String INGEST_BATCH_PROPERTY = "telemed.ingest.batch";
+  private static final String ADMISSION_LIMIT_PROPERTY = "telemed.admission.limit";
+  private static final String ADMISSION_MAX_PROPERTY = "telemed.admission.max";
+  private static final String ADMISSION_LATENCY_PROPERTY = "telemed.admission.latency";
+  private static final String RATE_UPLOAD_PROPERTY = "telemed.ratelimit.upload";
+  private static final String RATE_DEFAULT_PROPERTY = "telemed.ratelimit.default";
+  private static final int RATE_LIMITED_CLIENTS = 100_000;
+  private static final String SHUTDOWN_DRAIN_PROPERTY = "telemed.shutdown.drain";
+
+  private final UriTunnelServerRequestHandler srh;
+  private final ObservationEventBus eventBus;
+  private final IngestQueue ingestQueue;
+  private final XDSBackend xds;
+  private final MetricsReporter metricsReporter;
   
   public static void main(String[] args) throws Exception {
     // Command line argument parsing and validation
@@ -51,22 +84,104 @@ public class ServerMainHTTP {
     System.out.println("Usage: ServerMainHTTP {db} {tls} {pehack}");
     System.out.println("       db = 'memory' is the in-memory db");
     System.out.println("       db = {host} is MongoDB on 'host:27017'");
+    System.out.println("       db = async:{host} is MongoDB on 'host:27017' using the asynchronous adapter");
     System.out.println("       tls = 'false' is default and communication is unencrypted.");
     System.out.println("       pehack = 'true'/'false'; if 'true' then client timestamp is overwritten");
+    System.out.println("  MongoDB pool and timeouts are configured in the properties file given by");
+    System.out.println("  system property '" + MONGO_CONFIG_PROPERTY + "' (default '"
+            + DEFAULT_MONGO_CONFIG_FILE + "'), or by TELEMED_MONGO_* environment variables.");
+    System.out.println("  System property '" + CACHE_SIZE_PROPERTY + "' > 0 enables caching that many"
+            + " observations for '" + CACHE_TTL_PROPERTY + "' seconds (default 60).");
+    System.out.println("  System property '" + WINDOW_BUDGET_PROPERTY + "' > 0 enables caching up to that many"
+            + " recent observations of active patients, evicted after '" + WINDOW_IDLE_PROPERTY
+            + "' idle seconds (default 600).");
+    System.out.println("  System property '" + INGEST_JOURNAL_PROPERTY + "' = {file} enables acknowledging"
+            + " uploads once journaled in that file; '" + INGEST_CAPACITY_PROPERTY + "' (default 10000),"
+            + " '" + INGEST_WORKERS_PROPERTY + "' (default 4) and '" + INGEST_BATCH_PROPERTY
+            + "' (default 50) size the queue.");
+    System.out.println("  System property '" + ADMISSION_LIMIT_PROPERTY + "' > 0 limits concurrent requests,"
+            + " adapting up to '" + ADMISSION_MAX_PROPERTY + "' (default: the limit) by the latency"
+            + " target '" + ADMISSION_LATENCY_PROPERTY + "' in ms (default 250).");
+    System.out.println("  System properties '" + RATE_UPLOAD_PROPERTY + "' and '" + RATE_DEFAULT_PROPERTY
+            + "' = {rate}:{burst} limit uploads and other requests of each client.");
+    System.out.println("  On termination, requests in flight are drained for '" + SHUTDOWN_DRAIN_PROPERTY
+            + "' ms (default 20000).");
     System.exit(-1);
   }
 
-  public ServerMainHTTP(String databaseConnectionString, String useTlsFlag, String PEHackEnabled) {
+  private static AdmissionController.Priority priorityOf(String operationName) {
+    if (operationName.equals(OperationNames.AWAIT_OBSERVATIONS_OPERATION)) {
+      // Long polls wait by design, so their latency tells nothing
+      return null;
+    }
+    return OperationNames.IDEMPOTENT_OPERATIONS.contains(operationName)
+            ? AdmissionController.Priority.LOW : AdmissionController.Priority.HIGH;
+  }
+
+  public ServerMainHTTP(String databaseConnectionString, String useTlsFlag, String PEHackEnabled)
+          throws IOException {
     int port = 4567;
     // Define the server side delegates
     XDSBackend xds = null;
+    metricsReporter = new MetricsReporter(METRICS_INTERVAL_SECONDS);
     if (databaseConnectionString.equals("memory")) {
       xds = new FakeObjectXDSDatabase();
     } else {
-      xds = new MongoXDSAdapter(databaseConnectionString);
+      MongoConfiguration mongoConfig = MongoConfiguration.load(
+              System.getProperty(MONGO_CONFIG_PROPERTY, DEFAULT_MONGO_CONFIG_FILE),
+              System.getenv());
+      System.out.println("  Using " + mongoConfig);
+      MongoPoolMetrics poolMetrics;
+      if (databaseConnectionString.startsWith(ASYNC_PREFIX)) {
+        MongoAsyncXDSAdapter adapter = new MongoAsyncXDSAdapter(
+                databaseConnectionString.substring(ASYNC_PREFIX.length()), mongoConfig);
+        poolMetrics = adapter.getPoolMetrics();
+        xds = adapter;
+      } else {
+        MongoXDSAdapter adapter =
+                new MongoXDSAdapter(databaseConnectionString, mongoConfig);
+        poolMetrics = adapter.getPoolMetrics();
+        xds = adapter;
+      }
+      metricsReporter.register("mongoPool", poolMetrics::toString);
+    }
+    this.xds = xds;
+    // Create the TeleMed servant, which publishes stored
+    // observations to GP clients on the event bus
+    eventBus = new ObservationEventBus();
+    metricsReporter.register("observationEvents", eventBus::toString);
+    TeleMedServant servant = new TeleMedServant(xds, eventBus);
+    String ingestJournal = System.getProperty(INGEST_JOURNAL_PROPERTY);
+    if (ingestJournal == null) {
+      ingestQueue = null;
+    } else {
+      // Acknowledge uploads once journaled, and store them in batches
+      ingestQueue = servant.startQueuedIngest(Paths.get(ingestJournal),
+              Integer.getInteger(INGEST_CAPACITY_PROPERTY, 10_000),
+              Integer.getInteger(INGEST_WORKERS_PROPERTY, 4),
+              Integer.getInteger(INGEST_BATCH_PROPERTY, 50));
+      metricsReporter.register("ingestQueue", ingestQueue::toString);
+    }
+    TeleMed tsServant = servant;
+    int cacheSize = Integer.getInteger(CACHE_SIZE_PROPERTY, 0);
+    if (cacheSize > 0) {
+      // Cache decoded observations for GPs that re-read them,
+      // only safe if this is the only server writing to the XDS
+      CachingTeleMedDecorator cache = new CachingTeleMedDecorator(tsServant,
+              cacheSize, Long.getLong(CACHE_TTL_PROPERTY, 60));
+      metricsReporter.register("observationCache", cache::toString);
+      tsServant = cache;
+    }
+    int windowBudget = Integer.getInteger(WINDOW_BUDGET_PROPERTY, 0);
+    if (windowBudget > 0) {
+      // Keep the last month of active patients in memory, again
+      // only safe if this is the only server writing to the XDS
+      RecentObservationsCacheDecorator windowCache =
+              new RecentObservationsCacheDecorator(tsServant,
+                      windowBudget, Long.getLong(WINDOW_IDLE_PROPERTY, 600));
+      metricsReporter.register("recentObservationsCache", windowCache::toString);
+      tsServant = windowCache;
     }
-    // Create the TeleMed servant
-    TeleMed tsServant = new TeleMedServant(xds);
     if (PEHackEnabled.equals("true")) {
       // To avoid changing the general TeleMed
       // implementation, we use a Decorator
@@ -79,13 +194,68 @@ public class ServerMainHTTP {
 
     // Create server side implementation of Broker roles
     Invoker invoker = new TeleMedJSONInvoker(tsServant);
-    UriTunnelServerRequestHandler srh =
-        new TeleMedUriTunnelServerRequestHandler(invoker, port, useTls, xds);
+    int admissionLimit = Integer.getInteger(ADMISSION_LIMIT_PROPERTY, 0);
+    if (admissionLimit > 0) {
+      // Shed browsing before uploads when overloaded
+      AdmissionController admission = new AdmissionController(admissionLimit, 1,
+              Integer.getInteger(ADMISSION_MAX_PROPERTY, admissionLimit),
+              Long.getLong(ADMISSION_LATENCY_PROPERTY, 250));
+      metricsReporter.register("admission", admission::toString);
+      invoker = new AdmissionControlInvoker(invoker, admission, ServerMainHTTP::priorityOf);
+    }
+    srh = new TeleMedUriTunnelServerRequestHandler(invoker, port, useTls, xds, eventBus);
+    String uploadRate = System.getProperty(RATE_UPLOAD_PROPERTY);
+    String defaultRate = System.getProperty(RATE_DEFAULT_PROPERTY);
+    if (uploadRate != null || defaultRate != null) {
+      // Keep flooding gateways from starving the others
+      Map<String, RateLimiter.Rule> rules = new HashMap<>();
+      if (uploadRate != null) {
+        rules.put(OperationNames.PROCESS_AND_STORE_OPERATION, RateLimiter.Rule.parse(uploadRate));
+      }
+      RateLimiter rateLimiter = new RateLimiter(rules,
+              defaultRate == null ? null : RateLimiter.Rule.parse(defaultRate),
+              RATE_LIMITED_CLIENTS);
+      metricsReporter.register("rateLimiter", rateLimiter::toString);
+      srh.setRateLimiter(rateLimiter);
+    }
     srh.start();
+    metricsReporter.start();
+
+    // Drain and flush on termination, e.g. during rolling deployments
+    long drainTimeout = Long.getLong(SHUTDOWN_DRAIN_PROPERTY, 20_000);
+    Runtime.getRuntime().addShutdownHook(
+            new Thread(() -> stop(drainTimeout), "telemed-shutdown"));
 
     // Welcome
     System.out.println("=== TeleMed Spark based Server Request Handler (port:"
             + port + ", pehack: "+ PEHackEnabled+ ") ===");
     System.out.println(" Use ctrl-c to terminate!"); 
   }
+
+  /**
+   * Stop the server gracefully: stop accepting requests and drain those
+   * in flight, then store the observations accepted by the ingest queue,
+   * and close the XDS, which completes its writes.
+   * @param drainTimeoutMillis the maximal time to await requests in flight
+   */
+  public void stop(long drainTimeoutMillis) {
+    long startTime = System.currentTimeMillis();
+    System.out.println("=== TeleMed server stopping, draining requests for at most "
+            + drainTimeoutMillis + " ms ===");
+    // Let long polls and event streams return, as they wait by design
+    eventBus.close();
+    boolean drained = srh.stop(drainTimeoutMillis);
+    if (ingestQueue != null) {
+      try {
+        ingestQueue.close();
+      } catch (IOException e) {
+        System.out.println("  Closing the ingest journal failed: " + e.getMessage());
+      }
+    }
+    xds.close();
+    metricsReporter.stop();
+    metricsReporter.report();
+    System.out.println("=== TeleMed server stopped (drained: " + drained + ", time: "
+            + (System.currentTimeMillis() - startTime) + " ms) ===");
+  }
 }
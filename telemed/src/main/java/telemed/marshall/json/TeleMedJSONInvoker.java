@@ -17,7 +17,13 @@
 
 package telemed.marshall.json;
 
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import com.google.gson.*;
 import javax.servlet.http.HttpServletResponse;
@@ -28,126 +34,279 @@ import frds.broker.ReplyObject;
 import frds.broker.RequestObject;
 import telemed.common.OperationNames;
 import telemed.domain.*;
+import telemed.server.ServiceUnavailableException;
+import telemed.server.TeleMedServant;
 import telemed.storage.XDSException;
 
 /**
  * Implementation of the Invoker role that uses JSON (and the Gson
  * library) for marshalling and demarshalling and is bound to a
  * single instance of a TeleMed servant.
+ * <p>
+ * If bound directly to a TeleMedServant, requests handled through
+ * handleRequestAsync are dispatched to the servant's asynchronous
+ * operations, so with an asynchronous XDS no thread waits for the
+ * storage round trips. Long polls, and servants wrapped in
+ * decorators, are invoked synchronously.
  */
 public class TeleMedJSONInvoker implements Invoker {
 
   private final TeleMed teleMed;
+  // The same servant, if its asynchronous operations can be used
+  private final TeleMedServant asyncServant;
   private final Gson gson;
 
   public TeleMedJSONInvoker(TeleMed teleMedServant) {
     teleMed = teleMedServant;
+    asyncServant = teleMedServant instanceof TeleMedServant
+            ? (TeleMedServant) teleMedServant : null;
     gson = new Gson();
   }
 
   @Override
   public String handleRequest(String request) {
+    try {
+      return handleRequestAsync(request).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  @Override
+  public CompletableFuture<String> handleRequestAsync(String request) {
     // Do the demarshalling
     RequestObject requestObject =
             gson.fromJson(request, RequestObject.class);
     JsonArray array =
             JsonParser.parseString(requestObject.getPayload()).getAsJsonArray();
 
-    ReplyObject reply;
+    CompletableFuture<ReplyObject> reply;
+    try {
+      reply = dispatch(requestObject.getOperationName(), array);
+    } catch (RuntimeException e) {
+      reply = new CompletableFuture<>();
+      reply.completeExceptionally(e);
+    }
+
+    // And marshall the reply
+    return reply.handle((replyObject, failure) ->
+            gson.toJson(failure == null ? replyObject : toReplyObject(failure)));
+  }
 
+  private CompletableFuture<ReplyObject> dispatch(String operationName, JsonArray array) {
     /* As there is only one TeleMed instance (a singleton)
        the objectId is not used for anything in our case.
      */
+
+    // Dispatching on all known operations
+    // Each dispatch follows the same algorithm
+    // a) retrieve parameters from json array (if any)
+    // b) invoke servant method, asynchronously if possible
+    // c) populate a reply object with return values
+
+    if (operationName.equals(OperationNames.
+            PROCESS_AND_STORE_OPERATION)) {
+      // Parameter convention: [0] = TeleObservation,
+      // [1] = idempotency key (optional)
+      TeleObservation ts = gson.fromJson(array.get(0),
+              TeleObservation.class);
+      String idempotencyKey = array.size() > 1
+              ? gson.fromJson(array.get(1), String.class) : null;
+
+      return invoke(() -> teleMed.processAndStore(ts, idempotencyKey),
+              servant -> servant.processAndStoreAsync(ts, idempotencyKey)).
+              thenApply(uid -> new ReplyObject(HttpServletResponse.SC_CREATED,
+                      gson.toJson(uid)));
+
+    } else if (operationName.equals(OperationNames.
+            GET_OBSERVATIONS_FOR_OPERATION)) {
+      // Parameter convention: [0] = patientId
+      String patientId = gson.fromJson(array.get(0), String.class);
+      // Parameter convention: [1] = time interval
+      TimeInterval interval = gson.fromJson(array.get(1),
+              TimeInterval.class);
+
+      return invoke(() -> teleMed.getObservationsFor(patientId, interval),
+              servant -> servant.getObservationsForAsync(patientId, interval)).
+              thenApply(tol -> {
+                int statusCode =
+                        (tol == null || tol.size() == 0) ?
+                                HttpServletResponse.SC_NOT_FOUND :
+                                HttpServletResponse.SC_OK;
+                return new ReplyObject(statusCode, gson.toJson(tol));
+              });
+
+    } else if (operationName.equals(OperationNames.
+            GET_OBSERVATIONS_FOR_PATIENTS_OPERATION)) {
+      // Parameter convention: [0] = list of patientIds
+      List<String> patientIds = new ArrayList<>();
+      array.get(0).getAsJsonArray().forEach(id -> patientIds.add(id.getAsString()));
+      // Parameter convention: [1] = start, [2] = end, in ISO 8601
+      OffsetDateTime start = parseTime(array.get(1));
+      OffsetDateTime end = parseTime(array.get(2));
+
+      return invoke(() -> teleMed.getObservationsForPatients(patientIds, start, end),
+              servant -> servant.getObservationsForPatientsAsync(patientIds, start, end)).
+              thenApply(observations -> new ReplyObject(HttpServletResponse.SC_OK,
+                      gson.toJson(observations)));
+
+    } else if (operationName.equals(OperationNames.
+            GET_OBSERVATION_PAGE_OPERATION)) {
+      // Parameter convention: [0] = patientId
+      String patientId = gson.fromJson(array.get(0), String.class);
+      // Parameter convention: [1] = start, [2] = end, in ISO 8601
+      OffsetDateTime start = parseTime(array.get(1));
+      OffsetDateTime end = parseTime(array.get(2));
+      // Parameter convention: [3] = limit
+      int limit = array.get(3).getAsInt();
+      // Parameter convention: [4] = cursor, which may be null
+      String cursor = gson.fromJson(array.get(4), String.class);
+
+      return invoke(() -> teleMed.getObservationPage(patientId, start, end, limit, cursor),
+              servant -> servant.getObservationPageAsync(patientId, start, end, limit, cursor)).
+              thenApply(page -> new ReplyObject(HttpServletResponse.SC_OK,
+                      gson.toJson(page)));
+
+    } else if (operationName.equals(OperationNames.
+            GET_STATISTICS_FOR_OPERATION)) {
+      // Parameter convention: [0] = patientId
+      String patientId = gson.fromJson(array.get(0), String.class);
+      // Parameter convention: [1] = time interval
+      TimeInterval interval = gson.fromJson(array.get(1),
+              TimeInterval.class);
+      // Parameter convention: [2] = bucket size
+      BucketSize bucketSize = gson.fromJson(array.get(2),
+              BucketSize.class);
+
+      return invoke(() -> teleMed.getStatisticsFor(patientId, interval, bucketSize),
+              servant -> servant.getStatisticsForAsync(patientId, interval, bucketSize)).
+              thenApply(statistics -> {
+                int statusCode =
+                        (statistics == null || statistics.size() == 0) ?
+                                HttpServletResponse.SC_NOT_FOUND :
+                                HttpServletResponse.SC_OK;
+                return new ReplyObject(statusCode, gson.toJson(statistics));
+              });
+
+    } else if (operationName.equals(OperationNames.
+            AWAIT_OBSERVATIONS_OPERATION)) {
+      // Parameter convention: [0] = list of patientIds
+      List<String> patientIds = new ArrayList<>();
+      array.get(0).getAsJsonArray().forEach(id -> patientIds.add(id.getAsString()));
+      // Parameter convention: [1] = sequence number to continue after
+      long afterSequence = array.get(1).getAsLong();
+      // Parameter convention: [2] = maximal wait in milliseconds
+      long maxWaitMillis = array.get(2).getAsLong();
+
+      // Long polls wait on the event bus, not on the XDS
+      ObservationEvents events =
+              teleMed.awaitObservations(patientIds, afterSequence, maxWaitMillis);
+      return CompletableFuture.completedFuture(
+              new ReplyObject(HttpServletResponse.SC_OK, gson.toJson(events)));
+
+    } else if (operationName.equals(OperationNames.
+            CORRECT_OPERATION)) {
+      // Parameter convention: [0] = patientId
+      String patientId = gson.fromJson(array.get(0), String.class);
+      // Parameter convention: [1] = tele observation
+      TeleObservation to = gson.fromJson(array.get(1),
+              TeleObservation.class);
+
+      return invoke(() -> teleMed.correct(patientId, to),
+              servant -> servant.correctAsync(patientId, to)).
+              thenApply(isValid -> new ReplyObject(HttpServletResponse.SC_OK,
+                      gson.toJson(isValid)));
+
+    } else if (operationName.equals(OperationNames.
+            GET_OBSERVATION_OPERATION)) {
+      // Parameter convention: [0] = patientId
+      String patientId = gson.fromJson(array.get(0), String.class);
+
+      return invoke(() -> teleMed.getObservation(patientId),
+              servant -> servant.getObservationAsync(patientId)).
+              thenApply(to -> {
+                // If there are no teleobservation to get, make
+                // the proper error code
+                if (to == null) {
+                  return new ReplyObject(HttpServletResponse.SC_NOT_FOUND,
+                          "No teleobservation is stored for patient with id: "
+                                  + patientId);
+                }
+                return new ReplyObject(HttpServletResponse.SC_OK, gson.toJson(to));
+              });
+
+    } else if (operationName.equals(OperationNames.
+            DELETE_OPERATION)) {
+      // Parameter convention: [0] = patientId
+      String patientId = gson.fromJson(array.get(0), String.class);
+
+      // More correctly, it should be 204: no contents, but most
+      // HTTP libraries will then not send any payload, breaking
+      // the requestor code...
+      return invoke(() -> teleMed.delete(patientId),
+              servant -> servant.deleteAsync(patientId)).
+              thenApply(isValid -> new ReplyObject(HttpServletResponse.SC_OK,
+                      gson.toJson(isValid)));
+
+    }
+    // Unknown operation
+    return CompletableFuture.completedFuture(
+            new ReplyObject(HttpServletResponse.
+                    SC_NOT_IMPLEMENTED,
+                    "Server received unknown operation name: '"
+                            + operationName + "'."));
+  }
+
+  /** Invoke the asynchronous operation of the servant if bound to
+   * one, otherwise the synchronous operation of the TeleMed instance */
+  private <T> CompletableFuture<T> invoke(Supplier<T> operation,
+                                          Function<TeleMedServant, CompletableFuture<T>> asyncOperation) {
+    if (asyncServant != null) {
+      return asyncOperation.apply(asyncServant);
+    }
+    CompletableFuture<T> result = new CompletableFuture<>();
     try {
-      // Dispatching on all known operations
-      // Each dispatch follows the same algorithm
-      // a) retrieve parameters from json array (if any)
-      // b) invoke servant method
-      // c) populate a reply object with return values
-
-      if (requestObject.getOperationName().equals(OperationNames.
-              PROCESS_AND_STORE_OPERATION)) {
-        // Parameter convention: [0] = TeleObservation
-        TeleObservation ts = gson.fromJson(array.get(0),
-                TeleObservation.class);
-
-        String uid = teleMed.processAndStore(ts);
-        reply = new ReplyObject(HttpServletResponse.SC_CREATED,
-                gson.toJson(uid));
-
-      } else if (requestObject.getOperationName().equals(OperationNames.
-              GET_OBSERVATIONS_FOR_OPERATION)) {
-        // Parameter convention: [0] = patientId
-        String patientId = gson.fromJson(array.get(0), String.class);
-        // Parameter convention: [1] = time interval
-        TimeInterval interval = gson.fromJson(array.get(1),
-                TimeInterval.class);
-
-        List<TeleObservation> tol =
-                teleMed.getObservationsFor(patientId, interval);
-        int statusCode =
-                (tol == null || tol.size() == 0) ?
-                        HttpServletResponse.SC_NOT_FOUND :
-                        HttpServletResponse.SC_OK;
-        reply = new ReplyObject(statusCode, gson.toJson(tol));
-
-      } else if (requestObject.getOperationName().equals(OperationNames.
-              CORRECT_OPERATION)) {
-        // Parameter convention: [0] = patientId
-        String patientId = gson.fromJson(array.get(0), String.class);
-        // Parameter convention: [1] = tele observation
-        TeleObservation to = gson.fromJson(array.get(1),
-                TeleObservation.class);
-
-        boolean isValid = teleMed.correct(patientId, to);
-        reply = new ReplyObject(HttpServletResponse.SC_OK,
-                gson.toJson(isValid));
-
-      } else if (requestObject.getOperationName().equals(OperationNames.
-              GET_OBSERVATION_OPERATION)) {
-        // Parameter convention: [0] = patientId
-        String patientId = gson.fromJson(array.get(0), String.class);
-
-        TeleObservation to = teleMed.getObservation(patientId);
-        // If there are no teleobservation to get, make
-        // the proper error code
-        if (to == null) {
-          reply = new ReplyObject(HttpServletResponse.SC_NOT_FOUND,
-                  "No teleobservation is stored for patient with id: "
-                          + patientId);
-        } else {
-          reply = new ReplyObject(HttpServletResponse.SC_OK, gson.toJson(to));
-        }
-
-      } else if (requestObject.getOperationName().equals(OperationNames.
-              DELETE_OPERATION)) {
-        // Parameter convention: [0] = patientId
-        String patientId = gson.fromJson(array.get(0), String.class);
-
-        boolean isValid = teleMed.delete(patientId);
-        reply = new ReplyObject(HttpServletResponse.SC_OK,
-                gson.toJson(isValid));
-        // More correctly, it should be 204: no contents, but most
-        // HTTP libraries will then not send any payload, breaking
-        // the requestor code...
-
-      } else {
-        // Unknown operation
-        reply = new ReplyObject(HttpServletResponse.
-                SC_NOT_IMPLEMENTED,
-                "Server received unknown operation name: '"
-                        + requestObject.getOperationName() + "'.");
-      }
+      result.complete(operation.get());
+    } catch (RuntimeException e) {
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
 
-    } catch( XDSException e ) {
-      reply =
-              new ReplyObject(
-                      HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
-                      e.getMessage());
+  private static OffsetDateTime parseTime(JsonElement time) {
+    try {
+      return OffsetDateTime.parse(time.getAsString());
+    } catch (DateTimeParseException e) {
+      throw new InvalidRequestException("Invalid time, ISO 8601 expected: " + time);
     }
+  }
 
-    // And marshall the reply
-    return gson.toJson(reply);
+  /** Turn the failures that clients should know about into error
+   * replies; any other failure is passed on */
+  private ReplyObject toReplyObject(Throwable failure) {
+    Throwable e = failure instanceof CompletionException && failure.getCause() != null
+            ? failure.getCause() : failure;
+    if (e instanceof InvalidRequestException) {
+      // Invalid cursors and times are the client's fault
+      return new ReplyObject(
+              HttpServletResponse.SC_BAD_REQUEST,
+              e.getMessage());
+    } else if (e instanceof ServiceUnavailableException) {
+      // The tunnel always answers HTTP 200, so the Retry-After
+      // advice travels in the reply description
+      return new ReplyObject(
+              HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+              "Retry-After: " + ((ServiceUnavailableException) e).getRetryAfterSeconds()
+                      + "; " + e.getMessage());
+    } else if (e instanceof XDSException) {
+      return new ReplyObject(
+              HttpServletResponse.SC_INTERNAL_SERVER_ERROR,
+              e.getMessage());
+    }
+    throw e instanceof RuntimeException ? (RuntimeException) e : new CompletionException(e);
   }
 
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import telemed.domain.*;
+
+/**
+ * A decorator which adds a read-through cache to getObservation. Cached
+ * are the decoded tele observations, so a cache hit avoids both the
+ * XDS round trip and the conversion from HL7.
+ * <p>
+ * The cache is bounded in size, evicting the least recently used
+ * observation, and each observation expires after a time to live.
+ * Observations are invalidated when they are corrected or deleted
+ * through this decorator; thus, all writes must pass through the same
+ * decorator instance for the cache to be consistent.
+ * <p>
+ * Note that the same tele observation instance is handed out to all
+ * callers that hit the cache; callers should not modify it.
+ */
+public class CachingTeleMedDecorator implements TeleMed {
+
+  private final TeleMed delegate;
+  private final int maximalSize;
+  private final long timeToLiveNanos;
+  private final LongSupplier nanoClock;
+
+  private final Map<String, CacheEntry> cache;
+  // Incremented on every invalidation, allowing loads that raced with
+  // an invalidation to be detected and not cached.
+  private final AtomicLong generation = new AtomicLong();
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Create a caching decorator.
+   * @param delegate the TeleMed to decorate
+   * @param maximalSize the maximal number of cached observations
+   * @param timeToLiveSeconds the time an observation stays cached
+   */
+  public CachingTeleMedDecorator(TeleMed delegate, int maximalSize, long timeToLiveSeconds) {
+    this(delegate, maximalSize, timeToLiveSeconds, System::nanoTime);
+  }
+
+  /**
+   * Create a caching decorator with a given clock, mostly a feature
+   * to enable testing.
+   * @param delegate the TeleMed to decorate
+   * @param maximalSize the maximal number of cached observations
+   * @param timeToLiveSeconds the time an observation stays cached
+   * @param nanoClock the clock, in nano seconds, to measure time to live by
+   */
+  public CachingTeleMedDecorator(TeleMed delegate, int maximalSize, long timeToLiveSeconds,
+                                 LongSupplier nanoClock) {
+    this.delegate = delegate;
+    this.maximalSize = maximalSize;
+    this.timeToLiveNanos = TimeUnit.SECONDS.toNanos(timeToLiveSeconds);
+    this.nanoClock = nanoClock;
+    // Access ordered, so the eldest entry is the least recently used
+    this.cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+        boolean evict = size() > CachingTeleMedDecorator.this.maximalSize;
+        if (evict) { evictions.increment(); }
+        return evict;
+      }
+    };
+  }
+
+  @Override
+  public String processAndStore(TeleObservation teleObs) {
+    return delegate.processAndStore(teleObs);
+  }
+
+  @Override
+  public String processAndStore(TeleObservation teleObs, String idempotencyKey) {
+    return delegate.processAndStore(teleObs, idempotencyKey);
+  }
+
+  @Override
+  public List<TeleObservation> getObservationsFor(String patientId, TimeInterval interval) {
+    return delegate.getObservationsFor(patientId, interval);
+  }
+
+  @Override
+  public Map<String, List<TeleObservation>> getObservationsForPatients(List<String> patientIds,
+                                                                       OffsetDateTime start,
+                                                                       OffsetDateTime end) {
+    return delegate.getObservationsForPatients(patientIds, start, end);
+  }
+
+  @Override
+  public ObservationPage getObservationPage(String patientId, OffsetDateTime start,
+                                            OffsetDateTime end, int limit, String cursor) {
+    return delegate.getObservationPage(patientId, start, end, limit, cursor);
+  }
+
+  @Override
+  public List<ObservationStatistics> getStatisticsFor(String patientId, TimeInterval interval,
+                                                      BucketSize bucketSize) {
+    return delegate.getStatisticsFor(patientId, interval, bucketSize);
+  }
+
+  @Override
+  public ObservationEvents awaitObservations(List<String> patientIds, long afterSequence,
+                                             long maxWaitMillis) {
+    return delegate.awaitObservations(patientIds, afterSequence, maxWaitMillis);
+  }
+
+  @Override
+  public TeleObservation getObservation(String uniqueId) {
+    long now = nanoClock.getAsLong();
+    synchronized (cache) {
+      CacheEntry entry = cache.get(uniqueId);
+      if (entry != null && entry.expiresAt - now > 0) {
+        hits.increment();
+        return entry.observation;
+      }
+      if (entry != null) { cache.remove(uniqueId); }
+    }
+    misses.increment();
+
+    long generationAtLoad = generation.get();
+    TeleObservation observation = delegate.getObservation(uniqueId);
+    if (observation != null) {
+      synchronized (cache) {
+        // Only cache if no correction/deletion happened while loading
+        if (generation.get() == generationAtLoad) {
+          cache.put(uniqueId, new CacheEntry(observation, now + timeToLiveNanos));
+        }
+      }
+    }
+    return observation;
+  }
+
+  @Override
+  public boolean correct(String uniqueId, TeleObservation to) {
+    try {
+      return delegate.correct(uniqueId, to);
+    } finally {
+      invalidate(uniqueId);
+    }
+  }
+
+  @Override
+  public boolean delete(String uniqueId) {
+    try {
+      return delegate.delete(uniqueId);
+    } finally {
+      invalidate(uniqueId);
+    }
+  }
+
+  private void invalidate(String uniqueId) {
+    synchronized (cache) {
+      generation.incrementAndGet();
+      cache.remove(uniqueId);
+    }
+  }
+
+  /** Number of observations presently cached.
+   * @return the cache size */
+  public int size() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getMissCount() {
+    return misses.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /** Metrics of the cache in key=value format.
+   * @return the metrics */
+  @Override
+  public String toString() {
+    long hitCount = getHitCount();
+    long lookups = hitCount + getMissCount();
+    double hitRatio = lookups == 0 ? 0.0 : hitCount / (double) lookups;
+    return String.format(Locale.ROOT,
+        "size=%d, hits=%d, misses=%d, evictions=%d, hitRatio=%.3f",
+        size(), hitCount, getMissCount(), getEvictionCount(), hitRatio);
+  }
+
+  private static class CacheEntry {
+    final TeleObservation observation;
+    final long expiresAt;
+
+    CacheEntry(TeleObservation observation, long expiresAt) {
+      this.observation = observation;
+      this.expiresAt = expiresAt;
+    }
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import telemed.domain.*;
+
+/**
+ * A builder that forwards each building step to a set of builders, so a
+ * single traversal by the Director builds several representations of a
+ * tele observation, like the HL7 document, its metadata, and its record.
+ */
+public class CompositeBuilder implements Builder {
+
+  private final Builder[] builders;
+
+  /**
+   * Create a composite of the given builders. The steps are forwarded to
+   * the builders in the given order.
+   * @param builders the builders to forward building steps to
+   */
+  public CompositeBuilder(Builder... builders) {
+    this.builders = builders.clone();
+  }
+
+  @Override
+  public void buildHeader(TeleObservation to) {
+    for (Builder builder : builders) {
+      builder.buildHeader(to);
+    }
+  }
+
+  @Override
+  public void buildPatientInfo(TeleObservation to) {
+    for (Builder builder : builders) {
+      builder.buildPatientInfo(to);
+    }
+  }
+
+  @Override
+  public void buildObservationList(TeleObservation to) {
+    for (Builder builder : builders) {
+      builder.buildObservationList(to);
+    }
+  }
+
+  @Override
+  public void appendObservation(ClinicalQuantity quantity) {
+    for (Builder builder : builders) {
+      builder.appendObservation(quantity);
+    }
+  }
+}
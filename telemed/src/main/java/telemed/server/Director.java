@@ -35,7 +35,18 @@ public class Director {
     builder.buildHeader(to);
     builder.buildPatientInfo(to);
     builder.buildObservationList(to);
-    builder.appendObservation(to.getSystolic());
-    builder.appendObservation(to.getDiastolic());
+    for (int i = 0; i < to.getQuantityCount(); i++) {
+      builder.appendObservation(to.getQuantity(i));
+    }
+  }
+
+  /**
+   * Construct several representations of a given tele observation in a
+   * single traversal, each built by one of the provided builders.
+   * @param to the tele observation to build representations for
+   * @param builders the builders to use during the construction process
+   */
+  public static void construct(TeleObservation to, Builder... builders) {
+    construct(to, builders.length == 1 ? builders[0] : new CompositeBuilder(builders));
   }
 }
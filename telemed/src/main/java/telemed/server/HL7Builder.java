@@ -20,8 +20,6 @@ package telemed.server;
 import java.time.OffsetDateTime;
 import java.time.format.DateTimeFormatter;
 
-import javax.xml.parsers.*;
-
 import org.w3c.dom.*;
 
 import telemed.domain.*;
@@ -50,15 +48,8 @@ public class HL7Builder implements Builder {
 
   @Override
   public void buildHeader(TeleObservation to) {
-    // Create the XML document
-    DocumentBuilderFactory dbfac = DocumentBuilderFactory.newInstance();
-    DocumentBuilder docBuilder = null;
-    try {
-       docBuilder = dbfac.newDocumentBuilder();
-    } catch ( ParserConfigurationException e ) {
-      throw new RuntimeException(e);
-    }
-    document = docBuilder.newDocument();
+    // Create the XML document, reusing this thread's document builder
+    document = XMLUtility.newDocument();
 
     // Create the root element
     root = document.createElement("ClinicalDocument");
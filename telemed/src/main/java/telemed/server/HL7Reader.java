@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import java.io.StringReader;
+import java.time.OffsetDateTime;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+import telemed.domain.TeleObservation;
+import telemed.storage.ObservationRecord;
+
+/**
+ * Reads the (simplified) HL7 documents written by the HL7Builder and the
+ * StreamingHL7Builder back into tele observations. The document is read
+ * in a single pass by a StAX pull parser, picking out the patient id, the
+ * effective time, and the values of the observations as they pass by, so
+ * no DOM tree is built and no node lists are searched.
+ * <p>
+ * Each observation in the document becomes a clinical quantity, in
+ * document order.
+ */
+public class HL7Reader {
+
+  private static final XMLInputFactory inputFactory = createInputFactory();
+
+  private String patientId;
+  private String effectiveTime;
+  private final List<String> codes = new ArrayList<>(2);
+  private final List<String> displayNames = new ArrayList<>(2);
+  private final List<String> units = new ArrayList<>(2);
+  private final List<Double> values = new ArrayList<>(2);
+
+  private HL7Reader() {}
+
+  /**
+   * Convert a HL7 document into the tele observation it represents.
+   *
+   * @param hl7 the HL7 document as XML text
+   * @return the tele observation
+   */
+  public static TeleObservation readTeleObservation(String hl7) {
+    return readObservationRecord(hl7).toTeleObservation();
+  }
+
+  /**
+   * Convert a HL7 document into the structured observation record of its
+   * contents, for documents that were stored without one.
+   *
+   * @param hl7 the HL7 document as XML text
+   * @return the observation record
+   */
+  public static ObservationRecord readObservationRecord(String hl7) {
+    HL7Reader reader = read(hl7);
+    if (reader.values.isEmpty()) {
+      throw new RuntimeException("HL7 document does not contain any observations");
+    }
+    OffsetDateTime time = reader.getTime();
+    double[] values = new double[reader.values.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = reader.values.get(i);
+    }
+    return new ObservationRecord(reader.patientId, time.toEpochSecond(), time.getNano(),
+        time.getOffset().getTotalSeconds(), reader.codes.toArray(new String[0]),
+        reader.units.toArray(new String[0]), reader.displayNames.toArray(new String[0]),
+        values);
+  }
+
+  /**
+   * Read only the time of the observation in a HL7 document.
+   *
+   * @param hl7 the HL7 document as XML text
+   * @return the effective time of the observation
+   */
+  public static OffsetDateTime readTime(String hl7) {
+    return read(hl7).getTime();
+  }
+
+  private OffsetDateTime getTime() {
+    if (effectiveTime == null) {
+      throw new RuntimeException("HL7 document does not contain an effective time");
+    }
+    return OffsetDateTime.parse(effectiveTime);
+  }
+
+  private static HL7Reader read(String hl7) {
+    HL7Reader reader = new HL7Reader();
+    XMLStreamReader xml = null;
+    try {
+      xml = inputFactory.createXMLStreamReader(new StringReader(hl7));
+      // Names of the elements enclosing the present position
+      Deque<String> enclosing = new ArrayDeque<>();
+      while (xml.hasNext()) {
+        int event = xml.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          reader.startElement(enclosing.peek(), xml);
+          enclosing.push(xml.getLocalName());
+        } else if (event == XMLStreamConstants.END_ELEMENT) {
+          enclosing.pop();
+        }
+      }
+    } catch (XMLStreamException e) {
+      throw new RuntimeException(e);
+    } finally {
+      if (xml != null) {
+        try { xml.close(); } catch (XMLStreamException e) { /* ignore */ }
+      }
+    }
+    return reader;
+  }
+
+  /* The elements of interest are identified by their own and their
+   * parent element's names. */
+  private void startElement(String enclosing, XMLStreamReader xml) {
+    String name = xml.getLocalName();
+    if ("effectiveTime".equals(name) && "ClinicalDocument".equals(enclosing)) {
+      effectiveTime = xml.getAttributeValue(null, "value");
+    } else if ("id".equals(name) && "patient".equals(enclosing)) {
+      patientId = xml.getAttributeValue(null, "extension");
+    } else if ("code".equals(name) && "observation".equals(enclosing)) {
+      codes.add(xml.getAttributeValue(null, "code"));
+      displayNames.add(xml.getAttributeValue(null, "displayName"));
+    } else if ("value".equals(name) && "observation".equals(enclosing)) {
+      units.add(xml.getAttributeValue(null, "unit"));
+      values.add(Double.parseDouble(xml.getAttributeValue(null, "value")));
+    }
+  }
+
+  private static XMLInputFactory createInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    // The documents are our own, no need for DTDs or external entities
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    return factory;
+  }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+/**
+ * Table of the replies to the most recent uploads that had an
+ * idempotency key, so a retried upload gets the reply of the original
+ * upload instead of storing the observation once more. A retry that
+ * arrives while the original upload is still being stored waits for its
+ * reply.
+ * <p>
+ * The table is bounded, forgetting the oldest uploads first, as retries
+ * follow the original upload closely. Uploads that fail are forgotten
+ * at once, so they can be retried.
+ */
+class IdempotencyTable {
+
+  private final int capacity;
+  private final Map<String, CompletableFuture<String>> replies;
+  private long replays = 0;
+
+  /**
+   * Create the table.
+   * @param capacity the maximal number of uploads remembered
+   */
+  IdempotencyTable(int capacity) {
+    this.capacity = capacity;
+    replies = new LinkedHashMap<String, CompletableFuture<String>>() {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<String>> eldest) {
+        return size() > IdempotencyTable.this.capacity;
+      }
+    };
+  }
+
+  /**
+   * Perform an upload once for each key of a patient.
+   * @param patientId the patient the upload is about
+   * @param idempotencyKey the key the client gave the upload
+   * @param upload the upload, which returns its reply
+   * @return the reply of the first upload with the key
+   */
+  String execute(String patientId, String idempotencyKey, Supplier<String> upload) {
+    return await(executeAsync(patientId, idempotencyKey, () -> {
+      CompletableFuture<String> reply = new CompletableFuture<>();
+      try {
+        reply.complete(upload.get());
+      } catch (RuntimeException e) {
+        reply.completeExceptionally(e);
+      }
+      return reply;
+    }));
+  }
+
+  /**
+   * Perform an asynchronous upload once for each key of a patient.
+   * @param patientId the patient the upload is about
+   * @param idempotencyKey the key the client gave the upload
+   * @param upload the upload, which returns a future of its reply
+   * @return future that completes with the reply of the first upload
+   * with the key
+   */
+  CompletableFuture<String> executeAsync(String patientId, String idempotencyKey,
+                                         Supplier<CompletableFuture<String>> upload) {
+    // Keys are chosen by clients, so they only need to be unique per patient
+    String key = patientId + '\n' + idempotencyKey;
+    CompletableFuture<String> original = new CompletableFuture<>();
+    CompletableFuture<String> reply;
+    synchronized (this) {
+      reply = replies.putIfAbsent(key, original);
+      if (reply != null) { replays++; }
+    }
+    if (reply != null) {
+      return reply;
+    }
+
+    CompletableFuture<String> stored;
+    try {
+      stored = upload.get();
+    } catch (RuntimeException e) {
+      stored = new CompletableFuture<>();
+      stored.completeExceptionally(e);
+    }
+    stored.whenComplete((uniqueId, failure) -> {
+      if (failure == null) {
+        original.complete(uniqueId);
+        return;
+      }
+      synchronized (this) {
+        replies.remove(key, original);
+      }
+      original.completeExceptionally(failure);
+    });
+    return original;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "entries=" + replies.size() + ", capacity=" + capacity + ", replays=" + replays;
+  }
+
+  private static String await(CompletableFuture<String> reply) {
+    try {
+      return reply.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Append-only journal on local disk of the observations that have been
+ * acknowledged to clients but not yet stored in the XDS. Each line is
+ * either "+ id json", an observation that was accepted, or "- id", one
+ * that has been stored. Accepted observations are forced to disk before
+ * append returns, so an acknowledged observation survives a crash of
+ * the server, and the pending ones are read back when the journal is
+ * opened again.
+ * <p>
+ * Concurrent appends are group committed: one of them forces the
+ * journal to disk while the others wait, and a single force covers
+ * every line written before it started.
+ * <p>
+ * Once many observations have been stored, the journal is compacted by
+ * rewriting it with the pending observations only.
+ */
+class IngestJournal implements Closeable {
+
+  /** Number of stored observations that triggers compaction */
+  static final int COMPACTION_THRESHOLD = 10_000;
+
+  private final Path file;
+  private FileChannel channel;
+  private final Map<String, String> pending = new LinkedHashMap<>();
+  private int completedSinceCompaction = 0;
+  // Lines written, and lines known to be forced to disk, in order
+  private long written = 0;
+  private long forced = 0;
+  private boolean forcing = false;
+  private long appends = 0;
+  private long forces = 0;
+
+  /**
+   * Open the journal, reading back the observations that were
+   * accepted but not stored before it was closed.
+   * @param file the journal file, created if it does not exist
+   * @throws IOException if the journal cannot be read or opened
+   */
+  IngestJournal(Path file) throws IOException {
+    this.file = file;
+    if (Files.exists(file)) {
+      replay(new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+    }
+    channel = open(file);
+    // Start over from the pending observations only
+    compact();
+  }
+
+  /**
+   * Append an accepted observation and force it to disk.
+   * @param uniqueId the id reserved for the observation
+   * @param json the observation in JSON, on a single line
+   * @throws IOException if the observation cannot be written
+   */
+  void append(String uniqueId, String json) throws IOException {
+    long line;
+    synchronized (this) {
+      write("+ " + uniqueId + " " + json + "\n");
+      // Pending at once, so a compaction keeps the line
+      pending.put(uniqueId, json);
+      line = ++written;
+      appends++;
+    }
+    try {
+      awaitForced(line);
+    } catch (IOException e) {
+      synchronized (this) {
+        pending.remove(uniqueId);
+      }
+      throw e;
+    }
+  }
+
+  private void awaitForced(long line) throws IOException {
+    FileChannel toForce;
+    long upTo;
+    synchronized (this) {
+      while (forcing && forced < line) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted awaiting the journal");
+        }
+      }
+      if (forced >= line) { return; }
+      // Force the lines written so far, on behalf of all appends
+      forcing = true;
+      toForce = channel;
+      upTo = written;
+      forces++;
+    }
+    IOException failure = null;
+    try {
+      toForce.force(false);
+    } catch (IOException e) {
+      failure = e;
+    }
+    synchronized (this) {
+      forcing = false;
+      if (failure == null) { forced = Math.max(forced, upTo); }
+      notifyAll();
+      // A compaction may have closed the channel, after forcing the
+      // lines to the new journal
+      if (forced >= line) { return; }
+    }
+    throw failure;
+  }
+
+  /**
+   * Record that observations have been stored in the XDS. These are not
+   * forced to disk: if they are lost, the observations are stored again
+   * after a restart, which the XDS ignores.
+   * @param uniqueIds the ids of the stored observations
+   * @throws IOException if the journal cannot be written
+   */
+  synchronized void complete(Collection<String> uniqueIds) throws IOException {
+    StringBuilder lines = new StringBuilder();
+    for (String uniqueId : uniqueIds) {
+      lines.append("- ").append(uniqueId).append('\n');
+      pending.remove(uniqueId);
+    }
+    write(lines.toString());
+    completedSinceCompaction += uniqueIds.size();
+    if (completedSinceCompaction >= COMPACTION_THRESHOLD) {
+      compact();
+    }
+  }
+
+  /** Get the accepted observations that are not yet stored
+   * @return map from reserved id to observation in JSON, in the
+   *         order they were accepted
+   */
+  synchronized Map<String, String> getPending() {
+    return new LinkedHashMap<>(pending);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "appends=" + appends + ", forces=" + forces;
+  }
+
+  private void replay(String content) {
+    // A line without newline was cut short by a crash while it was
+    // written, so it was never acknowledged
+    int end = content.lastIndexOf('\n');
+    if (end < 0) { return; }
+    for (String line : content.substring(0, end).split("\n")) {
+      if (line.startsWith("+ ")) {
+        int split = line.indexOf(' ', 2);
+        if (split > 0) {
+          pending.put(line.substring(2, split), line.substring(split + 1));
+        }
+      } else if (line.startsWith("- ")) {
+        pending.remove(line.substring(2));
+      }
+    }
+  }
+
+  private void compact() throws IOException {
+    Path compacted = file.resolveSibling(file.getFileName() + ".compact");
+    try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      StringBuilder lines = new StringBuilder();
+      pending.forEach((uniqueId, json) ->
+          lines.append("+ ").append(uniqueId).append(' ').append(json).append('\n'));
+      ByteBuffer buffer = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+      while (buffer.hasRemaining()) { out.write(buffer); }
+      out.force(true);
+    }
+    channel.close();
+    Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    channel = open(file);
+    completedSinceCompaction = 0;
+    forced = written;
+  }
+
+  private void write(String lines) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(lines.getBytes(StandardCharsets.UTF_8));
+    while (buffer.hasRemaining()) { channel.write(buffer); }
+  }
+
+  private static FileChannel open(Path file) throws IOException {
+    return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+  }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+import telemed.domain.*;
+import telemed.storage.*;
+
+/**
+ * Queue that decouples acknowledging an uploaded observation from
+ * storing it. An observation is validated, given an id reserved in the
+ * XDS, and written to a journal on local disk before its id is returned
+ * to the client; a pool of workers then generates the HL7 documents and
+ * stores the observations in the XDS in batches. Thus the latency of
+ * an upload is the latency of a local disk write, not of the XDS, and
+ * the XDS sees few large writes instead of many small ones.
+ * <p>
+ * The queue holds at most a fixed number of observations, and rejects
+ * further uploads with a ServiceUnavailableException until the workers
+ * catch up. Observations that were acknowledged but not stored when the
+ * server stopped are read back from the journal and stored when the
+ * queue is created again.
+ */
+public class IngestQueue implements AutoCloseable {
+
+  /** Seconds a client is asked to wait when the queue is full */
+  public static final int RETRY_AFTER_SECONDS = 1;
+
+  /** Converts an accepted observation into the representations stored
+   * in the XDS; the idempotency key of its upload, if any, must be part
+   * of the meta data. */
+  public interface Preparation {
+    ObservationSubmission prepare(String uniqueId, TeleObservation teleObs,
+                                  String idempotencyKey);
+  }
+
+  private static final long POLL_MILLIS = 100;
+  private static final long MAX_BACKOFF_MILLIS = 5_000;
+  private static final long CLOSE_TIMEOUT_MILLIS = 10_000;
+
+  private final Logger logger = LoggerFactory.getLogger(IngestQueue.class);
+  private final Gson gson = new Gson();
+
+  private final XDSBackend xds;
+  private final Preparation preparation;
+  private final BiConsumer<String, TeleObservation> onStored;
+  private final IngestJournal journal;
+  private final int capacity;
+  private final int batchSize;
+  private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+  // Observations accepted but not yet stored, including those being stored
+  private final AtomicInteger depth = new AtomicInteger();
+  private final List<Thread> workers = new ArrayList<>();
+  private volatile boolean running = true;
+
+  private final LongAdder stored = new LongAdder();
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder failures = new LongAdder();
+
+  /**
+   * Create the queue and start its workers.
+   * @param journalFile the journal on local disk, replayed if it exists
+   * @param capacity the maximal number of observations waiting to be stored
+   * @param workerCount the number of worker threads storing observations
+   * @param batchSize the maximal number of observations stored at once
+   * @param xds the XDS to store observations in, must support
+   *          reserving ids and storing batches
+   * @param preparation the conversion of observations into their
+   *          stored representations
+   * @param onStored told about every observation once it is stored
+   * @throws IOException if the journal cannot be read or opened
+   */
+  public IngestQueue(Path journalFile, int capacity, int workerCount, int batchSize,
+                     XDSBackend xds, Preparation preparation,
+                     BiConsumer<String, TeleObservation> onStored) throws IOException {
+    this.xds = xds;
+    this.preparation = preparation;
+    this.onStored = onStored;
+    this.capacity = capacity;
+    this.batchSize = batchSize;
+    journal = new IngestJournal(journalFile);
+    // Acknowledged observations are stored even if above capacity
+    journal.getPending().forEach((uniqueId, json) -> {
+      Entry pending = gson.fromJson(json, Entry.class);
+      enqueue(new Entry(uniqueId, pending.teleObs, pending.idempotencyKey));
+    });
+    for (int i = 0; i < workerCount; i++) {
+      Thread worker = new Thread(this::work, "ingest-worker-" + i);
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+  }
+
+  /**
+   * Accept an observation for storing. It is stored by the workers
+   * after this method has returned.
+   * @param teleObs the observation to store
+   * @param idempotencyKey the key of the upload, or null if it has none;
+   *          it is journaled and stored along with the observation
+   * @return the id the observation will be stored under
+   * @throws InvalidRequestException if the observation is invalid
+   * @throws ServiceUnavailableException if the queue is full
+   * @throws XDSException if the observation cannot be journaled
+   */
+  public String submit(TeleObservation teleObs, String idempotencyKey) {
+    // Validate now, as failures cannot be told the client later
+    if (teleObs.getPatientId() == null || teleObs.getPatientId().isEmpty()) {
+      throw new InvalidRequestException("Observation has no patient id");
+    }
+    if (teleObs.getQuantityCount() == 0) {
+      throw new InvalidRequestException("Observation has no quantities");
+    }
+    if (!running) {
+      throw new ServiceUnavailableException("Ingest queue is closed", RETRY_AFTER_SECONDS);
+    }
+    if (depth.incrementAndGet() > capacity) {
+      depth.decrementAndGet();
+      rejected.increment();
+      throw new ServiceUnavailableException("Ingest queue is full, "
+          + capacity + " observations are waiting to be stored", RETRY_AFTER_SECONDS);
+    }
+    String uniqueId;
+    Entry entry;
+    try {
+      uniqueId = xds.reserveUniqueId();
+      entry = new Entry(uniqueId, teleObs, idempotencyKey);
+      journal.append(uniqueId, gson.toJson(entry));
+    } catch (IOException e) {
+      depth.decrementAndGet();
+      throw new XDSException("Observation could not be journaled: " + e.getMessage());
+    } catch (RuntimeException e) {
+      depth.decrementAndGet();
+      throw e;
+    }
+    queue.add(entry);
+    return uniqueId;
+  }
+
+  /** Get the number of observations accepted but not yet stored
+   * @return the queue depth
+   */
+  public int getDepth() {
+    return depth.get();
+  }
+
+  /**
+   * Stop accepting observations, and wait for the workers to store
+   * those already accepted. Observations still not stored when the
+   * workers are stopped remain in the journal.
+   */
+  @Override
+  public void close() throws IOException {
+    running = false;
+    long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+    for (Thread worker : workers) {
+      try {
+        worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      worker.interrupt();
+    }
+    journal.close();
+  }
+
+  @Override
+  public String toString() {
+    return "depth=" + depth.get() + ", capacity=" + capacity
+        + ", stored=" + stored.sum() + ", batches=" + batches.sum()
+        + ", rejected=" + rejected.sum() + ", failures=" + failures.sum()
+        + ", journal " + journal;
+  }
+
+  private void enqueue(Entry entry) {
+    depth.incrementAndGet();
+    queue.add(entry);
+  }
+
+  private void work() {
+    List<Entry> batch = new ArrayList<>(batchSize);
+    while (running || !queue.isEmpty()) {
+      try {
+        Entry first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) { continue; }
+        batch.add(first);
+        queue.drainTo(batch, batchSize - 1);
+        store(batch);
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        batch.clear();
+      }
+    }
+  }
+
+  private void store(List<Entry> batch) throws InterruptedException {
+    List<Entry> prepared = new ArrayList<>(batch.size());
+    List<ObservationSubmission> submissions = new ArrayList<>(batch.size());
+    for (Entry entry : batch) {
+      try {
+        submissions.add(preparation.prepare(entry.uniqueId, entry.teleObs,
+            entry.idempotencyKey));
+        prepared.add(entry);
+      } catch (RuntimeException e) {
+        // Retrying cannot help, so give up on this observation
+        logger.error("method=store, uniqueId={}, exception={}", entry.uniqueId, e.toString());
+        failures.increment();
+      }
+    }
+    long backoff = POLL_MILLIS;
+    while (!submissions.isEmpty()) {
+      try {
+        xds.provideAndRegisterObservations(submissions);
+        break;
+      } catch (RuntimeException e) {
+        // The XDS may be down, keep trying as the observations
+        // have been acknowledged; they stay in the journal if the
+        // queue is closed in the meantime
+        failures.increment();
+        logger.warn("method=store, batch={}, exception={}", submissions.size(), e.toString());
+        if (!running) { throw new InterruptedException("Ingest queue closed"); }
+        Thread.sleep(backoff);
+        backoff = Math.min(2 * backoff, MAX_BACKOFF_MILLIS);
+      }
+    }
+    List<String> done = new ArrayList<>(batch.size());
+    batch.forEach(entry -> done.add(entry.uniqueId));
+    try {
+      journal.complete(done);
+    } catch (IOException e) {
+      // Harmless, the observations are stored again after a restart
+      logger.warn("method=complete, exception={}", e.toString());
+    }
+    depth.addAndGet(-batch.size());
+    stored.add(prepared.size());
+    batches.increment();
+    prepared.forEach(entry -> onStored.accept(entry.uniqueId, entry.teleObs));
+  }
+
+  /** An accepted observation; journaled as JSON without the id, which
+   * the journal keeps itself. */
+  private static class Entry {
+    final transient String uniqueId;
+    final TeleObservation teleObs;
+    final String idempotencyKey;
+
+    Entry(String uniqueId, TeleObservation teleObs, String idempotencyKey) {
+      this.uniqueId = uniqueId;
+      this.teleObs = teleObs;
+      this.idempotencyKey = idempotencyKey;
+    }
+  }
+}
@@ -17,8 +17,6 @@
 
 package telemed.server;
 
-import java.time.*;
-
 import telemed.domain.*;
 import telemed.storage.MetaData;
 
@@ -38,10 +36,7 @@ public class MetadataBuilder implements Builder {
     metadata.setPersonID( to.getPatientId() );
 
     // We need to convert the time to a epoch in milliseconds
-    OffsetDateTime dateTime = to.getTime();
-    // And then to an instant
-    Instant instant = dateTime.toInstant();
-    long timestamp = instant.toEpochMilli();
+    long timestamp = to.getEpochSecond() * 1000L;
     metadata.setTimestamp(timestamp);
   }
 
@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import telemed.domain.*;
+
+/**
+ * In-process event bus on which the servant publishes every stored
+ * observation, so GP clients can be told about new observations instead
+ * of polling the XDS for them.
+ * <p>
+ * The bus retains the most recent events in a fixed size history, from
+ * which long polls are answered and from which subscribers that
+ * reconnect catch up. Subscribers receive the events of the patients
+ * they watch in a buffer of bounded size. Publishing never blocks: if a
+ * subscriber does not keep up and its buffer is full, further events
+ * are dropped and the subscription is marked as overflowed, telling the
+ * subscriber to query what it missed and subscribe anew. Thus slow
+ * subscribers neither slow down storing observations nor fill the heap.
+ */
+public class ObservationEventBus {
+
+  /** Number of events retained for long polls, unless told otherwise */
+  public static final int DEFAULT_HISTORY_SIZE = 1024;
+
+  private final ObservationEvent[] history;
+  private long lastSequence = 0;
+  private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+  private final LongAdder dropped = new LongAdder();
+  private volatile boolean closed = false;
+
+  public ObservationEventBus() {
+    this(DEFAULT_HISTORY_SIZE);
+  }
+
+  /**
+   * Create an event bus.
+   * @param historySize the number of recent events retained
+   */
+  public ObservationEventBus(int historySize) {
+    history = new ObservationEvent[historySize];
+  }
+
+  /**
+   * Publish that an observation has been stored.
+   * @param uniqueId the id the observation was stored under
+   * @param observation the stored observation
+   * @return the event published
+   */
+  public synchronized ObservationEvent publish(String uniqueId, TeleObservation observation) {
+    ObservationEvent event = new ObservationEvent(++lastSequence, uniqueId, observation);
+    history[(int) (event.getSequence() % history.length)] = event;
+    // Delivered while holding the lock, so subscribers get events in
+    // sequence order; offering never blocks
+    for (Subscription subscription : subscriptions) {
+      subscription.offer(event);
+    }
+    notifyAll();
+    return event;
+  }
+
+  /**
+   * Wait for events of the given patients after the given sequence
+   * number, returning as soon as there are any, or when the timeout
+   * has expired.
+   *
+   * @param patientIds the ids of the patients to watch
+   * @param afterSequence the sequence number of the last event seen, or
+   * a negative number to only get events published from now on
+   * @param timeoutMillis the maximal time to wait
+   * @return the events, which are empty if the wait timed out or
+   * the bus has been closed
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public synchronized ObservationEvents await(Collection<String> patientIds, long afterSequence,
+                                              long timeoutMillis) throws InterruptedException {
+    Set<String> watched = new HashSet<>(patientIds);
+    if (afterSequence > lastSequence) {
+      // Sequence numbers from before a restart of the server
+      return new ObservationEvents(new ArrayList<>(), lastSequence, true);
+    }
+    long after = afterSequence < 0 ? lastSequence : afterSequence;
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (true) {
+      boolean missed = after < oldestRetained() - 1;
+      List<ObservationEvent> events = retainedAfter(Math.max(after, oldestRetained() - 1), watched);
+      long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      if (!events.isEmpty() || missed || remaining <= 0 || closed) {
+        return new ObservationEvents(events, lastSequence, missed);
+      }
+      // Nothing for the watched patients, continue after the events seen
+      after = lastSequence;
+      wait(remaining);
+    }
+  }
+
+  /**
+   * Subscribe to the events of the given patients.
+   *
+   * @param patientIds the ids of the patients to watch
+   * @param afterSequence the sequence number of the last event seen, to
+   * catch up from the history, or a negative number to only get events
+   * published from now on
+   * @param capacity the maximal number of events buffered for the
+   * subscriber
+   * @return the subscription, which must be closed after use
+   */
+  public synchronized Subscription subscribe(Collection<String> patientIds, long afterSequence,
+                                             int capacity) {
+    Subscription subscription = new Subscription(new HashSet<>(patientIds), capacity);
+    if (afterSequence >= 0) {
+      long after = Math.min(afterSequence, lastSequence);
+      if (after < oldestRetained() - 1 || afterSequence > lastSequence) {
+        subscription.overflow();
+      }
+      retainedAfter(Math.max(after, oldestRetained() - 1), subscription.patientIds).
+          forEach(subscription::offer);
+    }
+    subscriptions.add(subscription);
+    return subscription;
+  }
+
+  private long oldestRetained() {
+    return Math.max(1, lastSequence - history.length + 1);
+  }
+
+  private List<ObservationEvent> retainedAfter(long after, Set<String> patientIds) {
+    List<ObservationEvent> events = new ArrayList<>();
+    for (long sequence = after + 1; sequence <= lastSequence; sequence++) {
+      ObservationEvent event = history[(int) (sequence % history.length)];
+      if (patientIds.contains(event.getObservation().getPatientId())) {
+        events.add(event);
+      }
+    }
+    return events;
+  }
+
+  /** Get the sequence number of the last published event
+   * @return the last sequence number, 0 if nothing has been published
+   */
+  public synchronized long getLastSequence() {
+    return lastSequence;
+  }
+
+  /**
+   * Close the bus when the server stops, so that long polls and
+   * subscribers waiting for events return at once.
+   */
+  public void close() {
+    synchronized (this) {
+      closed = true;
+      notifyAll();
+    }
+    for (Subscription subscription : subscriptions) {
+      subscription.wake();
+    }
+  }
+
+  /** Whether the bus has been closed
+   * @return true if the bus has been closed
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public String toString() {
+    return "published=" + getLastSequence() + " subscribers=" + subscriptions.size()
+        + " dropped=" + dropped.sum();
+  }
+
+  /**
+   * A subscription to the events of some patients, with its own bounded
+   * buffer of events that have not been taken yet.
+   */
+  public final class Subscription implements AutoCloseable {
+    private final Set<String> patientIds;
+    private final int capacity;
+    private final ArrayDeque<ObservationEvent> buffer = new ArrayDeque<>();
+    private boolean overflowed = false;
+
+    private Subscription(Set<String> patientIds, int capacity) {
+      this.patientIds = patientIds;
+      this.capacity = capacity;
+    }
+
+    private synchronized void offer(ObservationEvent event) {
+      if (!patientIds.contains(event.getObservation().getPatientId())) { return; }
+      if (overflowed || buffer.size() == capacity) {
+        overflow();
+        dropped.increment();
+        return;
+      }
+      buffer.add(event);
+      notifyAll();
+    }
+
+    private synchronized void overflow() {
+      overflowed = true;
+      notifyAll();
+    }
+
+    private synchronized void wake() {
+      notifyAll();
+    }
+
+    /**
+     * Take the buffered events, waiting for some to arrive if there
+     * are none.
+     * @param timeoutMillis the maximal time to wait
+     * @return the buffered events in sequence order, which are empty if
+     * the wait timed out, the bus has been closed, or the subscription
+     * has overflowed with no events left in the buffer
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized List<ObservationEvent> take(long timeoutMillis)
+        throws InterruptedException {
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+      long remaining = timeoutMillis;
+      while (buffer.isEmpty() && !overflowed && !closed && remaining > 0) {
+        wait(remaining);
+        remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+      }
+      List<ObservationEvent> events = new ArrayList<>(buffer);
+      buffer.clear();
+      return events;
+    }
+
+    /** Whether events have been dropped because the buffer was full,
+     * or were no longer in the history when subscribing, or belong to
+     * a previous run of the server. The
+     * subscriber should query what it missed and subscribe anew.
+     * @return true if events have been dropped
+     */
+    public synchronized boolean hasOverflowed() {
+      return overflowed;
+    }
+
+    @Override
+    public void close() {
+      subscriptions.remove(this);
+    }
+  }
+}
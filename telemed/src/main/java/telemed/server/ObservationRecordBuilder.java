@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import java.util.*;
+
+import telemed.domain.*;
+import telemed.storage.ObservationRecord;
+
+/**
+ * A builder to build the structured observation record that is stored
+ * alongside the HL7 document of a tele observation.
+ */
+public class ObservationRecordBuilder implements Builder {
+  private String patientId;
+  private long epochSecond;
+  private int offsetSeconds;
+  private final List<String> codes = new ArrayList<>(2);
+  private final List<String> units = new ArrayList<>(2);
+  private final List<String> displayNames = new ArrayList<>(2);
+  private final List<Double> values = new ArrayList<>(2);
+
+  @Override
+  public void buildHeader(TeleObservation to) {
+    epochSecond = to.getEpochSecond();
+    offsetSeconds = to.getOffsetSeconds();
+    codes.clear();
+    units.clear();
+    displayNames.clear();
+    values.clear();
+  }
+
+  @Override
+  public void buildPatientInfo(TeleObservation to) {
+    patientId = to.getPatientId();
+  }
+
+  @Override
+  public void buildObservationList(TeleObservation to) {
+    // the record has no list wrapper
+  }
+
+  @Override
+  public void appendObservation(ClinicalQuantity quantity) {
+    codes.add(quantity.getCode());
+    units.add(quantity.getUnit());
+    displayNames.add(quantity.getDisplayName());
+    values.add(quantity.getValue());
+  }
+
+  public ObservationRecord getResult() {
+    double[] valueArray = new double[values.size()];
+    for (int i = 0; i < valueArray.length; i++) {
+      valueArray[i] = values.get(i);
+    }
+    // observations are timed to whole seconds
+    return new ObservationRecord(patientId, epochSecond, 0,
+        offsetSeconds, codes.toArray(new String[0]), units.toArray(new String[0]),
+        displayNames.toArray(new String[0]), valueArray);
+  }
+}
@@ -0,0 +1,449 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import telemed.domain.*;
+
+/**
+ * A decorator which keeps the recent observations of each active patient
+ * in memory, so getObservationsFor can be answered without querying the
+ * XDS and converting every HL7 document again (Story 2: a GP browsing a
+ * patient's blood pressure).
+ * <p>
+ * The first query for a patient loads the observations of the longest
+ * time interval (LAST_MONTH) from the decorated TeleMed; the window is
+ * kept sorted by time, so any interval is answered by slicing it.
+ * Afterwards the window is maintained incrementally by processAndStore,
+ * correct, and delete, and observations that have grown older than the
+ * interval are dropped on every read and append. Results are returned in the same order as the
+ * decorated TeleMed would, namely the order in which they were stored.
+ * <p>
+ * Memory is bounded by a budget on the total number of cached
+ * observations; the least recently queried patients are evicted when it
+ * is exceeded, and patients that have not been queried for a while are
+ * evicted as idle.
+ * <p>
+ * As for the CachingTeleMedDecorator, all writes must pass through this
+ * decorator for the windows to be consistent, and cached observations
+ * are shared among callers, which should not modify them.
+ */
+public class RecentObservationsCacheDecorator implements TeleMed {
+
+  private final TeleMed delegate;
+  private final int observationBudget;
+  private final long idleTimeoutNanos;
+  private final LongSupplier nanoClock;
+
+  // Windows of active patients, ordered by last query (LRU first)
+  private final LinkedHashMap<String, PatientWindow> windows =
+      new LinkedHashMap<>(16, 0.75f, true);
+  // Patients presently being loaded; the flag is set if the patient's
+  // observations are written during the load, invalidating it
+  private final Map<String, Boolean> loading = new HashMap<>();
+  private int cachedObservations = 0;
+  private long nextSequence = 0;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder loads = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  /**
+   * Create the cache decorator.
+   * @param delegate the TeleMed to decorate
+   * @param observationBudget the maximal total number of cached
+   *                          observations across all patients
+   * @param idleTimeoutSeconds the time after which a patient that
+   *                           has not been queried is evicted
+   */
+  public RecentObservationsCacheDecorator(TeleMed delegate, int observationBudget,
+                                          long idleTimeoutSeconds) {
+    this(delegate, observationBudget, idleTimeoutSeconds, System::nanoTime);
+  }
+
+  /**
+   * Create the cache decorator with a given clock, mostly a feature
+   * to enable testing.
+   * @param delegate the TeleMed to decorate
+   * @param observationBudget the maximal total number of cached
+   *                          observations across all patients
+   * @param idleTimeoutSeconds the time after which a patient that
+   *                           has not been queried is evicted
+   * @param nanoClock the clock, in nano seconds, to measure idleness by
+   */
+  public RecentObservationsCacheDecorator(TeleMed delegate, int observationBudget,
+                                          long idleTimeoutSeconds, LongSupplier nanoClock) {
+    this.delegate = delegate;
+    this.observationBudget = observationBudget;
+    this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+    this.nanoClock = nanoClock;
+  }
+
+  @Override
+  public String processAndStore(TeleObservation teleObs) {
+    String uniqueId = delegate.processAndStore(teleObs);
+    addStored(teleObs, false);
+    return uniqueId;
+  }
+
+  @Override
+  public String processAndStore(TeleObservation teleObs, String idempotencyKey) {
+    String uniqueId = delegate.processAndStore(teleObs, idempotencyKey);
+    // A retried upload is already in the window
+    addStored(teleObs, idempotencyKey != null);
+    return uniqueId;
+  }
+
+  @Override
+  public List<TeleObservation> getObservationsFor(String patientId, TimeInterval interval) {
+    OffsetDateTime now = OffsetDateTime.now();
+    long end = now.toInstant().toEpochMilli();
+    long start = interval.startingBefore(now).toInstant().toEpochMilli();
+
+    synchronized (this) {
+      evictIdle();
+      PatientWindow window = windows.get(patientId);
+      if (window != null) {
+        hits.increment();
+        trim(window, now);
+        return window.slice(start, end, nanoClock.getAsLong());
+      }
+      loading.put(patientId, false);
+    }
+
+    // Not cached; load the longest interval without holding the lock
+    loads.increment();
+    List<TeleObservation> loaded;
+    try {
+      loaded = delegate.getObservationsFor(patientId, TimeInterval.LAST_MONTH);
+    } catch (RuntimeException e) {
+      synchronized (this) { loading.remove(patientId); }
+      throw e;
+    }
+
+    synchronized (this) {
+      boolean writtenDuringLoad = loading.remove(patientId);
+      PatientWindow window = windows.get(patientId);
+      if (window == null && !writtenDuringLoad) {
+        window = new PatientWindow();
+        for (TeleObservation to : loaded) {
+          add(window, to, nextSequence++);
+        }
+        trim(window, now);
+        windows.put(patientId, window);
+        enforceBudget(patientId);
+      }
+      if (window != null && windows.containsKey(patientId)) {
+        return window.slice(start, end, nanoClock.getAsLong());
+      }
+    }
+    // Could not be cached, answer from the loaded observations
+    PatientWindow uncached = new PatientWindow();
+    loaded.forEach(to -> uncached.add(new WindowEntry(to, 0)));
+    return uncached.slice(start, end, 0);
+  }
+
+  @Override
+  public Map<String, List<TeleObservation>> getObservationsForPatients(List<String> patientIds,
+                                                                       OffsetDateTime start,
+                                                                       OffsetDateTime end) {
+    return delegate.getObservationsForPatients(patientIds, start, end);
+  }
+
+  @Override
+  public ObservationPage getObservationPage(String patientId, OffsetDateTime start,
+                                            OffsetDateTime end, int limit, String cursor) {
+    return delegate.getObservationPage(patientId, start, end, limit, cursor);
+  }
+
+  @Override
+  public List<ObservationStatistics> getStatisticsFor(String patientId, TimeInterval interval,
+                                                      BucketSize bucketSize) {
+    return delegate.getStatisticsFor(patientId, interval, bucketSize);
+  }
+
+  @Override
+  public ObservationEvents awaitObservations(List<String> patientIds, long afterSequence,
+                                             long maxWaitMillis) {
+    return delegate.awaitObservations(patientIds, afterSequence, maxWaitMillis);
+  }
+
+  @Override
+  public TeleObservation getObservation(String uniqueId) {
+    return delegate.getObservation(uniqueId);
+  }
+
+  @Override
+  public boolean correct(String uniqueId, TeleObservation to) {
+    TeleObservation original = originalIfCacheInUse(uniqueId);
+    boolean isValid = delegate.correct(uniqueId, to);
+    if (isValid && original == null) {
+      invalidateAll();
+    } else if (isValid) {
+      synchronized (this) {
+        markWritten(original.getPatientId());
+        markWritten(to.getPatientId());
+        long sequence = remove(original);
+        // The time stamp cannot be corrected, keep the original one
+        PatientWindow window = windows.get(to.getPatientId());
+        if (window != null) {
+          add(window, copyOf(to, original),
+              sequence >= 0 ? sequence : nextSequence++);
+          enforceBudget(to.getPatientId());
+        }
+      }
+    }
+    return isValid;
+  }
+
+  @Override
+  public boolean delete(String uniqueId) {
+    TeleObservation original = originalIfCacheInUse(uniqueId);
+    boolean isValid = delegate.delete(uniqueId);
+    if (isValid && original == null) {
+      invalidateAll();
+    } else if (isValid) {
+      synchronized (this) {
+        markWritten(original.getPatientId());
+        remove(original);
+      }
+    }
+    return isValid;
+  }
+
+  /** Number of patients presently cached.
+   * @return number of patient windows */
+  public synchronized int getPatientCount() {
+    return windows.size();
+  }
+
+  /** Number of observations presently cached.
+   * @return number of observations across all windows */
+  public synchronized int getObservationCount() {
+    return cachedObservations;
+  }
+
+  public long getHitCount() {
+    return hits.sum();
+  }
+
+  public long getLoadCount() {
+    return loads.sum();
+  }
+
+  public long getEvictionCount() {
+    return evictions.sum();
+  }
+
+  /** Metrics of the cache in key=value format.
+   * @return the metrics */
+  @Override
+  public String toString() {
+    return "patients=" + getPatientCount() + ", observations=" + getObservationCount()
+        + ", hits=" + getHitCount() + ", loads=" + getLoadCount()
+        + ", evictions=" + getEvictionCount();
+  }
+
+  /* Corrections and deletions are identified by unique id, which is not
+   * part of the cached observations; so the original observation is
+   * fetched to find the patient and the entry it corresponds to. This
+   * extra read is only made when patients are cached.
+   */
+  private TeleObservation originalIfCacheInUse(String uniqueId) {
+    synchronized (this) {
+      if (windows.isEmpty() && loading.isEmpty()) { return null; }
+    }
+    return delegate.getObservation(uniqueId);
+  }
+
+  private synchronized void addStored(TeleObservation teleObs, boolean mayBeCached) {
+    String patientId = teleObs.getPatientId();
+    markWritten(patientId);
+    PatientWindow window = windows.get(patientId);
+    if (window != null && !(mayBeCached && window.contains(teleObs))) {
+      add(window, copyOf(teleObs, teleObs), nextSequence++);
+      trim(window, OffsetDateTime.now());
+      enforceBudget(patientId);
+    }
+  }
+
+  private void markWritten(String patientId) {
+    if (loading.containsKey(patientId)) {
+      loading.put(patientId, true);
+    }
+  }
+
+  /** Invalidate every patient after a write whose patient is unknown,
+   * as the cache was not in use when the original was looked up; the
+   * patients loaded since may have been loaded before the write. */
+  private synchronized void invalidateAll() {
+    loading.replaceAll((patientId, written) -> true);
+    evictions.add(windows.size());
+    windows.clear();
+    cachedObservations = 0;
+  }
+
+  private void add(PatientWindow window, TeleObservation to, long sequence) {
+    window.add(new WindowEntry(to, sequence));
+    cachedObservations++;
+  }
+
+  /** Drop the observations that are older than the longest interval. */
+  private void trim(PatientWindow window, OffsetDateTime now) {
+    long windowStart = TimeInterval.LAST_MONTH.startingBefore(now).toInstant().toEpochMilli();
+    cachedObservations -= window.removeBefore(windowStart);
+  }
+
+  /** Remove one entry equal to the given observation from its patient's
+   * window. Observations that are equal are indistinguishable in the
+   * results, so it does not matter which one is removed.
+   * @return the sequence number of the removed entry or -1 if none
+   */
+  private long remove(TeleObservation original) {
+    PatientWindow window = windows.get(original.getPatientId());
+    if (window == null) { return -1; }
+    long sequence = window.remove(original);
+    if (sequence >= 0) { cachedObservations--; }
+    return sequence;
+  }
+
+  private void evictIdle() {
+    long now = nanoClock.getAsLong();
+    Iterator<PatientWindow> iterator = windows.values().iterator();
+    while (iterator.hasNext()) {
+      PatientWindow window = iterator.next();
+      // LRU order, so stop at the first recently used window
+      if (now - window.lastAccess < idleTimeoutNanos) { break; }
+      cachedObservations -= window.size();
+      iterator.remove();
+      evictions.increment();
+    }
+  }
+
+  /** Evict least recently used patients until within budget; the
+   * given patient is only evicted if it alone exceeds the budget. */
+  private void enforceBudget(String patientId) {
+    Iterator<Map.Entry<String, PatientWindow>> iterator = windows.entrySet().iterator();
+    while (cachedObservations > observationBudget && iterator.hasNext()) {
+      Map.Entry<String, PatientWindow> eldest = iterator.next();
+      if (eldest.getKey().equals(patientId) && windows.size() > 1) { continue; }
+      cachedObservations -= eldest.getValue().size();
+      iterator.remove();
+      evictions.increment();
+    }
+  }
+
+  private static TeleObservation copyOf(TeleObservation to, TeleObservation timedBy) {
+    // Quantities are immutable, so they can be shared
+    TeleObservation copy = new TeleObservation(to.getPatientId(),
+        to.getQuantities().toArray(new ClinicalQuantity[0]));
+    copy.setTime(timedBy.getEpochSecond(), timedBy.getOffsetSeconds());
+    return copy;
+  }
+
+  private static boolean isSameObservation(TeleObservation a, TeleObservation b) {
+    return a.getPatientId().equals(b.getPatientId())
+        && a.getEpochSecond() == b.getEpochSecond()
+        && a.getOffsetSeconds() == b.getOffsetSeconds()
+        && a.getQuantities().equals(b.getQuantities());
+  }
+
+  private static class WindowEntry {
+    final long timestamp;
+    final long sequence;
+    final TeleObservation observation;
+
+    WindowEntry(TeleObservation observation, long sequence) {
+      this.timestamp = observation.getEpochSecond() * 1000L;
+      this.sequence = sequence;
+      this.observation = observation;
+    }
+  }
+
+  private static final Comparator<WindowEntry> BY_TIME =
+      Comparator.<WindowEntry>comparingLong(e -> e.timestamp).
+          thenComparingLong(e -> e.sequence);
+
+  /** The observations of a single patient, sorted by time. */
+  private static class PatientWindow {
+    private final List<WindowEntry> entries = new ArrayList<>();
+    private long lastAccess;
+
+    void add(WindowEntry entry) {
+      int index = Collections.binarySearch(entries, entry, BY_TIME);
+      entries.add(index < 0 ? -index - 1 : index, entry);
+    }
+
+    long remove(TeleObservation original) {
+      for (Iterator<WindowEntry> iterator = entries.iterator(); iterator.hasNext(); ) {
+        WindowEntry entry = iterator.next();
+        if (isSameObservation(entry.observation, original)) {
+          iterator.remove();
+          return entry.sequence;
+        }
+      }
+      return -1;
+    }
+
+    /** Remove the observations before the given time.
+     * @return the number of observations removed */
+    int removeBefore(long timestamp) {
+      int count = firstIndexAtOrAfter(timestamp);
+      entries.subList(0, count).clear();
+      return count;
+    }
+
+    boolean contains(TeleObservation observation) {
+      return entries.stream().anyMatch(e -> isSameObservation(e.observation, observation));
+    }
+
+    /** The observations in [start;end], in order of storage. */
+    List<TeleObservation> slice(long start, long end, long now) {
+      lastAccess = now;
+      int from = firstIndexAtOrAfter(start);
+      int to = firstIndexAtOrAfter(end + 1);
+      List<WindowEntry> slice = new ArrayList<>(entries.subList(from, to));
+      slice.sort(Comparator.comparingLong(e -> e.sequence));
+      List<TeleObservation> result = new ArrayList<>(slice.size());
+      slice.forEach(e -> result.add(e.observation));
+      return result;
+    }
+
+    int size() {
+      return entries.size();
+    }
+
+    private int firstIndexAtOrAfter(long timestamp) {
+      int low = 0, high = entries.size();
+      while (low < high) {
+        int middle = (low + high) >>> 1;
+        if (entries.get(middle).timestamp < timestamp) {
+          low = middle + 1;
+        } else {
+          high = middle;
+        }
+      }
+      return low;
+    }
+  }
+}
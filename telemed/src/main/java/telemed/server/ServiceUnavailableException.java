@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+/**
+ * Thrown when the server is too busy to accept a request right now,
+ * telling the client how long to wait before it tries again.
+ */
+public class ServiceUnavailableException extends RuntimeException {
+
+  private final int retryAfterSeconds;
+
+  public ServiceUnavailableException(String message, int retryAfterSeconds) {
+    super(message);
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  /** Get the number of seconds the client should wait before retrying
+   * @return seconds to wait
+   */
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+}
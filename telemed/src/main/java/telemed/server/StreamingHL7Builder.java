@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import java.io.StringWriter;
+import java.time.format.DateTimeFormatter;
+
+import javax.xml.stream.*;
+
+import telemed.domain.*;
+
+/**
+ * Implementation of the builder interface that writes the same (simplified)
+ * HL7 document as the HL7Builder, but streams it directly into a character
+ * buffer using StAX instead of building a DOM tree that has to be
+ * serialized by a Transformer afterwards.
+ * <p>
+ * The buffer is reused between builds, so a single builder instance can be
+ * used for any number of consecutive constructions, but a builder is
+ * not thread safe; use one instance per thread.
+ */
+public class StreamingHL7Builder implements Builder {
+
+  private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+  private static final String INDENT = "  ";
+
+  private final StringWriter buffer = new StringWriter(1024);
+  private XMLStreamWriter writer;
+  private int depth;
+  private String result;
+
+  /** Access the final resulting HL7 document
+   * once the build process is over.
+   * @return the final document as a string. Is undefined
+   * if the full build process has not been
+   * followed.
+   */
+  public String getResult() {
+    if (result == null) {
+      try {
+        // Close the observation list and the document itself
+        while (depth > 0) {
+          endElement();
+        }
+        writer.writeEndDocument();
+        writer.close();
+      } catch (XMLStreamException e) {
+        throw new RuntimeException(e);
+      }
+      result = buffer.toString();
+    }
+    return result;
+  }
+
+  @Override
+  public void buildHeader(TeleObservation to) {
+    // Reset the buffer, keeping its capacity
+    buffer.getBuffer().setLength(0);
+    depth = 0;
+    result = null;
+    try {
+      writer = outputFactory.createXMLStreamWriter(buffer);
+      writer.writeStartDocument("UTF-8", "1.0");
+      startElement("ClinicalDocument");
+
+      // The time the observation was made, in ISO8601 as the HL7Builder
+      emptyElement("effectiveTime");
+      writer.writeAttribute("value",
+          DateTimeFormatter.ISO_OFFSET_DATE_TIME.format(to.getTime()));
+    } catch (XMLStreamException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void buildPatientInfo(TeleObservation to) {
+    try {
+      startElement("patient");
+      emptyElement("id");
+      writer.writeAttribute("extension", to.getPatientId());
+      endElement();
+    } catch (XMLStreamException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void buildObservationList(TeleObservation to) {
+    try {
+      // Left open, the observations are appended to it
+      startElement("component");
+    } catch (XMLStreamException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void appendObservation(ClinicalQuantity quantity) {
+    try {
+      startElement("observation");
+
+      emptyElement("code");
+      writer.writeAttribute("code", quantity.getCode());
+      writer.writeAttribute("displayName", quantity.getDisplayName());
+
+      emptyElement("value");
+      writer.writeAttribute("unit", quantity.getUnit());
+      writer.writeAttribute("value", Double.toString(quantity.getValue()));
+
+      endElement();
+    } catch (XMLStreamException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private void startElement(String name) throws XMLStreamException {
+    newLine();
+    writer.writeStartElement(name);
+    depth++;
+  }
+
+  private void emptyElement(String name) throws XMLStreamException {
+    newLine();
+    writer.writeEmptyElement(name);
+  }
+
+  private void endElement() throws XMLStreamException {
+    depth--;
+    newLine();
+    writer.writeEndElement();
+  }
+
+  private void newLine() throws XMLStreamException {
+    writer.writeCharacters("\n");
+    for (int i = 0; i < depth; i++) {
+      writer.writeCharacters(INDENT);
+    }
+  }
+}
@@ -17,10 +17,13 @@
 
 package telemed.server;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.OffsetDateTime;
 import java.util.*;
-
-import org.w3c.dom.Document;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import frds.broker.Servant;
 import telemed.domain.*;
@@ -30,31 +33,122 @@ import telemed.storage.*;
  * The implementation of the TeleMed interface which provides the business
  * behaviour required. As it resides on the server side, it is the 'servant'
  * object.
+ * <p>
+ * Besides the synchronous TeleMed methods, the servant offers asynchronous
+ * variants of the core operations. If the XDS is an AsyncXDSBackend these
+ * never block the calling thread during storage round trips; for
+ * synchronous backends they complete before they return. The
+ * TeleMedJSONInvoker dispatches to them when the server request handler
+ * handles requests asynchronously.
  */
 public class TeleMedServant implements TeleMed, Servant {
 
+  /** The maximal number of observations on a page, however many
+   * the client asks for */
+  public static final int MAX_PAGE_SIZE = 500;
+
+  /** The maximal number of patients in a multi-patient query */
+  public static final int MAX_PATIENTS_PER_QUERY = 100;
+
+  /** The maximal time a long poll for new observations waits */
+  public static final long MAX_AWAIT_MILLIS = 30_000;
+
+  /** The number of recent uploads whose idempotency keys are
+   * remembered in memory */
+  public static final int IDEMPOTENCY_TABLE_SIZE = 100_000;
+
   private final XDSBackend xds;
+  private final AsyncXDSBackend asyncXds;
+  private final ObservationEventBus eventBus;
+  // Set when observations are acknowledged before they are stored
+  private volatile IngestQueue ingestQueue;
+  private final IdempotencyTable idempotencyTable = new IdempotencyTable(IDEMPOTENCY_TABLE_SIZE);
+  // HL7 is streamed into a buffer that each thread reuses
+  private final ThreadLocal<StreamingHL7Builder> hl7Builder =
+      ThreadLocal.withInitial(StreamingHL7Builder::new);
 
   public TeleMedServant(XDSBackend xds) {
+    this(xds, new ObservationEventBus());
+  }
+
+  /**
+   * Create the servant.
+   * @param xds the XDS to store observations in
+   * @param eventBus the bus to publish stored observations on
+   */
+  public TeleMedServant(XDSBackend xds, ObservationEventBus eventBus) {
     this.xds = xds;
+    this.asyncXds = xds instanceof AsyncXDSBackend ? (AsyncXDSBackend) xds : null;
+    this.eventBus = eventBus;
+  }
+
+  /** Get the bus that stored observations are published on
+   * @return the event bus
+   */
+  public ObservationEventBus getEventBus() {
+    return eventBus;
+  }
+
+  /**
+   * Switch to acknowledging uploaded observations as soon as they are
+   * journaled on local disk, leaving the HL7 generation and storing to
+   * a pool of workers. Requires an XDS that can reserve ids and store
+   * batches of observations.
+   * @param journalFile the journal of observations not yet stored
+   * @param capacity the maximal number of observations waiting to be
+   *          stored, before uploads are rejected
+   * @param workers the number of worker threads
+   * @param batchSize the maximal number of observations stored at once
+   * @return the queue, for metrics and for closing it
+   * @throws IOException if the journal cannot be opened
+   */
+  public IngestQueue startQueuedIngest(Path journalFile, int capacity, int workers,
+                                       int batchSize) throws IOException {
+    ingestQueue = new IngestQueue(journalFile, capacity, workers, batchSize, xds,
+        (uniqueId, teleObs, idempotencyKey) -> {
+          Representations rep = new Representations(teleObs);
+          rep.metadata.setIdempotencyKey(idempotencyKey);
+          return new ObservationSubmission(uniqueId, rep.metadata, rep.hl7, rep.record);
+        },
+        eventBus::publish);
+    return ingestQueue;
   }
 
   @Override
   public String processAndStore(TeleObservation teleObs) {
-    // Generate the XML document representing the
-    // observation in HL7 (HealthLevel7) format.
-    HL7Builder builder = new HL7Builder();   
-    Director.construct(teleObs, builder);
-    Document hl7Document = builder.getResult();
-    
-    // Generate the metadata for the observation
-    MetadataBuilder metaDataBuilder = new MetadataBuilder();
-    Director.construct(teleObs, metaDataBuilder);
-    MetaData metadata = metaDataBuilder.getResult();
+    return store(teleObs, null);
+  }
+
+  @Override
+  public String processAndStore(TeleObservation teleObs, String idempotencyKey) {
+    if (idempotencyKey == null) { return store(teleObs, null); }
+    String patientId = teleObs.getPatientId();
+    return idempotencyTable.execute(patientId, idempotencyKey, () -> {
+      // The original upload may have been stored by another server,
+      // or before this one was restarted
+      String uniqueId = xds.retriveUniqueIdForIdempotencyKey(patientId, idempotencyKey);
+      return uniqueId != null ? uniqueId : store(teleObs, idempotencyKey);
+    });
+  }
+
+  private String store(TeleObservation teleObs, String idempotencyKey) {
+    IngestQueue queue = ingestQueue;
+    if (queue != null) {
+      // Stored and published by the workers later on
+      return queue.submit(teleObs, idempotencyKey);
+    }
+    // Generate the XML document representing the observation in
+    // HL7 (HealthLevel7) format, the metadata for the observation,
+    // and the structured record, so reads can skip the XML
+    Representations rep = new Representations(teleObs);
+    rep.metadata.setIdempotencyKey(idempotencyKey);
     
     // Finally store the document in the XDS storage system
     String uniqueId = null;
-    uniqueId = xds.provideAndRegisterDocument(metadata, hl7Document);
+    uniqueId = xds.provideAndRegisterObservation(rep.metadata, rep.hl7, rep.record);
+
+    // and tell subscribers about it
+    eventBus.publish(uniqueId, teleObs);
     
     return uniqueId;
   }
@@ -64,51 +158,79 @@ public class TeleMedServant implements TeleMed, Servant {
     List<TeleObservation> teleObsList = new ArrayList<>();
     // Calculate the time interval to search within
     OffsetDateTime now = OffsetDateTime.now();
-    OffsetDateTime someTimeAgo = null;
-    if (interval == TimeInterval.LAST_DAY) {
-      someTimeAgo = now.minusDays(1);
-    } else if (interval == TimeInterval.LAST_WEEK) {
-      someTimeAgo = now.minusDays(7);
-    } else {
-      someTimeAgo = now.minusMonths(1);
-    }
+    OffsetDateTime someTimeAgo = interval.startingBefore(now);
 
-    // Query the database for those HL7 documents that match query
-    List<Document> docList = xds.retriveDocumentSet(patientId, someTimeAgo, now);
-    
-    // Sigh - have to convert back from XML to a TeleObservation
-    docList.stream().forEach( (d) -> { 
-      TeleObservation to = createTeleObsFromHL7Document(d);
-      teleObsList.add(to);
-    } );
+    // Query the database for the records of those observations that
+    // match query; the HL7 documents are only needed for clinical export
+    try (Stream<ObservationRecord> recordStream =
+                 xds.retriveRecordStream(patientId, someTimeAgo, now)) {
+      recordStream.forEach( (r) -> teleObsList.add(r.toTeleObservation()) );
+    }
     return teleObsList;
   }
 
+  @Override
+  public Map<String, List<TeleObservation>> getObservationsForPatients(List<String> patientIds,
+                                                                       OffsetDateTime start,
+                                                                       OffsetDateTime end) {
+    Set<String> distinctIds = distinctPatients(patientIds);
+    // One set based query for all the patients
+    return toObservations(xds.retriveRecordsForPersons(distinctIds, start, end));
+  }
+
+  @Override
+  public ObservationPage getObservationPage(String patientId, OffsetDateTime start,
+                                            OffsetDateTime end, int limit, String cursor) {
+    RecordPage page = xds.retriveRecordPage(patientId, start, end, pageSize(limit), cursor);
+    return toObservationPage(page);
+  }
+
+  @Override
+  public List<ObservationStatistics> getStatisticsFor(String patientId, TimeInterval interval,
+                                                      BucketSize bucketSize) {
+    // The XDS computes the statistics next to the observations,
+    // so these are never transferred
+    OffsetDateTime now = OffsetDateTime.now();
+    return xds.retriveStatistics(patientId, interval.startingBefore(now), now, bucketSize);
+  }
+
+  @Override
+  public ObservationEvents awaitObservations(List<String> patientIds, long afterSequence,
+                                             long maxWaitMillis) {
+    try {
+      return eventBus.await(patientIds, afterSequence,
+          Math.max(0, Math.min(maxWaitMillis, MAX_AWAIT_MILLIS)));
+    } catch (InterruptedException e) {
+      // Server is stopping, reply as if the wait timed out
+      Thread.currentThread().interrupt();
+      return new ObservationEvents(new ArrayList<>(),
+          afterSequence < 0 ? eventBus.getLastSequence() : afterSequence, false);
+    }
+  }
+
   @Override
   public TeleObservation getObservation(String uniqueId) {
-    Document doc = xds.retriveDocument(uniqueId);
-    if (doc == null) { return null; }
+    ObservationRecord record = xds.retriveRecord(uniqueId);
+    if (record == null) { return null; }
     
-    return createTeleObsFromHL7Document(doc);
+    return record.toTeleObservation();
   }
 
   @Override
   public boolean correct(String uniqueId, TeleObservation to) {
     // Find the document if any
-    Document doc = xds.retriveDocument(uniqueId);
-    if (doc == null) { return false; }
+    ObservationRecord original = xds.retriveRecord(uniqueId);
+    if (original == null) { return false; }
     
     // Maintain the time stamp, cannot be corrected
-    OffsetDateTime originalTime = getTimeFromHL7Document(doc);
+    OffsetDateTime originalTime = original.getTime();
     to.setTime(originalTime);
     
-    // Create a new document from the given tele obs
-    HL7Builder builder = new HL7Builder();   
-    Director.construct(to, builder);
-    Document hl7Document = builder.getResult();
+    // Create a new document and record from the given tele obs
+    Representations rep = new Representations(to);
 
     // and correct it in the XDS backtier
-    return xds.correctDocument(uniqueId, XDSBackend.Operation.UPDATE, hl7Document);
+    return xds.correctObservation(uniqueId, XDSBackend.Operation.UPDATE, rep.hl7, rep.record);
   }
 
   @Override
@@ -116,38 +238,258 @@ public class TeleMedServant implements TeleMed, Servant {
     return xds.correctDocument(uniqueId, XDSBackend.Operation.DELETE, null);
   }
 
-  private TeleObservation createTeleObsFromHL7Document(Document d) {
-    TeleObservation to;
-    // A bit fragile but we rely on the sequence numbers to retrieve systolic and diastolic measurements
-    String sysAsString = XMLUtility.
-            getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value",
-                    0, "value", "observation", d);
-    String diaAsString = XMLUtility.
-            getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value",
-                    1, "value", "observation", d);
-    String localpatientId = XMLUtility.
-            getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("extension",
-                    0, "id", "patient", d);
-    
-    // Create the tele observation
-    to = new TeleObservation(localpatientId, Double.parseDouble(sysAsString),
-            Double.parseDouble(diaAsString));
+  /**
+   * Asynchronous variant of processAndStore.
+   *
+   * @param teleObs
+   *          the tele observation to process and store
+   * @return future that completes with the id of the stored observation
+   */
+  public CompletableFuture<String> processAndStoreAsync(TeleObservation teleObs) {
+    return processAndStoreAsync(teleObs, null);
+  }
 
-    // Retrieve the time stamp and convert it into java equivalent
-    OffsetDateTime ldt;
-    ldt = getTimeFromHL7Document(d);
-    to.setTime(ldt);
-    return to;
+  /**
+   * Asynchronous variant of processAndStore with an idempotency key.
+   *
+   * @param teleObs
+   *          the tele observation to process and store
+   * @param idempotencyKey
+   *          the key the client gave the upload, or null
+   * @return future that completes with the id of the stored observation
+   */
+  public CompletableFuture<String> processAndStoreAsync(TeleObservation teleObs,
+                                                        String idempotencyKey) {
+    if (asyncXds == null || ingestQueue != null) {
+      return completedFrom(() -> processAndStore(teleObs, idempotencyKey));
+    }
+    if (idempotencyKey == null) { return storeAsync(teleObs, null); }
+    String patientId = teleObs.getPatientId();
+    return idempotencyTable.executeAsync(patientId, idempotencyKey, () ->
+        asyncXds.retriveUniqueIdForIdempotencyKeyAsync(patientId, idempotencyKey).
+            thenCompose(uniqueId -> uniqueId != null ? CompletableFuture.completedFuture(uniqueId)
+                : storeAsync(teleObs, idempotencyKey)));
+  }
+
+  private CompletableFuture<String> storeAsync(TeleObservation teleObs, String idempotencyKey) {
+    Representations rep = new Representations(teleObs);
+    rep.metadata.setIdempotencyKey(idempotencyKey);
+    return asyncXds.provideAndRegisterObservationAsync(rep.metadata, rep.hl7, rep.record).
+        thenApply(uniqueId -> {
+          eventBus.publish(uniqueId, teleObs);
+          return uniqueId;
+        });
+  }
+
+  /**
+   * Asynchronous variant of getObservationsFor.
+   *
+   * @param patientId
+   *          the ID of the patient to retrieve observations for
+   * @param interval
+   *          define the time interval that measurements are
+   *          wanted for
+   * @return future that completes with the list of all observations
+   */
+  public CompletableFuture<List<TeleObservation>> getObservationsForAsync(String patientId,
+                                                                          TimeInterval interval) {
+    if (asyncXds == null) {
+      return completedFrom(() -> getObservationsFor(patientId, interval));
+    }
+    OffsetDateTime now = OffsetDateTime.now();
+    return asyncXds.retriveRecordSetAsync(patientId, interval.startingBefore(now), now).
+        thenApply(recordList -> {
+          List<TeleObservation> teleObsList = new ArrayList<>();
+          recordList.forEach(r -> teleObsList.add(r.toTeleObservation()));
+          return teleObsList;
+        });
+  }
+
+  /**
+   * Asynchronous variant of getObservationsForPatients.
+   *
+   * @param patientIds
+   *          the IDs of the patients to retrieve observations for
+   * @param start
+   *          the (exclusive) start of the time range
+   * @param end
+   *          the (inclusive) end of the time range
+   * @return future that completes with the observations of each patient
+   */
+  public CompletableFuture<Map<String, List<TeleObservation>>> getObservationsForPatientsAsync(
+      List<String> patientIds, OffsetDateTime start, OffsetDateTime end) {
+    if (asyncXds == null) {
+      return completedFrom(() -> getObservationsForPatients(patientIds, start, end));
+    }
+    return asyncXds.retriveRecordsForPersonsAsync(distinctPatients(patientIds), start, end).
+        thenApply(TeleMedServant::toObservations);
+  }
+
+  /**
+   * Asynchronous variant of getObservationPage.
+   *
+   * @param patientId
+   *          the ID of the patient to retrieve observations for
+   * @param start
+   *          the (exclusive) start of the time range
+   * @param end
+   *          the (inclusive) end of the time range
+   * @param limit
+   *          the maximal number of observations on the page
+   * @param cursor
+   *          the cursor of the previous page, or null to get the
+   *          first page
+   * @return future that completes with the page of observations
+   */
+  public CompletableFuture<ObservationPage> getObservationPageAsync(String patientId,
+                                                                    OffsetDateTime start,
+                                                                    OffsetDateTime end,
+                                                                    int limit, String cursor) {
+    if (asyncXds == null) {
+      return completedFrom(() -> getObservationPage(patientId, start, end, limit, cursor));
+    }
+    return asyncXds.retriveRecordPageAsync(patientId, start, end, pageSize(limit), cursor).
+        thenApply(TeleMedServant::toObservationPage);
+  }
+
+  /**
+   * Asynchronous variant of getStatisticsFor.
+   *
+   * @param patientId
+   *          the ID of the patient to compute statistics for
+   * @param interval
+   *          define the time interval that statistics are
+   *          wanted for
+   * @param bucketSize
+   *          whether to compute statistics per day or per week
+   * @return future that completes with the statistics of each day
+   *         or week that has observations
+   */
+  public CompletableFuture<List<ObservationStatistics>> getStatisticsForAsync(String patientId,
+                                                                             TimeInterval interval,
+                                                                             BucketSize bucketSize) {
+    if (asyncXds == null) {
+      return completedFrom(() -> getStatisticsFor(patientId, interval, bucketSize));
+    }
+    OffsetDateTime now = OffsetDateTime.now();
+    return asyncXds.retriveStatisticsAsync(patientId, interval.startingBefore(now), now,
+        bucketSize);
+  }
+
+  /**
+   * Asynchronous variant of getObservation.
+   *
+   * @param uniqueId
+   *          the unique id of the tele observation
+   * @return future that completes with the tele observation or
+   *         null in case it is not present
+   */
+  public CompletableFuture<TeleObservation> getObservationAsync(String uniqueId) {
+    if (asyncXds == null) {
+      return completedFrom(() -> getObservation(uniqueId));
+    }
+    return asyncXds.retriveRecordAsync(uniqueId).
+        thenApply(r -> r == null ? null : r.toTeleObservation());
   }
 
-  private OffsetDateTime getTimeFromHL7Document(Document d) {
-    OffsetDateTime ldt;
-    String timestamp = XMLUtility.
-            getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value",
-                    0, "effectiveTime", "ClinicalDocument", d);
-    ldt = OffsetDateTime.parse(timestamp);
-    return ldt;
+  /**
+   * Asynchronous variant of correct.
+   *
+   * @param uniqueId
+   *          id of the tele observation
+   * @param to
+   *          the new values to overwrite with
+   * @return future that completes with true in case the correction
+   *         was successful
+   */
+  public CompletableFuture<Boolean> correctAsync(String uniqueId, TeleObservation to) {
+    if (asyncXds == null) {
+      return completedFrom(() -> correct(uniqueId, to));
+    }
+    return asyncXds.retriveRecordAsync(uniqueId).thenCompose(original -> {
+      if (original == null) { return CompletableFuture.completedFuture(false); }
+      // Maintain the time stamp, cannot be corrected
+      to.setTime(original.getTime());
+      Representations rep = new Representations(to);
+      return asyncXds.correctObservationAsync(uniqueId, XDSBackend.Operation.UPDATE,
+          rep.hl7, rep.record);
+    });
+  }
+
+  /**
+   * Asynchronous variant of delete.
+   *
+   * @param uniqueId
+   *          the id of the tele observation to delete
+   * @return future that completes with true if the observation
+   *         was found and deleted
+   */
+  public CompletableFuture<Boolean> deleteAsync(String uniqueId) {
+    if (asyncXds == null) {
+      return completedFrom(() -> delete(uniqueId));
+    }
+    return asyncXds.correctDocumentAsync(uniqueId, XDSBackend.Operation.DELETE, null);
   }
 
+  /** The representations of a tele observation that are stored in the
+   * XDS, built in a single traversal of the observation. */
+  private class Representations {
+    final String hl7;
+    final MetaData metadata;
+    final ObservationRecord record;
 
+    Representations(TeleObservation teleObs) {
+      StreamingHL7Builder hl7Builder = TeleMedServant.this.hl7Builder.get();
+      MetadataBuilder metaDataBuilder = new MetadataBuilder();
+      ObservationRecordBuilder recordBuilder = new ObservationRecordBuilder();
+      Director.construct(teleObs, hl7Builder, metaDataBuilder, recordBuilder);
+      hl7 = hl7Builder.getResult();
+      metadata = metaDataBuilder.getResult();
+      record = recordBuilder.getResult();
+    }
+  }
+
+  private static Set<String> distinctPatients(List<String> patientIds) {
+    Set<String> distinctIds = new LinkedHashSet<>(patientIds);
+    if (distinctIds.size() > MAX_PATIENTS_PER_QUERY) {
+      throw new InvalidRequestException("At most " + MAX_PATIENTS_PER_QUERY
+          + " patients can be queried at once, not " + distinctIds.size());
+    }
+    return distinctIds;
+  }
+
+  private static Map<String, List<TeleObservation>> toObservations(
+      Map<String, List<ObservationRecord>> records) {
+    Map<String, List<TeleObservation>> result = new LinkedHashMap<>();
+    records.forEach((patientId, recordList) -> {
+      List<TeleObservation> teleObsList = new ArrayList<>(recordList.size());
+      recordList.forEach(r -> teleObsList.add(r.toTeleObservation()));
+      result.put(patientId, teleObsList);
+    });
+    return result;
+  }
+
+  /** The number of observations to put on a page, given the
+   * number requested by the client */
+  private static int pageSize(int limit) {
+    return Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+  }
+
+  private static ObservationPage toObservationPage(RecordPage page) {
+    List<TeleObservation> teleObsList = new ArrayList<>(page.getRecords().size());
+    page.getRecords().forEach(r -> teleObsList.add(r.toTeleObservation()));
+    return new ObservationPage(teleObsList, page.getNextCursor());
+  }
+
+  /** Run a synchronous operation and present its outcome as a
+   * (completed) future. */
+  private static <T> CompletableFuture<T> completedFrom(Supplier<T> operation) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      future.complete(operation.get());
+    } catch (RuntimeException e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
 }
@@ -32,6 +32,15 @@ import org.xml.sax.InputSource;
 public class XMLUtility {
   
   private static final TransformerFactory transfac = TransformerFactory.newInstance();
+  private static final DocumentBuilderFactory factory =
+      DocumentBuilderFactory.newInstance();
+
+  // Neither Transformers nor DocumentBuilders are thread safe, but they
+  // are expensive to create, so each thread keeps its own to reuse
+  private static final ThreadLocal<Transformer> transformer =
+      ThreadLocal.withInitial(XMLUtility::createTransformer);
+  private static final ThreadLocal<DocumentBuilder> documentBuilder =
+      ThreadLocal.withInitial(XMLUtility::createDocumentBuilder);
 
   /**
    * Convert an XML document to a human readable string with proper indentation.
@@ -41,35 +50,21 @@ public class XMLUtility {
    * @return the string representation of the document.
    */
   public static String convertXMLDocumentToString(Node doc)  {
-
-    Transformer trans = null;
-    try {
-      trans = transfac.newTransformer();
-    } catch ( TransformerException e ) {
-      throw new RuntimeException(e);
-    }
-    trans.setOutputProperty(OutputKeys.INDENT, "yes");
-    trans.setOutputProperty( "{http://xml.apache.org/xslt}indent-amount", "2" );
-
     //create string from xml tree
     StringWriter sw = new StringWriter();
     StreamResult result = new StreamResult(sw);
     DOMSource source = new DOMSource(doc);
     try {
-      trans.transform(source, result);
+      transformer.get().transform(source, result);
     } catch ( TransformerException e ) {
       throw new RuntimeException(e);
     }
-    //sw.close();
 
     String xmlString = sw.toString();
 
     return xmlString;
   }
 
-  private static final DocumentBuilderFactory factory =
-      DocumentBuilderFactory.newInstance();
-
   /** convert a valid XML string into the equivalent Document object
    * 
    * @param xml well formed XML string
@@ -79,8 +74,7 @@ public class XMLUtility {
     // Convert the XML string to w3c Document
     Document doc = null;
     try {
-      DocumentBuilder builder = factory.newDocumentBuilder();
-      doc = builder.parse(new InputSource(new StringReader(xml)));
+      doc = getDocumentBuilder().parse(new InputSource(new StringReader(xml)));
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
@@ -90,6 +84,45 @@ public class XMLUtility {
     return doc;
   }
 
+  /** Create a new, empty, XML document.
+   *
+   * @return the empty document
+   */
+  public static Document newDocument() {
+    return getDocumentBuilder().newDocument();
+  }
+
+  /** Get the calling thread's document builder, reset so no state
+   * remains from its previous use.
+   *
+   * @return the document builder of this thread
+   */
+  public static DocumentBuilder getDocumentBuilder() {
+    DocumentBuilder builder = documentBuilder.get();
+    builder.reset();
+    return builder;
+  }
+
+  private static Transformer createTransformer() {
+    Transformer trans = null;
+    try {
+      trans = transfac.newTransformer();
+    } catch ( TransformerException e ) {
+      throw new RuntimeException(e);
+    }
+    trans.setOutputProperty(OutputKeys.INDENT, "yes");
+    trans.setOutputProperty( "{http://xml.apache.org/xslt}indent-amount", "2" );
+    return trans;
+  }
+
+  private static DocumentBuilder createDocumentBuilder() {
+    try {
+      return factory.newDocumentBuilder();
+    } catch ( ParserConfigurationException e ) {
+      throw new RuntimeException(e);
+    }
+  }
+
   /** Get the value of a specific attribute with an enclosing node.
    * Example:
    * <p>
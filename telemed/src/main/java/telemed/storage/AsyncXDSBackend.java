@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.storage;
+
+import java.time.OffsetDateTime;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.*;
+
+import org.w3c.dom.Document;
+
+import telemed.domain.*;
+import telemed.server.*;
+
+/**
+ * Asynchronous variant of the XDS facade. Each storage operation returns
+ * immediately with a CompletableFuture that is completed once the
+ * repository has answered, so no thread is parked while waiting for
+ * the storage round trip.
+ * <p>
+ * As an AsyncXDSBackend is also an XDSBackend, it can be used anywhere
+ * the synchronous interface is expected; the synchronous methods
+ * simply await the outcome of their asynchronous counterparts.
+ */
+public interface AsyncXDSBackend extends XDSBackend {
+
+  /**
+   * Asynchronous version of provideAndRegisterDocument.
+   *
+   * @param metaData
+   *          the meta data to store in registry to allow queries to be made
+   * @param observationAsHL7
+   *          the clinical document in HL7 format that is to be stored in the
+   *          repository
+   * @return future that completes with the unique id of the stored document
+   */
+  CompletableFuture<String> provideAndRegisterDocumentAsync(MetaData metaData,
+                                                            Document observationAsHL7);
+
+  /**
+   * Asynchronous version of provideAndRegisterSerializedDocument. The
+   * default implementation parses the document and delegates to
+   * provideAndRegisterDocumentAsync.
+   *
+   * @param metaData
+   *          the meta data to store in registry to allow queries to be made
+   * @param observationAsHL7
+   *          the clinical document in HL7 format, as XML text
+   * @return future that completes with the unique id of the stored document
+   */
+  default CompletableFuture<String> provideAndRegisterSerializedDocumentAsync(MetaData metaData,
+                                                                              String observationAsHL7) {
+    return provideAndRegisterDocumentAsync(metaData,
+        XMLUtility.convertXMLStringToDocument(observationAsHL7));
+  }
+
+  /**
+   * Asynchronous version of retriveDocumentSet.
+   *
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @return future that completes with all documents that fulfil criteria
+   */
+  CompletableFuture<List<Document>> retriveDocumentSetAsync(String personID,
+                                                            OffsetDateTime start,
+                                                            OffsetDateTime end);
+
+  /**
+   * Asynchronous version of retriveSerializedDocumentStream, delivering
+   * the full list of documents as HL7 text. The default implementation
+   * serializes the retrieved documents.
+   *
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @return future that completes with all documents that fulfil criteria
+   */
+  default CompletableFuture<List<String>> retriveSerializedDocumentSetAsync(String personID,
+                                                                            OffsetDateTime start,
+                                                                            OffsetDateTime end) {
+    return retriveDocumentSetAsync(personID, start, end).thenApply(docs -> docs.stream().
+        map(XMLUtility::convertXMLDocumentToString).
+        collect(Collectors.toList()));
+  }
+
+  /**
+   * Asynchronous version of retriveDocument.
+   *
+   * @param uniqueId
+   *          the id of the document
+   * @return future that completes with the document, or with null if
+   *         no document has the given id
+   */
+  CompletableFuture<Document> retriveDocumentAsync(String uniqueId);
+
+  /**
+   * Asynchronous version of retriveSerializedDocument. The default
+   * implementation serializes the retrieved document.
+   *
+   * @param uniqueId
+   *          the id of the document
+   * @return future that completes with the document as XML text, or with
+   *         null if no document has the given id
+   */
+  default CompletableFuture<String> retriveSerializedDocumentAsync(String uniqueId) {
+    return retriveDocumentAsync(uniqueId).thenApply(doc -> doc == null ? null
+        : XMLUtility.convertXMLDocumentToString(doc));
+  }
+
+  /**
+   * Asynchronous version of correctDocument.
+   *
+   * @param uniqueId
+   *          id of the document
+   * @param operation
+   *          the operation to apply to that document in the repository
+   * @param doc
+   *          in case of an update operation, the correct document
+   * @return future that completes with true in case the operation went well
+   */
+  CompletableFuture<Boolean> correctDocumentAsync(String uniqueId, Operation operation,
+                                                  Document doc);
+
+  /**
+   * Asynchronous version of correctSerializedDocument. The default
+   * implementation parses the document and delegates to
+   * correctDocumentAsync.
+   *
+   * @param uniqueId
+   *          id of the document
+   * @param operation
+   *          the operation to apply to that document in the repository
+   * @param hl7
+   *          in case of an update operation, the correct document as XML text
+   * @return future that completes with true in case the operation went well
+   */
+  default CompletableFuture<Boolean> correctSerializedDocumentAsync(String uniqueId,
+                                                                    Operation operation,
+                                                                    String hl7) {
+    Document doc = hl7 == null ? null : XMLUtility.convertXMLStringToDocument(hl7);
+    return correctDocumentAsync(uniqueId, operation, doc);
+  }
+
+  /**
+   * Asynchronous version of provideAndRegisterObservation. The default
+   * implementation only stores the HL7 document.
+   *
+   * @param metaData
+   *          the meta data to store in registry to allow queries to be made
+   * @param observationAsHL7
+   *          the clinical document in HL7 format, as XML text
+   * @param record
+   *          the structured record of the observation
+   * @return future that completes with the unique id of the stored document
+   */
+  default CompletableFuture<String> provideAndRegisterObservationAsync(MetaData metaData,
+                                                                       String observationAsHL7,
+                                                                       ObservationRecord record) {
+    return provideAndRegisterSerializedDocumentAsync(metaData, observationAsHL7);
+  }
+
+  /**
+   * Asynchronous version of retriveUniqueIdForIdempotencyKey. The default
+   * implementation looks the key up synchronously.
+   *
+   * @param personID
+   *          the id of the person that the observation is about
+   * @param idempotencyKey
+   *          the key the observation was uploaded with
+   * @return future that completes with the unique id of the observation,
+   *         or with null if none was stored with the key
+   */
+  default CompletableFuture<String> retriveUniqueIdForIdempotencyKeyAsync(String personID,
+                                                                          String idempotencyKey) {
+    return CompletableFuture.completedFuture(
+        retriveUniqueIdForIdempotencyKey(personID, idempotencyKey));
+  }
+
+  /**
+   * Asynchronous version of retriveRecordStream, delivering the full list
+   * of records. The default implementation reads the records from the
+   * HL7 documents.
+   *
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @return future that completes with the records of all observations
+   *         that fulfil criteria
+   */
+  default CompletableFuture<List<ObservationRecord>> retriveRecordSetAsync(String personID,
+                                                                           OffsetDateTime start,
+                                                                           OffsetDateTime end) {
+    return retriveSerializedDocumentSetAsync(personID, start, end).thenApply(docs -> docs.stream().
+        map(HL7Reader::readObservationRecord).
+        collect(Collectors.toList()));
+  }
+
+  /**
+   * Asynchronous version of retriveRecordsForPersons. The default
+   * implementation queries the records of all persons concurrently.
+   *
+   * @param personIDs
+   *          ids of the persons searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @return future that completes with the records of each person's
+   *         observations, in the order of personIDs
+   */
+  default CompletableFuture<Map<String, List<ObservationRecord>>> retriveRecordsForPersonsAsync(
+      Collection<String> personIDs, OffsetDateTime start, OffsetDateTime end) {
+    Map<String, CompletableFuture<List<ObservationRecord>>> queries = new LinkedHashMap<>();
+    for (String personID : personIDs) {
+      queries.put(personID, retriveRecordSetAsync(personID, start, end));
+    }
+    return CompletableFuture.allOf(queries.values().toArray(new CompletableFuture<?>[0])).
+        thenApply(ignored -> {
+          Map<String, List<ObservationRecord>> result = new LinkedHashMap<>();
+          queries.forEach((personID, query) -> result.put(personID, query.join()));
+          return result;
+        });
+  }
+
+  /**
+   * Asynchronous version of retriveRecordPage. The default implementation
+   * uses the number of records read so far as cursor, and skips these
+   * in the record set.
+   *
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @param limit
+   *          the maximal number of records on the page, at least 1
+   * @param cursor
+   *          the cursor returned with the previous page, or null to
+   *          read the first page
+   * @return future that completes with the page of records
+   * @throws InvalidRequestException if the cursor is not valid
+   */
+  default CompletableFuture<RecordPage> retriveRecordPageAsync(String personID,
+                                                               OffsetDateTime start,
+                                                               OffsetDateTime end,
+                                                               int limit, String cursor) {
+    long offset = OffsetCursor.parse(cursor);
+    return retriveRecordSetAsync(personID, start, end).thenApply(records ->
+        OffsetCursor.toPage(records.stream().
+            sorted(OffsetCursor.TIME_ORDER).skip(offset).limit(limit + 1L).
+            collect(Collectors.toList()), offset, limit));
+  }
+
+  /**
+   * Asynchronous version of retriveStatistics. The default implementation
+   * scans the records of the observations.
+   *
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @param bucketSize
+   *          the size of the time buckets to compute statistics for
+   * @return future that completes with the statistics of each bucket
+   *         that has observations, in time order
+   */
+  default CompletableFuture<List<ObservationStatistics>> retriveStatisticsAsync(String personID,
+                                                                               OffsetDateTime start,
+                                                                               OffsetDateTime end,
+                                                                               BucketSize bucketSize) {
+    return retriveRecordSetAsync(personID, start, end).thenApply(records -> {
+      StatisticsAccumulator accumulator = new StatisticsAccumulator(personID, bucketSize);
+      records.forEach(accumulator::add);
+      return accumulator.getResult();
+    });
+  }
+
+  /**
+   * Asynchronous version of retriveRecord. The default implementation
+   * reads the record from the HL7 document.
+   *
+   * @param uniqueId
+   *          the id of the document
+   * @return future that completes with the record, or with null if no
+   *         document has the given id
+   */
+  default CompletableFuture<ObservationRecord> retriveRecordAsync(String uniqueId) {
+    return retriveSerializedDocumentAsync(uniqueId).thenApply(hl7 -> hl7 == null ? null
+        : HL7Reader.readObservationRecord(hl7));
+  }
+
+  /**
+   * Asynchronous version of correctObservation. The default implementation
+   * only corrects the HL7 document.
+   *
+   * @param uniqueId
+   *          id of the document
+   * @param operation
+   *          the operation to apply to that document in the repository
+   * @param hl7
+   *          in case of an update operation, the correct document as XML text
+   * @param record
+   *          in case of an update operation, the correct record
+   * @return future that completes with true in case the operation went well
+   */
+  default CompletableFuture<Boolean> correctObservationAsync(String uniqueId, Operation operation,
+                                                             String hl7, ObservationRecord record) {
+    return correctSerializedDocumentAsync(uniqueId, operation, hl7);
+  }
+
+  @Override
+  default String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7) {
+    return await(provideAndRegisterDocumentAsync(metaData, observationAsHL7));
+  }
+
+  @Override
+  default String provideAndRegisterSerializedDocument(MetaData metaData, String observationAsHL7) {
+    return await(provideAndRegisterSerializedDocumentAsync(metaData, observationAsHL7));
+  }
+
+  @Override
+  default List<Document> retriveDocumentSet(String personID, OffsetDateTime start,
+                                            OffsetDateTime end) {
+    return await(retriveDocumentSetAsync(personID, start, end));
+  }
+
+  @Override
+  default Stream<String> retriveSerializedDocumentStream(String personID, OffsetDateTime start,
+                                                         OffsetDateTime end) {
+    return await(retriveSerializedDocumentSetAsync(personID, start, end)).stream();
+  }
+
+  @Override
+  default Document retriveDocument(String uniqueId) {
+    return await(retriveDocumentAsync(uniqueId));
+  }
+
+  @Override
+  default String retriveSerializedDocument(String uniqueId) {
+    return await(retriveSerializedDocumentAsync(uniqueId));
+  }
+
+  @Override
+  default boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+    return await(correctDocumentAsync(uniqueId, operation, doc));
+  }
+
+  @Override
+  default boolean correctSerializedDocument(String uniqueId, Operation operation, String hl7) {
+    return await(correctSerializedDocumentAsync(uniqueId, operation, hl7));
+  }
+
+  @Override
+  default String provideAndRegisterObservation(MetaData metaData, String observationAsHL7,
+                                               ObservationRecord record) {
+    return await(provideAndRegisterObservationAsync(metaData, observationAsHL7, record));
+  }
+
+  @Override
+  default Stream<ObservationRecord> retriveRecordStream(String personID, OffsetDateTime start,
+                                                        OffsetDateTime end) {
+    return await(retriveRecordSetAsync(personID, start, end)).stream();
+  }
+
+  @Override
+  default Map<String, List<ObservationRecord>> retriveRecordsForPersons(
+      Collection<String> personIDs, OffsetDateTime start, OffsetDateTime end) {
+    return await(retriveRecordsForPersonsAsync(personIDs, start, end));
+  }
+
+  @Override
+  default RecordPage retriveRecordPage(String personID, OffsetDateTime start, OffsetDateTime end,
+                                       int limit, String cursor) {
+    return await(retriveRecordPageAsync(personID, start, end, limit, cursor));
+  }
+
+  @Override
+  default List<ObservationStatistics> retriveStatistics(String personID, OffsetDateTime start,
+                                                        OffsetDateTime end,
+                                                        BucketSize bucketSize) {
+    return await(retriveStatisticsAsync(personID, start, end, bucketSize));
+  }
+
+  @Override
+  default ObservationRecord retriveRecord(String uniqueId) {
+    return await(retriveRecordAsync(uniqueId));
+  }
+
+  @Override
+  default boolean correctObservation(String uniqueId, Operation operation, String hl7,
+                                     ObservationRecord record) {
+    return await(correctObservationAsync(uniqueId, operation, hl7, record));
+  }
+
+  /**
+   * Block until the future completes and return its value. Failures are
+   * rethrown as they were raised by the storage tier, instead of being
+   * wrapped in a CompletionException.
+   *
+   * @param future the future to await
+   * @param <T> type of the value
+   * @return the value the future completed with
+   */
+  static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new XDSException("Asynchronous XDS operation failed: " + e.getCause());
+    }
+  }
+}
@@ -26,6 +26,7 @@ public class MetaData {
 
   private String personID;
   private long timestamp;
+  private String idempotencyKey;
 
   /**
    * Return the id of the person which this
@@ -62,6 +63,22 @@ public class MetaData {
     this.timestamp = timestamp;
   }
 
+  /** Return the key the client uploaded the tele observation with,
+   * to recognize retries of the upload.
+   *
+   * @return the idempotency key, or null if none was given
+   */
+  public String getIdempotencyKey() {
+    return idempotencyKey;
+  }
+
+  /** Setter for the idempotency key of the upload
+   * @param idempotencyKey key given by the client, or null
+   */
+  public void setIdempotencyKey(String idempotencyKey) {
+    this.idempotencyKey = idempotencyKey;
+  }
+
   @Override
   public String toString() { 
     return "Metadata ("+getPersonID()+","+getTimestamp()+")";
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.storage;
+
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.w3c.dom.Document;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
+
+import static com.mongodb.client.model.Filters.*;
+import static com.mongodb.client.model.Updates.*;
+
+import telemed.domain.*;
+import telemed.server.*;
+
+/** An Adapter that implements the AsyncXDSBackend interface using
+ * the MongoDB driver on a bounded pool of threads. Every operation is
+ * handed to the pool, whose threads complete the returned futures, so
+ * the calling thread is never blocked during the storage round trip.
+ * The pool has a thread for each connection MongoDB may use, as more
+ * threads would only wait for a connection.
+ * <p>
+ * The document format is identical to the one used by the
+ * synchronous MongoXDSAdapter, so the two can be used on the
+ * same database.
+ */
+public class MongoAsyncXDSAdapter implements AsyncXDSBackend {
+
+  private static final String HL7_KEY = "hl7";
+  private static final String RECORD_KEY = "record";
+  private static final String TIMESTAMP_KEY = "timestamp";
+  private static final String PID_KEY = "pid";
+  /** Seconds close awaits the writes in flight */
+  public static final int CLOSE_TIMEOUT_SECONDS = 10;
+
+  private final Set<CompletableFuture<?>> writesInFlight = ConcurrentHashMap.newKeySet();
+  private final MongoPoolMetrics poolMetrics;
+  private final ExecutorService executor;
+  private final MongoClient client;
+  private final MongoDatabase db;
+  private final MongoCollection<org.bson.Document> collection;
+
+  /**
+   * Construct an asynchronous XDS that is based upon a MongoDB
+   * running on the given databaseConnectionString
+   * @param databaseConnectionString the MongoDB connection string,
+   * like 'mongodb://localhost:27017'
+   */
+  public MongoAsyncXDSAdapter(String databaseConnectionString) {
+    this(databaseConnectionString, new MongoConfiguration());
+  }
+
+  /**
+   * Construct an asynchronous XDS that is based upon a MongoDB
+   * running on the given databaseConnectionString
+   * @param databaseConnectionString the MongoDB connection string,
+   * like 'mongodb://localhost:27017'
+   * @param configuration the connection pool and timeout
+   * configuration to use
+   */
+  public MongoAsyncXDSAdapter(String databaseConnectionString,
+                              MongoConfiguration configuration) {
+    poolMetrics = new MongoPoolMetrics();
+    client = MongoClients.create(configuration.toClientSettings(poolMetrics).
+        applyConnectionString(new ConnectionString(databaseConnectionString)).
+        build());
+    AtomicInteger threads = new AtomicInteger();
+    executor = Executors.newFixedThreadPool(configuration.getMaxPoolSize(), task -> {
+      Thread thread = new Thread(task, "mongo-async-" + threads.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    // Get database 'xds' and its collection 'tm16'
+    db = client.getDatabase("xds");
+    collection = db.getCollection("tm16");
+    collection.createIndex(MongoRecordMapping.PAGE_INDEX);
+    collection.createIndex(MongoRecordMapping.IDEMPOTENCY_INDEX,
+        MongoRecordMapping.IDEMPOTENCY_INDEX_OPTIONS);
+  }
+
+  /** Get the connection pool utilization metrics
+   * @return the pool metrics
+   */
+  public MongoPoolMetrics getPoolMetrics() {
+    return poolMetrics;
+  }
+
+  @Override
+  public CompletableFuture<String> provideAndRegisterDocumentAsync(MetaData metaData,
+                                                                   Document observationAsHL7) {
+    return provideAndRegisterSerializedDocumentAsync(metaData,
+        XMLUtility.convertXMLDocumentToString(observationAsHL7));
+  }
+
+  @Override
+  public CompletableFuture<String> provideAndRegisterSerializedDocumentAsync(MetaData metaData,
+                                                                             String observationAsHL7) {
+    return provideAndRegisterObservationAsync(metaData, observationAsHL7,
+        HL7Reader.readObservationRecord(observationAsHL7));
+  }
+
+  @Override
+  public CompletableFuture<String> provideAndRegisterObservationAsync(MetaData metaData,
+                                                                      String observationAsHL7,
+                                                                      ObservationRecord record) {
+    // HL7 is stored as text, so no DOM is needed here, and
+    // the record next to it so reads need no XML at all
+    org.bson.Document d = new org.bson.Document();
+    d.append(PID_KEY, metaData.getPersonID());
+    d.append(TIMESTAMP_KEY, metaData.getTimestamp());
+    d.append(HL7_KEY, observationAsHL7);
+    d.append(RECORD_KEY, MongoRecordMapping.toBson(record));
+    MongoRecordMapping.appendIdempotencyKey(d, metaData);
+
+    return inFlight(supply(() -> {
+      try {
+        collection.insertOne(d);
+      } catch (MongoWriteException e) {
+        // A concurrent upload with the same key was stored first
+        if (metaData.getIdempotencyKey() == null || !MongoRecordMapping.isDuplicate(e)) {
+          throw e;
+        }
+        return findUniqueIdForIdempotencyKey(metaData.getPersonID(),
+            metaData.getIdempotencyKey());
+      }
+      // Mongo assigns a unique id during insertion, we just return that
+      return d.get("_id").toString();
+    }));
+  }
+
+  @Override
+  public String retriveUniqueIdForIdempotencyKey(String personID, String idempotencyKey) {
+    return AsyncXDSBackend.await(retriveUniqueIdForIdempotencyKeyAsync(personID, idempotencyKey));
+  }
+
+  @Override
+  public CompletableFuture<String> retriveUniqueIdForIdempotencyKeyAsync(String personID,
+                                                                         String idempotencyKey) {
+    return supply(() -> findUniqueIdForIdempotencyKey(personID, idempotencyKey));
+  }
+
+  private String findUniqueIdForIdempotencyKey(String personID, String idempotencyKey) {
+    org.bson.Document found =
+        collection.find(MongoRecordMapping.idempotencyFilter(personID, idempotencyKey)).
+            projection(new org.bson.Document("_id", 1)).first();
+    return found == null ? null : found.get("_id").toString();
+  }
+
+  @Override
+  public String reserveUniqueId() {
+    // Object ids are unique without asking the database
+    return new ObjectId().toHexString();
+  }
+
+  @Override
+  public void provideAndRegisterObservations(List<ObservationSubmission> batch) {
+    List<org.bson.Document> documents = new ArrayList<>(batch.size());
+    batch.forEach(submission -> documents.add(MongoRecordMapping.toStored(submission)));
+    AsyncXDSBackend.await(supply(() -> {
+      try {
+        // Unordered, so the rest of a batch stored again is inserted
+        collection.insertMany(documents, new InsertManyOptions().ordered(false));
+      } catch (MongoBulkWriteException e) {
+        if (!MongoRecordMapping.onlyDuplicates(e)) { throw e; }
+      }
+      return null;
+    }));
+  }
+
+  @Override
+  public CompletableFuture<List<Document>> retriveDocumentSetAsync(String personID,
+                                                                   OffsetDateTime startTime,
+                                                                   OffsetDateTime endTime) {
+    return retriveSerializedDocumentSetAsync(personID, startTime, endTime).
+        thenApply(list -> list.stream().
+            map(XMLUtility::convertXMLStringToDocument).
+            collect(Collectors.toList()));
+  }
+
+  @Override
+  public CompletableFuture<List<String>> retriveSerializedDocumentSetAsync(String personID,
+                                                                           OffsetDateTime startTime,
+                                                                           OffsetDateTime endTime) {
+    return findInInterval(personID, startTime, endTime).thenApply(list -> list.stream().
+        map(bson -> bson.getString(HL7_KEY)).
+        collect(Collectors.toList()));
+  }
+
+  @Override
+  public CompletableFuture<List<ObservationRecord>> retriveRecordSetAsync(String personID,
+                                                                          OffsetDateTime startTime,
+                                                                          OffsetDateTime endTime) {
+    return findInInterval(personID, startTime, endTime).thenApply(list -> list.stream().
+        map(MongoRecordMapping::fromStored).
+        collect(Collectors.toList()));
+  }
+
+  @Override
+  public CompletableFuture<Map<String, List<ObservationRecord>>> retriveRecordsForPersonsAsync(
+      Collection<String> personIDs, OffsetDateTime startTime, OffsetDateTime endTime) {
+    // A single $in query, served by the pid/timestamp index
+    return supply(() -> collection.
+        find(
+            and(
+                in(PID_KEY, personIDs),
+                gt(TIMESTAMP_KEY, startTime.toInstant().toEpochMilli()),
+                lte(TIMESTAMP_KEY, endTime.toInstant().toEpochMilli()))).
+        sort(MongoRecordMapping.PERSONS_ORDER).
+        into(new ArrayList<>())).thenApply(list -> {
+      Map<String, List<ObservationRecord>> result =
+          MongoRecordMapping.emptyResultFor(personIDs);
+      list.forEach(stored -> MongoRecordMapping.addToResult(result, stored));
+      return result;
+    });
+  }
+
+  @Override
+  public CompletableFuture<RecordPage> retriveRecordPageAsync(String personID,
+                                                              OffsetDateTime startTime,
+                                                              OffsetDateTime endTime,
+                                                              int limit, String cursor) {
+    // Seek to the cursor using the index, and fetch one record
+    // more than the page holds to tell if there is a next page
+    Bson filter = MongoRecordMapping.pageFilter(
+        and(
+            eq(PID_KEY, personID),
+            gt(TIMESTAMP_KEY, startTime.toInstant().toEpochMilli()),
+            lte(TIMESTAMP_KEY, endTime.toInstant().toEpochMilli())),
+        cursor);
+    return supply(() -> collection.find(filter).
+        sort(MongoRecordMapping.PAGE_ORDER).
+        limit(limit + 1).
+        into(new ArrayList<>())).thenApply(stored -> MongoRecordMapping.toPage(stored, limit));
+  }
+
+  @Override
+  public CompletableFuture<List<ObservationStatistics>> retriveStatisticsAsync(String personID,
+                                                                              OffsetDateTime startTime,
+                                                                              OffsetDateTime endTime,
+                                                                              BucketSize bucketSize) {
+    // Let MongoDB group the observations, so only the blood
+    // pressure values of each bucket are transferred
+    Bson match = and(
+        eq(PID_KEY, personID),
+        gt(TIMESTAMP_KEY, startTime.toInstant().toEpochMilli()),
+        lte(TIMESTAMP_KEY, endTime.toInstant().toEpochMilli()));
+    return supply(() -> collection.
+        aggregate(MongoRecordMapping.statisticsPipeline(match, bucketSize)).
+        into(new ArrayList<>())).thenApply(list -> list.stream().
+        map(bucket -> MongoRecordMapping.fromStatistics(personID, bucketSize, bucket)).
+        collect(Collectors.toList()));
+  }
+
+  private CompletableFuture<List<org.bson.Document>> findInInterval(String personID,
+                                                                    OffsetDateTime startTime,
+                                                                    OffsetDateTime endTime) {
+    long start = startTime.toInstant().toEpochMilli();
+    long end = endTime.toInstant().toEpochMilli();
+
+    return supply(() -> collection.
+        // Find with given personID and in time interval
+        find(
+            and(
+                eq(PID_KEY, personID),
+                gt(TIMESTAMP_KEY, start),
+                lte(TIMESTAMP_KEY, end))).
+        into(new ArrayList<>()));
+  }
+
+  @Override
+  public CompletableFuture<Document> retriveDocumentAsync(String uniqueId) {
+    return retriveSerializedDocumentAsync(uniqueId).thenApply(hl7 -> hl7 == null ? null
+        : XMLUtility.convertXMLStringToDocument(hl7));
+  }
+
+  @Override
+  public CompletableFuture<String> retriveSerializedDocumentAsync(String uniqueId) {
+    ObjectId asBsonID = new ObjectId(uniqueId);
+    return supply(() -> collection.find(eq("_id", asBsonID)).first()).
+        thenApply(doc -> doc == null ? null : doc.getString(HL7_KEY));
+  }
+
+  @Override
+  public CompletableFuture<ObservationRecord> retriveRecordAsync(String uniqueId) {
+    ObjectId asBsonID = new ObjectId(uniqueId);
+    return supply(() -> collection.find(eq("_id", asBsonID)).first()).
+        thenApply(doc -> doc == null ? null : MongoRecordMapping.fromStored(doc));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> correctDocumentAsync(String uniqueId, Operation operation,
+                                                         Document doc) {
+    return correctSerializedDocumentAsync(uniqueId, operation,
+        doc == null ? null : XMLUtility.convertXMLDocumentToString(doc));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> correctSerializedDocumentAsync(String uniqueId,
+                                                                   Operation operation,
+                                                                   String hl7) {
+    return correctObservationAsync(uniqueId, operation, hl7,
+        hl7 == null ? null : HL7Reader.readObservationRecord(hl7));
+  }
+
+  @Override
+  public CompletableFuture<Boolean> correctObservationAsync(String uniqueId, Operation operation,
+                                                            String hl7, ObservationRecord record) {
+    ObjectId asBsonID = new ObjectId(uniqueId);
+
+    if (operation == Operation.UPDATE) {
+      CompletableFuture<UpdateResult> updated = inFlight(supply(() ->
+          collection.updateOne(eq("_id", asBsonID),
+              combine(set(HL7_KEY, hl7),
+                  set(RECORD_KEY, MongoRecordMapping.toBson(record))))));
+      return updated.thenApply(ur -> ur.getModifiedCount() == 1);
+    } else {
+      CompletableFuture<DeleteResult> deleted = inFlight(supply(() ->
+          collection.deleteOne(eq("_id", asBsonID))));
+      return deleted.thenApply(dr -> dr.getDeletedCount() == 1);
+    }
+  }
+
+  /** Await the writes in flight, for at most CLOSE_TIMEOUT_SECONDS,
+   * before closing the connections to MongoDB. */
+  @Override
+  public void close() {
+    CompletableFuture<Void> written = CompletableFuture.allOf(
+        writesInFlight.toArray(new CompletableFuture<?>[0]));
+    try {
+      written.get(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException | TimeoutException e) {
+      // Failed writes are reported to their callers, and
+      // writes still in flight are abandoned
+    }
+    executor.shutdownNow();
+    client.close();
+  }
+
+  /** Never-ever use this, it will drop the collection!
+   *
+   * @param secret must be set to the secret password
+   * to do the actual dropping of the collection.
+   * @return future that completes once the collection is dropped
+   */
+  public CompletableFuture<Void> dropTheDb(String secret) {
+    if (!secret.equals("yes-i-am-testing")) {
+      return CompletableFuture.completedFuture(null);
+    }
+    return supply(() -> {
+      collection.drop();
+      return null;
+    });
+  }
+
+  /** Track the given write future until it completes, so
+   * close can await it. */
+  private <T> CompletableFuture<T> inFlight(CompletableFuture<T> write) {
+    writesInFlight.add(write);
+    write.whenComplete((result, failure) -> writesInFlight.remove(write));
+    return write;
+  }
+
+  /** Run the given driver operation on the pool, completing the
+   * returned future either normally or exceptionally.
+   */
+  private <T> CompletableFuture<T> supply(Supplier<T> operation) {
+    return CompletableFuture.supplyAsync(operation, executor);
+  }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.storage;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ReadPreference;
+import com.mongodb.WriteConcern;
+import com.mongodb.event.ConnectionPoolListener;
+
+/**
+ * Configuration of the connection pool, timeouts, and consistency
+ * settings of the MongoDB based XDS adapters.
+ * <p>
+ * The configuration is read from properties with the keys listed
+ * below; each key may be overridden by an environment variable, whose
+ * name is the key in upper case 'snake' format, prefixed by 'TELEMED_'.
+ * Example: 'mongo.maxPoolSize' is overridden by TELEMED_MONGO_MAX_POOL_SIZE.
+ * <p>
+ * Settings given explicitly as options in the MongoDB connection string
+ * take precedence over the values of this configuration.
+ */
+public class MongoConfiguration {
+
+  public static final String MAX_POOL_SIZE = "mongo.maxPoolSize";
+  public static final String MIN_POOL_SIZE = "mongo.minPoolSize";
+  public static final String WAIT_QUEUE_TIMEOUT_MS = "mongo.waitQueueTimeoutMs";
+  public static final String CONNECT_TIMEOUT_MS = "mongo.connectTimeoutMs";
+  public static final String SOCKET_TIMEOUT_MS = "mongo.socketTimeoutMs";
+  public static final String READ_PREFERENCE = "mongo.readPreference";
+  public static final String WRITE_CONCERN = "mongo.writeConcern";
+  public static final String BATCH_SIZE = "mongo.batchSize";
+
+  private static final String ENVIRONMENT_PREFIX = "TELEMED_";
+
+  // Defaults are those of the MongoDB driver, except for the batch size
+  private int maxPoolSize = 100;
+  private int minPoolSize = 0;
+  private int waitQueueTimeoutMs = 120000;
+  private int connectTimeoutMs = 10000;
+  private int socketTimeoutMs = 0;
+  private String readPreference = "primary";
+  private String writeConcern = "ACKNOWLEDGED";
+  private int batchSize = MongoXDSAdapter.DEFAULT_BATCH_SIZE;
+
+  /** Create a configuration with the default values.
+   */
+  public MongoConfiguration() {
+  }
+
+  /**
+   * Create a configuration from the given properties, in which
+   * missing keys retain their default values, while environment
+   * variables override the properties.
+   *
+   * @param properties the properties to read
+   * @param environment the environment, typically System.getenv()
+   * @return the configuration
+   */
+  public static MongoConfiguration from(Properties properties,
+                                        Map<String, String> environment) {
+    MongoConfiguration config = new MongoConfiguration();
+    Lookup lookup = key -> {
+      String value = environment.get(asEnvironmentName(key));
+      return value != null ? value : properties.getProperty(key);
+    };
+    config.maxPoolSize = lookup.intValue(MAX_POOL_SIZE, config.maxPoolSize);
+    config.minPoolSize = lookup.intValue(MIN_POOL_SIZE, config.minPoolSize);
+    config.waitQueueTimeoutMs =
+        lookup.intValue(WAIT_QUEUE_TIMEOUT_MS, config.waitQueueTimeoutMs);
+    config.connectTimeoutMs = lookup.intValue(CONNECT_TIMEOUT_MS, config.connectTimeoutMs);
+    config.socketTimeoutMs = lookup.intValue(SOCKET_TIMEOUT_MS, config.socketTimeoutMs);
+    config.readPreference = lookup.stringValue(READ_PREFERENCE, config.readPreference);
+    config.writeConcern = lookup.stringValue(WRITE_CONCERN, config.writeConcern);
+    config.batchSize = lookup.intValue(BATCH_SIZE, config.batchSize);
+
+    // Validate the named settings early, instead of at first use
+    config.getReadPreference();
+    config.getWriteConcern();
+    return config;
+  }
+
+  /**
+   * Create a configuration from the properties file of the given name,
+   * overridden by the environment. If the file does not exist,
+   * only the environment is used.
+   *
+   * @param propertiesFileName name of the properties file
+   * @param environment the environment, typically System.getenv()
+   * @return the configuration
+   */
+  public static MongoConfiguration load(String propertiesFileName,
+                                        Map<String, String> environment) {
+    Properties properties = new Properties();
+    try (InputStream in = new FileInputStream(propertiesFileName)) {
+      properties.load(in);
+    } catch (java.io.FileNotFoundException e) {
+      // No file, no properties: rely on the environment and defaults
+    } catch (IOException e) {
+      throw new XDSException("Could not read MongoDB configuration '"
+          + propertiesFileName + "': " + e.getMessage());
+    }
+    return from(properties, environment);
+  }
+
+  /** Convert a property key to the name of the environment variable
+   * that overrides it, like mongo.maxPoolSize to TELEMED_MONGO_MAX_POOL_SIZE.
+   * @param key the property key
+   * @return the name of the environment variable
+   */
+  public static String asEnvironmentName(String key) {
+    String snake = key.replace('.', '_').replaceAll("([a-z])([A-Z])", "$1_$2");
+    return ENVIRONMENT_PREFIX + snake.toUpperCase();
+  }
+
+  /**
+   * Create the settings for MongoClients, reporting pool
+   * events to the given listener.
+   * @param listener the listener to receive connection pool events
+   * @return builder of client settings, to be combined with the
+   * connection string
+   */
+  public MongoClientSettings.Builder toClientSettings(ConnectionPoolListener listener) {
+    return MongoClientSettings.builder().
+        applyToConnectionPoolSettings(pool -> pool.
+            maxSize(maxPoolSize).
+            minSize(minPoolSize).
+            maxWaitTime(waitQueueTimeoutMs, TimeUnit.MILLISECONDS).
+            addConnectionPoolListener(listener)).
+        applyToSocketSettings(socket -> socket.
+            connectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS).
+            readTimeout(socketTimeoutMs, TimeUnit.MILLISECONDS)).
+        readPreference(getReadPreference()).
+        writeConcern(getWriteConcern());
+  }
+
+  public int getMaxPoolSize() {
+    return maxPoolSize;
+  }
+
+  public int getMinPoolSize() {
+    return minPoolSize;
+  }
+
+  public int getWaitQueueTimeoutMs() {
+    return waitQueueTimeoutMs;
+  }
+
+  public int getConnectTimeoutMs() {
+    return connectTimeoutMs;
+  }
+
+  public int getSocketTimeoutMs() {
+    return socketTimeoutMs;
+  }
+
+  public ReadPreference getReadPreference() {
+    return ReadPreference.valueOf(readPreference);
+  }
+
+  public WriteConcern getWriteConcern() {
+    WriteConcern concern = WriteConcern.valueOf(writeConcern);
+    if (concern == null) {
+      throw new XDSException("Unknown MongoDB write concern: '" + writeConcern + "'");
+    }
+    return concern;
+  }
+
+  /** Get the number of documents fetched in each cursor round trip.
+   * @return the batch size
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  @Override
+  public String toString() {
+    return "MongoConfiguration (maxPoolSize=" + maxPoolSize
+        + ", minPoolSize=" + minPoolSize
+        + ", waitQueueTimeoutMs=" + waitQueueTimeoutMs
+        + ", connectTimeoutMs=" + connectTimeoutMs
+        + ", socketTimeoutMs=" + socketTimeoutMs
+        + ", readPreference=" + readPreference
+        + ", writeConcern=" + writeConcern
+        + ", batchSize=" + batchSize + ")";
+  }
+
+  private interface Lookup {
+    String value(String key);
+
+    default int intValue(String key, int defaultValue) {
+      String value = value(key);
+      if (value == null) { return defaultValue; }
+      try {
+        return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+        throw new XDSException("MongoDB configuration '" + key
+            + "' is not a number: '" + value + "'");
+      }
+    }
+
+    default String stringValue(String key, String defaultValue) {
+      String value = value(key);
+      return value == null ? defaultValue : value.trim();
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.storage;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.mongodb.event.*;
+
+/**
+ * Connection pool utilization metrics for the MongoDB driver, collected
+ * by listening to its connection pool events.
+ * <p>
+ * The wait time is the time from a thread starting to check out a
+ * connection until it is handed one (or gives up), and the wait queue
+ * holds the threads doing so. The synchronous driver checks out
+ * connections on the requesting thread, which is what allows the wait
+ * time to be measured per thread.
+ * <p>
+ * The toString() method reports the metrics in the same key=value
+ * format as the request metrics of the server request handler.
+ */
+public class MongoPoolMetrics implements ConnectionPoolListener {
+
+  private final AtomicInteger poolSize = new AtomicInteger();
+  private final AtomicInteger checkedOut = new AtomicInteger();
+  private final AtomicInteger waitQueueSize = new AtomicInteger();
+  private final LongAdder checkOutCount = new LongAdder();
+  private final LongAdder waitCount = new LongAdder();
+  private final LongAdder totalWaitNanos = new LongAdder();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+
+  private final ThreadLocal<Long> waitStart = new ThreadLocal<>();
+
+  @Override
+  public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+    waitQueueSize.incrementAndGet();
+    waitStart.set(System.nanoTime());
+  }
+
+  @Override
+  public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+    checkedOut.incrementAndGet();
+    checkOutCount.increment();
+    checkOutEnded();
+  }
+
+  @Override
+  public void connectionCheckOutFailed(ConnectionCheckOutFailedEvent event) {
+    checkOutEnded();
+  }
+
+  @Override
+  public void connectionCheckedIn(ConnectionCheckedInEvent event) {
+    checkedOut.decrementAndGet();
+  }
+
+  @Override
+  public void connectionCreated(ConnectionCreatedEvent event) {
+    poolSize.incrementAndGet();
+  }
+
+  @Override
+  public void connectionClosed(ConnectionClosedEvent event) {
+    poolSize.decrementAndGet();
+  }
+
+  private void checkOutEnded() {
+    Long start = waitStart.get();
+    // Check outs started before the listener was registered
+    if (start == null) { return; }
+    waitStart.remove();
+    waitQueueSize.decrementAndGet();
+    long waited = System.nanoTime() - start;
+    waitCount.increment();
+    totalWaitNanos.add(waited);
+    maxWaitNanos.accumulateAndGet(waited, Math::max);
+  }
+
+  /** Number of open connections in the pool(s).
+   * @return the pool size */
+  public int getPoolSize() {
+    return poolSize.get();
+  }
+
+  /** Number of connections presently in use.
+   * @return the number of checked out connections */
+  public int getCheckedOut() {
+    return checkedOut.get();
+  }
+
+  /** Number of threads presently waiting for a connection.
+   * @return the number of waiting threads */
+  public int getWaitQueueSize() {
+    return waitQueueSize.get();
+  }
+
+  /** Total number of connection check outs since start.
+   * @return the number of check outs */
+  public long getCheckOutCount() {
+    return checkOutCount.sum();
+  }
+
+  /** Average time spent checking out a connection since start.
+   * @return average wait time in milliseconds */
+  public double getAverageWaitMs() {
+    long count = waitCount.sum();
+    if (count == 0) { return 0.0; }
+    return totalWaitNanos.sum() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /** Longest time spent checking out a connection since start.
+   * @return maximal wait time in milliseconds */
+  public double getMaxWaitMs() {
+    return maxWaitNanos.get() / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(java.util.Locale.ROOT,
+        "poolSize=%d, checkedOut=%d, waitQueueSize=%d, checkOuts=%d, "
+            + "avgWait_ms=%.3f, maxWait_ms=%.3f",
+        getPoolSize(), getCheckedOut(), getWaitQueueSize(), getCheckOutCount(),
+        getAverageWaitMs(), getMaxWaitMs());
+  }
+}
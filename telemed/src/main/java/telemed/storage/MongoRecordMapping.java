@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.storage;
+
+import java.util.*;
+
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.*;
+
+import telemed.domain.*;
+import telemed.server.HL7Reader;
+
+/**
+ * Mapping of observation records to and from the MongoDB documents used
+ * by the MongoDB based XDS adapters. Shared by the synchronous and the
+ * asynchronous adapter, so they can read each other's data.
+ */
+final class MongoRecordMapping {
+
+  private static final String HL7_KEY = "hl7";
+  static final String RECORD_KEY = "record";
+
+  private static final String PID_KEY = "pid";
+  private static final String EPOCH_SECOND_KEY = "sec";
+  private static final String NANO_KEY = "nano";
+  private static final String OFFSET_KEY = "offset";
+  private static final String CODES_KEY = "codes";
+  private static final String UNITS_KEY = "units";
+  private static final String NAMES_KEY = "names";
+  private static final String VALUES_KEY = "values";
+
+  private static final String TIMESTAMP_KEY = "timestamp";
+  private static final String IDEMPOTENCY_KEY = "idempotencyKey";
+  private static final String ID_KEY = "_id";
+  private static final String COUNT_KEY = "count";
+  private static final String SYSTOLIC_KEY = "systolic";
+  private static final String DIASTOLIC_KEY = "diastolic";
+
+  private MongoRecordMapping() {}
+
+  /** Convert a record into its MongoDB representation.
+   * @param record the record to convert
+   * @return the embedded MongoDB document representing it
+   */
+  static org.bson.Document toBson(ObservationRecord record) {
+    int count = record.getMeasurementCount();
+    List<String> codes = new ArrayList<>(count);
+    List<String> units = new ArrayList<>(count);
+    List<String> names = new ArrayList<>(count);
+    List<Double> values = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      codes.add(record.getCode(i));
+      units.add(record.getUnit(i));
+      names.add(record.getDisplayName(i));
+      values.add(record.getValue(i));
+    }
+    return new org.bson.Document(PID_KEY, record.getPatientId()).
+        append(EPOCH_SECOND_KEY, record.getEpochSecond()).
+        append(NANO_KEY, record.getNano()).
+        append(OFFSET_KEY, record.getOffsetSeconds()).
+        append(CODES_KEY, codes).
+        append(UNITS_KEY, units).
+        append(NAMES_KEY, names).
+        append(VALUES_KEY, values);
+  }
+
+  /** Get the record of a stored observation. Observations stored
+   * before records were introduced only have their HL7 document, so
+   * for those the record is read from it.
+   * @param stored the stored MongoDB document of the observation
+   * @return the record of the observation
+   */
+  static ObservationRecord fromStored(org.bson.Document stored) {
+    org.bson.Document bson = stored.get(RECORD_KEY, org.bson.Document.class);
+    if (bson == null) {
+      return HL7Reader.readObservationRecord(stored.getString(HL7_KEY));
+    }
+    List<String> codeList = bson.getList(CODES_KEY, String.class);
+    List<Double> valueList = bson.getList(VALUES_KEY, Double.class);
+    List<String> unitList = bson.getList(UNITS_KEY, String.class);
+    List<String> nameList = bson.getList(NAMES_KEY, String.class);
+    int count = valueList.size();
+    String[] codes = codeList.toArray(new String[0]);
+    String[] units = new String[count];
+    String[] names = new String[count];
+    double[] values = new double[count];
+    for (int i = 0; i < count; i++) {
+      values[i] = valueList.get(i);
+      units[i] = unitList.get(i);
+      names[i] = nameList.get(i);
+    }
+    return new ObservationRecord(bson.getString(PID_KEY),
+        bson.getLong(EPOCH_SECOND_KEY), bson.getInteger(NANO_KEY),
+        bson.getInteger(OFFSET_KEY), codes, units, names, values);
+  }
+
+  /** Create the aggregation pipeline that groups the matching
+   * observations into time buckets and collects their blood pressure
+   * values, so only those values leave the database. Bucket starts are
+   * computed from the timestamp in the metadata, in milliseconds.
+   * Observations stored before records were introduced are counted,
+   * but their values are not collected.
+   * @param match the filter selecting the observations
+   * @param bucketSize the size of the time buckets
+   * @return the aggregation pipeline, sorted by bucket start
+   */
+  static List<Bson> statisticsPipeline(Bson match, BucketSize bucketSize) {
+    long size = bucketSize.getSeconds() * 1000;
+    long origin = bucketSize.getOrigin() * 1000;
+    String timestamp = "$" + TIMESTAMP_KEY;
+    org.bson.Document bucketStart = new org.bson.Document("$subtract", Arrays.asList(timestamp,
+        new org.bson.Document("$mod", Arrays.asList(
+            new org.bson.Document("$subtract", Arrays.asList(timestamp, origin)), size))));
+    return Arrays.asList(
+        new org.bson.Document("$match", match),
+        new org.bson.Document("$project", new org.bson.Document("_id", 0).
+            append("bucket", bucketStart).
+            append(SYSTOLIC_KEY, valueOf(Vitals.SYSTOLIC_CODE)).
+            append(DIASTOLIC_KEY, valueOf(Vitals.DIASTOLIC_CODE))),
+        new org.bson.Document("$group", new org.bson.Document("_id", "$bucket").
+            append(COUNT_KEY, new org.bson.Document("$sum", 1)).
+            append(SYSTOLIC_KEY, new org.bson.Document("$push", "$" + SYSTOLIC_KEY)).
+            append(DIASTOLIC_KEY, new org.bson.Document("$push", "$" + DIASTOLIC_KEY))),
+        new org.bson.Document("$sort", new org.bson.Document("_id", 1)));
+  }
+
+  /* The value measured for the code, or no value at all if the
+   * record holds no measurement with that code */
+  private static org.bson.Document valueOf(String code) {
+    String values = "$" + RECORD_KEY + "." + VALUES_KEY;
+    String codes = "$" + RECORD_KEY + "." + CODES_KEY;
+    return new org.bson.Document("$let", new org.bson.Document("vars",
+        new org.bson.Document("i", new org.bson.Document("$indexOfArray",
+            Arrays.asList(codes, code)))).
+        append("in", new org.bson.Document("$cond", Arrays.asList(
+            new org.bson.Document("$gte", Arrays.asList("$$i", 0)),
+            new org.bson.Document("$arrayElemAt", Arrays.asList(values, "$$i")),
+            "$$REMOVE"))));
+  }
+
+  /** Convert a bucket computed by the statistics pipeline into the
+   * statistics it represents.
+   * @param patientId the ID of the patient
+   * @param bucketSize the size of the time buckets
+   * @param bucket the bucket document computed by the pipeline
+   * @return the statistics of the bucket
+   */
+  static ObservationStatistics fromStatistics(String patientId, BucketSize bucketSize,
+                                              org.bson.Document bucket) {
+    long start = ((Number) bucket.get("_id")).longValue() / 1000;
+    return new ObservationStatistics(patientId, bucketSize, start,
+        ((Number) bucket.get(COUNT_KEY)).intValue(),
+        QuantityStatistics.of(toArray(bucket.getList(SYSTOLIC_KEY, Number.class))),
+        QuantityStatistics.of(toArray(bucket.getList(DIASTOLIC_KEY, Number.class))));
+  }
+
+  private static double[] toArray(List<Number> list) {
+    double[] values = new double[list.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = list.get(i).doubleValue();
+    }
+    return values;
+  }
+
+  /** The index that serves queries for a patient's observations in a
+   * time interval, and seeks directly to the cursor of a page */
+  static final Bson PAGE_INDEX = Indexes.ascending(PID_KEY, TIMESTAMP_KEY, ID_KEY);
+
+  /** The index that makes idempotency keys unique for each patient;
+   * only observations uploaded with a key are indexed */
+  static final Bson IDEMPOTENCY_INDEX = Indexes.ascending(PID_KEY, IDEMPOTENCY_KEY);
+  static final IndexOptions IDEMPOTENCY_INDEX_OPTIONS = new IndexOptions().unique(true).
+      partialFilterExpression(Filters.exists(IDEMPOTENCY_KEY));
+
+  /** Store the idempotency key of the meta data, if any, with an
+   * observation.
+   * @param stored the document of the observation
+   * @param metaData the meta data of the observation
+   */
+  static void appendIdempotencyKey(org.bson.Document stored, MetaData metaData) {
+    if (metaData.getIdempotencyKey() != null) {
+      stored.append(IDEMPOTENCY_KEY, metaData.getIdempotencyKey());
+    }
+  }
+
+  /** Match the observation of a patient uploaded with a given key.
+   * @param personID the id of the patient
+   * @param idempotencyKey the key of the upload
+   * @return the filter
+   */
+  static Bson idempotencyFilter(String personID, String idempotencyKey) {
+    return Filters.and(Filters.eq(PID_KEY, personID),
+        Filters.eq(IDEMPOTENCY_KEY, idempotencyKey));
+  }
+
+  /** Whether an insert failed because the observation was already
+   * stored, that is, because of a duplicate id or idempotency key.
+   * @param failure the failure of the insert
+   * @return true if it was a duplicate key error
+   */
+  static boolean isDuplicate(Throwable failure) {
+    return failure instanceof MongoWriteException
+        && ((MongoWriteException) failure).getError().getCategory()
+            == ErrorCategory.DUPLICATE_KEY;
+  }
+
+  /** The order of observations on pages, which is total so that
+   * observations with the same timestamp are not skipped or repeated */
+  static final Bson PAGE_ORDER = Sorts.ascending(TIMESTAMP_KEY, ID_KEY);
+
+  /** Restrict a query to the observations following a page cursor.
+   * @param filter the filter of the query
+   * @param cursor the cursor of the page, or null for the first page
+   * @return the filter of the page
+   * @throws InvalidRequestException if the cursor is not valid
+   */
+  static Bson pageFilter(Bson filter, String cursor) {
+    if (cursor == null) { return filter; }
+    int separator = cursor.indexOf(':');
+    long timestamp;
+    ObjectId id;
+    try {
+      timestamp = Long.parseLong(cursor.substring(0, Math.max(separator, 0)));
+      id = new ObjectId(cursor.substring(separator + 1));
+    } catch (IllegalArgumentException e) {
+      throw new InvalidRequestException("Invalid cursor: " + cursor);
+    }
+    return Filters.and(filter, Filters.or(
+        Filters.gt(TIMESTAMP_KEY, timestamp),
+        Filters.and(Filters.eq(TIMESTAMP_KEY, timestamp), Filters.gt(ID_KEY, id))));
+  }
+
+  /** Create a page from the stored observations of a page query.
+   * @param stored at most limit + 1 observations, in page order
+   * @param limit the maximal number of records on the page
+   * @return the page, whose cursor is the timestamp and id of its
+   * last observation
+   */
+  static RecordPage toPage(List<org.bson.Document> stored, int limit) {
+    List<ObservationRecord> records = new ArrayList<>(Math.min(stored.size(), limit));
+    for (int i = 0; i < stored.size() && i < limit; i++) {
+      records.add(fromStored(stored.get(i)));
+    }
+    if (stored.size() <= limit) {
+      return new RecordPage(records, null);
+    }
+    org.bson.Document last = stored.get(limit - 1);
+    return new RecordPage(records, ((Number) last.get(TIMESTAMP_KEY)).longValue() + ":"
+        + last.getObjectId(ID_KEY).toHexString());
+  }
+
+  /** The order of observations of a multi-person query, which the
+   * page index serves */
+  static final Bson PERSONS_ORDER = Sorts.ascending(PID_KEY, TIMESTAMP_KEY, ID_KEY);
+
+  /** Create an empty result of a multi-person query.
+   * @param personIDs the ids of the persons queried
+   * @return a map from each person id to an empty list, in query order
+   */
+  static Map<String, List<ObservationRecord>> emptyResultFor(Collection<String> personIDs) {
+    Map<String, List<ObservationRecord>> result = new LinkedHashMap<>();
+    for (String personID : personIDs) {
+      result.put(personID, new ArrayList<>());
+    }
+    return result;
+  }
+
+  /** Add a stored observation found by a multi-person query to the
+   * records of its person.
+   * @param result the result of the query, see emptyResultFor
+   * @param stored the stored MongoDB document of the observation
+   */
+  static void addToResult(Map<String, List<ObservationRecord>> result,
+                          org.bson.Document stored) {
+    result.get(stored.getString(PID_KEY)).add(fromStored(stored));
+  }
+
+  /** Convert an observation submitted in a batch into the document
+   * stored for it, under its reserved id.
+   * @param submission the submitted observation
+   * @return the MongoDB document to insert
+   */
+  static org.bson.Document toStored(ObservationSubmission submission) {
+    org.bson.Document stored =
+        new org.bson.Document(ID_KEY, new ObjectId(submission.getUniqueId())).
+            append(PID_KEY, submission.getMetaData().getPersonID()).
+            append(TIMESTAMP_KEY, submission.getMetaData().getTimestamp()).
+            append(HL7_KEY, submission.getHl7()).
+            append(RECORD_KEY, toBson(submission.getRecord()));
+    appendIdempotencyKey(stored, submission.getMetaData());
+    return stored;
+  }
+
+  /** Whether the failure of a batch insert is only caused by documents
+   * whose id had already been inserted, that is, by parts of a batch
+   * that is stored again.
+   * @param failure the failure of the insert
+   * @return true if all failed writes were duplicate key errors
+   */
+  static boolean onlyDuplicates(MongoBulkWriteException failure) {
+    return failure.getWriteConcernError() == null
+        && failure.getWriteErrors().stream().
+            allMatch(error -> error.getCategory() == ErrorCategory.DUPLICATE_KEY);
+  }
+}
@@ -2,14 +2,24 @@ package telemed.storage;
 
 import java.time.*;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
-import com.mongodb.MongoClientURI;
+import com.mongodb.ConnectionString;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.w3c.dom.Document;
 
-import com.mongodb.MongoClient;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.InsertManyOptions;
 import com.mongodb.client.*;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
@@ -17,7 +27,8 @@ import com.mongodb.client.result.UpdateResult;
 import static com.mongodb.client.model.Filters.*;
 import static com.mongodb.client.model.Updates.*;
 
-import telemed.server.XMLUtility;
+import telemed.domain.*;
+import telemed.server.*;
 import telemed.storage.*;
 
 /** An Adapter that implements the XDSBackend interface and translates
@@ -32,8 +43,16 @@ import telemed.storage.*;
 public class MongoXDSAdapter implements XDSBackend {
 
   private static final String HL7_KEY = "hl7";
+  private static final String RECORD_KEY = "record";
   private static final String TIMESTAMP_KEY = "timestamp";
   private static final String PID_KEY = "pid";
+
+  /** Number of documents fetched from MongoDB in each cursor round trip,
+   * unless told otherwise */
+  public static final int DEFAULT_BATCH_SIZE = 100;
+
+  private final int batchSize;
+  private final MongoPoolMetrics poolMetrics;
   private MongoClient client;
   private MongoDatabase db;
   private MongoCollection<org.bson.Document> collection;
@@ -45,21 +64,75 @@ public class MongoXDSAdapter implements XDSBackend {
    * MongoDB is running
    */
   public MongoXDSAdapter(String databaseConnectionString) {
-    client = new MongoClient(new MongoClientURI(databaseConnectionString));
+    this(databaseConnectionString, new MongoConfiguration());
+  }
+
+  /**
+   * Construct an XDS that is based upon a MongoDB
+   * running on the given databaseConnectionString
+   * @param databaseConnectionString the name of the node on which
+   * MongoDB is running
+   * @param configuration the connection pool, timeout, and
+   * batch size configuration to use
+   */
+  public MongoXDSAdapter(String databaseConnectionString,
+                         MongoConfiguration configuration) {
+    batchSize = configuration.getBatchSize();
+    poolMetrics = new MongoPoolMetrics();
+    client = MongoClients.create(configuration.toClientSettings(poolMetrics).
+        applyConnectionString(new ConnectionString(databaseConnectionString)).
+        build());
     // Get database 'xds' and its collection 'tm16'
     db = client.getDatabase("xds");
     collection = db.getCollection("tm16");
+    collection.createIndex(MongoRecordMapping.PAGE_INDEX);
+    collection.createIndex(MongoRecordMapping.IDEMPOTENCY_INDEX,
+        MongoRecordMapping.IDEMPOTENCY_INDEX_OPTIONS);
+  }
+
+  /** Get the connection pool utilization metrics
+   * @return the pool metrics
+   */
+  public MongoPoolMetrics getPoolMetrics() {
+    return poolMetrics;
   }
 
   @Override
   public String provideAndRegisterDocument(MetaData metaData,
       Document observationAsHL7) {
+    return provideAndRegisterSerializedDocument(metaData,
+        XMLUtility.convertXMLDocumentToString(observationAsHL7));
+  }
+
+  @Override
+  public String provideAndRegisterSerializedDocument(MetaData metaData,
+      String observationAsHL7) {
+    return provideAndRegisterObservation(metaData, observationAsHL7,
+        HL7Reader.readObservationRecord(observationAsHL7));
+  }
+
+  @Override
+  public String provideAndRegisterObservation(MetaData metaData,
+      String observationAsHL7, ObservationRecord record) {
+    // HL7 is stored as text, so no DOM is needed here, and
+    // the record next to it so reads need no XML at all
     org.bson.Document d = new org.bson.Document();
     d.append(PID_KEY, metaData.getPersonID());
     d.append(TIMESTAMP_KEY, metaData.getTimestamp());
-    d.append(HL7_KEY, XMLUtility.convertXMLDocumentToString(observationAsHL7));
+    d.append(HL7_KEY, observationAsHL7);
+    d.append(RECORD_KEY, MongoRecordMapping.toBson(record));
+    MongoRecordMapping.appendIdempotencyKey(d, metaData);
 
-    collection.insertOne(d);
+    try {
+      collection.insertOne(d);
+    } catch (MongoWriteException e) {
+      // A concurrent upload with the same key was stored first
+      if (metaData.getIdempotencyKey() == null || !MongoRecordMapping.isDuplicate(e)) {
+        throw e;
+      }
+      return retriveUniqueIdForIdempotencyKey(metaData.getPersonID(),
+          metaData.getIdempotencyKey());
+    }
     
     // Mongo assigns a unique id, we just return that
     String id = d.get("_id").toString();
@@ -67,9 +140,115 @@ public class MongoXDSAdapter implements XDSBackend {
     return id;
   }
 
+  @Override
+  public String retriveUniqueIdForIdempotencyKey(String personID, String idempotencyKey) {
+    org.bson.Document found = collection.
+        find(MongoRecordMapping.idempotencyFilter(personID, idempotencyKey)).
+        projection(new org.bson.Document("_id", 1)).first();
+    return found == null ? null : found.get("_id").toString();
+  }
+
+  @Override
+  public String reserveUniqueId() {
+    // Object ids are unique without asking the database
+    return new ObjectId().toHexString();
+  }
+
+  @Override
+  public void provideAndRegisterObservations(List<ObservationSubmission> batch) {
+    List<org.bson.Document> documents = new ArrayList<>(batch.size());
+    batch.forEach(submission -> documents.add(MongoRecordMapping.toStored(submission)));
+    try {
+      // Unordered, so the rest of a batch stored again is inserted
+      collection.insertMany(documents, new InsertManyOptions().ordered(false));
+    } catch (MongoBulkWriteException e) {
+      if (!MongoRecordMapping.onlyDuplicates(e)) { throw e; }
+    }
+  }
+
   @Override
   public List<Document> retriveDocumentSet(String personID, OffsetDateTime startTime,
       OffsetDateTime endTime) {
+    try (Stream<Document> stream = retriveDocumentStream(personID, startTime, endTime)) {
+      return stream.collect(Collectors.toList());
+    }
+  }
+
+  @Override
+  public Stream<Document> retriveDocumentStream(String personID, OffsetDateTime startTime,
+      OffsetDateTime endTime) {
+    return retriveSerializedDocumentStream(personID, startTime, endTime).
+        map(XMLUtility::convertXMLStringToDocument);
+  }
+
+  @Override
+  public Stream<String> retriveSerializedDocumentStream(String personID,
+      OffsetDateTime startTime, OffsetDateTime endTime) {
+    return findInInterval(personID, startTime, endTime).
+        map(bson -> bson.getString(HL7_KEY));
+  }
+
+  @Override
+  public Stream<ObservationRecord> retriveRecordStream(String personID,
+      OffsetDateTime startTime, OffsetDateTime endTime) {
+    return findInInterval(personID, startTime, endTime).
+        map(MongoRecordMapping::fromStored);
+  }
+
+  @Override
+  public Map<String, List<ObservationRecord>> retriveRecordsForPersons(
+      Collection<String> personIDs, OffsetDateTime startTime, OffsetDateTime endTime) {
+    // A single $in query, served by the pid/timestamp index, and
+    // grouped by person as the documents arrive
+    Map<String, List<ObservationRecord>> result = MongoRecordMapping.emptyResultFor(personIDs);
+    try (MongoCursor<org.bson.Document> cursor = collection.
+        find(and(
+            in(PID_KEY, personIDs),
+            gt(TIMESTAMP_KEY, startTime.toInstant().toEpochMilli()),
+            lte(TIMESTAMP_KEY, endTime.toInstant().toEpochMilli()))).
+        sort(MongoRecordMapping.PERSONS_ORDER).
+        batchSize(batchSize).
+        iterator()) {
+      cursor.forEachRemaining(stored -> MongoRecordMapping.addToResult(result, stored));
+    }
+    return result;
+  }
+
+  @Override
+  public RecordPage retriveRecordPage(String personID, OffsetDateTime startTime,
+      OffsetDateTime endTime, int limit, String cursor) {
+    // Seek to the cursor using the index, and fetch one record
+    // more than the page holds to tell if there is a next page
+    Bson filter = MongoRecordMapping.pageFilter(
+        and(eq(PID_KEY, personID),
+            gt(TIMESTAMP_KEY, startTime.toInstant().toEpochMilli()),
+            lte(TIMESTAMP_KEY, endTime.toInstant().toEpochMilli())),
+        cursor);
+    List<org.bson.Document> stored = collection.find(filter).
+        sort(MongoRecordMapping.PAGE_ORDER).
+        limit(limit + 1).
+        into(new ArrayList<>());
+    return MongoRecordMapping.toPage(stored, limit);
+  }
+
+  @Override
+  public List<ObservationStatistics> retriveStatistics(String personID,
+      OffsetDateTime startTime, OffsetDateTime endTime, BucketSize bucketSize) {
+    // Let MongoDB group the observations, so only the blood
+    // pressure values of each bucket are transferred
+    Bson match = and(eq(PID_KEY, personID),
+        gt(TIMESTAMP_KEY, startTime.toInstant().toEpochMilli()),
+        lte(TIMESTAMP_KEY, endTime.toInstant().toEpochMilli()));
+    List<ObservationStatistics> result = new ArrayList<>();
+    for (org.bson.Document bucket :
+        collection.aggregate(MongoRecordMapping.statisticsPipeline(match, bucketSize))) {
+      result.add(MongoRecordMapping.fromStatistics(personID, bucketSize, bucket));
+    }
+    return result;
+  }
+
+  private Stream<org.bson.Document> findInInterval(String personID,
+      OffsetDateTime startTime, OffsetDateTime endTime) {
     Instant instant; Date d;
     
     // TODO: Duplicated code, same code is in the FakeObject implementation
@@ -83,7 +262,6 @@ public class MongoXDSAdapter implements XDSBackend {
     d = Date.from(instant);
     long end = d.getTime();
 
-    List<Document> returnList = new ArrayList<Document>();
     MongoCursor<org.bson.Document> cursor = 
         collection.
         // Find with given personID and in time interval
@@ -94,38 +272,66 @@ public class MongoXDSAdapter implements XDSBackend {
                         gt(TIMESTAMP_KEY, start), 
                         lte(TIMESTAMP_KEY, end)))
             ).
+        // Fetch in batches, so the first documents are available
+        // before the full result set has been transferred
+        batchSize(batchSize).
         iterator();
-    try {
-        while (cursor.hasNext()) {
-          org.bson.Document bson = cursor.next();
-          String hl7 = bson.getString(HL7_KEY);
-          Document doc = XMLUtility.convertXMLStringToDocument(hl7);
-          returnList.add(doc);
-        }
-    } finally {
-        cursor.close();
-    }
-    return returnList;
+
+    // Hand out each document only when the consumer asks for it,
+    // and release the cursor when the stream is closed
+    Spliterator<org.bson.Document> spliterator =
+        Spliterators.spliteratorUnknownSize(cursor, Spliterator.ORDERED);
+    return StreamSupport.stream(spliterator, false).
+        onClose(cursor::close);
   }
 
   @Override
   public Document retriveDocument(String uniqueId) {
+    String hl7 = retriveSerializedDocument(uniqueId);
+    if ( hl7 == null ) { return null; }
+    return XMLUtility.convertXMLStringToDocument(hl7);
+  }
+
+  @Override
+  public String retriveSerializedDocument(String uniqueId) {
     ObjectId asBsonID = new ObjectId(uniqueId);
     org.bson.Document doc = collection.find(eq("_id", asBsonID)).first();
     if ( doc == null ) { return null; }
-    String hl7 = doc.getString(HL7_KEY);
-    return XMLUtility.convertXMLStringToDocument(hl7);
+    return doc.getString(HL7_KEY);
+  }
+
+  @Override
+  public ObservationRecord retriveRecord(String uniqueId) {
+    ObjectId asBsonID = new ObjectId(uniqueId);
+    org.bson.Document doc = collection.find(eq("_id", asBsonID)).first();
+    if ( doc == null ) { return null; }
+    return MongoRecordMapping.fromStored(doc);
   }
 
   @Override
   public boolean correctDocument(String uniqueId, Operation operation,
       Document doc) {
+    return correctSerializedDocument(uniqueId, operation,
+        doc == null ? null : XMLUtility.convertXMLDocumentToString(doc));
+  }
+
+  @Override
+  public boolean correctSerializedDocument(String uniqueId, Operation operation,
+      String hl7) {
+    return correctObservation(uniqueId, operation, hl7,
+        hl7 == null ? null : HL7Reader.readObservationRecord(hl7));
+  }
+
+  @Override
+  public boolean correctObservation(String uniqueId, Operation operation,
+      String hl7, ObservationRecord record) {
     ObjectId asBsonID = new ObjectId(uniqueId);
 
     if (operation == Operation.UPDATE) {
       UpdateResult ur =
           collection.updateOne(eq("_id", asBsonID), 
-              set(HL7_KEY, XMLUtility.convertXMLDocumentToString(doc)));
+              combine(set(HL7_KEY, hl7),
+                  set(RECORD_KEY, MongoRecordMapping.toBson(record))));
       return ur.getModifiedCount() == 1;
     } else { 
       DeleteResult dr = 
@@ -134,7 +340,11 @@ public class MongoXDSAdapter implements XDSBackend {
     }
   }
 
-  
+  @Override
+  public void close() {
+    client.close();
+  }
+
   /** Never-ever use this, it will drop the collection!
    * 
    * @param secret must be set to the secret password
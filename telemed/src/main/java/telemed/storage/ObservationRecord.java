@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.storage;
+
+import java.time.*;
+import java.util.Arrays;
+
+import telemed.domain.*;
+
+/**
+ * A compact, structured record of a tele observation, stored next to the
+ * HL7 document in the XDS so tele observations can be recreated without
+ * parsing XML. The HL7 document remains the authoritative clinical
+ * document, the record is merely a pre-digested copy of its contents.
+ * <p>
+ * The time is kept as epoch seconds, nano adjustment, and zone offset,
+ * so the exact OffsetDateTime of the observation can be recreated.
+ * The measurements are kept in the order they appear in the HL7
+ * document, each given by its code, unit, display name, and value.
+ */
+public class ObservationRecord {
+
+  private final String patientId;
+  private final long epochSecond;
+  private final int nano;
+  private final int offsetSeconds;
+  private final String[] codes;
+  private final String[] units;
+  private final String[] displayNames;
+  private final double[] values;
+
+  /**
+   * Create a record.
+   * @param patientId id of the patient
+   * @param epochSecond time of observation in seconds since the epoch
+   * @param nano nano second adjustment to the time
+   * @param offsetSeconds the zone offset of the time of observation
+   * @param codes the codes of the measurements
+   * @param units the units of the measurements, in the same order
+   * @param displayNames the display names of the measurements, in the same order
+   * @param values the values of the measurements, in the same order
+   */
+  public ObservationRecord(String patientId, long epochSecond, int nano, int offsetSeconds,
+                           String[] codes, String[] units, String[] displayNames,
+                           double[] values) {
+    if (codes.length != values.length || units.length != values.length
+        || displayNames.length != values.length) {
+      throw new IllegalArgumentException("Code, unit, and display name required for each value");
+    }
+    this.patientId = patientId;
+    this.epochSecond = epochSecond;
+    this.nano = nano;
+    this.offsetSeconds = offsetSeconds;
+    this.codes = codes;
+    this.units = units;
+    this.displayNames = displayNames;
+    this.values = values;
+  }
+
+  public String getPatientId() {
+    return patientId;
+  }
+
+  public long getEpochSecond() {
+    return epochSecond;
+  }
+
+  public int getNano() {
+    return nano;
+  }
+
+  public int getOffsetSeconds() {
+    return offsetSeconds;
+  }
+
+  /** Number of measurements in the record.
+   * @return the number of measurements */
+  public int getMeasurementCount() {
+    return values.length;
+  }
+
+  public String getCode(int index) {
+    return codes[index];
+  }
+
+  public String getUnit(int index) {
+    return units[index];
+  }
+
+  public String getDisplayName(int index) {
+    return displayNames[index];
+  }
+
+  public double getValue(int index) {
+    return values[index];
+  }
+
+  /** Return the time of the observation.
+   * @return the time of the observation
+   */
+  public OffsetDateTime getTime() {
+    return OffsetDateTime.ofInstant(Instant.ofEpochSecond(epochSecond, nano),
+        ZoneOffset.ofTotalSeconds(offsetSeconds));
+  }
+
+  /** Recreate the tele observation this record was made from.
+   * @return the tele observation
+   */
+  public TeleObservation toTeleObservation() {
+    ClinicalQuantity[] quantities = new ClinicalQuantity[values.length];
+    for (int i = 0; i < values.length; i++) {
+      quantities[i] = new ClinicalQuantity(values[i], units[i], codes[i], displayNames[i]);
+    }
+    TeleObservation to = new TeleObservation(patientId, quantities);
+    to.setTime(epochSecond, offsetSeconds);
+    return to;
+  }
+
+  @Override
+  public String toString() {
+    return "ObservationRecord (" + patientId + "," + getTime() + ","
+        + Arrays.toString(codes) + "," + Arrays.toString(values) + ")";
+  }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.storage;
+
+/**
+ * An observation to store in a batch, under an id that has been
+ * reserved for it in advance, see XDSBackend.reserveUniqueId.
+ */
+public class ObservationSubmission {
+
+  private final String uniqueId;
+  private final MetaData metaData;
+  private final String hl7;
+  private final ObservationRecord record;
+
+  /**
+   * Create a submission.
+   * @param uniqueId the id reserved for the observation
+   * @param metaData the meta data to store in the registry
+   * @param hl7 the clinical document in HL7 format, as XML text
+   * @param record the structured record of the observation
+   */
+  public ObservationSubmission(String uniqueId, MetaData metaData, String hl7,
+                               ObservationRecord record) {
+    this.uniqueId = uniqueId;
+    this.metaData = metaData;
+    this.hl7 = hl7;
+    this.record = record;
+  }
+
+  public String getUniqueId() {
+    return uniqueId;
+  }
+
+  public MetaData getMetaData() {
+    return metaData;
+  }
+
+  public String getHl7() {
+    return hl7;
+  }
+
+  public ObservationRecord getRecord() {
+    return record;
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.storage;
+
+import java.util.*;
+
+import telemed.domain.InvalidRequestException;
+
+/**
+ * Cursors of the default record page implementation, which are simply
+ * the number of records preceding the page.
+ */
+final class OffsetCursor {
+
+  /** Records ordered by time, the order of pages */
+  static final Comparator<ObservationRecord> TIME_ORDER =
+      Comparator.comparingLong(ObservationRecord::getEpochSecond).
+          thenComparingInt(ObservationRecord::getNano);
+
+  private OffsetCursor() {}
+
+  /** Get the offset given by a cursor.
+   * @param cursor the cursor, or null for the first page
+   * @return the number of records preceding the page
+   */
+  static long parse(String cursor) {
+    if (cursor == null) { return 0; }
+    try {
+      long offset = Long.parseLong(cursor);
+      if (offset >= 0) { return offset; }
+    } catch (NumberFormatException e) {
+      // reported below
+    }
+    throw new InvalidRequestException("Invalid cursor: " + cursor);
+  }
+
+  /** Create the page from the records following the offset.
+   * @param records at most limit + 1 records following the offset
+   * @param offset the number of records preceding the page
+   * @param limit the maximal number of records on the page
+   * @return the page
+   */
+  static RecordPage toPage(List<ObservationRecord> records, long offset, int limit) {
+    if (records.size() <= limit) {
+      return new RecordPage(records, null);
+    }
+    return new RecordPage(records.subList(0, limit), Long.toString(offset + limit));
+  }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.storage;
+
+import java.util.List;
+
+/**
+ * A page of the observation records that match a query, together with
+ * the cursor from which the next page is read.
+ * <p>
+ * Cursors are opaque strings created by the XDS backend that produced
+ * the page, and are only valid for the same backend and query.
+ */
+public class RecordPage {
+
+  private final List<ObservationRecord> records;
+  private final String nextCursor;
+
+  /**
+   * Create a page.
+   * @param records the records on the page, in time order
+   * @param nextCursor the cursor of the next page, or null if
+   * this is the last page
+   */
+  public RecordPage(List<ObservationRecord> records, String nextCursor) {
+    this.records = records;
+    this.nextCursor = nextCursor;
+  }
+
+  public List<ObservationRecord> getRecords() {
+    return records;
+  }
+
+  /** Get the cursor to read the next page from
+   * @return the cursor, or null if there are no more records
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+}
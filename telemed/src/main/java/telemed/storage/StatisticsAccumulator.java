@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.storage;
+
+import java.util.*;
+
+import telemed.domain.*;
+
+/**
+ * Accumulates the blood pressure statistics of a patient's observation
+ * records, bucket by bucket, for XDS backends that compute statistics
+ * by scanning the records themselves. Records may be added in any order.
+ */
+public class StatisticsAccumulator {
+
+  private final String patientId;
+  private final BucketSize bucketSize;
+  private final TreeMap<Long, Bucket> buckets = new TreeMap<>();
+
+  public StatisticsAccumulator(String patientId, BucketSize bucketSize) {
+    this.patientId = patientId;
+    this.bucketSize = bucketSize;
+  }
+
+  /** Add a record to the statistics of its bucket.
+   * @param record the record to add
+   */
+  public void add(ObservationRecord record) {
+    long start = bucketSize.startOf(record.getEpochSecond());
+    Bucket bucket = buckets.computeIfAbsent(start, s -> new Bucket());
+    bucket.count++;
+    for (int i = 0; i < record.getMeasurementCount(); i++) {
+      String code = record.getCode(i);
+      if (Vitals.SYSTOLIC_CODE.equals(code)) {
+        bucket.systolic.add(record.getValue(i));
+      } else if (Vitals.DIASTOLIC_CODE.equals(code)) {
+        bucket.diastolic.add(record.getValue(i));
+      }
+    }
+  }
+
+  /** Get the statistics of the records added so far.
+   * @return the statistics of each bucket that has records, in time order
+   */
+  public List<ObservationStatistics> getResult() {
+    List<ObservationStatistics> result = new ArrayList<>(buckets.size());
+    buckets.forEach((start, bucket) -> result.add(new ObservationStatistics(patientId,
+        bucketSize, start, bucket.count, QuantityStatistics.of(bucket.systolic.toArray()),
+        QuantityStatistics.of(bucket.diastolic.toArray()))));
+    return result;
+  }
+
+  private static class Bucket {
+    int count;
+    final Values systolic = new Values();
+    final Values diastolic = new Values();
+  }
+
+  /** Growable array of values, avoiding a boxed Double per value */
+  private static class Values {
+    double[] values = new double[8];
+    int size;
+
+    void add(double value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    double[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -20,9 +20,14 @@ package telemed.storage;
 import java.time.LocalDateTime;
 import java.time.OffsetDateTime;
 import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.w3c.dom.Document;
 
+import telemed.domain.*;
+import telemed.server.*;
+
 /**
  * Facade for the XDS (Cross-Enterprise Document Storage) system. This is a
  * database system that stores XML documents representing the tele observations
@@ -59,7 +64,104 @@ public interface XDSBackend {
    *         correctDocument
    */
   String provideAndRegisterDocument(MetaData metaData, Document observationAsHL7);
+
+  /**
+   * Store an observation that has already been serialized to HL7, and
+   * ensure that the metadata for it is stored in the registry. Backends
+   * that store documents in their textual form should override this
+   * to avoid building and serializing a DOM tree on the upload path.
+   * <p>
+   * The default implementation parses the document and delegates to
+   * provideAndRegisterDocument.
+   *
+   * @param metaData
+   *          the meta data to store in registry to allow queries to be made
+   *
+   * @param observationAsHL7
+   *          the clinical document in HL7 format, as XML text
+   *
+   * @return uniqueId a unique id generated for the document
+   */
+  default String provideAndRegisterSerializedDocument(MetaData metaData, String observationAsHL7) {
+    return provideAndRegisterDocument(metaData,
+        XMLUtility.convertXMLStringToDocument(observationAsHL7));
+  }
   
+  /**
+   * Store an observation both as its HL7 document and as the structured
+   * record of its contents, and ensure that the metadata for it is stored
+   * in the registry. The record allows observations to be read without
+   * parsing the HL7, which remains available for clinical export.
+   * <p>
+   * The default implementation only stores the HL7 document; records are
+   * then recreated from it when read.
+   *
+   * @param metaData
+   *          the meta data to store in registry to allow queries to be made
+   * @param observationAsHL7
+   *          the clinical document in HL7 format, as XML text
+   * @param record
+   *          the structured record of the observation
+   * @return uniqueId a unique id generated for the document
+   */
+  default String provideAndRegisterObservation(MetaData metaData, String observationAsHL7,
+                                               ObservationRecord record) {
+    return provideAndRegisterSerializedDocument(metaData, observationAsHL7);
+  }
+
+  /**
+   * Find the observation that was stored with the given idempotency
+   * key in its meta data, so a retried upload is recognized even by a
+   * server that did not receive the original upload.
+   * <p>
+   * The default implementation does not keep idempotency keys, and
+   * never finds an observation.
+   *
+   * @param personID
+   *          the id of the person that the observation is about
+   * @param idempotencyKey
+   *          the key the observation was uploaded with
+   * @return the unique id of the observation, or null if none was
+   *         stored with the key
+   */
+  default String retriveUniqueIdForIdempotencyKey(String personID, String idempotencyKey) {
+    return null;
+  }
+
+  /**
+   * Reserve a unique id for an observation that is stored later using
+   * provideAndRegisterObservations, so the id can be handed out before
+   * the observation is stored. Backends that support storing
+   * observations in batches override both methods.
+   * <p>
+   * The default implementation does not support reserving ids.
+   *
+   * @return a unique id that no other observation is, or will be,
+   *         stored under
+   * @throws UnsupportedOperationException if ids cannot be reserved
+   */
+  default String reserveUniqueId() {
+    throw new UnsupportedOperationException(getClass().getSimpleName()
+        + " cannot reserve ids in advance");
+  }
+
+  /**
+   * Store a batch of observations under the ids reserved for them, as
+   * their HL7 documents and records. Storing an observation under an id
+   * that has already been stored does nothing, so a batch can be
+   * stored again if it is not known whether it was stored before.
+   * <p>
+   * The default implementation does not support batches.
+   *
+   * @param batch
+   *          the observations to store
+   * @throws UnsupportedOperationException if batches are not supported
+   */
+  default void provideAndRegisterObservations(List<ObservationSubmission> batch) {
+    throw new UnsupportedOperationException(getClass().getSimpleName()
+        + " cannot store observations in batches");
+  }
+
   /**
    * Query the XDS for all documents whose metadata fulfill criteria: A) the id
    * of the person equals personID B) the time interval [start;end]
@@ -74,6 +176,163 @@ public interface XDSBackend {
    */
   List<Document> retriveDocumentSet(String personID, OffsetDateTime start, OffsetDateTime end);
 
+  /**
+   * Query the XDS for the same set of documents as retriveDocumentSet, but
+   * deliver them lazily, one at a time, so the caller can process the
+   * first document before the full result set has been fetched from the
+   * repository. The returned stream holds on to database resources and
+   * MUST be closed after use, preferably using try-with-resources.
+   * <p>
+   * The default implementation simply streams the materialized list.
+   *
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @return stream of all documents that fulfil criteria
+   */
+  default Stream<Document> retriveDocumentStream(String personID, OffsetDateTime start, OffsetDateTime end) {
+    return retriveDocumentSet(personID, start, end).stream();
+  }
+
+  /**
+   * Query the XDS for the same documents as retriveDocumentStream, but
+   * deliver them as HL7 text, so the caller can extract what it needs
+   * without building a DOM tree. The returned stream MUST be closed
+   * after use.
+   * <p>
+   * The default implementation serializes the streamed documents.
+   *
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @return stream of all documents, as XML text, that fulfil criteria
+   */
+  default Stream<String> retriveSerializedDocumentStream(String personID, OffsetDateTime start,
+                                                         OffsetDateTime end) {
+    return retriveDocumentStream(personID, start, end).
+        map(XMLUtility::convertXMLDocumentToString);
+  }
+
+  /**
+   * Query the XDS for the same observations as retriveDocumentStream, but
+   * deliver their structured records instead of their HL7 documents. The
+   * returned stream MUST be closed after use.
+   * <p>
+   * The default implementation reads the records from the HL7 documents.
+   *
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @return stream of the records of all observations that fulfil criteria
+   */
+  default Stream<ObservationRecord> retriveRecordStream(String personID, OffsetDateTime start,
+                                                        OffsetDateTime end) {
+    return retriveSerializedDocumentStream(personID, start, end).
+        map(HL7Reader::readObservationRecord);
+  }
+
+  /**
+   * Query the XDS for the records of the observations of several persons
+   * in the time interval ]start;end] at once, so a single set based query
+   * replaces one query per person. Backends should override this to
+   * execute it as a single query.
+   * <p>
+   * The default implementation queries the records of each person in turn.
+   *
+   * @param personIDs
+   *          ids of the persons searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @return the records of each person's observations, in the order of
+   *         personIDs; persons without observations map to an empty list
+   */
+  default Map<String, List<ObservationRecord>> retriveRecordsForPersons(
+      Collection<String> personIDs, OffsetDateTime start, OffsetDateTime end) {
+    Map<String, List<ObservationRecord>> result = new LinkedHashMap<>();
+    for (String personID : personIDs) {
+      try (Stream<ObservationRecord> records = retriveRecordStream(personID, start, end)) {
+        result.put(personID, records.collect(Collectors.toList()));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Query the XDS for a page of the records of the observations of a
+   * person in the time interval ]start;end], in time order. The page
+   * holds at most 'limit' records and a cursor to pass back to read the
+   * next page. Backends should override this to seek directly to the
+   * cursor, so reading a page does not depend on how many pages have
+   * been read before it.
+   * <p>
+   * The default implementation uses the number of records read so far
+   * as cursor, and skips these in the record stream.
+   *
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @param limit
+   *          the maximal number of records on the page, at least 1
+   * @param cursor
+   *          the cursor returned with the previous page, or null to
+   *          read the first page
+   * @return the page of records
+   * @throws InvalidRequestException if the cursor is not valid
+   */
+  default RecordPage retriveRecordPage(String personID, OffsetDateTime start, OffsetDateTime end,
+                                       int limit, String cursor) {
+    long offset = OffsetCursor.parse(cursor);
+    List<ObservationRecord> records;
+    try (Stream<ObservationRecord> stream = retriveRecordStream(personID, start, end)) {
+      records = stream.sorted(OffsetCursor.TIME_ORDER).skip(offset).limit(limit + 1L).
+          collect(Collectors.toList());
+    }
+    return OffsetCursor.toPage(records, offset, limit);
+  }
+
+  /**
+   * Compute the blood pressure statistics of the observations of a
+   * person in the time interval ]start;end], bucket by bucket, so only
+   * the statistics have to leave the XDS. Backends should override this
+   * to compute the statistics where the observations are stored.
+   * <p>
+   * The default implementation scans the records of the observations.
+   *
+   * @param personID
+   *          id of the person searched for
+   * @param start
+   *          begin of time interval
+   * @param end
+   *          end of time interval
+   * @param bucketSize
+   *          the size of the time buckets to compute statistics for
+   * @return the statistics of each bucket that has observations, in
+   *         time order
+   */
+  default List<ObservationStatistics> retriveStatistics(String personID, OffsetDateTime start,
+                                                        OffsetDateTime end,
+                                                        BucketSize bucketSize) {
+    StatisticsAccumulator accumulator = new StatisticsAccumulator(personID, bucketSize);
+    try (Stream<ObservationRecord> records = retriveRecordStream(personID, start, end)) {
+      records.forEach(accumulator::add);
+    }
+    return accumulator.getResult();
+  }
+
   /**
    * Given a uniqueId assigned to a document, fetch that particular document.
    * 
@@ -83,6 +342,36 @@ public interface XDSBackend {
    */
   Document retriveDocument(String uniqueId);
 
+  /**
+   * Given a uniqueId assigned to a document, fetch that particular document
+   * as HL7 text.
+   * <p>
+   * The default implementation serializes the retrieved document.
+   *
+   * @param uniqueId
+   *          the id of the document
+   * @return the document as XML text, or null if no document has the id
+   */
+  default String retriveSerializedDocument(String uniqueId) {
+    Document doc = retriveDocument(uniqueId);
+    return doc == null ? null : XMLUtility.convertXMLDocumentToString(doc);
+  }
+
+  /**
+   * Given a uniqueId assigned to a document, fetch the structured record
+   * of the observation.
+   * <p>
+   * The default implementation reads the record from the HL7 document.
+   *
+   * @param uniqueId
+   *          the id of the document
+   * @return the record of the observation, or null if no document has the id
+   */
+  default ObservationRecord retriveRecord(String uniqueId) {
+    String hl7 = retriveSerializedDocument(uniqueId);
+    return hl7 == null ? null : HL7Reader.readObservationRecord(hl7);
+  }
+
   /** Valid corrections of documents using the correctDocument method */
   enum Operation { UPDATE, DELETE }
 
@@ -101,4 +390,57 @@ public interface XDSBackend {
    *         not found in the repository
    */
   boolean correctDocument(String uniqueId, Operation operation, Document doc);
+
+  /**
+   * Correct the document with given uniqueId by applying the given operation,
+   * given the correct document as already serialized HL7.
+   * <p>
+   * The default implementation parses the document and delegates to
+   * correctDocument.
+   *
+   * @param uniqueId
+   *          id of the document
+   * @param operation
+   *          the operation to apply to that document in the repository
+   * @param hl7
+   *          in case of an update operation, the correct document as XML text
+   * @return true in case the operation went well. If false, the document was
+   *         not found in the repository
+   */
+  default boolean correctSerializedDocument(String uniqueId, Operation operation, String hl7) {
+    Document doc = hl7 == null ? null : XMLUtility.convertXMLStringToDocument(hl7);
+    return correctDocument(uniqueId, operation, doc);
+  }
+
+  /**
+   * Correct the observation with given uniqueId by applying the given
+   * operation to both its HL7 document and its structured record.
+   * <p>
+   * The default implementation only corrects the HL7 document.
+   *
+   * @param uniqueId
+   *          id of the document
+   * @param operation
+   *          the operation to apply to that document in the repository
+   * @param hl7
+   *          in case of an update operation, the correct document as XML text
+   * @param record
+   *          in case of an update operation, the correct record
+   * @return true in case the operation went well. If false, the document was
+   *         not found in the repository
+   */
+  default boolean correctObservation(String uniqueId, Operation operation, String hl7,
+                                     ObservationRecord record) {
+    return correctSerializedDocument(uniqueId, operation, hl7);
+  }
+
+  /**
+   * Close the XDS: complete any writes that are still buffered or in
+   * flight, and release its connections. No operations may be invoked
+   * once the XDS is closed.
+   * <p>
+   * The default implementation does nothing, as it holds no resources.
+   */
+  default void close() {
+  }
 }
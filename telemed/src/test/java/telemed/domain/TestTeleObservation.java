@@ -61,4 +61,64 @@ public class TestTeleObservation {
     assertThat( copy.getDiastolic().getValue(), is(70.0));
     assertThat( copy.getSystolic().getUnit(), is("mm(Hg)") );
   }
+
+  @Test public void shouldKeepISO8601TimeOnTheWire() {
+    to = HelperMethods.createObservation120over70forNancy();
+    Gson gson = new Gson();
+    String json = gson.toJson(to);
+
+    // the wire format is unaffected by the primitive time representation
+    assertThat(json, containsString("\"timeAsISO8601\":\"2012-06-01T07:30:12Z\""));
+    assertThat(json, not(containsString("epochSecond")));
+    TeleObservation copy = gson.fromJson(json, TeleObservation.class);
+    assertThat( copy.getTime(), is(to.getTime()));
+    assertThat( copy.getEpochSecond(), is(1338535812L));
+    assertThat( copy.getSystolic().getCode(), is("MSC88019"));
+  }
+
+  @Test public void shouldMarshallOtherVitals() {
+    to = new TeleObservation(HelperMethods.NANCY_ID,
+        Vitals.systolic(120), Vitals.diastolic(70), Vitals.pulse(61), Vitals.glucose(5.2));
+    Gson gson = new Gson();
+    String json = gson.toJson(to);
+
+    // blood pressure keeps its properties, the other vitals are listed
+    assertThat(json, containsString("\"systolic\":{"));
+    assertThat(json, containsString("\"vitals\":[{"));
+    TeleObservation copy = gson.fromJson(json, TeleObservation.class);
+    assertThat( copy.getQuantities(), is(to.getQuantities()));
+    // and the unmarshalled quantities share their descriptors
+    assertThat( copy.getQuantity(Vitals.PULSE_CODE).getDescriptor(),
+        is(sameInstance(Vitals.PULSE)));
+  }
+
+  @Test public void shouldOmitVitalsForBloodPressureOnly() {
+    String json = new Gson().toJson(to);
+    assertThat(json, not(containsString("vitals")));
+  }
+
+  @Test public void shouldShareQuantityDescriptors() {
+    ClinicalQuantity quantity = new ClinicalQuantity(1.8,
+        "m", "8302-2", "Height");
+    ClinicalQuantity other = new ClinicalQuantity(1.7,
+        new String("m"), new String("8302-2"), new String("Height"));
+    assertThat( other.getDescriptor(), is(sameInstance(quantity.getDescriptor())));
+
+    // a code seen with another unit gets a descriptor of its own, which is shared as well
+    ClinicalQuantity inCm = new ClinicalQuantity(180, "cm", "8302-2", "Height");
+    assertThat( inCm.getUnit(), is("cm"));
+    assertThat( inCm.getDescriptor(), is(not(quantity.getDescriptor())));
+    assertThat( new ClinicalQuantity(170, "cm", "8302-2", "Height").getDescriptor(),
+        is(sameInstance(inCm.getDescriptor())));
+  }
+
+  @Test public void shouldMarshallClinicalQuantity() {
+    Gson gson = new Gson();
+    String json = gson.toJson(Vitals.weight(77.3));
+    assertThat(json, is("{\"value\":77.3,\"unit\":\"kg\",\"code\":\"29463-7\","
+        + "\"displayName\":\"Weight\"}"));
+    ClinicalQuantity copy = gson.fromJson(json, ClinicalQuantity.class);
+    assertThat( copy, is(Vitals.weight(77.3)));
+    assertThat( copy.getDescriptor(), is(sameInstance(Vitals.WEIGHT)));
+  }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.ipc;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.*;
+
+import com.google.gson.Gson;
+
+import frds.broker.*;
+import frds.broker.ipc.AdmissionController;
+import frds.broker.ipc.AdmissionController.Permit;
+import frds.broker.ipc.AdmissionController.Priority;
+import frds.broker.marshall.json.AdmissionControlInvoker;
+
+/**
+ * Test limiting the number of requests a server handles concurrently.
+ */
+public class TestAdmissionControl {
+
+  private long now = 0;
+
+  @Test
+  public void shouldRejectRequestsAboveLimit() {
+    AdmissionController controller = new AdmissionController(2);
+    Permit first = controller.tryAcquire(Priority.HIGH);
+    assertThat(controller.tryAcquire(Priority.HIGH), is(notNullValue()));
+    assertThat(controller.tryAcquire(Priority.HIGH), is(nullValue()));
+
+    first.release(false);
+    // Releasing twice does not admit more requests
+    first.release(false);
+    assertThat(controller.tryAcquire(Priority.HIGH), is(notNullValue()));
+    assertThat(controller.tryAcquire(Priority.HIGH), is(nullValue()));
+    assertThat(controller.toString(), is("limit=2, inFlight=2, admitted=3, rejected=2"));
+  }
+
+  @Test
+  public void shouldKeepHeadroomForHighPriority() {
+    AdmissionController controller = new AdmissionController(10);
+    for (int i = 0; i < 8; i++) {
+      assertThat(controller.tryAcquire(Priority.LOW), is(notNullValue()));
+    }
+    assertThat(controller.tryAcquire(Priority.LOW), is(nullValue()));
+    assertThat(controller.tryAcquire(Priority.HIGH), is(notNullValue()));
+    assertThat(controller.tryAcquire(Priority.HIGH), is(notNullValue()));
+    assertThat(controller.tryAcquire(Priority.HIGH), is(nullValue()));
+  }
+
+  @Test
+  public void shouldAdaptLimitToLatency() {
+    AdmissionController controller = new AdmissionController(10, 2, 20, 100, () -> now);
+    // Fast requests raise the limit by about one per limit requests
+    for (int i = 0; i < 10; i++) {
+      complete(controller, 50);
+    }
+    assertThat(controller.getLimit(), is(10));
+    complete(controller, 50);
+    assertThat(controller.getLimit(), is(11));
+
+    // while slow requests lower it by a tenth, down to the minimum
+    complete(controller, 150);
+    assertThat(controller.getLimit(), is(9));
+    for (int i = 0; i < 30; i++) {
+      complete(controller, 150);
+    }
+    assertThat(controller.getLimit(), is(2));
+  }
+
+  @Test
+  public void shouldLowerLimitOncePerWindow() {
+    AdmissionController controller = new AdmissionController(20, 2, 20, 100, () -> now);
+    // A latency spike hits all the requests in flight at once
+    List<Permit> permits = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      permits.add(controller.tryAcquire(Priority.HIGH));
+    }
+    now += 150 * 1_000_000L;
+    permits.forEach(permit -> permit.release(true));
+    assertThat(controller.getLimit(), is(18));
+
+    // Requests admitted after the decrease lower it again
+    complete(controller, 150);
+    assertThat(controller.getLimit(), is(16));
+  }
+
+  @Test
+  public void shouldReplyServiceUnavailableWhenOverloaded() {
+    Gson gson = new Gson();
+    List<String> handled = new ArrayList<>();
+    AdmissionController controller = new AdmissionController(1);
+    Invoker invoker = new AdmissionControlInvoker(request -> {
+      handled.add(request);
+      return gson.toJson(new ReplyObject(200, "ok"));
+    }, controller, operation -> operation.equals("poll") ? null : Priority.HIGH);
+
+    String upload = gson.toJson(new RequestObject("id", "upload", "[]"));
+    Permit busy = controller.tryAcquire(Priority.HIGH);
+    ReplyObject reply = gson.fromJson(invoker.handleRequest(upload), ReplyObject.class);
+    assertThat(reply.getStatusCode(), is(503));
+    assertThat(reply.errorDescription(), startsWith("Retry-After: 1"));
+    assertThat(handled.size(), is(0));
+
+    // Operations without a priority are not admission controlled
+    invoker.handleRequest(gson.toJson(new RequestObject("id", "poll", "[]")));
+    assertThat(handled.size(), is(1));
+
+    busy.release(false);
+    reply = gson.fromJson(invoker.handleRequest(upload), ReplyObject.class);
+    assertThat(reply.getStatusCode(), is(200));
+    assertThat(controller.toString(), containsString("inFlight=0"));
+  }
+
+  @Test
+  public void shouldAdmitMalformedRequestsAtLowPriority() {
+    List<String> handled = new ArrayList<>();
+    AdmissionController controller = new AdmissionController(10);
+    Invoker invoker = new AdmissionControlInvoker(request -> {
+      handled.add(request);
+      return "{}";
+    }, controller, operation -> operation.equals("poll") ? null : Priority.HIGH);
+
+    // The decorated invoker replies to them, and the priority
+    // function is never given a missing operation name
+    invoker.handleRequest("not json");
+    invoker.handleRequest("null");
+    invoker.handleRequest("{\"objectId\":\"id\"}");
+    assertThat(handled.size(), is(3));
+    assertThat(controller.toString(), containsString("admitted=3"));
+  }
+
+  @Test
+  public void shouldHoldPermitUntilAsynchronousReplyIsReady() {
+    Gson gson = new Gson();
+    CompletableFuture<String> pending = new CompletableFuture<>();
+    AdmissionController controller = new AdmissionController(1);
+    Invoker invoker = new AdmissionControlInvoker(new Invoker() {
+      @Override
+      public String handleRequest(String request) {
+        return pending.join();
+      }
+
+      @Override
+      public CompletableFuture<String> handleRequestAsync(String request) {
+        return pending;
+      }
+    }, controller, operation -> Priority.HIGH);
+
+    String upload = gson.toJson(new RequestObject("id", "upload", "[]"));
+    CompletableFuture<String> first = invoker.handleRequestAsync(upload);
+    assertThat(controller.toString(), containsString("inFlight=1"));
+    ReplyObject reply = gson.fromJson(invoker.handleRequestAsync(upload).join(),
+        ReplyObject.class);
+    assertThat(reply.getStatusCode(), is(503));
+
+    pending.complete(gson.toJson(new ReplyObject(200, "ok")));
+    assertThat(first.isDone(), is(true));
+    assertThat(controller.toString(), containsString("inFlight=0"));
+  }
+
+  private void complete(AdmissionController controller, long latencyMillis) {
+    Permit permit = controller.tryAcquire(Priority.HIGH);
+    now += latencyMillis * 1_000_000L;
+    permit.release(false);
+  }
+}
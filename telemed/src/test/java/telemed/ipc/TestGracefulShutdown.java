@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.ipc;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.concurrent.*;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.*;
+
+import com.google.gson.Gson;
+
+import frds.broker.*;
+import frds.broker.ipc.RequestDrain;
+import frds.broker.ipc.http.UriTunnelClientRequestHandler;
+import frds.broker.ipc.http.UriTunnelServerRequestHandler;
+import frds.broker.ipc.socket.SocketClientRequestHandler;
+import frds.broker.ipc.socket.SocketServerRequestHandler;
+
+/**
+ * Test stopping servers gracefully, draining the requests in flight.
+ */
+public class TestGracefulShutdown {
+
+  private static final String SLOW_OPERATION = "slow";
+  private static final String FAST_OPERATION = "fast";
+
+  private final Gson gson = new Gson();
+  private final CountDownLatch entered = new CountDownLatch(1);
+  private final CountDownLatch release = new CountDownLatch(1);
+  private ExecutorService executor;
+
+  // Invoker whose slow operation waits until released
+  private final Invoker invoker = request -> {
+    RequestObject requestObject = gson.fromJson(request, RequestObject.class);
+    if (requestObject.getOperationName().equals(SLOW_OPERATION)) {
+      entered.countDown();
+      try {
+        release.await(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return gson.toJson(new ReplyObject(HttpServletResponse.SC_OK, "done"));
+  };
+
+  // Invoker whose slow operation replies asynchronously when released
+  private final CompletableFuture<String> slowReply = new CompletableFuture<>();
+  private final Invoker asyncInvoker = new Invoker() {
+    @Override
+    public String handleRequest(String request) {
+      return handleRequestAsync(request).join();
+    }
+
+    @Override
+    public CompletableFuture<String> handleRequestAsync(String request) {
+      RequestObject requestObject = gson.fromJson(request, RequestObject.class);
+      if (requestObject.getOperationName().equals(SLOW_OPERATION)) {
+        entered.countDown();
+        return slowReply;
+      }
+      return CompletableFuture.completedFuture(
+          gson.toJson(new ReplyObject(HttpServletResponse.SC_OK, "done")));
+    }
+  };
+
+  @Before
+  public void setup() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void teardown() {
+    release.countDown();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void shouldAwaitRequestsInFlight() throws InterruptedException {
+    RequestDrain drain = new RequestDrain();
+    assertThat(drain.enter(), is(true));
+    assertThat(drain.enter(), is(true));
+    drain.exit();
+
+    // Times out while a request is in flight, and rejects new ones
+    assertThat(drain.drain(20), is(false));
+    assertThat(drain.enter(), is(false));
+    assertThat(drain.toString(), is("inFlight=1, draining=true, rejected=1"));
+
+    executor.submit(() -> {
+      Thread.sleep(50);
+      drain.exit();
+      return null;
+    });
+    assertThat(drain.drain(5000), is(true));
+    assertThat(drain.getInFlight(), is(0));
+  }
+
+  @Test
+  public void shouldDrainUriTunnelServer() throws Exception {
+    drainUriTunnelServer(invoker, release::countDown);
+  }
+
+  @Test
+  public void shouldDrainAsynchronousUriTunnelReplies() throws Exception {
+    drainUriTunnelServer(asyncInvoker, () -> slowReply.complete(
+        gson.toJson(new ReplyObject(HttpServletResponse.SC_OK, "done"))));
+  }
+
+  private void drainUriTunnelServer(Invoker invoker, Runnable releaseSlowRequest)
+      throws Exception {
+    int port = ThreadLocalRandom.current().nextInt(10000, 30000);
+    UriTunnelServerRequestHandler srh = new UriTunnelServerRequestHandler();
+    srh.setPortAndInvoker(port, invoker);
+    srh.start();
+    spark.Spark.awaitInitialization();
+    ClientRequestHandler crh = new UriTunnelClientRequestHandler();
+    crh.setServer("localhost", port);
+
+    // Given a request in flight
+    Future<ReplyObject> slow = executor.submit(() -> send(crh, SLOW_OPERATION));
+    assertThat(entered.await(5, TimeUnit.SECONDS), is(true));
+
+    // When the server is stopped
+    Future<Boolean> stopped = executor.submit(() -> srh.stop(5000));
+
+    // Then new requests are rejected with a retry hint once draining
+    ReplyObject reply = send(crh, FAST_OPERATION);
+    for (int i = 0; i < 100 && reply.getStatusCode() == HttpServletResponse.SC_OK; i++) {
+      Thread.sleep(20);
+      reply = send(crh, FAST_OPERATION);
+    }
+    assertThat(reply.getStatusCode(), is(HttpServletResponse.SC_SERVICE_UNAVAILABLE));
+    assertThat(reply.errorDescription(), startsWith("Retry-After: 1;"));
+    assertThat(stopped.isDone(), is(false));
+
+    // Then the request in flight is completed before the server stops
+    releaseSlowRequest.run();
+    assertThat(slow.get(5, TimeUnit.SECONDS).getPayload(), is("done"));
+    assertThat(stopped.get(5, TimeUnit.SECONDS), is(true));
+    crh.close();
+  }
+
+  @Test
+  public void shouldDrainSocketServer() throws Exception {
+    int port = ThreadLocalRandom.current().nextInt(30000, 40000);
+    SocketServerRequestHandler srh = new SocketServerRequestHandler();
+    srh.setPortAndInvoker(port, invoker);
+    srh.start();
+    Thread.sleep(200);
+    ClientRequestHandler crh = new SocketClientRequestHandler();
+    crh.setServer("localhost", port);
+
+    // Given a request in flight
+    Future<ReplyObject> slow = executor.submit(() -> send(crh, SLOW_OPERATION));
+    assertThat(entered.await(5, TimeUnit.SECONDS), is(true));
+
+    // When the server is stopped, it awaits the request in flight
+    Future<Boolean> stopped = executor.submit(() -> srh.stop(5000));
+    Thread.sleep(50);
+    assertThat(stopped.isDone(), is(false));
+    release.countDown();
+
+    assertThat(slow.get(5, TimeUnit.SECONDS).getPayload(), is("done"));
+    assertThat(stopped.get(5, TimeUnit.SECONDS), is(true));
+  }
+
+  @Test
+  public void shouldStopIdleSocketServerAtOnce() throws InterruptedException {
+    SocketServerRequestHandler srh = new SocketServerRequestHandler();
+    srh.setPortAndInvoker(ThreadLocalRandom.current().nextInt(30000, 40000), invoker);
+    srh.start();
+    Thread.sleep(200);
+
+    // No further request is needed to stop accepting
+    assertThat(srh.stop(1000), is(true));
+  }
+
+  private ReplyObject send(ClientRequestHandler crh, String operationName) {
+    RequestObject request = new RequestObject("id", operationName, "[]");
+    return gson.fromJson(crh.sendToServerAndAwaitReply(gson.toJson(request)),
+        ReplyObject.class);
+  }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.ipc;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import frds.broker.*;
+import frds.broker.ipc.LoadBalancingClientRequestHandler;
+import frds.broker.ipc.LoadBalancingClientRequestHandler.Strategy;
+import frds.broker.ipc.ResilientClientRequestHandler;
+import frds.broker.ipc.socket.SocketClientRequestHandler;
+
+/**
+ * Test distributing requests across replicated servers.
+ */
+public class TestLoadBalancingClientRequestHandler {
+
+  private final List<ReplicaClientRequestHandler> replicas = Arrays.asList(
+      new ReplicaClientRequestHandler("a"), new ReplicaClientRequestHandler("b"),
+      new ReplicaClientRequestHandler("c"));
+  private long now = 0;
+
+  @Test
+  public void shouldDistributeRoundRobin() {
+    ClientRequestHandler crh = create(Strategy.ROUND_ROBIN);
+    StringBuilder replies = new StringBuilder();
+    for (int i = 0; i < 6; i++) {
+      replies.append(crh.sendToServerAndAwaitReply("request"));
+    }
+    assertThat(replies.toString(), is("abcabc"));
+  }
+
+  @Test
+  public void shouldAvoidBusyReplicas() throws Exception {
+    for (Strategy strategy : Arrays.asList(Strategy.LEAST_OUTSTANDING,
+        Strategy.POWER_OF_TWO_CHOICES)) {
+      ClientRequestHandler crh = create(strategy);
+      // Replica 'a' is stalled on a request, leaving two idle replicas
+      CountDownLatch stall = new CountDownLatch(1);
+      replicas.get(0).stall = stall;
+      ExecutorService executor = Executors.newSingleThreadExecutor();
+      Future<String> stalled;
+      do {
+        stalled = executor.submit(() -> crh.sendToServerAndAwaitReply("request"));
+        Thread.sleep(10);
+      } while (stalled.isDone());
+      Set<String> used = new HashSet<>();
+      for (int i = 0; i < 20; i++) {
+        used.add(crh.sendToServerAndAwaitReply("request"));
+      }
+      assertThat(strategy.toString(), used, is(new HashSet<>(Arrays.asList("b", "c"))));
+
+      stall.countDown();
+      assertThat(stalled.get(), is("a"));
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void shouldEjectFailingReplicas() {
+    ClientRequestHandler crh = create(Strategy.ROUND_ROBIN);
+    replicas.get(1).down = true;
+    List<String> replies = send(crh, 9);
+    // Two failures in a row eject 'b'
+    assertThat(replies, is(Arrays.asList("a", "failed", "c", "a", "failed", "c", "a", "c", "a")));
+    assertThat(crh.toString(), containsString("failures=2, ejections=1, ejected=true"));
+
+    // until it is let in on probation, and ejected again at its first failure
+    now += TimeUnit.SECONDS.toNanos(10);
+    assertThat(send(crh, 4), is(Arrays.asList("a", "failed", "c", "a")));
+    now += TimeUnit.SECONDS.toNanos(10);
+    replicas.get(1).down = false;
+    assertThat(send(crh, 3), is(Arrays.asList("b", "c", "a")));
+  }
+
+  @Test
+  public void shouldUseSomeReplicaIfAllAreEjected() {
+    ClientRequestHandler crh = create(Strategy.ROUND_ROBIN);
+    replicas.forEach(replica -> replica.down = true);
+    send(crh, 6);
+    replicas.get(0).down = false;
+    // 'a' was ejected first, and is most likely to have recovered
+    assertThat(crh.sendToServerAndAwaitReply("request"), is("a"));
+  }
+
+  @Test
+  public void shouldConnectToServersByName() {
+    List<String> servers = Arrays.asList("replica1:37321", "replica2:37321");
+    ClientRequestHandler crh = new LoadBalancingClientRequestHandler(servers,
+        SocketClientRequestHandler::new, Strategy.ROUND_ROBIN);
+    assertThat(crh.toString(), containsString("endpoint1={requests=0"));
+  }
+
+  @Test
+  public void shouldKeepEndpointsWhenServerIsSet() {
+    // Decorators forward the server to the load balancer
+    ClientRequestHandler crh = new ResilientClientRequestHandler(create(Strategy.ROUND_ROBIN),
+        request -> true);
+    crh.setServer("elsewhere", 37321);
+    crh.setServer("elsewhere", 37321, true);
+    assertThat(send(crh, 3), is(Arrays.asList("a", "b", "c")));
+  }
+
+  private ClientRequestHandler create(Strategy strategy) {
+    return new LoadBalancingClientRequestHandler(new ArrayList<>(replicas), strategy,
+        2, 10_000, () -> now);
+  }
+
+  private static List<String> send(ClientRequestHandler crh, int count) {
+    List<String> replies = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      try {
+        replies.add(crh.sendToServerAndAwaitReply("request"));
+      } catch (IPCException e) {
+        replies.add("failed");
+      }
+    }
+    return replies;
+  }
+
+  /** A client request handler of a server replica that replies
+   * with its name, unless it is down. */
+  private static class ReplicaClientRequestHandler implements ClientRequestHandler {
+    final String name;
+    volatile boolean down;
+    volatile CountDownLatch stall;
+
+    ReplicaClientRequestHandler(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String sendToServerAndAwaitReply(String request) {
+      if (down) { throw new IPCException("Connection refused"); }
+      CountDownLatch latch = stall;
+      if (latch != null) {
+        stall = null;
+        try {
+          latch.await();
+        } catch (InterruptedException e) {
+          throw new IPCException("Interrupted");
+        }
+      }
+      return name;
+    }
+
+    @Override
+    public void setServer(String hostname, int port) { }
+
+    @Override
+    public void close() { }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.ipc;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+import com.google.gson.Gson;
+
+import frds.broker.*;
+import frds.broker.ipc.RateLimiter;
+import frds.broker.ipc.RateLimiter.Rule;
+import telemed.common.OperationNames;
+
+/**
+ * Test limiting the rate of requests from each client.
+ */
+public class TestRateLimiter {
+
+  private static final String UPLOAD = OperationNames.PROCESS_AND_STORE_OPERATION;
+  private static final String QUERY = OperationNames.GET_OBSERVATION_OPERATION;
+
+  private final Gson gson = new Gson();
+  private long now = 0;
+  private RateLimiter limiter;
+
+  @Before
+  public void setup() {
+    // Uploads at 2 per second in bursts of 3, other requests unlimited
+    limiter = new RateLimiter(Collections.singletonMap(UPLOAD, new Rule(2, 3)),
+        null, 4, () -> now);
+  }
+
+  @Test
+  public void shouldLimitBurstAndRefillOverTime() {
+    for (int i = 0; i < 3; i++) {
+      assertThat(limiter.tryAcquire("gw1", UPLOAD), is(0L));
+    }
+    assertThat(limiter.tryAcquire("gw1", UPLOAD), is(TimeUnit.MILLISECONDS.toNanos(500)));
+
+    // A token is added every half second
+    now += TimeUnit.MILLISECONDS.toNanos(500);
+    assertThat(limiter.tryAcquire("gw1", UPLOAD), is(0L));
+    assertThat(limiter.tryAcquire("gw1", UPLOAD) > 0, is(true));
+    assertThat(limiter.toString(), containsString("limited[" + UPLOAD + "]=2"));
+  }
+
+  @Test
+  public void shouldLimitEachClientAndOperationOnItsOwn() {
+    drain("gw1");
+    assertThat(limiter.tryAcquire("gw2", UPLOAD), is(0L));
+    assertThat(limiter.tryAcquire("gw1", QUERY), is(0L));
+  }
+
+  @Test
+  public void shouldApplyDefaultRuleToOtherOperations() {
+    limiter = new RateLimiter(Collections.emptyMap(), new Rule(1, 1), 4, () -> now);
+    assertThat(limiter.tryAcquire("gw1", QUERY), is(0L));
+    // All other operations share a bucket
+    assertThat(limiter.tryAcquire("gw1", UPLOAD) > 0, is(true));
+  }
+
+  @Test
+  public void shouldReplyTooManyRequestsByAddress() {
+    String request = gson.toJson(new RequestObject("id", UPLOAD, "[]"));
+    for (int i = 0; i < 3; i++) {
+      assertThat(limiter.check("10.0.0.1", request), is(nullValue()));
+    }
+    ReplyObject reply = gson.fromJson(limiter.check("10.0.0.1", request), ReplyObject.class);
+    assertThat(reply.getStatusCode(), is(RateLimiter.TOO_MANY_REQUESTS));
+    assertThat(reply.errorDescription(), is("Retry-After: 1; Rate limit exceeded"));
+
+    // Other addresses have buckets of their own
+    assertThat(limiter.check("10.0.0.2", request), is(nullValue()));
+  }
+
+  @Test
+  public void shouldNotLetClientIdsEscapeTheLimit() {
+    // A client sending a new client id with each request
+    for (int i = 0; i < 3; i++) {
+      assertThat(limiter.check("10.0.0.1",
+          gson.toJson(new RequestObject("id", UPLOAD, "[]", "gw" + i))), is(nullValue()));
+    }
+    for (int i = 3; i < 10; i++) {
+      assertThat(limiter.check("10.0.0.1",
+          gson.toJson(new RequestObject("id", UPLOAD, "[]", "gw" + i))), is(notNullValue()));
+    }
+    // is still limited, and does not fill the table of buckets
+    assertThat(limiter.toString(), containsString("buckets=1"));
+    assertThat(limiter.toString(), containsString("overflowed=0"));
+  }
+
+  @Test
+  public void shouldBoundNumberOfBuckets() {
+    for (String client : Arrays.asList("gw1", "gw2", "gw3", "gw4")) {
+      drain(client);
+    }
+    // The table is full, so requests of new clients share an overflow bucket
+    drain("gw5");
+    assertThat(limiter.tryAcquire("gw6", UPLOAD) > 0, is(true));
+    assertThat(limiter.toString(), containsString("overflowed=5"));
+
+    // until the buckets of idle clients are full again, and evicted
+    now += TimeUnit.SECONDS.toNanos(2);
+    assertThat(limiter.tryAcquire("gw6", UPLOAD), is(0L));
+    assertThat(limiter.toString(), containsString("buckets=1"));
+    assertThat(limiter.toString(), containsString("evicted=5"));
+  }
+
+  @Test
+  public void shouldSweepFullTableAtMostOncePerSecond() {
+    for (String client : Arrays.asList("gw1", "gw2", "gw3", "gw4")) {
+      drain(client);
+    }
+    drain("gw5");
+    // Swept before the idle buckets are full again
+    now += TimeUnit.MILLISECONDS.toNanos(1000);
+    limiter.tryAcquire("gw6", UPLOAD);
+    // They are full now, but the table was swept less than a second ago
+    now += TimeUnit.MILLISECONDS.toNanos(900);
+    limiter.tryAcquire("gw6", UPLOAD);
+    assertThat(limiter.toString(), containsString("evicted=0"));
+
+    // The overflow bucket used by gw6 is not full, and stays
+    now += TimeUnit.MILLISECONDS.toNanos(100);
+    assertThat(limiter.tryAcquire("gw6", UPLOAD), is(0L));
+    assertThat(limiter.toString(), containsString("evicted=4"));
+  }
+
+  private void drain(String client) {
+    while (limiter.tryAcquire(client, UPLOAD) == 0) {
+      // empty the bucket
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.ipc;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.*;
+
+import org.junit.*;
+
+import com.google.gson.Gson;
+
+import frds.broker.*;
+import frds.broker.ipc.ResilientClientRequestHandler;
+import frds.broker.ipc.socket.SocketClientRequestHandler;
+import telemed.common.OperationNames;
+
+/**
+ * Test the timeouts, retries and circuit breaker that keep clients
+ * responsive when the server is degraded.
+ */
+public class TestResilientClientRequestHandler {
+
+  private final Gson gson = new Gson();
+  private final String query = gson.toJson(new RequestObject("pid",
+      OperationNames.GET_OBSERVATION_OPERATION, "[]"));
+  private final String upload = gson.toJson(new RequestObject("pid",
+      OperationNames.PROCESS_AND_STORE_OPERATION, "[{}]"));
+  private final String keyedUpload = gson.toJson(new RequestObject("pid",
+      OperationNames.PROCESS_AND_STORE_OPERATION, "[{},\"key-1\"]"));
+
+  private FailingClientRequestHandler server;
+  private ResilientClientRequestHandler crh;
+  private long now = 0;
+
+  @Before
+  public void setup() {
+    server = new FailingClientRequestHandler();
+    // 3 attempts, 2 ms backoff, open after 4 failures for 1 second
+    crh = new ResilientClientRequestHandler(server,
+        ResilientClientRequestHandler.operationIn(OperationNames.IDEMPOTENT_OPERATIONS).or(
+            ResilientClientRequestHandler.operationWithArgument(
+                OperationNames.PROCESS_AND_STORE_OPERATION, 1)),
+        100, 200, 3, 2, 2, 4, 1000, () -> now);
+  }
+
+  @Test
+  public void shouldRetryIdempotentRequests() {
+    server.failures = 2;
+    assertThat(crh.sendToServerAndAwaitReply(query), is("reply"));
+    assertThat(server.received, is(3));
+    assertThat(crh.toString(), containsString("retries=2"));
+    assertThat(server.connectTimeout, is(100));
+    assertThat(server.readTimeout, is(200));
+  }
+
+  @Test
+  public void shouldNotRetryOtherRequests() {
+    server.failures = 1;
+    assertFails(upload);
+    assertThat(server.received, is(1));
+  }
+
+  @Test
+  public void shouldRetryUploadsWithIdempotencyKey() {
+    server.failures = 2;
+    assertThat(crh.sendToServerAndAwaitReply(keyedUpload), is("reply"));
+    assertThat(server.received, is(3));
+
+    String unkeyedUpload = gson.toJson(new RequestObject("pid",
+        OperationNames.PROCESS_AND_STORE_OPERATION, "[{},null]"));
+    server.failures = 1;
+    assertFails(unkeyedUpload);
+    assertThat(server.received, is(4));
+  }
+
+  @Test
+  public void shouldNotCountOtherExceptionsAsFailures() {
+    server.failures = 4;
+    for (int i = 0; i < 2; i++) { assertFails(query); }
+    now += 1_000_000_000L;
+    // A client side error in the trial neither closes nor reopens the circuit
+    server.bug = true;
+    try {
+      crh.sendToServerAndAwaitReply(query);
+      Assert.fail("The bug should be thrown on");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertThat(crh.toString(), containsString("failures=4"));
+    assertThat(crh.toString(), containsString("openings=1"));
+    // and the next request is let through as trial
+    server.bug = false;
+    assertThat(crh.sendToServerAndAwaitReply(query), is("reply"));
+    assertThat(crh.toString(), containsString("state=CLOSED"));
+  }
+
+  @Test
+  public void shouldFailFastWhenCircuitIsOpen() {
+    server.failures = 4;
+    assertFails(query);
+    assertFails(upload);
+    // The circuit is open, the server is not asked
+    assertThat(assertFails(query).getStatusCode(), is(503));
+    assertThat(server.received, is(4));
+    assertThat(crh.toString(), containsString("state=OPEN"));
+    assertThat(crh.toString(), containsString("openings=1"));
+
+    // After a while a trial request is let through, closing the circuit
+    now += 1_000_000_000L;
+    assertThat(crh.sendToServerAndAwaitReply(upload), is("reply"));
+    assertThat(crh.toString(), containsString("state=CLOSED"));
+  }
+
+  @Test
+  public void shouldReopenCircuitIfTrialFails() {
+    server.failures = 5;
+    assertFails(query);
+    assertFails(query);
+    now += 1_000_000_000L;
+    // The trial fails, and is not retried as the circuit is open again
+    assertFails(query);
+    assertThat(server.received, is(5));
+    assertThat(crh.toString(), containsString("openings=2"));
+  }
+
+  @Test
+  public void shouldTimeOutOnStalledServer() throws IOException {
+    // A server that accepts connections but never replies
+    try (ServerSocket stalled = new ServerSocket(0)) {
+      ClientRequestHandler socketCrh =
+          new SocketClientRequestHandler("localhost", stalled.getLocalPort());
+      socketCrh.setTimeouts(1000, 100);
+      long start = System.currentTimeMillis();
+      try {
+        socketCrh.sendToServerAndAwaitReply(query);
+        Assert.fail("Stalled server should time out");
+      } catch (IPCException e) {
+        assertThat(System.currentTimeMillis() - start < 1000, is(true));
+      }
+    }
+  }
+
+  private IPCException assertFails(String request) {
+    try {
+      crh.sendToServerAndAwaitReply(request);
+    } catch (IPCException e) {
+      return e;
+    }
+    Assert.fail("Request should fail");
+    return null;
+  }
+
+  /** A client request handler whose server fails a given number of
+   * times before it replies. */
+  private static class FailingClientRequestHandler implements ClientRequestHandler {
+    int failures;
+    boolean bug;
+    int received;
+    int connectTimeout;
+    int readTimeout;
+
+    @Override
+    public String sendToServerAndAwaitReply(String request) {
+      received++;
+      if (bug) {
+        throw new IllegalStateException("Bug in the client");
+      }
+      if (failures > 0) {
+        failures--;
+        throw new IPCException("Connection refused");
+      }
+      return "reply";
+    }
+
+    @Override
+    public void setServer(String hostname, int port) { }
+
+    @Override
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+      connectTimeout = connectTimeoutMillis;
+      readTimeout = readTimeoutMillis;
+    }
+
+    @Override
+    public void close() { }
+  }
+}
@@ -19,10 +19,15 @@ package telemed.scenario;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.fail;
 
+import java.time.OffsetDateTime;
 import java.util.*;
 
+import javax.servlet.http.HttpServletResponse;
+
 import frds.broker.ClientRequestHandler;
+import frds.broker.IPCException;
 import frds.broker.Invoker;
 import frds.broker.Requestor;
 import frds.broker.marshall.json.StandardJSONRequestor;
@@ -139,4 +144,40 @@ public class TestStory1 {
     TestTeleMedServant.validateModificationMethods(teleMed);
   }
 
+  @Test
+  public void shouldStoreRetriedUploadsOnce() {
+    TestTeleMedServant.validateIdempotentUploads(teleMed);
+  }
+
+  @Test
+  public void shouldLongPollFromClient() {
+    TestTeleMedServant.validateAwaitObservations(teleMed);
+  }
+
+  @Test
+  public void shouldQuerySeveralPatientsFromClient() {
+    TestTeleMedServant.validateMultiPatientQuery(teleMed);
+  }
+
+  @Test
+  public void shouldPageThroughObservationsFromClient() {
+    TestTeleMedServant.validateObservationPaging(teleMed);
+  }
+
+  @Test
+  public void shouldReportInvalidCursorAsBadRequest() {
+    OffsetDateTime now = OffsetDateTime.now();
+    try {
+      teleMed.getObservationPage(HelperMethods.NANCY_ID, now.minusDays(1), now, 10, "42");
+      fail("An invalid cursor must be rejected");
+    } catch (IPCException e) {
+      assertThat(e.getStatusCode(), is(HttpServletResponse.SC_BAD_REQUEST));
+    }
+  }
+
+  @Test
+  public void shouldComputeStatisticsFromClient() {
+    TestTeleMedServant.validateStatistics(teleMed);
+  }
+
 }
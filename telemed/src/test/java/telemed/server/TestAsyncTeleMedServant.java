@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.*;
+
+import com.google.gson.Gson;
+
+import frds.broker.ReplyObject;
+import frds.broker.RequestObject;
+import telemed.common.OperationNames;
+import telemed.domain.*;
+import telemed.doubles.AsyncFakeObjectXDSDatabase;
+import telemed.doubles.FakeObjectXDSDatabase;
+import telemed.helper.HelperMethods;
+import telemed.marshall.json.TeleMedJSONInvoker;
+import telemed.storage.*;
+
+/**
+ * Testing the servant when it is bound to an asynchronous XDS,
+ * using the fake object stand-in for the asynchronous MongoDB adapter.
+ */
+public class TestAsyncTeleMedServant {
+
+  private TeleMedServant telemed;
+  private AsyncFakeObjectXDSDatabase xds;
+
+  @Before
+  public void setUp() {
+    xds = new AsyncFakeObjectXDSDatabase();
+    telemed = new TeleMedServant(xds);
+  }
+
+  @Test
+  public void shouldStoreAndFetchAsynchronously() {
+    TeleObservation teleObs1 = HelperMethods.createObservation120over70forNancy();
+
+    String id = telemed.processAndStoreAsync(teleObs1).join();
+    assertThat(id, is("uid-1"));
+    HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(
+        xds.getDelegate().getLastStoredObservation());
+
+    TeleObservation stored = telemed.getObservationAsync(id).join();
+    assertThat(stored.toString(), is(teleObs1.toString()));
+
+    assertThat(telemed.getObservationAsync("uid-42").join(), is(nullValue()));
+  }
+
+  @Test
+  public void shouldQueryCorrectAndDeleteAsynchronously() {
+    telemed.processAndStoreAsync(new TeleObservation("pid001", 123, 78)).join();
+    String id = telemed.processAndStoreAsync(new TeleObservation("pid001", 125, 75)).join();
+
+    List<TeleObservation> list =
+        telemed.getObservationsForAsync("pid001", TimeInterval.LAST_DAY).join();
+    assertThat(list.size(), is(2));
+
+    assertThat(telemed.correctAsync(id, new TeleObservation("pid001", 227, 91)).join(),
+        is(true));
+    assertThat(telemed.getObservationAsync(id).join().getSystolic().getValue(), is(227.0));
+
+    assertThat(telemed.deleteAsync(id).join(), is(true));
+    assertThat(telemed.deleteAsync(id).join(), is(false));
+    list = telemed.getObservationsForAsync("pid001", TimeInterval.LAST_DAY).join();
+    assertThat(list.size(), is(1));
+  }
+
+  @Test
+  public void shouldSupportSynchronousTeleMedInterface() {
+    TestTeleMedServant.validateTimedQueryBehaviour(telemed);
+  }
+
+  @Test
+  public void shouldSupportSynchronousModificationMethods() {
+    TestTeleMedServant.validateModificationMethods(telemed);
+  }
+
+  @Test
+  public void shouldStoreKeyedUploadsOnceAsynchronously() {
+    TeleObservation teleObs = new TeleObservation("pid001", 123, 78);
+    String id = telemed.processAndStoreAsync(teleObs, "upload-1").join();
+    // A retry, or an upload by another server, gets the original id
+    assertThat(telemed.processAndStoreAsync(teleObs, "upload-1").join(), is(id));
+    assertThat(new TeleMedServant(xds).processAndStoreAsync(teleObs, "upload-1").join(),
+        is(id));
+
+    assertThat(telemed.getObservationsForAsync("pid001", TimeInterval.LAST_DAY).join().size(),
+        is(1));
+  }
+
+  @Test
+  public void shouldNotBlockInvokerWhileStoring() {
+    // Given a storage round trip that is slow
+    CountDownLatch stored = new CountDownLatch(1);
+    FakeObjectXDSDatabase slowXds = new FakeObjectXDSDatabase() {
+      @Override
+      public String provideAndRegisterObservation(MetaData metaData, String observationAsHL7,
+                                                  ObservationRecord record) {
+        try {
+          stored.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        return super.provideAndRegisterObservation(metaData, observationAsHL7, record);
+      }
+    };
+    AsyncFakeObjectXDSDatabase asyncXds = new AsyncFakeObjectXDSDatabase(slowXds);
+    TeleMedJSONInvoker invoker = new TeleMedJSONInvoker(new TeleMedServant(asyncXds));
+    Gson gson = new Gson();
+    String request = gson.toJson(new RequestObject("", OperationNames.PROCESS_AND_STORE_OPERATION,
+        gson.toJson(new Object[] { new TeleObservation("pid001", 123, 78), "upload-1" })));
+
+    // When an upload is handled, the invoker returns before it is stored
+    CompletableFuture<String> reply = invoker.handleRequestAsync(request);
+    assertThat(reply.isDone(), is(false));
+
+    // and replies once it is
+    stored.countDown();
+    ReplyObject replyObject = gson.fromJson(reply.join(), ReplyObject.class);
+    assertThat(replyObject.getStatusCode(), is(201));
+    assertThat(gson.fromJson(replyObject.getPayload(), String.class), is("uid-1"));
+    asyncXds.close();
+  }
+}
@@ -24,7 +24,7 @@ import org.w3c.dom.*;
 
 import telemed.domain.*;
 import telemed.helper.HelperMethods;
-import telemed.storage.MetaData;
+import telemed.storage.*;
 
 /**
  * TDD test cases for crafting the builder that builds something that vaguely
@@ -62,6 +62,48 @@ public class TestBuilders {
     HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(doc);
   }
   
+  @Test public void shouldStreamValidHL7() {
+    StreamingHL7Builder builder = new StreamingHL7Builder();
+    Director.construct(to, builder);
+    String hl7 = builder.getResult();
+
+    // the streamed document must parse into the same HL7 as the DOM one
+    Document doc = XMLUtility.convertXMLStringToDocument(hl7);
+    HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(doc);
+  }
+
+  @Test public void shouldReuseStreamingBuilder() {
+    StreamingHL7Builder builder = new StreamingHL7Builder();
+    Director.construct(new TeleObservation("pid<&>\"", 180, 110), builder);
+    String first = builder.getResult();
+
+    Director.construct(to, builder);
+    Document doc = XMLUtility.convertXMLStringToDocument(builder.getResult());
+    HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(doc);
+
+    // and special characters are escaped
+    doc = XMLUtility.convertXMLStringToDocument(first);
+    assertEquals("pid<&>\"", XMLUtility.
+        getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("extension", 0,
+            "id", "patient", doc));
+  }
+
+  @Test public void shouldBuildSeveralRepresentationsInOnePass() {
+    StreamingHL7Builder hl7Builder = new StreamingHL7Builder();
+    MetadataBuilder metadataBuilder = new MetadataBuilder();
+    ObservationRecordBuilder recordBuilder = new ObservationRecordBuilder();
+
+    Director.construct(to, hl7Builder, metadataBuilder, recordBuilder);
+
+    HelperMethods.assertThatDocumentRepresentsObservation120over70forNancy(
+        XMLUtility.convertXMLStringToDocument(hl7Builder.getResult()));
+    assertEquals( 1338535812000L, metadataBuilder.getResult().getTimestamp() );
+    ObservationRecord record = recordBuilder.getResult();
+    assertEquals( HelperMethods.NANCY_ID, record.getPatientId() );
+    assertEquals( 1338535812L, record.getEpochSecond() );
+    assertEquals( 70.0, record.getValue(1), 0.0 );
+  }
+
   @Test public void shouldBuildValidMetadata() {
     MetadataBuilder builder = new MetadataBuilder();
     Director.construct(to, builder);
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+import telemed.domain.*;
+import telemed.doubles.FakeObjectXDSDatabase;
+
+/**
+ * Test the read-through cache of observations.
+ */
+public class TestCachingTeleMedDecorator {
+
+  private CachingTeleMedDecorator telemed;
+  private long now;
+
+  @Before
+  public void setUp() {
+    now = 0;
+    TeleMed servant = new TeleMedServant(new FakeObjectXDSDatabase());
+    telemed = new CachingTeleMedDecorator(servant, 2, 60, () -> now);
+  }
+
+  @Test
+  public void shouldServeRepeatedReadsFromCache() {
+    String id = telemed.processAndStore(new TeleObservation("pid001", 123, 78));
+
+    TeleObservation first = telemed.getObservation(id);
+    TeleObservation second = telemed.getObservation(id);
+    assertThat(second, is(sameInstance(first)));
+    assertThat(telemed.getMissCount(), is(1L));
+    assertThat(telemed.getHitCount(), is(1L));
+  }
+
+  @Test
+  public void shouldNotCacheMissingObservations() {
+    assertThat(telemed.getObservation("uid-42"), is(nullValue()));
+    assertThat(telemed.size(), is(0));
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyUsed() {
+    String id1 = telemed.processAndStore(new TeleObservation("pid001", 123, 78));
+    String id2 = telemed.processAndStore(new TeleObservation("pid001", 125, 75));
+    String id3 = telemed.processAndStore(new TeleObservation("pid001", 130, 80));
+
+    telemed.getObservation(id1);
+    telemed.getObservation(id2);
+    telemed.getObservation(id1);
+    telemed.getObservation(id3); // evicts id2
+    assertThat(telemed.size(), is(2));
+    assertThat(telemed.getEvictionCount(), is(1L));
+
+    telemed.getObservation(id1);
+    assertThat(telemed.getHitCount(), is(2L));
+    telemed.getObservation(id2);
+    assertThat(telemed.getMissCount(), is(4L));
+  }
+
+  @Test
+  public void shouldExpireAfterTimeToLive() {
+    String id = telemed.processAndStore(new TeleObservation("pid001", 123, 78));
+    telemed.getObservation(id);
+    now += TimeUnit.SECONDS.toNanos(61);
+    telemed.getObservation(id);
+    assertThat(telemed.getMissCount(), is(2L));
+    assertThat(telemed.getHitCount(), is(0L));
+  }
+
+  @Test
+  public void shouldInvalidateOnCorrectAndDelete() {
+    String id = telemed.processAndStore(new TeleObservation("pid001", 123, 78));
+    assertThat(telemed.getObservation(id).getSystolic().getValue(), is(123.0));
+
+    telemed.correct(id, new TeleObservation("pid001", 227, 91));
+    assertThat(telemed.getObservation(id).getSystolic().getValue(), is(227.0));
+
+    telemed.delete(id);
+    assertThat(telemed.getObservation(id), is(nullValue()));
+  }
+
+  @Test
+  public void shouldBehaveAsTeleMed() {
+    TestTeleMedServant.validateModificationMethods(telemed);
+  }
+}
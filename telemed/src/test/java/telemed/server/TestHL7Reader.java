@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+import org.junit.*;
+
+import telemed.domain.*;
+import telemed.helper.HelperMethods;
+
+/**
+ * Test the single pass reading of HL7 documents into tele observations.
+ */
+public class TestHL7Reader {
+
+  private TeleObservation to;
+
+  @Before public void setup() {
+    to = HelperMethods.createObservation120over70forNancy();
+  }
+
+  @Test public void shouldReadDocumentBuiltByDOMBuilder() {
+    HL7Builder builder = new HL7Builder();
+    Director.construct(to, builder);
+    String hl7 = XMLUtility.convertXMLDocumentToString(builder.getResult());
+
+    assertThatIsNancys120over70(HL7Reader.readTeleObservation(hl7));
+  }
+
+  @Test public void shouldReadDocumentBuiltByStreamingBuilder() {
+    StreamingHL7Builder builder = new StreamingHL7Builder();
+    Director.construct(to, builder);
+
+    assertThatIsNancys120over70(HL7Reader.readTeleObservation(builder.getResult()));
+    assertThat(HL7Reader.readTime(builder.getResult()), is(to.getTime()));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void shouldRejectDocumentsWithoutObservations() {
+    HL7Reader.readTeleObservation("<ClinicalDocument>"
+        + "<effectiveTime value=\"2012-06-01T07:30:12Z\"/>"
+        + "<patient><id extension=\"pid001\"/></patient>"
+        + "</ClinicalDocument>");
+  }
+
+  private void assertThatIsNancys120over70(TeleObservation read) {
+    assertThat(read.getPatientId(), is(HelperMethods.NANCY_ID));
+    assertThat(read.getSystolic().getValue(), is(120.0));
+    assertThat(read.getDiastolic().getValue(), is(70.0));
+    assertThat(read.getTime(), is(to.getTime()));
+  }
+}
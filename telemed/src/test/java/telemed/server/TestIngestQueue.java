@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+
+import frds.broker.*;
+import telemed.common.OperationNames;
+import telemed.domain.*;
+import telemed.doubles.FakeObjectXDSDatabase;
+import telemed.marshall.json.TeleMedJSONInvoker;
+import telemed.storage.*;
+
+/**
+ * Test the queue that acknowledges uploaded observations before
+ * they are stored in the XDS.
+ */
+public class TestIngestQueue {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path journal;
+  private FakeObjectXDSDatabase xds;
+  private TeleMedServant servant;
+  private IngestQueue queue;
+
+  @Before
+  public void setup() throws IOException {
+    journal = folder.getRoot().toPath().resolve("ingest.journal");
+    xds = new FakeObjectXDSDatabase();
+    servant = new TeleMedServant(xds);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (queue != null) { queue.close(); }
+  }
+
+  @Test
+  public void shouldAcknowledgeAndThenStoreObservations() throws Exception {
+    queue = servant.startQueuedIngest(journal, 100, 2, 10);
+    String first = servant.processAndStore(new TeleObservation("pid081", 120, 70));
+    String second = servant.processAndStoreAsync(new TeleObservation("pid081", 125, 75)).get();
+    assertThat(first, is(not(second)));
+
+    awaitEmpty(queue);
+    assertThat(servant.getObservation(first).getSystolic().getValue(), is(120.0));
+    assertThat(servant.getObservation(second).getSystolic().getValue(), is(125.0));
+    // Subscribers are told once observations are stored
+    ObservationEvents events =
+        servant.getEventBus().await(Collections.singletonList("pid081"), 0, 0);
+    assertThat(events.getEvents().size(), is(2));
+  }
+
+  @Test
+  public void shouldRejectInvalidObservations() throws IOException {
+    queue = servant.startQueuedIngest(journal, 100, 1, 10);
+    try {
+      servant.processAndStore(new TeleObservation("", 120, 70));
+      Assert.fail("Observation without patient should be rejected");
+    } catch (IllegalArgumentException e) {
+      assertThat(queue.getDepth(), is(0));
+    }
+  }
+
+  @Test
+  public void shouldReplyServiceUnavailableWhenFull() throws Exception {
+    // The XDS blocks until released, so the queue fills up
+    CountDownLatch release = new CountDownLatch(1);
+    TeleMedServant blocked = new TeleMedServant(new FakeObjectXDSDatabase() {
+      @Override
+      public void provideAndRegisterObservations(List<ObservationSubmission> batch) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new XDSException("Interrupted");
+        }
+        super.provideAndRegisterObservations(batch);
+      }
+    });
+    queue = blocked.startQueuedIngest(journal, 2, 1, 10);
+    blocked.processAndStore(new TeleObservation("pid082", 120, 70));
+    blocked.processAndStore(new TeleObservation("pid082", 121, 71));
+
+    // Clients are told to come back later
+    Invoker invoker = new TeleMedJSONInvoker(blocked);
+    Gson gson = new Gson();
+    RequestObject request = new RequestObject("pid082",
+        OperationNames.PROCESS_AND_STORE_OPERATION,
+        gson.toJson(new Object[] { new TeleObservation("pid082", 122, 72) }));
+    ReplyObject reply = gson.fromJson(invoker.handleRequest(gson.toJson(request)),
+        ReplyObject.class);
+    assertThat(reply.getStatusCode(), is(503));
+    assertThat(reply.errorDescription(),
+        startsWith("Retry-After: " + IngestQueue.RETRY_AFTER_SECONDS));
+    assertThat(queue.toString(), containsString("rejected=1"));
+
+    // and accepted once the workers catch up
+    release.countDown();
+    awaitEmpty(queue);
+    assertThat(blocked.processAndStore(new TeleObservation("pid082", 122, 72)),
+        is(notNullValue()));
+  }
+
+  @Test
+  public void shouldStoreAcknowledgedObservationsAfterRestart() throws Exception {
+    // The XDS is down, so nothing is stored before the server stops
+    TeleMedServant down = new TeleMedServant(new FakeObjectXDSDatabase() {
+      @Override
+      public void provideAndRegisterObservations(List<ObservationSubmission> batch) {
+        throw new XDSException("XDS is down");
+      }
+    });
+    IngestQueue before = down.startQueuedIngest(journal, 100, 1, 10);
+    String uniqueId = down.processAndStore(new TeleObservation("pid083", 130, 80));
+    before.close();
+
+    // The restarted server reads the observation back from the journal
+    queue = servant.startQueuedIngest(journal, 100, 1, 10);
+    awaitEmpty(queue);
+    assertThat(servant.getObservation(uniqueId).getSystolic().getValue(), is(130.0));
+
+    // and it is not stored once more after yet another restart
+    queue.close();
+    queue = servant.startQueuedIngest(journal, 100, 1, 10);
+    assertThat(queue.getDepth(), is(0));
+  }
+
+  @Test
+  public void shouldKeepIdempotencyKeysOfQueuedObservations() throws Exception {
+    TeleMedServant down = new TeleMedServant(new FakeObjectXDSDatabase() {
+      @Override
+      public void provideAndRegisterObservations(List<ObservationSubmission> batch) {
+        throw new XDSException("XDS is down");
+      }
+    });
+    IngestQueue before = down.startQueuedIngest(journal, 100, 1, 10);
+    String uniqueId = down.processAndStore(new TeleObservation("pid084", 130, 80), "upload-1");
+    before.close();
+
+    // The key is journaled along with the observation and stored with it
+    queue = servant.startQueuedIngest(journal, 100, 1, 10);
+    awaitEmpty(queue);
+    assertThat(xds.retriveUniqueIdForIdempotencyKey("pid084", "upload-1"), is(uniqueId));
+
+    // so a retry to the restarted server is not stored once more
+    assertThat(servant.processAndStore(new TeleObservation("pid084", 130, 80), "upload-1"),
+        is(uniqueId));
+    assertThat(queue.getDepth(), is(0));
+  }
+
+  @Test
+  public void shouldForceConcurrentAppendsTogether() throws Exception {
+    IngestJournal ingestJournal = new IngestJournal(journal);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<?>> appends = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      String uniqueId = "uid-" + i;
+      appends.add(executor.submit(() -> {
+        ingestJournal.append(uniqueId, "{}");
+        return null;
+      }));
+    }
+    for (Future<?> append : appends) {
+      append.get(5, TimeUnit.SECONDS);
+    }
+    executor.shutdown();
+
+    // Every append is durable, though a force may cover several
+    assertThat(ingestJournal.getPending().size(), is(200));
+    assertThat(ingestJournal.toString(), startsWith("appends=200, forces="));
+    int forces = Integer.parseInt(ingestJournal.toString().split("forces=")[1]);
+    assertThat(forces <= 200, is(true));
+    ingestJournal.close();
+    try (IngestJournal reopened = new IngestJournal(journal)) {
+      assertThat(reopened.getPending().size(), is(200));
+    }
+  }
+
+  private static void awaitEmpty(IngestQueue queue) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (queue.getDepth() > 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(queue.getDepth(), is(0));
+  }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import telemed.domain.*;
+
+/**
+ * Test the event bus that tells GP clients about newly stored
+ * observations.
+ */
+public class TestObservationEventBus {
+
+  private ObservationEventBus bus;
+  private final List<String> nancy = Collections.singletonList("nancy");
+
+  @Before
+  public void setup() {
+    bus = new ObservationEventBus(4);
+  }
+
+  @Test
+  public void shouldReturnEventsOfWatchedPatientsAfterSequence() throws InterruptedException {
+    bus.publish("uid-1", new TeleObservation("nancy", 120, 70));
+    bus.publish("uid-2", new TeleObservation("bob", 130, 80));
+    bus.publish("uid-3", new TeleObservation("nancy", 125, 75));
+
+    ObservationEvents events = bus.await(nancy, 0, 0);
+    assertThat(events.getEvents().size(), is(2));
+    assertThat(events.getEvents().get(1).getUniqueId(), is("uid-3"));
+    assertThat(events.getLastSequence(), is(3L));
+    assertThat(events.isMissed(), is(false));
+
+    events = bus.await(nancy, 1, 0);
+    assertThat(events.getEvents().size(), is(1));
+    assertThat(events.getEvents().get(0).getSequence(), is(3L));
+  }
+
+  @Test
+  public void shouldWaitForNewEvents() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<ObservationEvents> poll = executor.submit(() -> bus.await(nancy, -1, 5000));
+      // events of other patients do not end the wait
+      Thread.sleep(50);
+      bus.publish("uid-1", new TeleObservation("bob", 130, 80));
+      Thread.sleep(50);
+      assertThat(poll.isDone(), is(false));
+      bus.publish("uid-2", new TeleObservation("nancy", 120, 70));
+
+      ObservationEvents events = poll.get(5, TimeUnit.SECONDS);
+      assertThat(events.getEvents().size(), is(1));
+      assertThat(events.getEvents().get(0).getUniqueId(), is("uid-2"));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void shouldEndWaitsWhenClosed() throws Exception {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try (ObservationEventBus.Subscription subscription = bus.subscribe(nancy, -1, 2)) {
+      Future<ObservationEvents> poll = executor.submit(() -> bus.await(nancy, -1, 5000));
+      Thread.sleep(50);
+      bus.close();
+
+      assertThat(poll.get(1, TimeUnit.SECONDS).getEvents().size(), is(0));
+      assertThat(subscription.take(5000).size(), is(0));
+      assertThat(bus.isClosed(), is(true));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void shouldTimeOutWithoutEvents() throws InterruptedException {
+    ObservationEvents events = bus.await(nancy, -1, 20);
+    assertThat(events.getEvents().size(), is(0));
+    assertThat(events.getLastSequence(), is(0L));
+  }
+
+  @Test
+  public void shouldTellWhenEventsHaveBeenMissed() throws InterruptedException {
+    for (int i = 1; i <= 6; i++) {
+      bus.publish("uid-" + i, new TeleObservation("nancy", 120, 70));
+    }
+    // only the last four events are retained
+    ObservationEvents events = bus.await(nancy, 1, 0);
+    assertThat(events.isMissed(), is(true));
+    assertThat(events.getEvents().size(), is(4));
+    assertThat(events.getEvents().get(0).getSequence(), is(3L));
+
+    assertThat(bus.await(nancy, 2, 0).isMissed(), is(false));
+    // sequence numbers of a previous server run
+    assertThat(bus.await(nancy, 42, 0).isMissed(), is(true));
+  }
+
+  @Test
+  public void shouldBufferSubscribedEvents() throws InterruptedException {
+    bus.publish("uid-1", new TeleObservation("nancy", 120, 70));
+    try (ObservationEventBus.Subscription subscription = bus.subscribe(nancy, 0, 2)) {
+      bus.publish("uid-2", new TeleObservation("bob", 130, 80));
+      bus.publish("uid-3", new TeleObservation("nancy", 125, 75));
+
+      List<ObservationEvent> events = subscription.take(0);
+      assertThat(events.size(), is(2));
+      assertThat(events.get(0).getUniqueId(), is("uid-1"));
+      assertThat(events.get(1).getUniqueId(), is("uid-3"));
+      assertThat(subscription.take(10).size(), is(0));
+      assertThat(subscription.hasOverflowed(), is(false));
+    }
+    assertThat(bus.toString(), containsString("subscribers=0"));
+  }
+
+  @Test
+  public void shouldDropEventsForSlowSubscribers() throws InterruptedException {
+    try (ObservationEventBus.Subscription subscription = bus.subscribe(nancy, -1, 2)) {
+      for (int i = 1; i <= 3; i++) {
+        bus.publish("uid-" + i, new TeleObservation("nancy", 120, 70));
+      }
+      // publishing did not block, and the third event was dropped
+      assertThat(subscription.hasOverflowed(), is(true));
+      assertThat(subscription.take(0).size(), is(2));
+      assertThat(bus.toString(), containsString("dropped=1"));
+    }
+  }
+}
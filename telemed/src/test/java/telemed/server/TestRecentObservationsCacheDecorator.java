@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.server;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.CoreMatchers.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+import telemed.domain.*;
+import telemed.doubles.FakeObjectXDSDatabase;
+
+/**
+ * Test the per patient cache of recent observations.
+ */
+public class TestRecentObservationsCacheDecorator {
+
+  private RecentObservationsCacheDecorator telemed;
+  private long now;
+
+  @Before
+  public void setUp() {
+    now = 0;
+    TeleMed servant = new TeleMedServant(new FakeObjectXDSDatabase());
+    telemed = new RecentObservationsCacheDecorator(servant, 5, 600, () -> now);
+  }
+
+  @Test
+  public void shouldLoadPatientOnlyOnce() {
+    telemed.processAndStore(new TeleObservation("pid001", 123, 78));
+    telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY);
+    List<TeleObservation> result =
+        telemed.getObservationsFor("pid001", TimeInterval.LAST_WEEK);
+    assertThat(result.size(), is(1));
+    assertThat(telemed.getLoadCount(), is(1L));
+    assertThat(telemed.getHitCount(), is(1L));
+  }
+
+  @Test
+  public void shouldMaintainWindowOnStore() {
+    telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY);
+    TeleObservation older = new TeleObservation("pid001", 125, 75);
+    older.setTime(older.getTime().minusDays(3));
+    telemed.processAndStore(new TeleObservation("pid001", 123, 78));
+    telemed.processAndStore(older);
+
+    assertThat(telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY).size(), is(1));
+    List<TeleObservation> result =
+        telemed.getObservationsFor("pid001", TimeInterval.LAST_WEEK);
+    // in order of storage, as the XDS would return them
+    assertThat(result.size(), is(2));
+    assertThat(result.get(0).getSystolic().getValue(), is(123.0));
+    assertThat(result.get(1).getSystolic().getValue(), is(125.0));
+    assertThat(telemed.getLoadCount(), is(1L));
+  }
+
+  @Test
+  public void shouldMaintainWindowOnCorrectAndDelete() {
+    String id = telemed.processAndStore(new TeleObservation("pid001", 123, 78));
+    telemed.processAndStore(new TeleObservation("pid001", 125, 75));
+    telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY);
+
+    telemed.correct(id, new TeleObservation("pid001", 227, 91));
+    List<TeleObservation> result =
+        telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY);
+    assertThat(result.size(), is(2));
+    assertThat(result.get(0).getSystolic().getValue(), is(227.0));
+
+    telemed.delete(id);
+    result = telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY);
+    assertThat(result.size(), is(1));
+    assertThat(result.get(0).getSystolic().getValue(), is(125.0));
+    assertThat(telemed.getLoadCount(), is(1L));
+  }
+
+  @Test
+  public void shouldDropObservationsOlderThanTheWindow() {
+    telemed.processAndStore(new TeleObservation("pid001", 123, 78));
+    telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY);
+    TeleObservation old = new TeleObservation("pid001", 125, 75);
+    old.setTime(old.getTime().minusDays(40));
+    telemed.processAndStore(old);
+
+    assertThat(telemed.getObservationCount(), is(1));
+    assertThat(telemed.getObservationsFor("pid001", TimeInterval.LAST_MONTH).size(), is(1));
+  }
+
+  @Test
+  public void shouldInvalidatePatientsLoadedDuringWritesToUnknownPatients() {
+    // The patient is loaded while the correction is under way, after
+    // the cache was found unused
+    RecentObservationsCacheDecorator[] cache = new RecentObservationsCacheDecorator[1];
+    TeleMed servant = new TeleMedServant(new FakeObjectXDSDatabase()) {
+      @Override
+      public boolean correct(String uniqueId, TeleObservation to) {
+        cache[0].getObservationsFor("pid001", TimeInterval.LAST_DAY);
+        return super.correct(uniqueId, to);
+      }
+    };
+    cache[0] = new RecentObservationsCacheDecorator(servant, 5, 600, () -> now);
+    String id = cache[0].processAndStore(new TeleObservation("pid001", 123, 78));
+
+    cache[0].correct(id, new TeleObservation("pid001", 227, 91));
+    List<TeleObservation> result =
+        cache[0].getObservationsFor("pid001", TimeInterval.LAST_DAY);
+    assertThat(result.get(0).getSystolic().getValue(), is(227.0));
+    assertThat(cache[0].getLoadCount(), is(2L));
+  }
+
+  @Test
+  public void shouldEvictLeastRecentlyQueriedPatientsOverBudget() {
+    for (int i = 0; i < 3; i++) {
+      telemed.processAndStore(new TeleObservation("pid001", 120 + i, 80));
+      telemed.processAndStore(new TeleObservation("pid002", 130 + i, 80));
+    }
+    telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY);
+    telemed.getObservationsFor("pid002", TimeInterval.LAST_DAY); // evicts pid001
+    assertThat(telemed.getPatientCount(), is(1));
+    assertThat(telemed.getObservationCount(), is(3));
+    assertThat(telemed.getEvictionCount(), is(1L));
+
+    telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY);
+    assertThat(telemed.getLoadCount(), is(3L));
+  }
+
+  @Test
+  public void shouldEvictIdlePatients() {
+    telemed.processAndStore(new TeleObservation("pid001", 123, 78));
+    telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY);
+    now += TimeUnit.SECONDS.toNanos(601);
+    telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY);
+    assertThat(telemed.getLoadCount(), is(2L));
+    assertThat(telemed.getEvictionCount(), is(1L));
+  }
+
+  @Test
+  public void shouldQueryAsTeleMed() {
+    TestTeleMedServant.validateTimedQueryBehaviour(telemed);
+  }
+
+  @Test
+  public void shouldModifyAsTeleMed() {
+    TestTeleMedServant.validateModificationMethods(telemed);
+  }
+}
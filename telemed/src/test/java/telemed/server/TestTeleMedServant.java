@@ -23,11 +23,15 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 
 import java.io.IOException;
+import java.time.DayOfWeek;
 import java.time.OffsetDateTime;
 import java.time.ZoneId;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 import org.junit.*;
 import org.w3c.dom.Document;
@@ -135,6 +139,244 @@ public class TestTeleMedServant {
     validateTimedQueryBehaviour(telemed);
   }
 
+  @Test
+  public void shouldPublishStoredObservations() {
+    validateAwaitObservations(telemed);
+  }
+
+  /**
+   * Validate that stored observations are returned by long polls.
+   *
+   * @param telemed
+   *          the tele med instance to poll
+   */
+  public static void validateAwaitObservations(TeleMed telemed) {
+    List<String> watched = Arrays.asList("pid061", "pid062");
+    ObservationEvents none = telemed.awaitObservations(watched, -1, 10);
+    assertThat(none.getEvents().size(), is(0));
+
+    String id = telemed.processAndStore(new TeleObservation("pid061", 130, 85));
+    telemed.processAndStore(new TeleObservation("pid063", 140, 90));
+    ObservationEvents events =
+        telemed.awaitObservations(watched, none.getLastSequence(), 1000);
+    assertThat(events.getEvents().size(), is(1));
+    ObservationEvent event = events.getEvents().get(0);
+    assertThat(event.getUniqueId(), is(id));
+    assertThat(event.getObservation().getSystolic().getValue(), is(130.0));
+    assertThat(events.getLastSequence(), is(none.getLastSequence() + 2));
+  }
+
+  @Test
+  public void shouldStoreRetriedUploadsOnce() {
+    validateIdempotentUploads(telemed);
+  }
+
+  @Test
+  public void shouldRecognizeRetriesStoredBeforeRestart() {
+    String id = telemed.processAndStore(new TeleObservation("pid071", 120, 70), "key-1");
+    // A new servant has not seen the upload, but the XDS has
+    TeleMed restarted = new TeleMedServant(xds);
+    assertThat(restarted.processAndStore(new TeleObservation("pid071", 120, 70), "key-1"),
+        is(id));
+    assertThat(restarted.getObservationsFor("pid071", TimeInterval.LAST_DAY).size(), is(1));
+  }
+
+  /**
+   * Validate that uploads retried with the same idempotency key
+   * are stored once.
+   *
+   * @param telemed
+   *          the tele med instance to upload to
+   */
+  public static void validateIdempotentUploads(TeleMed telemed) {
+    String id = telemed.processAndStore(new TeleObservation("pid072", 120, 70), "key-1");
+    String retry = telemed.processAndStore(new TeleObservation("pid072", 120, 70), "key-1");
+    assertThat(retry, is(id));
+    assertThat(telemed.getObservationsFor("pid072", TimeInterval.LAST_DAY).size(), is(1));
+
+    // Keys are only unique for each patient
+    String other = telemed.processAndStore(new TeleObservation("pid073", 120, 70), "key-1");
+    assertThat(other, is(not(id)));
+    // and uploads without a key are always stored
+    telemed.processAndStore(new TeleObservation("pid072", 120, 70), null);
+    assertThat(telemed.getObservationsFor("pid072", TimeInterval.LAST_DAY).size(), is(2));
+  }
+
+  @Test
+  public void shouldQuerySeveralPatientsAtOnce() {
+    validateMultiPatientQuery(telemed);
+  }
+
+  @Test(expected = InvalidRequestException.class)
+  public void shouldLimitPatientsPerQuery() {
+    List<String> patientIds = new ArrayList<>();
+    for (int i = 0; i <= TeleMedServant.MAX_PATIENTS_PER_QUERY; i++) {
+      patientIds.add("pid" + i);
+    }
+    OffsetDateTime now = OffsetDateTime.now();
+    telemed.getObservationsForPatients(patientIds, now.minusDays(1), now);
+  }
+
+  /**
+   * Validate that the observations of several patients are retrieved
+   * in one query, grouped by patient in the order asked for.
+   *
+   * @param telemed
+   *          the tele med instance to query
+   */
+  public static void validateMultiPatientQuery(TeleMed telemed) {
+    OffsetDateTime now = OffsetDateTime.now();
+    TeleObservation later = new TeleObservation("pid051", 130, 85);
+    TeleObservation earlier = new TeleObservation("pid051", 125, 80);
+    earlier.setTime(now.minusHours(2));
+    TeleObservation old = new TeleObservation("pid051", 160, 100);
+    old.setTime(now.minusDays(3));
+    telemed.processAndStore(later);
+    telemed.processAndStore(earlier);
+    telemed.processAndStore(old);
+    telemed.processAndStore(new TeleObservation("pid052", 140, 90));
+    telemed.processAndStore(new TeleObservation("pid053", 150, 95));
+
+    Map<String, List<TeleObservation>> result = telemed.getObservationsForPatients(
+        Arrays.asList("pid052", "pid051", "pid054", "pid051"),
+        now.minusDays(1), now.plusMinutes(1));
+
+    // each patient once, in the order asked for
+    assertThat(new ArrayList<>(result.keySet()), is(Arrays.asList("pid052", "pid051", "pid054")));
+    assertThat(result.get("pid052").size(), is(1));
+    assertThat(result.get("pid052").get(0).getSystolic().getValue(), is(140.0));
+    List<TeleObservation> pid051 = result.get("pid051");
+    assertThat(pid051.size(), is(2));
+    assertThat(pid051.get(0).getSystolic().getValue(), is(125.0));
+    assertThat(pid051.get(1).getSystolic().getValue(), is(130.0));
+    assertThat(result.get("pid054").size(), is(0));
+  }
+
+  @Test
+  public void shouldPageThroughObservations() {
+    validateObservationPaging(telemed);
+  }
+
+  @Test(expected = InvalidRequestException.class)
+  public void shouldRejectInvalidCursor() {
+    OffsetDateTime now = OffsetDateTime.now();
+    telemed.getObservationPage("pid044", now.minusDays(1), now, 10, "not-a-cursor");
+  }
+
+  /**
+   * Validate that pages of observations are read in time order, without
+   * skipping or repeating observations with the same time stamp.
+   *
+   * @param telemed
+   *          the tele med instance to query
+   */
+  public static void validateObservationPaging(TeleMed telemed) {
+    OffsetDateTime now = OffsetDateTime.now();
+    long base = now.toEpochSecond() - 3_600;
+    // stored out of time order, and with a time stamp shared by three
+    int[] minutes = { 5, 1, 3, 3, 2, 3, 4 };
+    for (int i = 0; i < minutes.length; i++) {
+      TeleObservation to = new TeleObservation("pid044", 100 + i, 60);
+      to.setTime(base + 60L * minutes[i], 0);
+      telemed.processAndStore(to);
+    }
+    TeleObservation old = new TeleObservation("pid044", 99, 60);
+    old.setTime(base - 86_400, 0);
+    telemed.processAndStore(old);
+
+    List<Double> systolic = new ArrayList<>();
+    int pages = 0;
+    String cursor = null;
+    do {
+      ObservationPage page = telemed.getObservationPage("pid044", now.minusHours(2), now,
+          2, cursor);
+      assertThat(page.getObservations().size() <= 2, is(true));
+      page.getObservations().forEach(to -> systolic.add(to.getSystolic().getValue()));
+      cursor = page.getNextCursor();
+      pages++;
+    } while (cursor != null);
+
+    assertThat(pages, is(4));
+    // in time order, and in storage order for the same time
+    assertThat(systolic, is(Arrays.asList(101.0, 104.0, 102.0, 103.0, 105.0,
+        106.0, 100.0)));
+
+    ObservationPage none = telemed.getObservationPage("pid045", now.minusHours(2), now,
+        2, null);
+    assertThat(none.getObservations().size(), is(0));
+    assertThat(none.hasNext(), is(false));
+  }
+
+  @Test
+  public void shouldComputeStatistics() {
+    validateStatistics(telemed);
+  }
+
+  /**
+   * Validate that statistics are computed per day and per week, only for
+   * the observations of the patient in the time interval.
+   *
+   * @param telemed
+   *          the tele med instance to query
+   */
+  public static void validateStatistics(TeleMed telemed) {
+    // Three observations at 1, 2, and 3 am (UTC) three days ago,
+    // and one the following day
+    long day = BucketSize.DAY.startOf(OffsetDateTime.now().toEpochSecond()) - 3 * 86_400;
+    storeAt(telemed, day + 3_600, Vitals.systolic(120), Vitals.diastolic(80));
+    storeAt(telemed, day + 7_200, Vitals.systolic(140), Vitals.diastolic(70));
+    storeAt(telemed, day + 10_800, Vitals.systolic(130), Vitals.diastolic(90),
+        Vitals.pulse(62));
+    storeAt(telemed, day + 86_400 + 3_600, Vitals.pulse(58));
+    // outside the interval, and for another patient
+    storeAt(telemed, day - 10 * 86_400, Vitals.systolic(200), Vitals.diastolic(120));
+    telemed.processAndStore(new TeleObservation("pid043", 210, 130));
+
+    List<ObservationStatistics> daily =
+        telemed.getStatisticsFor("pid042", TimeInterval.LAST_WEEK, BucketSize.DAY);
+    assertThat(daily.size(), is(2));
+
+    ObservationStatistics first = daily.get(0);
+    assertThat(first.getPatientId(), is("pid042"));
+    assertThat(first.getBucketSize(), is(BucketSize.DAY));
+    assertThat(first.getBucketStart().toEpochSecond(), is(day));
+    assertThat(first.getCount(), is(3));
+    QuantityStatistics systolic = first.getSystolic();
+    assertThat(systolic.getCount(), is(3));
+    assertThat(systolic.getMin(), is(120.0));
+    assertThat(systolic.getMax(), is(140.0));
+    assertThat(systolic.getMean(), is(130.0));
+    assertThat(systolic.getPercentile10(), is(120.0));
+    assertThat(systolic.getMedian(), is(130.0));
+    assertThat(systolic.getPercentile90(), is(140.0));
+    assertThat(first.getDiastolic().getMean(), is(80.0));
+
+    // a day with observations but no blood pressure
+    ObservationStatistics second = daily.get(1);
+    assertThat(second.getBucketStart().toEpochSecond(), is(day + 86_400));
+    assertThat(second.getCount(), is(1));
+    assertThat(second.getSystolic(), is(nullValue()));
+
+    // the same observations in weeks, which may be one or two
+    List<ObservationStatistics> weekly =
+        telemed.getStatisticsFor("pid042", TimeInterval.LAST_WEEK, BucketSize.WEEK);
+    int count = 0;
+    for (ObservationStatistics statistics : weekly) {
+      assertThat(statistics.getBucketStart().getDayOfWeek(), is(DayOfWeek.MONDAY));
+      count += statistics.getCount();
+    }
+    assertThat(count, is(4));
+
+    assertThat(telemed.getStatisticsFor("pid042", TimeInterval.LAST_DAY, BucketSize.DAY).size(),
+        is(0));
+  }
+
+  private static void storeAt(TeleMed telemed, long epochSecond, ClinicalQuantity... vitals) {
+    TeleObservation to = new TeleObservation("pid042", vitals);
+    to.setTime(epochSecond, 0);
+    telemed.processAndStore(to);
+  }
+
   /**
    * Validate that queries spanning different time intervals produce the
    * expected results.
@@ -286,6 +528,23 @@ public class TestTeleMedServant {
                     0, "effectiveTime", "ClinicalDocument", doc));
   }
   
+  @Test
+  public void shouldStoreAndRetrieveAllVitals() {
+    TeleObservation to = new TeleObservation("pid001",
+        Vitals.systolic(131), Vitals.diastolic(82), Vitals.pulse(64),
+        Vitals.oxygenSaturation(97), Vitals.weight(81.5), Vitals.glucose(5.6));
+    String id = telemed.processAndStore(to);
+
+    TeleObservation stored = telemed.getObservation(id);
+    assertThat(stored.getQuantities(), is(to.getQuantities()));
+    assertThat(stored.getQuantity(Vitals.PULSE_CODE).getValue(), is(64.0));
+    assertThat(stored.getQuantity(Vitals.WEIGHT_CODE).getUnit(), is("kg"));
+
+    List<TeleObservation> list = telemed.getObservationsFor("pid001", TimeInterval.LAST_DAY);
+    assertThat(list.get(0).getQuantityCount(), is(6));
+    assertThat(list.get(0).getSystolic().getValue(), is(131.0));
+  }
+
   @Test
   public void shouldSupportModificationMethods() {
     validateModificationMethods(telemed);
@@ -20,11 +20,17 @@ package telemed.storage;
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import java.time.OffsetDateTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 import org.junit.Test;
 import org.w3c.dom.Document;
 
 import telemed.server.*;
-import telemed.domain.TeleObservation;
+import telemed.domain.*;
 import telemed.doubles.FakeObjectXDSDatabase;
 
 /**
@@ -87,6 +93,151 @@ public class TestFakeXDS {
     assertThat(stored, is(nullValue()));
   }
   
+  @Test
+  public void shouldStreamSameDocumentsAsDocumentSet() {
+    xds = new FakeObjectXDSDatabase();
+    buildMdAndHl7For(new TeleObservation("bjarne", 128.0, 89.0));
+    xds.provideAndRegisterDocument(md, hl7);
+    buildMdAndHl7For(new TeleObservation("bjarne", 132.0, 91.0));
+    xds.provideAndRegisterDocument(md, hl7);
+    buildMdAndHl7For(new TeleObservation("ole", 140.0, 95.0));
+    xds.provideAndRegisterDocument(md, hl7);
+
+    OffsetDateTime now = OffsetDateTime.now();
+    List<Document> streamed;
+    try (Stream<Document> stream =
+                 xds.retriveDocumentStream("bjarne", now.minusDays(1), now)) {
+      streamed = stream.collect(Collectors.toList());
+    }
+    assertThat(streamed.size(), is(2));
+    assertThat(streamed, is(xds.retriveDocumentSet("bjarne", now.minusDays(1), now)));
+  }
+
+  @Test
+  public void shouldStoreRecordsAlongsideHL7() {
+    xds = new FakeObjectXDSDatabase();
+    TeleObservation to = new TeleObservation("bjarne", 128.0, 89.0);
+    buildMdAndHl7For(to);
+    ObservationRecordBuilder recordBuilder = new ObservationRecordBuilder();
+    Director.construct(to, recordBuilder);
+    String uniqueId = xds.provideAndRegisterObservation(md,
+        XMLUtility.convertXMLDocumentToString(hl7), recordBuilder.getResult());
+
+    // the record is available, exact to the nano second
+    ObservationRecord record = xds.retriveRecord(uniqueId);
+    assertThat(record.getTime(), is(to.getTime()));
+    assertThat(record.getCode(1), is("MSC88020"));
+    assertThat(record.getValue(1), is(89.0));
+    // and so is the HL7 document
+    assertThat(XMLUtility.getValueOfAttrNamedInNodeIndexNamedEnclosedInNodeInDoc("value",
+            0, "value", "observation", xds.retriveDocument(uniqueId)),
+        is("128.0"));
+  }
+
+  @Test
+  public void shouldDeriveRecordsForDocumentsStoredWithout() {
+    xds = new FakeObjectXDSDatabase();
+    TeleObservation to = new TeleObservation("bjarne", 128.0, 89.0);
+    buildMdAndHl7For(to);
+    xds.provideAndRegisterDocument(md, hl7);
+
+    OffsetDateTime now = OffsetDateTime.now();
+    List<ObservationRecord> records;
+    try (Stream<ObservationRecord> stream =
+                 xds.retriveRecordStream("bjarne", now.minusDays(1), now)) {
+      records = stream.collect(Collectors.toList());
+    }
+    assertThat(records.size(), is(1));
+    TeleObservation read = records.get(0).toTeleObservation();
+    assertThat(read.getPatientId(), is("bjarne"));
+    assertThat(read.getSystolic().getValue(), is(128.0));
+    assertThat(read.getTime(), is(to.getTime()));
+  }
+
+  @Test
+  public void shouldKeepStatisticsIndexUpToDate() {
+    xds = new FakeObjectXDSDatabase();
+    buildMdAndHl7For(new TeleObservation("bjarne", 128.0, 89.0));
+    String uniqueId = xds.provideAndRegisterDocument(md, hl7);
+    TeleObservation to = new TeleObservation("bjarne", 132.0, 85.0);
+    to.setTime(to.getTime().minusSeconds(1));
+    buildMdAndHl7For(to);
+    xds.provideAndRegisterDocument(md, hl7);
+
+    OffsetDateTime now = OffsetDateTime.now();
+    List<ObservationStatistics> statistics =
+        xds.retriveStatistics("bjarne", now.minusDays(1), now, BucketSize.WEEK);
+    int count = statistics.stream().mapToInt(ObservationStatistics::getCount).sum();
+    assertThat(count, is(2));
+
+    // deletions are reflected in the statistics
+    xds.correctSerializedDocument(uniqueId, XDSBackend.Operation.DELETE, null);
+    statistics = xds.retriveStatistics("bjarne", now.minusDays(1), now, BucketSize.WEEK);
+    assertThat(statistics.size(), is(1));
+    assertThat(statistics.get(0).getSystolic().getMax(), is(132.0));
+  }
+
+  @Test
+  public void shouldPageByOffsetByDefault() {
+    // Only the abstract methods, so the default paging is used
+    FakeObjectXDSDatabase fake = new FakeObjectXDSDatabase();
+    xds = new XDSBackend() {
+      public String provideAndRegisterDocument(MetaData metaData, Document doc) {
+        return fake.provideAndRegisterDocument(metaData, doc);
+      }
+      public List<Document> retriveDocumentSet(String personID, OffsetDateTime start,
+                                               OffsetDateTime end) {
+        return fake.retriveDocumentSet(personID, start, end);
+      }
+      public Document retriveDocument(String uniqueId) {
+        return fake.retriveDocument(uniqueId);
+      }
+      public boolean correctDocument(String uniqueId, Operation operation, Document doc) {
+        return fake.correctDocument(uniqueId, operation, doc);
+      }
+    };
+    for (int i = 0; i < 3; i++) {
+      TeleObservation to = new TeleObservation("bjarne", 120.0 + i, 80.0);
+      to.setTime(to.getTime().minusMinutes(i));
+      buildMdAndHl7For(to);
+      xds.provideAndRegisterDocument(md, hl7);
+    }
+
+    OffsetDateTime now = OffsetDateTime.now();
+    RecordPage page = xds.retriveRecordPage("bjarne", now.minusDays(1), now, 2, null);
+    assertThat(page.getRecords().size(), is(2));
+    assertThat(page.getRecords().get(0).getValue(0), is(122.0));
+    page = xds.retriveRecordPage("bjarne", now.minusDays(1), now, 2, page.getNextCursor());
+    assertThat(page.getRecords().size(), is(1));
+    assertThat(page.getRecords().get(0).getValue(0), is(120.0));
+    assertThat(page.getNextCursor(), is(nullValue()));
+  }
+
+  @Test
+  public void shouldExcludeStartOfTimeRange() {
+    xds = new FakeObjectXDSDatabase();
+    TeleObservation to = new TeleObservation("bjarne", 128.0, 89.0);
+    buildMdAndHl7For(to);
+    xds.provideAndRegisterDocument(md, hl7);
+
+    // Time ranges are ]start;end], as in the MongoDB adapters
+    OffsetDateTime at = to.getTime();
+    OffsetDateTime end = at.plusMinutes(1);
+    assertThat(xds.retriveRecordStream("bjarne", at, end).count(), is(0L));
+    assertThat(xds.retriveRecordPage("bjarne", at, end, 10, null).getRecords().size(), is(0));
+    assertThat(xds.retriveStatistics("bjarne", at, end, BucketSize.DAY).size(), is(0));
+    assertThat(xds.retriveRecordsForPersons(Collections.singletonList("bjarne"), at, end).get("bjarne").size(),
+        is(0));
+
+    // and the end is inclusive
+    OffsetDateTime before = at.minusNanos(1_000_000);
+    assertThat(xds.retriveRecordStream("bjarne", before, at).count(), is(1L));
+    assertThat(xds.retriveRecordPage("bjarne", before, at, 10, null).getRecords().size(), is(1));
+    assertThat(xds.retriveStatistics("bjarne", before, at, BucketSize.DAY).size(), is(1));
+    assertThat(xds.retriveRecordsForPersons(Collections.singletonList("bjarne"), before, at).get("bjarne").size(),
+        is(1));
+  }
+
   private void buildMdAndHl7For(TeleObservation to) {
     MetadataBuilder mdBuilder = new MetadataBuilder();
     Director.construct(to, mdBuilder);
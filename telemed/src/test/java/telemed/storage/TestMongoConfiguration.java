@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018-2021. Henrik Bærbak Christensen, Aarhus University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *
+ * You may obtain a copy of the License at
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package telemed.storage;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.connection.ClusterId;
+import com.mongodb.connection.ConnectionId;
+import com.mongodb.connection.ServerId;
+import com.mongodb.event.*;
+
+/**
+ * Test the configuration model of the MongoDB adapters, and the
+ * pool metrics they collect. No MongoDB server is required.
+ */
+public class TestMongoConfiguration {
+
+  private Properties properties;
+  private Map<String, String> environment;
+
+  @Before
+  public void setup() {
+    properties = new Properties();
+    environment = new HashMap<>();
+  }
+
+  @Test
+  public void shouldUseDefaultsWhenNothingIsConfigured() {
+    MongoConfiguration config = MongoConfiguration.from(properties, environment);
+    assertThat(config.getMaxPoolSize(), is(100));
+    assertThat(config.getMinPoolSize(), is(0));
+    assertThat(config.getBatchSize(), is(MongoXDSAdapter.DEFAULT_BATCH_SIZE));
+    assertThat(config.getReadPreference(), is(ReadPreference.primary()));
+    assertThat(config.getWriteConcern(), is(WriteConcern.ACKNOWLEDGED));
+  }
+
+  @Test
+  public void shouldReadPropertiesAndLetEnvironmentOverride() {
+    properties.setProperty(MongoConfiguration.MAX_POOL_SIZE, "20");
+    properties.setProperty(MongoConfiguration.MIN_POOL_SIZE, "5");
+    properties.setProperty(MongoConfiguration.SOCKET_TIMEOUT_MS, "3000");
+    properties.setProperty(MongoConfiguration.READ_PREFERENCE, "secondaryPreferred");
+    properties.setProperty(MongoConfiguration.WRITE_CONCERN, "MAJORITY");
+    environment.put("TELEMED_MONGO_MAX_POOL_SIZE", "40");
+    environment.put("TELEMED_MONGO_WAIT_QUEUE_TIMEOUT_MS", "250");
+
+    MongoConfiguration config = MongoConfiguration.from(properties, environment);
+    assertThat(config.getMaxPoolSize(), is(40));
+    assertThat(config.getMinPoolSize(), is(5));
+    assertThat(config.getWaitQueueTimeoutMs(), is(250));
+    assertThat(config.getSocketTimeoutMs(), is(3000));
+    assertThat(config.getReadPreference(), is(ReadPreference.secondaryPreferred()));
+    assertThat(config.getWriteConcern(), is(WriteConcern.MAJORITY));
+
+    MongoClientSettings settings = config.toClientSettings(new MongoPoolMetrics()).build();
+    assertThat(settings.getConnectionPoolSettings().getMaxSize(), is(40));
+    assertThat(settings.getConnectionPoolSettings().getMinSize(), is(5));
+    assertThat(settings.getConnectionPoolSettings().getMaxWaitTime(TimeUnit.MILLISECONDS),
+        is(250L));
+    assertThat(settings.getSocketSettings().getReadTimeout(TimeUnit.MILLISECONDS), is(3000));
+  }
+
+  @Test
+  public void shouldDeriveEnvironmentNames() {
+    assertThat(MongoConfiguration.asEnvironmentName(MongoConfiguration.BATCH_SIZE),
+        is("TELEMED_MONGO_BATCH_SIZE"));
+    assertThat(MongoConfiguration.asEnvironmentName(MongoConfiguration.CONNECT_TIMEOUT_MS),
+        is("TELEMED_MONGO_CONNECT_TIMEOUT_MS"));
+  }
+
+  @Test(expected = XDSException.class)
+  public void shouldRejectMalformedNumbers() {
+    properties.setProperty(MongoConfiguration.MAX_POOL_SIZE, "many");
+    MongoConfiguration.from(properties, environment);
+  }
+
+  @Test
+  public void shouldCountCheckedOutConnectionsAndWaits() {
+    MongoPoolMetrics metrics = new MongoPoolMetrics();
+    ServerId serverId = new ServerId(new ClusterId(), new ServerAddress());
+    ConnectionId connectionId = new ConnectionId(serverId);
+
+    metrics.connectionCreated(new ConnectionCreatedEvent(connectionId));
+    metrics.connectionCheckOutStarted(new ConnectionCheckOutStartedEvent(serverId));
+    assertThat(metrics.getWaitQueueSize(), is(1));
+    metrics.connectionCheckedOut(new ConnectionCheckedOutEvent(connectionId));
+
+    assertThat(metrics.getPoolSize(), is(1));
+    assertThat(metrics.getCheckedOut(), is(1));
+    assertThat(metrics.getWaitQueueSize(), is(0));
+    assertThat(metrics.getCheckOutCount(), is(1L));
+    assertThat(metrics.toString(), containsString("checkedOut=1"));
+
+    metrics.connectionCheckedIn(new ConnectionCheckedInEvent(connectionId));
+    assertThat(metrics.getCheckedOut(), is(0));
+  }
+
+  @Test
+  public void shouldEndWaitsOnFailedCheckOuts() {
+    MongoPoolMetrics metrics = new MongoPoolMetrics();
+    ServerId serverId = new ServerId(new ClusterId(), new ServerAddress());
+
+    metrics.connectionCheckOutStarted(new ConnectionCheckOutStartedEvent(serverId));
+    metrics.connectionCheckOutFailed(new ConnectionCheckOutFailedEvent(serverId,
+        ConnectionCheckOutFailedEvent.Reason.TIMEOUT));
+
+    assertThat(metrics.getWaitQueueSize(), is(0));
+    assertThat(metrics.getCheckedOut(), is(0));
+    assertThat(metrics.getCheckOutCount(), is(0L));
+    assertThat(metrics.toString(), containsString("waitQueueSize=0"));
+  }
+}